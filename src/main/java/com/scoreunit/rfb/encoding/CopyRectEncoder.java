@@ -0,0 +1,57 @@
+package com.scoreunit.rfb.encoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 'The RFB Protocol' documentation, page 34,
+ * by Tristan Richardson, RealVNC Ltd.
+ * <p>
+ * The CopyRect (copy rectangle) encoding is a very simple and efficient encoding which can be used
+ * when the client already has the same pixel data elsewhere in its framebuffer. The encoding on
+ * the wire simply consists of an X,Y coordinate. This gives a position in the framebuffer from
+ * which the client can copy the rectangle of pixel data.
+ * <p>
+ * This is not an image encoder, see {@link EncodingInterface}, and it is not returned by
+ * {@link Encodings#newInstance(int)}. Source position is found by comparing previous and current
+ * screen image, eg. when window is moved or content of window is scrolled.
+ * <p>
+ * This encoder is stateless.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class CopyRectEncoder {
+
+	private CopyRectEncoder() {
+
+		// No need for instance of this class.
+	}
+
+	/**
+	 * Encode source position of rectangle.
+	 *
+	 * @param srcX		-	x position of source rectangle, in client frame buffer
+	 * @param srcY		-	y position of source rectangle, in client frame buffer
+	 *
+	 * @return	encoded data, 4 bytes
+	 */
+	public static byte[] encode(final int srcX, final int srcY) {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(4);
+
+		buffer.putShort((short) srcX);
+		buffer.putShort((short) srcY);
+
+		return buffer.array();
+	}
+
+	/**
+	 * An encoding type value.
+	 *
+	 * @return	{@link Encodings#COPY_RECT}
+	 */
+	public static int getType() {
+
+		return Encodings.COPY_RECT;
+	}
+}
@@ -0,0 +1,124 @@
+package com.scoreunit.rfb.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable buffer, where encoders write encoded rectangles, see {@link EncodingInterface#encodeTo(com.scoreunit.rfb.image.TrueColorImage, com.scoreunit.rfb.service.SetPixelFormat, EncodeBuffer)}.
+ * <p>
+ * Data is kept in heap {@link ByteBuffer}, in big-endian byte order, same as on the wire.
+ * Before writing, encoder should invoke {@link #ensureRemaining(int)}, and use
+ * returned buffer, since buffer is replaced with larger one when there is no room left.
+ * <p>
+ * Buffer is reused for many rectangles, see {@link EncodeBufferPool}.
+ * <p>
+ * This object is not thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class EncodeBuffer {
+
+	private ByteBuffer buffer;
+
+	/**
+	 * Create new buffer.
+	 *
+	 * @param initialCapacity	-	initial capacity in bytes, buffer grows as needed
+	 */
+	public EncodeBuffer(final int initialCapacity) {
+
+		this.buffer = ByteBuffer.allocate(Math.max(16, initialCapacity));
+	}
+
+	/**
+	 * Make sure that there is room for given number of bytes, after current position.
+	 *
+	 * @param count		-	number of bytes that are going to be written
+	 *
+	 * @return	buffer, with at least <i>count</i> bytes remaining
+	 */
+	public ByteBuffer ensureRemaining(final int count) {
+
+		if (this.buffer.remaining() < count) {
+
+			final int position = this.buffer.position();
+
+			final int capacity = (int) Math.min(Integer.MAX_VALUE - 8
+					, Math.max((long) position + count, 2L * this.buffer.capacity()));
+
+			final ByteBuffer newBuffer = ByteBuffer.wrap(Arrays.copyOf(this.buffer.array(), capacity));
+			newBuffer.position(position);
+
+			this.buffer = newBuffer;
+		}
+
+		return this.buffer;
+	}
+
+	/**
+	 * @return	current buffer, with encoded data up to its position
+	 */
+	public ByteBuffer buffer() {
+
+		return this.buffer;
+	}
+
+	/**
+	 * Append bytes.
+	 *
+	 * @param src		-	source array
+	 * @param offset	-	offset in source array
+	 * @param length	-	number of bytes
+	 */
+	public void put(final byte[] src, final int offset, final int length) {
+
+		ensureRemaining(length).put(src, offset, length);
+	}
+
+	/**
+	 * @return	number of bytes written so far
+	 */
+	public int length() {
+
+		return this.buffer.position();
+	}
+
+	/**
+	 * @return	size of underlying array
+	 */
+	public int capacity() {
+
+		return this.buffer.capacity();
+	}
+
+	/**
+	 * Discard written data. Underlying array is kept.
+	 */
+	public void clear() {
+
+		this.buffer.clear();
+	}
+
+	/**
+	 * Write all data to output stream, without any copy.
+	 *
+	 * @param out	-	output stream, eg. of VNC client socket
+	 *
+	 * @throws IOException	if writing fails
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+
+		out.write(this.buffer.array(), 0, this.buffer.position());
+	}
+
+	/**
+	 * @return	copy of written data
+	 */
+	public byte[] toByteArray() {
+
+		return Arrays.copyOf(this.buffer.array(), this.buffer.position());
+	}
+}
@@ -0,0 +1,83 @@
+package com.scoreunit.rfb.encoding;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of {@link EncodeBuffer} objects, so encoded rectangles do not need new array each time.
+ * <p>
+ * Buffer is taken with {@link #acquire()}, and given back with {@link #release(EncodeBuffer)},
+ * once its data is written to VNC client. Pool keeps limited number of buffers,
+ * and very large buffers are left to garbage collector, so single full screen update
+ * does not hold memory for whole session.
+ * <p>
+ * This object is thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class EncodeBufferPool {
+
+	/**
+	 * Initial capacity of new buffer.
+	 */
+	public final static int INITIAL_CAPACITY = 64 * 1024;
+
+	/**
+	 * Max. number of buffers kept in pool.
+	 */
+	public final static int MAX_POOLED = 16;
+
+	/**
+	 * Buffers larger than this are not kept in pool.
+	 */
+	public final static int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+
+	private final BlockingQueue<EncodeBuffer> buffers;
+
+	public EncodeBufferPool() {
+
+		this.buffers = new ArrayBlockingQueue<>(MAX_POOLED);
+	}
+
+	/**
+	 * Take buffer from pool, or create new one if pool is empty.
+	 *
+	 * @return	empty buffer
+	 */
+	public EncodeBuffer acquire() {
+
+		final EncodeBuffer buffer = this.buffers.poll();
+
+		if (buffer == null) {
+
+			return new EncodeBuffer(INITIAL_CAPACITY);
+		}
+
+		buffer.clear();
+
+		return buffer;
+	}
+
+	/**
+	 * Give buffer back to pool. Buffer should not be used after this.
+	 *
+	 * @param buffer	-	buffer obtained with {@link #acquire()}
+	 */
+	public void release(final EncodeBuffer buffer) {
+
+		if (buffer != null && buffer.capacity() <= MAX_POOLED_CAPACITY) {
+
+			// If pool is full, buffer is dropped.
+			this.buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * @return	number of buffers in pool
+	 */
+	public int size() {
+
+		return this.buffers.size();
+	}
+}
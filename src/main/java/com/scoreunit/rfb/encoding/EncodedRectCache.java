@@ -0,0 +1,298 @@
+package com.scoreunit.rfb.encoding;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+/**
+ * Cache of encoded rectangles, shared by all VNC client sessions.
+ * <p>
+ * When several VNC clients watch same screen, with same pixel format and encoding,
+ * each changed rectangle is encoded once, and other sessions copy encoded data from cache.
+ * Key is 64-bit hash of rectangle pixels, its size, pixel format, encoding type, and compression and quality level.
+ * <p>
+ * Only reusable data is cached, see {@link EncodingInterface#isReusable()}: data of stateless encoders, eg. Raw and Hextile,
+ * and Tight rectangles with fill or JPEG compression. Other data of stateful encoder depends on zlib stream of each session.
+ * Least recently used rectangles are evicted, once total size of encoded data exceeds capacity.
+ * <p>
+ * This object is thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class EncodedRectCache {
+
+	/**
+	 * Default capacity, in bytes of encoded data.
+	 */
+	public final static long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+	/**
+	 * Approx. memory used by single entry, beside encoded data.
+	 */
+	final static int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Constants of 64-bit hash, same as used by <i>xxHash</i>.
+	 */
+	private final static long PRIME_1 = 0x9E3779B185EBCA87L
+			, PRIME_2 = 0xC2B2AE3D27D4EB4FL
+			, PRIME_3 = 0x165667B19E3779F9L;
+
+	/**
+	 * Max. total size of entries, in bytes.
+	 */
+	private final long capacity;
+
+	/**
+	 * Entries in access order, least recently used first.
+	 */
+	private final LinkedHashMap<Key, byte[]> entries;
+
+	/**
+	 * Total size of entries, in bytes.
+	 */
+	private long size;
+
+	private long hits, misses;
+
+	/**
+	 * Create new cache.
+	 *
+	 * @param capacity	-	max. size of encoded data in bytes, single rectangle is cached only if it takes up to 1/8 of capacity
+	 */
+	public EncodedRectCache(final long capacity) {
+
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<>(256, 0.75f, true);
+
+		this.size = 0;
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Encode image, same as {@link EncodingInterface#encodeTo(TrueColorImage, SetPixelFormat, EncodeBuffer)},
+	 * or copy encoded data from cache, if same image was already encoded with same settings.
+	 *
+	 * @param encoder			-	encoder, only its reusable data is cached, see {@link EncodingInterface#mayBeReusable()}
+	 * @param image				-	an 32-bit ARGB image, or part of image
+	 * @param pixelFormat		-	desired pixel format, it should not be modified later
+	 * @param compressionLevel	-	compression level set to encoder, or -1
+	 * @param qualityLevel		-	JPEG quality level set to encoder, or -1
+	 * @param out				-	buffer where to write encoded data
+	 */
+	public void encodeTo(final EncodingInterface encoder, final TrueColorImage image, final SetPixelFormat pixelFormat
+			, final int compressionLevel, final int qualityLevel, final EncodeBuffer out) {
+
+		if (encoder.mayBeReusable() == false) {
+
+			// Eg. ZRLE or Zlib data, which always depends on zlib stream of session.
+			encoder.encodeTo(image, pixelFormat, out);
+
+			return;
+		}
+
+		final Key key = new Key(hash(image), image.width, image.height, pixelFormat
+				, encoder.getType(), compressionLevel, qualityLevel);
+
+		final byte[] cached = get(key);
+
+		if (cached != null) {
+
+			out.put(cached, 0, cached.length);
+
+			return;
+		}
+
+		final int start = out.length();
+
+		encoder.encodeTo(image, pixelFormat, out);
+
+		final int length = out.length() - start;
+
+		if (encoder.isReusable() == true && length + ENTRY_OVERHEAD <= this.capacity / 8) {
+
+			final byte[] encoded = new byte[length];
+			System.arraycopy(out.buffer().array(), start, encoded, 0, length);
+
+			put(key, encoded);
+		}
+	}
+
+	/**
+	 * Fast 64-bit hash of image pixels, and its size.
+	 *
+	 * @param image	-	an 32-bit ARGB image
+	 *
+	 * @return	hash value
+	 */
+	public static long hash(final TrueColorImage image) {
+
+		long hash = PRIME_3 + image.width * PRIME_1 + image.height;
+
+		final int[] raw = image.raw;
+		final int length = image.width * image.height;
+
+		for (int i = 0 ; i < length ; i++) {
+
+			hash = Long.rotateLeft(hash ^ ((raw[i] & 0xFFFFFFFFL) * PRIME_1), 27) * PRIME_2;
+		}
+
+		// Final mix, so each input bit affects all bits of hash.
+		hash ^= hash >>> 33;
+		hash *= PRIME_2;
+		hash ^= hash >>> 29;
+		hash *= PRIME_3;
+		hash ^= hash >>> 32;
+
+		return hash;
+	}
+
+	private synchronized byte[] get(final Key key) {
+
+		final byte[] encoded = this.entries.get(key);
+
+		if (encoded != null) {
+
+			this.hits++;
+		}
+		else {
+
+			this.misses++;
+		}
+
+		return encoded;
+	}
+
+	private synchronized void put(final Key key, final byte[] encoded) {
+
+		final byte[] previous = this.entries.put(key, encoded);
+
+		if (previous != null) {
+
+			this.size -= previous.length + ENTRY_OVERHEAD;
+		}
+
+		this.size += encoded.length + ENTRY_OVERHEAD;
+
+		final Iterator<Map.Entry<Key, byte[]>> iterator = this.entries.entrySet().iterator();
+
+		while (this.size > this.capacity && iterator.hasNext() == true) {
+
+			this.size -= iterator.next().getValue().length + ENTRY_OVERHEAD;
+
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void clear() {
+
+		this.entries.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * @return	max. size of entries, in bytes
+	 */
+	public long getCapacity() {
+
+		return this.capacity;
+	}
+
+	/**
+	 * @return	size of entries, in bytes
+	 */
+	public synchronized long getSize() {
+
+		return this.size;
+	}
+
+	/**
+	 * @return	number of cached rectangles
+	 */
+	public synchronized int getEntries() {
+
+		return this.entries.size();
+	}
+
+	/**
+	 * @return	number of rectangles copied from cache
+	 */
+	public synchronized long getHits() {
+
+		return this.hits;
+	}
+
+	/**
+	 * @return	number of rectangles encoded, since they were not in cache
+	 */
+	public synchronized long getMisses() {
+
+		return this.misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("%d rectangles, %d KB of %d KB, hits %d, misses %d"
+				, this.entries.size(), this.size / 1024, this.capacity / 1024, this.hits, this.misses);
+	}
+
+	/**
+	 * Cache key: hash of pixels, and encoding settings.
+	 */
+	private static class Key {
+
+		final long hash;
+
+		final int width, height;
+
+		final SetPixelFormat pixelFormat;
+
+		final int encodingType, compressionLevel, qualityLevel;
+
+		Key(final long hash, final int width, final int height, final SetPixelFormat pixelFormat
+				, final int encodingType, final int compressionLevel, final int qualityLevel) {
+
+			this.hash = hash;
+			this.width = width;
+			this.height = height;
+			this.pixelFormat = pixelFormat;
+			this.encodingType = encodingType;
+			this.compressionLevel = compressionLevel;
+			this.qualityLevel = qualityLevel;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Long.hashCode(this.hash) * 31 + this.encodingType;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+
+			if (obj instanceof Key == false) {
+
+				return false;
+			}
+
+			final Key other = (Key) obj;
+
+			return this.hash == other.hash
+					&& this.width == other.width
+					&& this.height == other.height
+					&& this.encodingType == other.encodingType
+					&& this.compressionLevel == other.compressionLevel
+					&& this.qualityLevel == other.qualityLevel
+					&& this.pixelFormat.equals(other.pixelFormat);
+		}
+	}
+}
@@ -33,10 +33,94 @@ public interface EncodingInterface {
 	 */
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat);
 
+	/**
+	 * Encode image, same as {@link #encode(TrueColorImage, SetPixelFormat)}, but append encoded data
+	 * to given buffer, after data already in buffer, eg. rectangle header.
+	 * <p>
+	 * This way encoded data is not copied again before it is written to VNC client.
+	 * Default implementation copies result of {@link #encode(TrueColorImage, SetPixelFormat)} method.
+	 *
+	 * @param image			-	an 32-bit ARGB image, or part of image
+	 * @param pixelFormat	-	desired pixel format
+	 * @param out			-	buffer where to write encoded data
+	 */
+	public default void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+
+		final byte[] encodedImage = encode(image, pixelFormat);
+
+		if (encodedImage != null) {
+
+			out.put(encodedImage, 0, encodedImage.length);
+		}
+	}
+
 	/**
 	 * An encoding type value, eg. {@link Encodings#RAW}, {@link Encodings#HEXTILE}, etc.
 	 * 
 	 * @return	encoding type value, depends on encoding algo.
 	 */
 	public int getType();
+
+	/**
+	 * Stateful encoder keeps state between invocations of {@link #encode(TrueColorImage, SetPixelFormat)} method,
+	 * eg. zlib stream which lives for whole RFB connection.
+	 * <p>
+	 * Rectangles should be encoded by stateful encoder one by one, in same order as they are sent to VNC client.
+	 * 
+	 * @return	true if encoder is stateful
+	 */
+	public default boolean isStateful() {
+		
+		return false;
+	}
+
+	/**
+	 * Check if data of last encoded rectangle does not depend on state of encoder,
+	 * so other sessions can reuse it, see {@link EncodedRectCache}. Eg. Tight fill or JPEG compression
+	 * does not use zlib stream of stateful Tight encoder.
+	 * <p>
+	 * Same image, with same pixel format and levels, must always be encoded into reusable data,
+	 * or never, so copy of reusable data can be sent instead of encoding it again.
+	 * 
+	 * @return	true if encoder is stateless, by default
+	 */
+	public default boolean isReusable() {
+		
+		return isStateful() == false;
+	}
+
+	/**
+	 * Check if encoder can produce reusable data at all, see {@link #isReusable()}.
+	 * If not, image is not looked up in {@link EncodedRectCache}, and its pixels are not hashed.
+	 * 
+	 * @return	true if encoder is stateless, by default
+	 */
+	public default boolean mayBeReusable() {
+		
+		return isStateful() == false;
+	}
+
+	/**
+	 * Set compression level, as requested by VNC client with one of pseudo-encodings
+	 * {@link Encodings#COMPRESS_LEVEL_0} ... {@link Encodings#COMPRESS_LEVEL_9}.
+	 * <p>
+	 * Encoder which does not use compression will ignore this value.
+	 * 
+	 * @param level		-	compression level 0 - 9, or -1 for default level
+	 */
+	public default void setCompressionLevel(final int level) {
+		
+	}
+
+	/**
+	 * Set JPEG quality level, as requested by VNC client with one of pseudo-encodings
+	 * {@link Encodings#JPEG_QUALITY_LEVEL_0} ... {@link Encodings#JPEG_QUALITY_LEVEL_9}.
+	 * <p>
+	 * Encoder which does not use JPEG compression will ignore this value.
+	 * 
+	 * @param level		-	quality level 0 - 9, or -1 for default quality
+	 */
+	public default void setQualityLevel(final int level) {
+		
+	}
 }
@@ -26,6 +26,35 @@ public class Encodings {
 			, RICH_CURSOR = -239;
 			;
 
+	/**
+	 * Pseudo-encodings for JPEG quality level and compression level, from 0 to 9.
+	 * VNC client sends one of each, to tell preferred trade-off between image quality,
+	 * bandwidth and CPU usage.
+	 */
+	public static final int JPEG_QUALITY_LEVEL_0 = -32
+			, JPEG_QUALITY_LEVEL_9 = -23
+			, COMPRESS_LEVEL_0 = -256
+			, COMPRESS_LEVEL_9 = -247
+			;
+
+	/**
+	 * Pseudo-encoding which tells that VNC client accepts frame buffer update with unknown number of rectangles.
+	 * Such update has number of rectangles set to 0xFFFF, and it ends with rectangle of this encoding type.
+	 */
+	public static final int LAST_RECT = -224;
+
+	/**
+	 * Pseudo-encoding which tells that VNC client supports continuous updates, see EnableContinuousUpdates
+	 * client message, and EndOfContinuousUpdates server message.
+	 */
+	public static final int CONTINUOUS_UPDATES = -313;
+
+	/**
+	 * Pseudo-encoding which tells that VNC client supports Fence messages, which are used
+	 * to synchronize with server, and to measure round-trip time.
+	 */
+	public static final int FENCE = -312;
+
 	private Encodings() {
 	
 		// No need for instance of this class.
@@ -33,6 +62,8 @@ public class Encodings {
 	
 	/**
 	 * Create new encoder for frame buffer.
+	 * <p>
+	 * Note that {@link #COPY_RECT} is not an image encoder, see {@link CopyRectEncoder}.
 	 * 
 	 * @param encodingType	-	one of {@link Encodings#RAW}, {@link Encodings#ZLIB} ...
 	 * 
@@ -65,6 +96,11 @@ public class Encodings {
 			return new TightEncoder();
 		}
 		
+		if (encodingType == ZRLE) {
+			
+			return new ZRLEEncoder();
+		}
+		
 		return null;
 	}
 
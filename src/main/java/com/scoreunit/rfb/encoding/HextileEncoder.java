@@ -1,9 +1,7 @@
 package com.scoreunit.rfb.encoding;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,10 +12,16 @@ import com.scoreunit.rfb.service.SetPixelFormat;
 /**
  * Hextile encoding divides image into 16x16 pixel tiles.
  * <p>
- * This implementation is very simple:<br>
- * It will turn image into tiles, check if tile is single-coloured
- * and if it is, then it will encode tile with 1 pixel, otherwise
- * it will encode as raw tile using {@link RawEncoder}.
+ * Each tile is encoded as:
+ * <ul>
+ * <li>single-coloured tile, with background colour only,</li>
+ * <li>two-coloured tile, eg. text, with background and foreground colour, and subrectangles of foreground colour,</li>
+ * <li>few-coloured tile, with background colour and coloured subrectangles,</li>
+ * <li>raw tile, only if raw pixels take less space than subrectangles.</li>
+ * </ul>
+ * Background and foreground colours are not sent again, if they are same as in previous tile.
+ * <p>
+ * This encoder is stateless. Colours are carried over between tiles of same rectangle only.
  * <p>
  *  
  * Ref.<br>
@@ -49,84 +53,318 @@ public class HextileEncoder implements EncodingInterface {
 			, MASK_SUBRECTS_COLOURED = 0b00010000
 			;
 	
-	private final RawEncoder rawEncoder;
-
 	/**
-	 * New Hextile encoder.
+	 * Hextile tile dimension in pixel, same for width and height.
 	 */
-	public HextileEncoder() {
-		
-		this.rawEncoder = new RawEncoder();
-	}
+	public final static int TILE_SIZE = 16;
 	
 	/**
-	 * This is simple hextile encoding implementation, that will
-	 * simply divide image into hex. tiles (16x16 pixel),
-	 * and write them continuously from upper left to bottom right,
-	 * in order.
-	 * 
+	 * Max. number of subrectangles in tile.
+	 */
+	private final static int MAX_SUBRECTS = 255;
+	
+	/**
+	 * Max. length of encoded tile: mask byte, background and foreground colour,
+	 * number of subrectangles, and coloured subrectangles.
+	 * Raw tile is shorter, since raw encoding is used only if it takes less space.
+	 */
+	private final static int MAX_TILE_LENGTH = 1 + 4 + 4 + 1 + MAX_SUBRECTS * (4 + 2);
+	
+	/**
+	 * Each tile is encoded, from upper left to bottom right of image, in order.
 	 */
 	@Override
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
 
-		final List<Tile> tiles = Tile.build(image);
+		final EncodeBuffer out = new EncodeBuffer(image.raw.length);
+		
+		encodeTo(image, pixelFormat, out);
+		
+		return out.toByteArray();
+	}
+
+	/**
+	 * Each tile is encoded directly into buffer.
+	 */
+	@Override
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
 
-		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		final DataOutputStream out = new DataOutputStream(bOut);
+		final byte bitsPerPixel = pixelFormat.bitsPerPixel;
 		
-		for (final Tile tile : tiles) {
+		if (bitsPerPixel != 8 && bitsPerPixel != 16 && bitsPerPixel != 32) {
+			
+			log.error("Hextile encoding problem. Unsupported bits per pixel value: " + bitsPerPixel);
+			
+			return;
+		}
+		
+		// Colours, carried over from previous tile.
+		final TileContext context = new TileContext(PixelConverter.of(pixelFormat));
+		
+		// Tiles at right and bottom edge of image might be smaller than 16x16 pixel.
+		for (int tileY = 0 ; tileY < image.height ; tileY += TILE_SIZE) {
+			
+			for (int tileX = 0 ; tileX < image.width ; tileX += TILE_SIZE) {
 			
-			try {
+				encodeTile(image, tileX, tileY
+						, Math.min(TILE_SIZE, image.width - tileX), Math.min(TILE_SIZE, image.height - tileY)
+						, pixelFormat, context, out.ensureRemaining(MAX_TILE_LENGTH));
+			}
+		}
+	}
+
+	/**
+	 * Encode single tile, up to 16x16 pixel.
+	 * 
+	 * @param image			-	source image
+	 * @param xPos			-	tile position
+	 * @param yPos			-	tile position
+	 * @param width			-	tile width
+	 * @param height		-	tile height
+	 * @param pixelFormat	-	desired pixel format
+	 * @param context		-	colours of previous tile, and scratch buffers
+	 * @param out			-	where to write encoded tile, with room for {@link #MAX_TILE_LENGTH} bytes
+	 */
+	private void encodeTile(final TrueColorImage image, final int xPos, final int yPos, final int width, final int height
+			, final SetPixelFormat pixelFormat, final TileContext context, final ByteBuffer out) {
+		
+		final byte bitsPerPixel = pixelFormat.bitsPerPixel;
+		
+		final int bytesPerPixel = bitsPerPixel / 8;
+		
+		//
+		// Use pixel converter with pixel format provided. This covers case when
+		// VNC client requests 8-bit color mode, while source image is 32-bit color image.
+		// Pixels are compared after transformation, since different source colours might give same pixel value.
+		//
+		
+		final int[] pixels = context.pixels;
+		final int count = width * height;
+		
+		for (int y = 0 ; y < height ; y++) {
+			
+			context.converter.convert(image.raw, xPos + (yPos + y) * image.width, pixels, y * width, width);
+		}
+		
+		//
+		// Count colours: one, two or more.
+		//
+		
+		final int color0 = pixels[0];
+		int color1 = 0, count0 = 0, count1 = 0;
+		boolean moreColors = false;
+		
+		for (int i = 0 ; i < count ; i++) {
+			
+			final int pixel = pixels[i];
+			
+			if (pixel == color0) {
 				
-				final Integer singlePixelValue = singlePixelTile(tile);
+				count0++;
+			}
+			else if (count1 == 0 || pixel == color1) {
 				
-				if (singlePixelValue != null) {
-					
-					// When mask byte has background bit set,
-					// tile consists of single colour. All pixels have same value. 
-					byte subencodingMask = MASK_BACKGROUND_SPECIFIED;
-					
-					out.write(subencodingMask);
-					
-					// Use pixel transform routing with pixel format provided. This covers case when
-					// VNC client requests 8-bit color mode, while source image is 32-bit color image.					
-					final byte bitsPerPixel = pixelFormat.bitsPerPixel;
-					
-					if (bitsPerPixel == 8) {
-					
-						out.writeByte(PixelTransform.transform(singlePixelValue, pixelFormat));
-					}
-					else if (bitsPerPixel == 16) {
-						
-						out.writeShort(PixelTransform.transform(singlePixelValue, pixelFormat));
-					}
-					else if (bitsPerPixel == 32) {
-						
-						out.writeInt(PixelTransform.transform(singlePixelValue, pixelFormat));
-					}
-					else {
-						
-						log.error("Unsupported bits per pixel value: " + bitsPerPixel);
-						
-						break;
-					}
-				}
-				else {
-					
-					byte subencodingMask = MASK_RAW;
-					
-					// If tile contains more colours, then use raw encoding of tile. 
-					out.write(subencodingMask);
-					out.write(rawEncoder.encode(new TrueColorImage(tile.raw(), tile.width, tile.height), pixelFormat));
-				}
+				color1 = pixel;
+				count1++;
+			}
+			else {
+				
+				moreColors = true;
+			}
+		}
+		
+		if (count1 == 0) {
+			
+			//
+			// When mask byte has background bit set,
+			// tile consists of single colour. All pixels have same value.
+			// If background is same as in previous tile, it is not sent again.
+			//
+			
+			if (context.backgroundValid == true && context.background == color0) {
+				
+				out.put((byte) 0);
+			}
+			else {
+				
+				out.put(MASK_BACKGROUND_SPECIFIED);
+				writePixel(out, color0, bitsPerPixel);
+				
+				context.background = color0;
+				context.backgroundValid = true;
+			}
+			
+			return;
+		}
+		
+		//
+		// Most frequent colour is background.
+		//
+		
+		final int background;
+		
+		if (moreColors == false) {
+			
+			background = (count0 > count1 || (count0 == count1 && context.backgroundValid == true && context.background == color0)) 
+					? color0 : color1;
+		}
+		else {
+			
+			background = mostFrequent(pixels, count, context.sorted);
+		}
+		
+		final boolean monochrome = (moreColors == false);
+		final int foreground = (background == color0) ? color1 : color0;
+		
+		final boolean sendBackground = (context.backgroundValid == false || context.background != background);
+		final boolean sendForeground = monochrome == true && (context.foregroundValid == false || context.foreground != foreground);
+		
+		//
+		// Find subrectangles of non-background colour. Stop when raw tile would be smaller.
+		//
+		
+		final int rawSize = count * bytesPerPixel;
+		final int subrectSize = monochrome ? 2 : bytesPerPixel + 2;
+		
+		int size = 1 + (sendBackground ? bytesPerPixel : 0) + (sendForeground ? bytesPerPixel : 0);
+		
+		final boolean[] covered = context.covered;
+		Arrays.fill(covered, 0, count, false);
+		
+		final int[] subrects = context.subrects;
+		int subrectCount = 0;
+		
+		boolean raw = false;
+		
+		for (int index = 0 ; index < count && raw == false ; index++) {
+			
+			final int color = pixels[index];
+			
+			if (color == background || covered[index] == true) {
+				
+				continue;
+			}
+			
+			final int x = index % width, y = index / width;
+			
+			// Extend subrectangle to the right, and then down.
+			int w = 1;
+			while (x + w < width && isSubrect(pixels, covered, width, x + w, y, 1, 1, color) == true) {
+				
+				w++;
+			}
+			
+			int h = 1;
+			while (y + h < height && isSubrect(pixels, covered, width, x, y + h, w, 1, color) == true) {
+				
+				h++;
 			}
-			catch (final IOException ex) {
+			
+			// Extend subrectangle down, and then to the right. Keep larger one.
+			int vh = 1;
+			while (y + vh < height && isSubrect(pixels, covered, width, x, y + vh, 1, 1, color) == true) {
+				
+				vh++;
+			}
+			
+			int vw = 1;
+			while (x + vw < width && isSubrect(pixels, covered, width, x + vw, y, 1, vh, color) == true) {
+				
+				vw++;
+			}
+			
+			if (vw * vh > w * h) {
+				
+				w = vw;
+				h = vh;
+			}
+			
+			for (int row = y ; row < y + h ; row++) {
+				
+				Arrays.fill(covered, x + row * width, x + w + row * width, true);
+			}
+			
+			subrects[subrectCount * 2] = color;
+			subrects[subrectCount * 2 + 1] = (x << 12) | (y << 8) | ((w - 1) << 4) | (h - 1);
+			subrectCount++;
+			
+			size += subrectSize;
+			
+			raw = (size > rawSize || subrectCount > MAX_SUBRECTS);
+		}
+		
+		if (raw == true) {
+			
+			//
+			// If tile contains too many colours, then use raw encoding of tile.
+			// Background and foreground colours are not carried over raw tile.
+			//
+			
+			out.put(MASK_RAW);
+			
+			for (int i = 0 ; i < count ; i++) {
 				
-				log.error("Hextile encoding problem.", ex);
+				writePixel(out, pixels[i], bitsPerPixel);
 			}
+			
+			context.backgroundValid = false;
+			context.foregroundValid = false;
+			
+			return;
+		}
+		
+		//
+		// Write tile with subrectangles.
+		//
+		
+		byte subencodingMask = MASK_ANY_SUBRECT;
+		
+		if (sendBackground == true) {
+			
+			subencodingMask |= MASK_BACKGROUND_SPECIFIED;
+		}
+		
+		if (sendForeground == true) {
+			
+			subencodingMask |= MASK_FOREGROUND_SPECIFIED;
+		}
+		
+		if (monochrome == false) {
+			
+			subencodingMask |= MASK_SUBRECTS_COLOURED;
+		}
+		
+		out.put(subencodingMask);
+		
+		if (sendBackground == true) {
+			
+			writePixel(out, background, bitsPerPixel);
+		}
+		
+		if (sendForeground == true) {
+			
+			writePixel(out, foreground, bitsPerPixel);
+		}
+		
+		out.put((byte) subrectCount);
+		
+		for (int i = 0 ; i < subrectCount ; i++) {
+			
+			if (monochrome == false) {
+				
+				writePixel(out, subrects[i * 2], bitsPerPixel);
+			}
+			
+			// Position x, y and size w - 1, h - 1, each in 4 bits.
+			out.putShort((short) subrects[i * 2 + 1]);
 		}
 		
-		return bOut.toByteArray();
+		context.background = background;
+		context.backgroundValid = true;
+		
+		// Coloured subrectangles leave foreground colour undefined.
+		context.foreground = foreground;
+		context.foregroundValid = monochrome;
 	}
 
 	@Override
@@ -136,31 +374,109 @@ public class HextileEncoder implements EncodingInterface {
 	}
 
 	/**
-	 * Check if tile contains only 1 color.
-	 * 
-	 * @param tile	-	{@link Tile} object
-	 * 
-	 * @return	pixel value, or <i>null</i> if tile is not <i>single-colored</i>
+	 * Check if all pixels of area have given colour, and are not part of some subrectangle.
 	 */
-	private Integer singlePixelTile(final Tile tile) {
+	private static boolean isSubrect(final int[] pixels, final boolean[] covered, final int tileWidth
+			, final int x, final int y, final int width, final int height, final int color) {
 		
-		if (tile == null || tile.raw() == null) {
-		
-			return null;
+		for (int row = y ; row < y + height ; row++) {
+			
+			for (int index = x + row * tileWidth ; index < x + width + row * tileWidth ; index++) {
+				
+				if (pixels[index] != color || covered[index] == true) {
+					
+					return false;
+				}
+			}
 		}
 		
-		final int[] raw = tile.raw();
+		return true;
+	}
+	
+	/**
+	 * Find most frequent pixel value.
+	 * 
+	 * @param pixels	-	pixels of tile
+	 * @param count		-	number of pixels
+	 * @param sorted	-	scratch array
+	 * 
+	 * @return	pixel value
+	 */
+	private static int mostFrequent(final int[] pixels, final int count, final int[] sorted) {
 		
-		int firstPixel = raw[0];
+		System.arraycopy(pixels, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
 		
-		for (int i = 1 ; i < raw.length ; i++) {
+		int result = sorted[0], resultCount = 0;
+		
+		for (int i = 0 ; i < count ; ) {
+			
+			int j = i + 1;
 			
-			if (raw[i] != firstPixel) {
+			while (j < count && sorted[j] == sorted[i]) {
 				
-				return null;
+				j++;
 			}
+			
+			if (j - i > resultCount) {
+				
+				result = sorted[i];
+				resultCount = j - i;
+			}
+			
+			i = j;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Write pixel value, already transformed to client pixel format.
+	 */
+	private static void writePixel(final ByteBuffer out, final int pixel, final byte bitsPerPixel) {
+		
+		if (bitsPerPixel == 8) {
+			
+			out.put((byte) pixel);
 		}
+		else if (bitsPerPixel == 16) {
+			
+			out.putShort((short) pixel);
+		}
+		else {
+			
+			out.putInt(pixel);
+		}
+	}
+	
+	/**
+	 * Colours of previous tile, and scratch buffers, for single rectangle.
+	 */
+	private static class TileContext {
+		
+		int background, foreground;
+		
+		boolean backgroundValid, foregroundValid;
+		
+		final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		
+		final int[] sorted = new int[TILE_SIZE * TILE_SIZE];
 		
-		return Integer.valueOf(firstPixel);
+		final boolean[] covered = new boolean[TILE_SIZE * TILE_SIZE];
+		
+		/**
+		 * Colour and packed position of each subrectangle.
+		 */
+		final int[] subrects = new int[2 * TILE_SIZE * TILE_SIZE];
+		
+		/**
+		 * Converter for client pixel format.
+		 */
+		final PixelConverter converter;
+		
+		TileContext(final PixelConverter converter) {
+			
+			this.converter = converter;
+		}
 	}
 }
@@ -0,0 +1,332 @@
+package com.scoreunit.rfb.encoding;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+/**
+ * Converter of 32-bit ARGB pixels, as obtained from screen image, into pixel format advertised by VNC client.
+ * <p>
+ * Converter is built once for each {@link SetPixelFormat}, see {@link #of(SetPixelFormat)}.
+ * Each color component is converted with lookup table, which already has client shift and byte order applied,
+ * so pixel is converted with three lookups. Most common pixel formats have their own, faster conversion:
+ * <ul>
+ *  <li>32-bit little-endian, with red, green and blue in bytes 2, 1 and 0, same as source image</li>
+ *  <li>16-bit, with 5 bits of red, 6 bits of green and 5 bits of blue</li>
+ *  <li>8-bit, with 3 bits of red, 3 bits of green and 2 bits of blue</li>
+ * </ul>
+ * Converted pixel value has bytes in same order as they go on the wire, in least significant bytes of <i>int</i> value.
+ * Eg. 16-bit pixel has first byte on the wire in bits 8 - 15, and second byte in bits 0 - 7.
+ * <p>
+ * This object is immutable and thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class PixelConverter {
+
+	/**
+	 * Conversion methods.
+	 */
+	private final static int GENERIC = 0, IDENTITY_32 = 1, RGB_565 = 2, RGB_332 = 3;
+
+	/**
+	 * Max. number of cached converters. VNC client can send any number of pixel formats.
+	 */
+	private final static int MAX_CACHED = 64;
+
+	private final static Map<SetPixelFormat, PixelConverter> cache = new ConcurrentHashMap<>();
+
+	private final int method;
+
+	private final int bytesPerPixel;
+
+	/**
+	 * If set, 16-bit pixel value has its bytes swapped, see {@link #RGB_565} conversion.
+	 */
+	private final boolean littleEndian;
+
+	/**
+	 * Lookup tables, for each color component value 0 - 255.
+	 */
+	private final int[] redTable, greenTable, blueTable;
+
+	private PixelConverter(final SetPixelFormat pixelFormat) {
+
+		this.bytesPerPixel = pixelFormat.bitsPerPixel / 8;
+		this.littleEndian = pixelFormat.bigEndianFlag == 0;
+
+		this.redTable = table(pixelFormat.redMax, pixelFormat.redShift);
+		this.greenTable = table(pixelFormat.greenMax, pixelFormat.greenShift);
+		this.blueTable = table(pixelFormat.blueMax, pixelFormat.blueShift);
+
+		if (isFormat(pixelFormat, 32, 255, 255, 255, 16, 8, 0) && this.littleEndian == true) {
+
+			this.method = IDENTITY_32;
+		}
+		else if (isFormat(pixelFormat, 16, 31, 63, 31, 11, 5, 0)) {
+
+			this.method = RGB_565;
+		}
+		else if (isFormat(pixelFormat, 8, 7, 7, 3, 5, 2, 0)) {
+
+			this.method = RGB_332;
+		}
+		else {
+
+			this.method = GENERIC;
+		}
+	}
+
+	/**
+	 * Get converter for given pixel format. Converters are cached, so
+	 * it is cheap to invoke this method for each rectangle.
+	 *
+	 * @param pixelFormat	-	pixel format, as received from VNC client
+	 *
+	 * @return	converter instance
+	 */
+	public static PixelConverter of(final SetPixelFormat pixelFormat) {
+
+		final PixelConverter converter = cache.get(pixelFormat);
+
+		if (converter != null) {
+
+			return converter;
+		}
+
+		if (cache.size() >= MAX_CACHED) {
+
+			cache.clear();
+		}
+
+		// Key is copy, so later change of pixel format instance does not affect cache.
+		final SetPixelFormat key = new SetPixelFormat(pixelFormat.bitsPerPixel, pixelFormat.depth
+				, pixelFormat.bigEndianFlag, pixelFormat.trueColorFlag
+				, pixelFormat.redMax, pixelFormat.greenMax, pixelFormat.blueMax
+				, pixelFormat.redShift, pixelFormat.greenShift, pixelFormat.blueShift);
+
+		return cache.computeIfAbsent(key, PixelConverter::new);
+	}
+
+	/**
+	 * @return	number of bytes of each pixel on the wire: 1, 2 or 4
+	 */
+	public int getBytesPerPixel() {
+
+		return this.bytesPerPixel;
+	}
+
+	/**
+	 * Convert single pixel.
+	 *
+	 * @param pixel		-	32-bit ARGB pixel
+	 *
+	 * @return	pixel value, with bytes in wire order
+	 */
+	public int convert(final int pixel) {
+
+		switch (this.method) {
+
+		case IDENTITY_32:
+
+			return Integer.reverseBytes(pixel & 0xFFFFFF);
+
+		case RGB_565:
+
+			final int value = ((pixel >> 8) & 0xF800) | ((pixel >> 5) & 0x07E0) | ((pixel >> 3) & 0x001F);
+
+			return (this.littleEndian == true) ? ((value & 0xFF) << 8) | (value >> 8) : value;
+
+		case RGB_332:
+
+			return ((pixel >> 16) & 0xE0) | ((pixel >> 11) & 0x1C) | ((pixel >> 6) & 0x03);
+
+		default:
+
+			return this.redTable[(pixel >> 16) & 0xFF] | this.greenTable[(pixel >> 8) & 0xFF] | this.blueTable[pixel & 0xFF];
+		}
+	}
+
+	/**
+	 * Convert row of pixels into pixel values.
+	 *
+	 * @param src		-	32-bit ARGB pixels
+	 * @param srcOffset	-	offset of first pixel in source array
+	 * @param dst		-	array for converted pixel values, with bytes in wire order
+	 * @param dstOffset	-	offset of first pixel in destination array
+	 * @param count		-	number of pixels
+	 */
+	public void convert(final int[] src, final int srcOffset, final int[] dst, final int dstOffset, final int count) {
+
+		switch (this.method) {
+
+		case IDENTITY_32:
+
+			for (int i = 0 ; i < count ; i++) {
+
+				dst[dstOffset + i] = Integer.reverseBytes(src[srcOffset + i] & 0xFFFFFF);
+			}
+			break;
+
+		case RGB_332:
+
+			for (int i = 0 ; i < count ; i++) {
+
+				final int pixel = src[srcOffset + i];
+
+				dst[dstOffset + i] = ((pixel >> 16) & 0xE0) | ((pixel >> 11) & 0x1C) | ((pixel >> 6) & 0x03);
+			}
+			break;
+
+		case RGB_565:
+
+			for (int i = 0 ; i < count ; i++) {
+
+				dst[dstOffset + i] = convert(src[srcOffset + i]);
+			}
+			break;
+
+		default:
+
+			final int[] redTable = this.redTable, greenTable = this.greenTable, blueTable = this.blueTable;
+
+			for (int i = 0 ; i < count ; i++) {
+
+				final int pixel = src[srcOffset + i];
+
+				dst[dstOffset + i] = redTable[(pixel >> 16) & 0xFF] | greenTable[(pixel >> 8) & 0xFF] | blueTable[pixel & 0xFF];
+			}
+		}
+	}
+
+	/**
+	 * Convert row of pixels into bytes, as they go on the wire.
+	 *
+	 * @param src		-	32-bit ARGB pixels
+	 * @param srcOffset	-	offset of first pixel in source array
+	 * @param dst		-	array for converted pixels, must have room for {@link #getBytesPerPixel()} bytes per pixel
+	 * @param dstOffset	-	offset in destination array
+	 * @param count		-	number of pixels
+	 *
+	 * @return	offset in destination array, after last written pixel
+	 */
+	public int convert(final int[] src, final int srcOffset, final byte[] dst, int dstOffset, final int count) {
+
+		switch (this.method) {
+
+		case IDENTITY_32:
+
+			for (int i = srcOffset ; i < srcOffset + count ; i++) {
+
+				final int pixel = src[i];
+
+				dst[dstOffset++] = (byte) pixel;
+				dst[dstOffset++] = (byte) (pixel >> 8);
+				dst[dstOffset++] = (byte) (pixel >> 16);
+				dst[dstOffset++] = 0;
+			}
+			break;
+
+		case RGB_332:
+
+			for (int i = srcOffset ; i < srcOffset + count ; i++) {
+
+				final int pixel = src[i];
+
+				dst[dstOffset++] = (byte) (((pixel >> 16) & 0xE0) | ((pixel >> 11) & 0x1C) | ((pixel >> 6) & 0x03));
+			}
+			break;
+
+		case RGB_565:
+
+			// Offsets of most and least significant byte of pixel value.
+			final int high = (this.littleEndian == true) ? 1 : 0, low = 1 - high;
+
+			for (int i = srcOffset ; i < srcOffset + count ; i++, dstOffset += 2) {
+
+				final int pixel = src[i];
+				final int value = ((pixel >> 8) & 0xF800) | ((pixel >> 5) & 0x07E0) | ((pixel >> 3) & 0x001F);
+
+				dst[dstOffset + high] = (byte) (value >> 8);
+				dst[dstOffset + low] = (byte) value;
+			}
+			break;
+
+		default:
+
+			final int bytesPerPixel = this.bytesPerPixel;
+
+			for (int i = srcOffset ; i < srcOffset + count ; i++) {
+
+				final int value = convert(src[i]);
+
+				if (bytesPerPixel == 4) {
+
+					dst[dstOffset++] = (byte) (value >> 24);
+					dst[dstOffset++] = (byte) (value >> 16);
+				}
+
+				if (bytesPerPixel >= 2) {
+
+					dst[dstOffset++] = (byte) (value >> 8);
+				}
+
+				dst[dstOffset++] = (byte) value;
+			}
+		}
+
+		return dstOffset;
+	}
+
+	/**
+	 * Build lookup table for one color component. Component value 0 - 255 is scaled to 0 - max,
+	 * shifted into place, and its bytes are put in wire order.
+	 */
+	private int[] table(final short max, final byte shift) {
+
+		final int maxValue = max & 0xFFFF;
+
+		final int[] table = new int[256];
+
+		for (int value = 0 ; value < 256 ; value++) {
+
+			table[value] = order((value * (maxValue + 1) >> 8) << shift);
+		}
+
+		return table;
+	}
+
+	/**
+	 * Put bytes of pixel value in wire order. Each color component can be reordered on its own,
+	 * since components do not share bits.
+	 */
+	private int order(final int value) {
+
+		if (this.littleEndian == false || this.bytesPerPixel == 1) {
+
+			return value;
+		}
+
+		if (this.bytesPerPixel == 2) {
+
+			return ((value & 0xFF) << 8) | ((value >> 8) & 0xFF);
+		}
+
+		return Integer.reverseBytes(value);
+	}
+
+	private static boolean isFormat(final SetPixelFormat pixelFormat, final int bitsPerPixel
+			, final int redMax, final int greenMax, final int blueMax
+			, final int redShift, final int greenShift, final int blueShift) {
+
+		return pixelFormat.bitsPerPixel == bitsPerPixel
+				&& pixelFormat.redMax == redMax
+				&& pixelFormat.greenMax == greenMax
+				&& pixelFormat.blueMax == blueMax
+				&& pixelFormat.redShift == redShift
+				&& pixelFormat.greenShift == greenShift
+				&& pixelFormat.blueShift == blueShift;
+	}
+}
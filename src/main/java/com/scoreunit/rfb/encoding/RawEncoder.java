@@ -22,46 +22,29 @@ public class RawEncoder implements EncodingInterface {
 	@Override
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
 
-		//
-		// Take pixel format information.
-		//
+		// Converter puts bytes of each pixel in order given by pixel format.
+		final PixelConverter converter = PixelConverter.of(pixelFormat);
 		
-		final int imageLength = image.raw.length;
-		final int[] raw = image.raw;
+		final byte[] result = new byte[converter.getBytesPerPixel() * image.raw.length];
 		
-		// Only bits per pixel are used here. Possible values are: 8, 16 or 32.
-		final byte bitsPerPixel = pixelFormat.bitsPerPixel;
-		
-		final byte[] result = new byte[bitsPerPixel / 8 * imageLength];
-		
-		// No need to set byte order, since PixelTransform method will
-		// set proper order.
-		final ByteBuffer buffer = ByteBuffer.wrap(result);
-		
-		for (int pixel : raw) {
-
-			// Build new pixel according to given pixel format.
-			int newPixel = PixelTransform.transform(pixel, pixelFormat);
-			
-			// Write new pixel to result buffer.
-			// Only 8-bit, 16-bit and 32-bit pixel formats are supported.
-			if (bitsPerPixel == 8) {
-				
-				buffer.put((byte) newPixel);
-			}
-			else if (bitsPerPixel == 16) {
-				
-				buffer.putShort((short) newPixel);
-			}
-			else if (bitsPerPixel == 32) {
-				
-				buffer.putInt(newPixel);
-			}
-		}
+		converter.convert(image.raw, 0, result, 0, image.raw.length);
 		
 		return result;
 	}
 
+	/**
+	 * Pixels are converted directly into buffer.
+	 */
+	@Override
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+
+		final PixelConverter converter = PixelConverter.of(pixelFormat);
+
+		final ByteBuffer buffer = out.ensureRemaining(converter.getBytesPerPixel() * image.raw.length);
+
+		buffer.position(converter.convert(image.raw, 0, buffer.array(), buffer.position(), image.raw.length));
+	}
+
 	@Override
 	public int getType() {
 
@@ -29,12 +29,63 @@ public class RichCursorEncoder implements EncodingInterface {
 	 */
 	public final static Logger log = LoggerFactory.getLogger(RichCursorEncoder.class);
 	
+	/**
+	 * Cursor pixels and bitmask, read from resource files once.
+	 */
+	private static volatile byte[] cursorData;
+	
 	/**
 	 * Return cursor pixels and bitmask, or null value if resource files are not on class path.
 	 */
 	@Override
 	public byte[] encode(final TrueColorImage image, SetPixelFormat pixelFormat) {
 		
+		final byte[] data = getCursorData();
+		
+		return (data == null) ? null : data.clone();
+	}
+
+	/**
+	 * Cursor pixels and bitmask are appended to buffer. Nothing is written if resource files are not on class path.
+	 */
+	@Override
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+		
+		final byte[] data = getCursorData();
+		
+		if (data != null) {
+			
+			out.put(data, 0, data.length);
+		}
+	}
+	
+	/**
+	 * Check if cursor data is available.
+	 * 
+	 * @return	true if resource files with cursor pixels and bitmask are found on class path
+	 */
+	public boolean isAvailable() {
+		
+		return getCursorData() != null;
+	}
+	
+	private static byte[] getCursorData() {
+		
+		if (cursorData == null) {
+			
+			cursorData = readCursorData();
+		}
+		
+		return cursorData;
+	}
+	
+	/**
+	 * Read cursor pixels and bitmask, from resource files.
+	 * 
+	 * @return	cursor data, or null value if resource files are not on class path
+	 */
+	private static byte[] readCursorData() {
+		
 		try {
 			
 			final String bitmaskName = "cursorEncodingBitmask.raw"
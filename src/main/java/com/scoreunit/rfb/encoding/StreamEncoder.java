@@ -0,0 +1,41 @@
+package com.scoreunit.rfb.encoding;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+/**
+ * Stateful encoder, which splits encoding in two steps: pixel conversion, and compression with
+ * zlib stream which lives for whole RFB connection.
+ * <p>
+ * Pixel conversion does not depend on state of encoder, so rectangles can be prepared in parallel,
+ * in any thread. Prepared rectangles are then compressed one by one, in same order as they are sent
+ * to VNC client, since all of them go through same zlib stream.
+ * <p>
+ * Result of both steps together is same as result of {@link #encodeTo(TrueColorImage, SetPixelFormat, EncodeBuffer)}.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public interface StreamEncoder extends EncodingInterface {
+
+	/**
+	 * Convert image to uncompressed data, eg. raw pixels in client pixel format.
+	 * <p>
+	 * This method is thread-safe.
+	 *
+	 * @param image			-	an 32-bit ARGB image, or part of image
+	 * @param pixelFormat	-	desired pixel format
+	 * @param out			-	buffer where to write uncompressed data
+	 */
+	public void prepareTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out);
+
+	/**
+	 * Compress data produced by {@link #prepareTo(TrueColorImage, SetPixelFormat, EncodeBuffer)}, and append it to given buffer.
+	 * <p>
+	 * This method is not thread-safe, it should be called for each rectangle in order.
+	 *
+	 * @param prepared	-	uncompressed data of single rectangle
+	 * @param out		-	buffer where to write encoded rectangle
+	 */
+	public void compressTo(final EncodeBuffer prepared, final EncodeBuffer out);
+}
@@ -0,0 +1,550 @@
+package com.scoreunit.rfb.encoding;
+
+import java.io.ByteArrayOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+/**
+ * ZRLE stands for Zlib Run-Length Encoding, and combines zlib compression,
+ * tiling, palettisation and run-length encoding.
+ * <p>
+ * Image is divided into 64x64 pixel tiles, and each tile is encoded with one of subencodings:
+ * <ul>
+ * <li>raw, 0, pixels are written as <i>CPIXEL</i> values,</li>
+ * <li>solid, 1, tile of single color,</li>
+ * <li>packed palette, 2 - 16, palette followed by packed palette indices, 1, 2 or 4 bits per pixel,</li>
+ * <li>plain RLE, 128, runs of <i>CPIXEL</i> value and run length,</li>
+ * <li>palette RLE, 130 - 255, palette followed by runs of palette index and run length.</li>
+ * </ul>
+ * Subencoding with smallest size is selected for each tile.
+ * <p>
+ * Encoded tiles are compressed with single zlib stream, which lives for whole RFB connection.
+ * <p>
+ * This encoder is stateful, ensure that each RFB connection with VNC client,
+ * has its own instance of this encoder.
+ * <p>
+ * Ref.<br>
+ * <a href="https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#zrle-encoding">ZRLE encoding</a>
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class ZRLEEncoder implements EncodingInterface {
+
+	/**
+	 * Default {@link Logger} instance.
+	 */
+	public final static Logger log = LoggerFactory.getLogger(ZRLEEncoder.class);
+
+	/**
+	 * Tile dimension in pixel, same for width and height.
+	 */
+	public final static int TILE_SIZE = 64;
+
+	/**
+	 * Subencoding types. Packed palette types are 2 - 16, and palette RLE types are 130 - 255,
+	 * depending on palette size.
+	 */
+	public final static int SUBENCODING_RAW = 0
+			, SUBENCODING_SOLID = 1
+			, SUBENCODING_PLAIN_RLE = 128
+			;
+
+	/**
+	 * Max. palette size for packed palette and palette RLE subencodings.
+	 */
+	private final static int MAX_PACKED_PALETTE_SIZE = 16, MAX_PALETTE_SIZE = 127;
+
+	/**
+	 * Size of hash table used to build palette, power of two.
+	 */
+	private final static int PALETTE_HASH_SIZE = 256;
+
+	final private ZlibStream zlibStream;
+
+	/**
+	 * Uncompressed tile data, for single rectangle.
+	 */
+	final private ByteArrayOutputStream data;
+
+	/**
+	 * Pixels of current tile, transformed to client pixel format.
+	 */
+	final private int[] pixels;
+
+	/**
+	 * Palette of current tile.
+	 */
+	final private int[] palette;
+
+	private int paletteSize;
+
+	/**
+	 * Hash table of palette, to find palette index of pixel.
+	 * Slot is used if its stamp is equal to {@link #paletteStamp}, so table does not need clearing for each tile.
+	 */
+	final private int[] hashPixels, hashIndices, hashStamps;
+
+	private int paletteStamp;
+
+	/**
+	 * Size of <i>CPIXEL</i> value, in bytes.
+	 */
+	private int cpixelSize;
+
+	/**
+	 * Converter for client pixel format.
+	 */
+	private PixelConverter converter;
+
+	/**
+	 * If set, <i>CPIXEL</i> value consists of first (most significant) bytes of pixel value, otherwise of last bytes.
+	 */
+	private boolean cpixelFirstBytes;
+
+	/**
+	 * Create new ZRLE encoder.
+	 */
+	public ZRLEEncoder() {
+
+		this.zlibStream = new ZlibStream();
+
+		this.data = new ByteArrayOutputStream();
+
+		this.pixels = new int[TILE_SIZE * TILE_SIZE];
+		this.palette = new int[MAX_PALETTE_SIZE];
+
+		this.hashPixels = new int[PALETTE_HASH_SIZE];
+		this.hashIndices = new int[PALETTE_HASH_SIZE];
+		this.hashStamps = new int[PALETTE_HASH_SIZE];
+
+		this.paletteStamp = 0;
+	}
+
+	@Override
+	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
+
+		setPixelFormat(pixelFormat);
+
+		this.data.reset();
+
+		for (int tileY = 0 ; tileY < image.height ; tileY += TILE_SIZE) {
+
+			for (int tileX = 0 ; tileX < image.width ; tileX += TILE_SIZE) {
+
+				encodeTile(image, tileX, tileY
+						, Math.min(TILE_SIZE, image.width - tileX)
+						, Math.min(TILE_SIZE, image.height - tileY)
+						, pixelFormat);
+			}
+		}
+
+		final byte[] input = this.data.toByteArray();
+
+		return this.zlibStream.compressWithLength(input, 0, input.length);
+	}
+
+	@Override
+	public void setCompressionLevel(final int level) {
+
+		this.zlibStream.setLevel(level);
+	}
+
+	@Override
+	public int getType() {
+
+		return Encodings.ZRLE;
+	}
+
+	/**
+	 * Zlib stream lives for whole RFB connection.
+	 */
+	@Override
+	public boolean isStateful() {
+
+		return true;
+	}
+
+	/**
+	 * Find size and layout of <i>CPIXEL</i> value, for given pixel format.
+	 * <p>
+	 * <i>CPIXEL</i> is same as <i>PIXEL</i>, except where true-colour-flag is set, bits-per-pixel is 32, depth is 24 or less
+	 * and all of the bits making up the red, green and blue intensities fit in either the least significant 3 bytes or
+	 * the most significant 3 bytes. In that case <i>CPIXEL</i> is 3 bytes long.
+	 *
+	 * @param pixelFormat	-	client pixel format
+	 */
+	private void setPixelFormat(final SetPixelFormat pixelFormat) {
+
+		this.converter = PixelConverter.of(pixelFormat);
+
+		final int maxPixel = (pixelFormat.redMax << pixelFormat.redShift)
+				| (pixelFormat.greenMax << pixelFormat.greenShift)
+				| (pixelFormat.blueMax << pixelFormat.blueShift);
+
+		final boolean fitsInLS3Bytes = (maxPixel & 0xFF000000) == 0;
+		final boolean fitsInMS3Bytes = (maxPixel & 0x000000FF) == 0;
+
+		final boolean bigEndian = pixelFormat.bigEndianFlag != 0;
+
+		if (pixelFormat.trueColorFlag != 0 && pixelFormat.bitsPerPixel == 32 && pixelFormat.depth <= 24
+				&& (fitsInLS3Bytes == true || fitsInMS3Bytes == true)) {
+
+			this.cpixelSize = 3;
+
+			// Pixel values are written in client byte order, so least significant bytes go first in little-endian order.
+			this.cpixelFirstBytes = (fitsInLS3Bytes == true && bigEndian == false) || (fitsInMS3Bytes == true && bigEndian == true);
+		}
+		else {
+
+			this.cpixelSize = pixelFormat.bitsPerPixel / 8;
+
+			this.cpixelFirstBytes = false;
+		}
+	}
+
+	/**
+	 * Encode single tile into {@link #data} buffer.
+	 *
+	 * @param image			-	source image
+	 * @param xPos			-	tile position
+	 * @param yPos			-	tile position
+	 * @param width			-	tile width, up to {@link #TILE_SIZE}
+	 * @param height		-	tile height, up to {@link #TILE_SIZE}
+	 * @param pixelFormat	-	client pixel format
+	 */
+	private void encodeTile(final TrueColorImage image, final int xPos, final int yPos, final int width, final int height
+			, final SetPixelFormat pixelFormat) {
+
+		final int[] pixels = this.pixels;
+		final int count = width * height;
+
+		//
+		// Transform pixels, and build palette.
+		//
+
+		this.paletteSize = 0;
+		this.paletteStamp++;
+
+		for (int y = 0 ; y < height ; y++) {
+
+			this.converter.convert(image.raw, xPos + (yPos + y) * image.width, pixels, y * width, width);
+		}
+
+		for (int i = 0 ; i < count && this.paletteSize <= MAX_PALETTE_SIZE ; i++) {
+
+			addToPalette(pixels[i]);
+		}
+
+		final int paletteSize = this.paletteSize;
+		final int cpixelSize = this.cpixelSize;
+
+		if (paletteSize == 1) {
+
+			this.data.write(SUBENCODING_SOLID);
+			writeCPixel(pixels[0]);
+
+			return;
+		}
+
+		//
+		// Find size of each subencoding, and select smallest one.
+		//
+
+		int plainRleSize = 0, paletteRleSize = 0;
+
+		for (int index = 0 ; index < count ; ) {
+
+			final int runLength = runLength(pixels, index, count);
+
+			final int runLengthSize = runLengthSize(runLength);
+
+			plainRleSize += cpixelSize + runLengthSize;
+			paletteRleSize += (runLength == 1) ? 1 : 1 + runLengthSize;
+
+			index += runLength;
+		}
+
+		int subencoding = SUBENCODING_RAW;
+		int size = count * cpixelSize;
+
+		if (plainRleSize < size) {
+
+			subencoding = SUBENCODING_PLAIN_RLE;
+			size = plainRleSize;
+		}
+
+		if (paletteSize <= MAX_PALETTE_SIZE) {
+
+			paletteRleSize += paletteSize * cpixelSize;
+
+			if (paletteRleSize < size) {
+
+				subencoding = SUBENCODING_PLAIN_RLE + paletteSize;
+				size = paletteRleSize;
+			}
+		}
+
+		if (paletteSize <= MAX_PACKED_PALETTE_SIZE) {
+
+			final int packedSize = paletteSize * cpixelSize + height * ((width * bitsPerIndex(paletteSize) + 7) / 8);
+
+			if (packedSize <= size) {
+
+				subencoding = paletteSize;
+				size = packedSize;
+			}
+		}
+
+		//
+		// Write tile data.
+		//
+
+		this.data.write(subencoding);
+
+		if (subencoding == SUBENCODING_RAW) {
+
+			for (int index = 0 ; index < count ; index++) {
+
+				writeCPixel(pixels[index]);
+			}
+		}
+		else if (subencoding == SUBENCODING_PLAIN_RLE) {
+
+			for (int index = 0 ; index < count ; ) {
+
+				final int runLength = runLength(pixels, index, count);
+
+				writeCPixel(pixels[index]);
+				writeRunLength(runLength);
+
+				index += runLength;
+			}
+		}
+		else if (subencoding > SUBENCODING_PLAIN_RLE) {
+
+			writePalette();
+
+			for (int index = 0 ; index < count ; ) {
+
+				final int runLength = runLength(pixels, index, count);
+
+				final int paletteIndex = paletteIndex(pixels[index]);
+
+				if (runLength == 1) {
+
+					this.data.write(paletteIndex);
+				}
+				else {
+
+					this.data.write(paletteIndex | 0x80);
+					writeRunLength(runLength);
+				}
+
+				index += runLength;
+			}
+		}
+		else {
+
+			writePalette();
+
+			// Each row is padded to byte boundary, most significant bits go first.
+			final int bits = bitsPerIndex(paletteSize);
+
+			for (int y = 0 ; y < height ; y++) {
+
+				int value = 0, shift = 8;
+
+				for (int x = 0 ; x < width ; x++) {
+
+					shift -= bits;
+					value |= paletteIndex(pixels[x + y * width]) << shift;
+
+					if (shift == 0) {
+
+						this.data.write(value);
+
+						value = 0;
+						shift = 8;
+					}
+				}
+
+				if (shift != 8) {
+
+					this.data.write(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add pixel to palette of current tile, if it is not already there.
+	 * If palette is full, {@link #paletteSize} is set above {@link #MAX_PALETTE_SIZE}.
+	 *
+	 * @param pixel		-	pixel value
+	 */
+	private void addToPalette(final int pixel) {
+
+		int slot = hashSlot(pixel);
+
+		while (this.hashStamps[slot] == this.paletteStamp) {
+
+			if (this.hashPixels[slot] == pixel) {
+
+				return;
+			}
+
+			slot = (slot + 1) & (PALETTE_HASH_SIZE - 1);
+		}
+
+		if (this.paletteSize == MAX_PALETTE_SIZE) {
+
+			// Too many colors for palette.
+			this.paletteSize++;
+
+			return;
+		}
+
+		this.hashStamps[slot] = this.paletteStamp;
+		this.hashPixels[slot] = pixel;
+		this.hashIndices[slot] = this.paletteSize;
+
+		this.palette[this.paletteSize] = pixel;
+		this.paletteSize++;
+	}
+
+	/**
+	 * Find palette index of pixel, which is already in palette.
+	 *
+	 * @param pixel		-	pixel value
+	 *
+	 * @return	palette index
+	 */
+	private int paletteIndex(final int pixel) {
+
+		int slot = hashSlot(pixel);
+
+		while (this.hashPixels[slot] != pixel || this.hashStamps[slot] != this.paletteStamp) {
+
+			slot = (slot + 1) & (PALETTE_HASH_SIZE - 1);
+		}
+
+		return this.hashIndices[slot];
+	}
+
+	private static int hashSlot(final int pixel) {
+
+		return (pixel * 0x9E3779B9) >>> 24;
+	}
+
+	/**
+	 * Number of bits for palette index in packed palette subencoding.
+	 */
+	private static int bitsPerIndex(final int paletteSize) {
+
+		if (paletteSize <= 2) {
+
+			return 1;
+		}
+
+		return paletteSize <= 4 ? 2 : 4;
+	}
+
+	/**
+	 * Count pixels of same value, starting at given index.
+	 */
+	private static int runLength(final int[] pixels, final int index, final int count) {
+
+		final int pixel = pixels[index];
+
+		int end = index + 1;
+
+		while (end < count && pixels[end] == pixel) {
+
+			end++;
+		}
+
+		return end - index;
+	}
+
+	/**
+	 * Size of encoded run length, in bytes. Run length is encoded as <i>(runLength - 1)</i> value,
+	 * in bytes of value 255, followed by byte which is less than 255.
+	 */
+	private static int runLengthSize(final int runLength) {
+
+		return (runLength - 1) / 255 + 1;
+	}
+
+	private void writeRunLength(final int runLength) {
+
+		int value = runLength - 1;
+
+		while (value >= 255) {
+
+			this.data.write(255);
+
+			value -= 255;
+		}
+
+		this.data.write(value);
+	}
+
+	private void writePalette() {
+
+		for (int index = 0 ; index < this.paletteSize ; index++) {
+
+			writeCPixel(this.palette[index]);
+		}
+	}
+
+	/**
+	 * Write pixel as <i>CPIXEL</i> value. Pixel value is already in client byte order,
+	 * as produced by {@link PixelConverter}.
+	 *
+	 * @param pixel		-	pixel value
+	 */
+	private void writeCPixel(final int pixel) {
+
+		switch (this.cpixelSize) {
+
+		case 1:
+
+			this.data.write(pixel);
+			break;
+
+		case 2:
+
+			this.data.write(pixel >> 8);
+			this.data.write(pixel);
+			break;
+
+		case 3:
+
+			if (this.cpixelFirstBytes == true) {
+
+				this.data.write(pixel >> 24);
+				this.data.write(pixel >> 16);
+				this.data.write(pixel >> 8);
+			}
+			else {
+
+				this.data.write(pixel >> 16);
+				this.data.write(pixel >> 8);
+				this.data.write(pixel);
+			}
+			break;
+
+		default:
+
+			this.data.write(pixel >> 24);
+			this.data.write(pixel >> 16);
+			this.data.write(pixel >> 8);
+			this.data.write(pixel);
+		}
+	}
+}
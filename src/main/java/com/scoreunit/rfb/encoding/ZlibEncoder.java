@@ -1,8 +1,5 @@
 package com.scoreunit.rfb.encoding;
 
-import java.nio.ByteBuffer;
-import java.util.zip.Deflater;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,31 +14,39 @@ import com.scoreunit.rfb.service.SetPixelFormat;
  * Zlib in nearly all real-life situations.
  * <p>
  * This encoder is stateful, ensure that each RFB connection with VNC client,
- * has its own instance of this encoder.
+ * has its own instance of this encoder. Raw pixel conversion may run in parallel,
+ * see {@link StreamEncoder}, but rectangles are compressed in order, with single zlib stream.
  * 
  * @author igor.delac@gmail.com
  *
  */
-public class ZlibEncoder implements EncodingInterface {
+public class ZlibEncoder implements StreamEncoder {
 
 	/**
 	 * Default {@link Logger} instance.
 	 */
 	public final static Logger log = LoggerFactory.getLogger(ZlibEncoder.class);
 
-	final private Deflater deflater;
+	final private ZlibStream zlibStream;
 
 	final private RawEncoder rawEncoder;
 
+	/**
+	 * Raw encoded rectangle, before compression. Same buffer is used for each rectangle.
+	 */
+	final private EncodeBuffer rawBuffer;
+
 	/**
 	 * Create new zlib encoder.
 	 * 
 	 */
 	public ZlibEncoder() {
 
-		this.deflater = new Deflater();
+		this.zlibStream = new ZlibStream();
 
 		this.rawEncoder = new RawEncoder();
+
+		this.rawBuffer = new EncodeBuffer(EncodeBufferPool.INITIAL_CAPACITY);
 	}
 
 	/**
@@ -51,21 +56,46 @@ public class ZlibEncoder implements EncodingInterface {
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
 
 		final byte[] raw = rawEncoder.encode(image, pixelFormat);
-		deflater.setInput(raw);
-		
-		final byte[] buff = new byte[2 * raw.length];
 
-		// Seems that we need to invoke deflate() method with FULL_FLUSH arg.
-		int count = deflater.deflate(buff, 0, buff.length, Deflater.FULL_FLUSH);
+		// Zlib stream keeps its dictionary between rectangles, length of compressed data goes first.
+		return this.zlibStream.compressWithLength(raw, 0, raw.length);
+	}
+
+	/**
+	 * Raw encoded image goes into reusable buffer, and it is compressed directly into given buffer.
+	 */
+	@Override
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
 
-		final int length = 4 + count;
-		final byte[] result = new byte[length];
+		this.rawBuffer.clear();
 
-		final ByteBuffer buffer = ByteBuffer.wrap(result);
-		buffer.putInt(count);
-		buffer.put(buff, 0, count);
+		prepareTo(image, pixelFormat, this.rawBuffer);
 
-		return result;
+		compressTo(this.rawBuffer, out);
+	}
+
+	/**
+	 * Raw encoder is stateless, image is converted to raw pixels.
+	 */
+	@Override
+	public void prepareTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+
+		this.rawEncoder.encodeTo(image, pixelFormat, out);
+	}
+
+	/**
+	 * Raw pixels are compressed with zlib stream, length of compressed data goes first.
+	 */
+	@Override
+	public void compressTo(final EncodeBuffer prepared, final EncodeBuffer out) {
+
+		this.zlibStream.compressWithLengthTo(prepared.buffer().array(), 0, prepared.length(), out);
+	}
+
+	@Override
+	public void setCompressionLevel(final int level) {
+
+		this.zlibStream.setLevel(level);
 	}
 
 	@Override
@@ -74,4 +104,12 @@ public class ZlibEncoder implements EncodingInterface {
 		return Encodings.ZLIB;
 	}
 
+	/**
+	 * Zlib stream lives for whole RFB connection.
+	 */
+	@Override
+	public boolean isStateful() {
+
+		return true;
+	}
 }
@@ -0,0 +1,156 @@
+package com.scoreunit.rfb.encoding;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Zlib stream which lives for whole RFB connection, as used by ZRLE and Tight encoding.
+ * <p>
+ * Each block of data is compressed with <i>sync. flush</i>, so VNC client can decode it completely,
+ * while dictionary of stream is kept for next block.
+ * <p>
+ * This object is not thread-safe. Each VNC client session should have its own instance.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class ZlibStream {
+
+	private final Deflater deflater;
+
+	/**
+	 * Create new zlib stream, with default compression level.
+	 */
+	public ZlibStream() {
+
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Create new zlib stream.
+	 *
+	 * @param level		-	compression level, 0 - 9
+	 */
+	public ZlibStream(final int level) {
+
+		this.deflater = new Deflater(level);
+	}
+
+	/**
+	 * Change compression level. New level is used from next block of data.
+	 *
+	 * @param level		-	compression level, 0 - 9, or -1 for default level
+	 */
+	public void setLevel(final int level) {
+
+		this.deflater.setLevel(level);
+	}
+
+	/**
+	 * Compress block of data.
+	 *
+	 * @param input		-	uncompressed data
+	 * @param offset	-	offset of data in input array
+	 * @param length	-	length of data
+	 *
+	 * @return	compressed data
+	 */
+	public byte[] compress(final byte[] input, final int offset, final int length) {
+
+		final EncodeBuffer out = new EncodeBuffer(deflateBound(length));
+
+		compressTo(input, offset, length, out);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compress block of data, and prepend 4-byte length of compressed data.
+	 *
+	 * @param input		-	uncompressed data
+	 * @param offset	-	offset of data in input array
+	 * @param length	-	length of data
+	 *
+	 * @return	length of compressed data followed by compressed data
+	 */
+	public byte[] compressWithLength(final byte[] input, final int offset, final int length) {
+
+		final EncodeBuffer out = new EncodeBuffer(4 + deflateBound(length));
+
+		compressWithLengthTo(input, offset, length, out);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compress block of data, and prepend 4-byte length of compressed data.
+	 * Compressed data is appended to given buffer.
+	 *
+	 * @param input		-	uncompressed data
+	 * @param offset	-	offset of data in input array
+	 * @param length	-	length of data
+	 * @param out		-	buffer where to write length and compressed data
+	 */
+	public void compressWithLengthTo(final byte[] input, final int offset, final int length, final EncodeBuffer out) {
+
+		final int lengthPosition = out.length();
+
+		// Length is not known yet, it is written after data is compressed.
+		out.ensureRemaining(4).putInt(0);
+
+		compressTo(input, offset, length, out);
+
+		out.buffer().putInt(lengthPosition, out.length() - lengthPosition - 4);
+	}
+
+	/**
+	 * Deflate block of data, directly into buffer, which grows as needed.
+	 *
+	 * @param input		-	uncompressed data
+	 * @param offset	-	offset of data in input array
+	 * @param length	-	length of data
+	 * @param out		-	buffer where to write compressed data
+	 */
+	public void compressTo(final byte[] input, final int offset, final int length, final EncodeBuffer out) {
+
+		this.deflater.setInput(input, offset, length);
+
+		ByteBuffer buffer = out.ensureRemaining(deflateBound(length));
+
+		while (true) {
+
+			final int count = this.deflater.deflate(buffer.array(), buffer.position(), buffer.remaining(), Deflater.SYNC_FLUSH);
+
+			buffer.position(buffer.position() + count);
+
+			// Output buffer not full means that all input is compressed and flushed.
+			// After change of compression level, deflater might return before it takes all input.
+			if (buffer.hasRemaining() == true && this.deflater.needsInput() == true) {
+
+				break;
+			}
+
+			if (buffer.hasRemaining() == false) {
+
+				buffer = out.ensureRemaining(buffer.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Upper bound of compressed length of single block, same as <i>deflateBound()</i> of zlib library,
+	 * for default window and memory level: stored blocks of incompressible data, zlib header and
+	 * checksum, and empty stored block of <i>sync. flush</i>.
+	 * <p>
+	 * Buffer of this size is large enough, so compressed data is not copied while buffer grows.
+	 * Only after change of compression level, flushed data of previous level might need more.
+	 *
+	 * @param length	-	length of uncompressed data
+	 *
+	 * @return	max. length of compressed data
+	 */
+	public static int deflateBound(final int length) {
+
+		return length + (length >> 12) + (length >> 14) + (length >> 25) + 7 + 6 + 5;
+	}
+}
@@ -153,6 +153,38 @@ public class TrueColorImage {
 		return bufferedImage;
 	}
 	
+	/**
+	 * Copy rectangular part of image into new {@link TrueColorImage} instance.
+	 * 
+	 * @param trueColorImage	-	source image
+	 * @param x					-	left position of rectangle, in pixel
+	 * @param y					-	top position of rectangle, in pixel
+	 * @param width				-	width of rectangle, in pixel
+	 * @param height			-	height of rectangle, in pixel
+	 * 
+	 * @return	new image with copy of pixels
+	 * 
+	 * @throws	IllegalArgumentException	if rectangle is not within source image
+	 */
+	public static TrueColorImage subImage(final TrueColorImage trueColorImage
+			, final int x, final int y, final int width, final int height) {
+		
+		if (x < 0 || y < 0 || width < 0 || height < 0
+				|| x + width > trueColorImage.width || y + height > trueColorImage.height) {
+			
+			throw new IllegalArgumentException(String.format("Rectangle out of range: (%d, %d, %d, %d)", x, y, width, height));
+		}
+		
+		final int[] raw = new int[width * height];
+		
+		for (int row = 0 ; row < height ; row++) {
+			
+			System.arraycopy(trueColorImage.raw, x + (y + row) * trueColorImage.width, raw, row * width, width);
+		}
+		
+		return new TrueColorImage(raw, width, height);
+	}
+	
 	/**
 	 * Convert {@link TrueColorImage} instance to byte array where
 	 * pixels are in BGR order. This also reduce size from 32-bit pixel to 24-bit pixel.
@@ -0,0 +1,435 @@
+package com.scoreunit.rfb.screen;
+
+import java.util.Arrays;
+
+/**
+ * Compact bitmap of changed (dirty) 16x16 pixel tiles of screen image.
+ * <p>
+ * Each tile of image is represented with single bit. Tiles on right and bottom edge
+ * of image might be smaller than 16x16 pixel, if image dimension is not divisible by 16.
+ * <p>
+ * Tile index is calculated as <i>tileX + tileY * tilesX</i>, so tiles are ordered
+ * from top-left to bottom-right corner of image.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class DirtyTileMap {
+
+	/**
+	 * Tile dimension in pixel, same for width and height.
+	 */
+	public final static int TILE_SIZE = 16;
+
+	/**
+	 * Bits of this map, 64 tiles in each word.
+	 */
+	private long[] words;
+
+	/**
+	 * Image dimension in pixel.
+	 */
+	private int width, height;
+
+	/**
+	 * Number of tile columns and rows.
+	 */
+	private int tilesX, tilesY;
+
+	/**
+	 * Create new map, with all tiles clean.
+	 *
+	 * @param width		-	image width in pixel
+	 * @param height	-	image height in pixel
+	 */
+	public DirtyTileMap(final int width, final int height) {
+
+		this.words = new long[0];
+
+		resize(width, height);
+	}
+
+	/**
+	 * Change image dimension. All tiles are clean after this method.
+	 * <p>
+	 * Internal array is reused if it is large enough.
+	 *
+	 * @param width		-	image width in pixel
+	 * @param height	-	image height in pixel
+	 */
+	public void resize(final int width, final int height) {
+
+		this.width = Math.max(0, width);
+		this.height = Math.max(0, height);
+
+		this.tilesX = (this.width + TILE_SIZE - 1) / TILE_SIZE;
+		this.tilesY = (this.height + TILE_SIZE - 1) / TILE_SIZE;
+
+		final int wordCount = (this.tilesX * this.tilesY + 63) >>> 6;
+
+		if (this.words.length < wordCount) {
+
+			this.words = new long[wordCount];
+		}
+		else {
+
+			clear();
+		}
+	}
+
+	/**
+	 * Image width in pixel.
+	 *
+	 * @return	width
+	 */
+	public int getWidth() {
+
+		return this.width;
+	}
+
+	/**
+	 * Image height in pixel.
+	 *
+	 * @return	height
+	 */
+	public int getHeight() {
+
+		return this.height;
+	}
+
+	/**
+	 * Number of tile columns.
+	 *
+	 * @return	number of tiles in a row
+	 */
+	public int getTilesX() {
+
+		return this.tilesX;
+	}
+
+	/**
+	 * Number of tile rows.
+	 *
+	 * @return	number of tiles in a column
+	 */
+	public int getTilesY() {
+
+		return this.tilesY;
+	}
+
+	/**
+	 * Total number of tiles.
+	 *
+	 * @return	number of tiles
+	 */
+	public int getTileCount() {
+
+		return this.tilesX * this.tilesY;
+	}
+
+	/**
+	 * Mark tile as dirty.
+	 *
+	 * @param tileX		-	tile column
+	 * @param tileY		-	tile row
+	 */
+	public void set(final int tileX, final int tileY) {
+
+		set(tileX + tileY * this.tilesX);
+	}
+
+	/**
+	 * Mark tile as dirty.
+	 *
+	 * @param index		-	tile index
+	 */
+	public void set(final int index) {
+
+		this.words[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * Mark all tiles which overlap given area of image as dirty. Part of area outside of image is ignored.
+	 *
+	 * @param x			-	position of area in pixel
+	 * @param y			-	position of area in pixel
+	 * @param width		-	width of area in pixel
+	 * @param height	-	height of area in pixel
+	 */
+	public void setArea(final int x, final int y, final int width, final int height) {
+
+		final int firstX = Math.max(0, x) / TILE_SIZE, firstY = Math.max(0, y) / TILE_SIZE;
+		final int endX = Math.min(this.tilesX, (Math.min(this.width, x + width) + TILE_SIZE - 1) / TILE_SIZE);
+		final int endY = Math.min(this.tilesY, (Math.min(this.height, y + height) + TILE_SIZE - 1) / TILE_SIZE);
+
+		for (int tileY = firstY ; tileY < endY ; tileY++) {
+
+			for (int tileX = firstX ; tileX < endX ; tileX++) {
+
+				set(tileX, tileY);
+			}
+		}
+	}
+
+	/**
+	 * Mark tile as clean.
+	 *
+	 * @param tileX		-	tile column
+	 * @param tileY		-	tile row
+	 */
+	public void clear(final int tileX, final int tileY) {
+
+		clear(tileX + tileY * this.tilesX);
+	}
+
+	/**
+	 * Mark tile as clean.
+	 *
+	 * @param index		-	tile index
+	 */
+	public void clear(final int index) {
+
+		this.words[index >>> 6] &= ~(1L << index);
+	}
+
+	/**
+	 * Check if tile is dirty.
+	 *
+	 * @param tileX		-	tile column
+	 * @param tileY		-	tile row
+	 *
+	 * @return	true if tile is marked as dirty
+	 */
+	public boolean isSet(final int tileX, final int tileY) {
+
+		return isSet(tileX + tileY * this.tilesX);
+	}
+
+	/**
+	 * Check if tile is dirty.
+	 *
+	 * @param index		-	tile index
+	 *
+	 * @return	true if tile is marked as dirty
+	 */
+	public boolean isSet(final int index) {
+
+		return (this.words[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Mark all tiles as clean.
+	 */
+	public void clear() {
+
+		Arrays.fill(this.words, 0L);
+	}
+
+	/**
+	 * Mark all tiles as dirty.
+	 */
+	public void setAll() {
+
+		final int count = getTileCount();
+		final int fullWords = count >>> 6;
+
+		Arrays.fill(this.words, 0, fullWords, -1L);
+
+		if ((count & 63) != 0) {
+
+			this.words[fullWords] = (1L << count) - 1;
+		}
+
+		for (int i = fullWords + ((count & 63) != 0 ? 1 : 0) ; i < this.words.length ; i++) {
+
+			this.words[i] = 0L;
+		}
+	}
+
+	/**
+	 * Copy dirty tiles from another map of same dimension, into this map.
+	 *
+	 * @param other		-	another {@link DirtyTileMap} instance
+	 */
+	public void or(final DirtyTileMap other) {
+
+		final int wordCount = (getTileCount() + 63) >>> 6;
+
+		for (int i = 0 ; i < wordCount ; i++) {
+
+			this.words[i] |= other.words[i];
+		}
+	}
+
+	/**
+	 * Mark tiles as clean, if they are clean in another map of same dimension.
+	 *
+	 * @param other		-	another {@link DirtyTileMap} instance
+	 */
+	public void and(final DirtyTileMap other) {
+
+		final int wordCount = (getTileCount() + 63) >>> 6;
+
+		for (int i = 0 ; i < wordCount ; i++) {
+
+			this.words[i] &= other.words[i];
+		}
+	}
+
+	/**
+	 * Mark tiles as clean, if they are dirty in another map of same dimension.
+	 *
+	 * @param other		-	another {@link DirtyTileMap} instance
+	 */
+	public void andNot(final DirtyTileMap other) {
+
+		final int wordCount = (getTileCount() + 63) >>> 6;
+
+		for (int i = 0 ; i < wordCount ; i++) {
+
+			this.words[i] &= ~other.words[i];
+		}
+	}
+
+	/**
+	 * Copy state from another map. Dimension of this map is changed if needed.
+	 *
+	 * @param other		-	another {@link DirtyTileMap} instance
+	 */
+	public void copyFrom(final DirtyTileMap other) {
+
+		resize(other.width, other.height);
+
+		final int wordCount = (getTileCount() + 63) >>> 6;
+
+		System.arraycopy(other.words, 0, this.words, 0, wordCount);
+	}
+
+	/**
+	 * Count dirty tiles.
+	 *
+	 * @return	number of dirty tiles
+	 */
+	public int count() {
+
+		int result = 0;
+
+		for (final long word : this.words) {
+
+			result += Long.bitCount(word);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check if there are no dirty tiles.
+	 *
+	 * @return	true if all tiles are clean
+	 */
+	public boolean isEmpty() {
+
+		for (final long word : this.words) {
+
+			if (word != 0) {
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Find next dirty tile, starting from given index.
+	 * <p>
+	 * Use this method to iterate over dirty tiles:
+	 * <pre>
+	 * for (int i = map.nextSetBit(0) ; i &gt;= 0 ; i = map.nextSetBit(i + 1)) { ... }
+	 * </pre>
+	 *
+	 * @param fromIndex		-	tile index where to start search
+	 *
+	 * @return	index of dirty tile, or -1 if there are no more dirty tiles
+	 */
+	public int nextSetBit(final int fromIndex) {
+
+		final int count = getTileCount();
+
+		if (fromIndex >= count) {
+
+			return -1;
+		}
+
+		int wordIndex = fromIndex >>> 6;
+
+		long word = this.words[wordIndex] & (-1L << fromIndex);
+
+		while (true) {
+
+			if (word != 0) {
+
+				final int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+
+				return index < count ? index : -1;
+			}
+
+			wordIndex++;
+
+			if (wordIndex << 6 >= count) {
+
+				return -1;
+			}
+
+			word = this.words[wordIndex];
+		}
+	}
+
+	/**
+	 * Left pixel position of tile.
+	 *
+	 * @param index		-	tile index
+	 *
+	 * @return	x position, in pixel
+	 */
+	public int tileX(final int index) {
+
+		return (index % this.tilesX) * TILE_SIZE;
+	}
+
+	/**
+	 * Top pixel position of tile.
+	 *
+	 * @param index		-	tile index
+	 *
+	 * @return	y position, in pixel
+	 */
+	public int tileY(final int index) {
+
+		return (index / this.tilesX) * TILE_SIZE;
+	}
+
+	/**
+	 * Width of tile, in pixel. Tiles at right edge of image might be narrower than {@link #TILE_SIZE}.
+	 *
+	 * @param index		-	tile index
+	 *
+	 * @return	width in pixel
+	 */
+	public int tileWidth(final int index) {
+
+		return Math.min(TILE_SIZE, this.width - tileX(index));
+	}
+
+	/**
+	 * Height of tile, in pixel. Tiles at bottom edge of image might be shorter than {@link #TILE_SIZE}.
+	 *
+	 * @param index		-	tile index
+	 *
+	 * @return	height in pixel
+	 */
+	public int tileHeight(final int index) {
+
+		return Math.min(TILE_SIZE, this.height - tileY(index));
+	}
+}
@@ -0,0 +1,389 @@
+package com.scoreunit.rfb.screen;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+/**
+ * Find changed 16x16 pixel tiles between two consecutive images of screen.
+ * <p>
+ * This object keeps its own copy of previous image, and compares new image
+ * with it in place, row by row, without building intermediate tile objects.
+ * Only changed tiles are copied into previous image, after comparison.
+ * <p>
+ * No memory is allocated per frame, unless dimension of image changes.
+ * <p>
+ * This object is not thread-safe. VNC client sessions which watch same screen share single instance,
+ * under lock of {@link SharedFrameStore}.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class FrameDiff {
+
+	private final static int TILE_SIZE = DirtyTileMap.TILE_SIZE;
+
+	/**
+	 * Copy of previous image, 32-bit ARGB pixels.
+	 */
+	private int[] previous;
+
+	/**
+	 * Dimension of previous image.
+	 */
+	private int width, height;
+
+	/**
+	 * If set, next comparison will mark all tiles as changed.
+	 */
+	private boolean reset;
+
+	/**
+	 * Create new instance. First comparison will mark all tiles as changed.
+	 */
+	public FrameDiff() {
+
+		this.previous = new int[0];
+
+		this.width = 0;
+		this.height = 0;
+
+		this.reset = true;
+	}
+
+	/**
+	 * Forget previous image. Next comparison will mark all tiles as changed.
+	 */
+	public void reset() {
+
+		this.reset = true;
+	}
+
+	/**
+	 * Access to previous image, as it was after last comparison.
+	 * <p>
+	 * Do not change array content.
+	 *
+	 * @return	32-bit ARGB pixels
+	 */
+	public int[] getPrevious() {
+
+		return this.previous;
+	}
+
+	/**
+	 * Width of previous image.
+	 *
+	 * @return	width in pixel
+	 */
+	public int getWidth() {
+
+		return this.width;
+	}
+
+	/**
+	 * Height of previous image.
+	 *
+	 * @return	height in pixel
+	 */
+	public int getHeight() {
+
+		return this.height;
+	}
+
+	/**
+	 * Check if previous image is known, and has same dimension as given image.
+	 *
+	 * @param image		-	new image of screen
+	 *
+	 * @return	true if previous image can be compared with given image
+	 */
+	public boolean hasPrevious(final TrueColorImage image) {
+
+		return this.reset == false && this.width == image.width && this.height == image.height;
+	}
+
+	/**
+	 * Compare given image with previous image, and mark changed tiles in given map.
+	 * After comparison, given image becomes previous image.
+	 * <p>
+	 * Tiles which are already marked in map stay marked.
+	 *
+	 * @param image		-	new image of screen
+	 * @param dirty		-	map of tiles, which will be resized to image dimension if needed
+	 *
+	 * @return	number of tiles marked as changed by this comparison
+	 */
+	public int diff(final TrueColorImage image, final DirtyTileMap dirty) {
+
+		final int changed = compare(image, dirty);
+
+		update(image, dirty);
+
+		return changed;
+	}
+
+	/**
+	 * Compare given image with previous image, and mark changed tiles in given map.
+	 * Previous image is not changed, see {@link #update(TrueColorImage, DirtyTileMap)}.
+	 * <p>
+	 * Tiles which are already marked in map stay marked. If previous image is not known,
+	 * all tiles are marked.
+	 *
+	 * @param image		-	new image of screen
+	 * @param dirty		-	map of tiles, which will be resized to image dimension if needed
+	 *
+	 * @return	number of tiles marked as changed by this comparison
+	 */
+	public int compare(final TrueColorImage image, final DirtyTileMap dirty) {
+
+		final int width = image.width, height = image.height;
+		final int[] current = image.raw;
+
+		if (dirty.getWidth() != width || dirty.getHeight() != height) {
+
+			dirty.resize(width, height);
+		}
+
+		if (hasPrevious(image) == false) {
+
+			//
+			// First image, or image dimension has changed. All tiles are changed.
+			//
+
+			final int before = dirty.count();
+
+			dirty.setAll();
+
+			return dirty.getTileCount() - before;
+		}
+
+		final int[] previous = this.previous;
+		final int tilesX = dirty.getTilesX();
+
+		int changed = 0;
+
+		for (int bandY = 0, tileY = 0 ; bandY < height ; bandY += TILE_SIZE, tileY++) {
+
+			final int bandHeight = Math.min(TILE_SIZE, height - bandY);
+			final int firstTile = tileY * tilesX;
+
+			//
+			// Compare band of tiles, row by row. When pixel difference is found,
+			// mark tile and skip the rest of tile in this row.
+			//
+
+			for (int y = bandY ; y < bandY + bandHeight ; y++) {
+
+				final int rowOffset = y * width;
+
+				int x = 0;
+
+				while (x < width) {
+
+					final int tileX = x >> 4;
+
+					if (dirty.isSet(firstTile + tileX) == true) {
+
+						// Already known as changed, no need to compare.
+						x = (tileX + 1) << 4;
+
+						continue;
+					}
+
+					final int tileEnd = Math.min(width, (tileX + 1) << 4);
+
+					int offset = rowOffset + x;
+					final int endOffset = rowOffset + tileEnd;
+
+					while (offset < endOffset && current[offset] == previous[offset]) {
+
+						offset++;
+					}
+
+					if (offset < endOffset) {
+
+						dirty.set(firstTile + tileX);
+
+						changed++;
+					}
+
+					x = tileEnd;
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Compare region of screen with same region of previous image, and mark changed tiles in given map.
+	 * Previous image is not changed, see {@link #updateRegion(TrueColorImage, int, int, DirtyTileMap)}.
+	 * <p>
+	 * This is used to capture only small part of screen, eg. around mouse pointer.
+	 * Region must start at tile boundary, and it must fit into previous image.
+	 *
+	 * @param region	-	new image of region of screen
+	 * @param xPos		-	position of region in screen image, multiple of tile size
+	 * @param yPos		-	position of region in screen image, multiple of tile size
+	 * @param dirty		-	map of tiles of whole screen image, same dimension as previous image
+	 *
+	 * @return	number of tiles marked as changed by this comparison, or -1 if previous image is not known
+	 */
+	public int compareRegion(final TrueColorImage region, final int xPos, final int yPos, final DirtyTileMap dirty) {
+
+		if (this.reset == true || this.width == 0 || this.height == 0) {
+
+			return -1;
+		}
+
+		checkRegion(region, xPos, yPos);
+
+		if (dirty.getWidth() != this.width || dirty.getHeight() != this.height) {
+
+			dirty.resize(this.width, this.height);
+		}
+
+		final int[] current = region.raw, previous = this.previous;
+
+		int changed = 0;
+
+		for (int tileY = 0 ; tileY < region.height ; tileY += TILE_SIZE) {
+
+			final int tileHeight = Math.min(TILE_SIZE, region.height - tileY);
+
+			for (int tileX = 0 ; tileX < region.width ; tileX += TILE_SIZE) {
+
+				final int tileWidth = Math.min(TILE_SIZE, region.width - tileX);
+				final int screenTileX = (xPos + tileX) >> 4, screenTileY = (yPos + tileY) >> 4;
+
+				if (dirty.isSet(screenTileX, screenTileY) == true) {
+
+					continue;
+				}
+
+				for (int y = tileY ; y < tileY + tileHeight ; y++) {
+
+					int offset = y * region.width + tileX;
+					int previousOffset = (yPos + y) * this.width + xPos + tileX;
+					final int endOffset = offset + tileWidth;
+
+					while (offset < endOffset && current[offset] == previous[previousOffset]) {
+
+						offset++;
+						previousOffset++;
+					}
+
+					if (offset < endOffset) {
+
+						dirty.set(screenTileX, screenTileY);
+
+						changed++;
+
+						break;
+					}
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Copy marked tiles of region of screen into previous image,
+	 * after {@link #compareRegion(TrueColorImage, int, int, DirtyTileMap)}.
+	 *
+	 * @param region	-	new image of region of screen
+	 * @param xPos		-	position of region in screen image, multiple of tile size
+	 * @param yPos		-	position of region in screen image, multiple of tile size
+	 * @param dirty		-	map of changed tiles of whole screen image
+	 */
+	public void updateRegion(final TrueColorImage region, final int xPos, final int yPos, final DirtyTileMap dirty) {
+
+		checkRegion(region, xPos, yPos);
+
+		for (int tileY = 0 ; tileY < region.height ; tileY += TILE_SIZE) {
+
+			final int tileHeight = Math.min(TILE_SIZE, region.height - tileY);
+
+			for (int tileX = 0 ; tileX < region.width ; tileX += TILE_SIZE) {
+
+				if (dirty.isSet((xPos + tileX) >> 4, (yPos + tileY) >> 4) == false) {
+
+					continue;
+				}
+
+				final int tileWidth = Math.min(TILE_SIZE, region.width - tileX);
+
+				for (int y = tileY ; y < tileY + tileHeight ; y++) {
+
+					System.arraycopy(region.raw, y * region.width + tileX
+							, this.previous, (yPos + y) * this.width + xPos + tileX, tileWidth);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check that region starts at tile boundary, and fits into previous image.
+	 * Region may end inside tile only at edge of previous image.
+	 */
+	private void checkRegion(final TrueColorImage region, final int xPos, final int yPos) {
+
+		final int endX = xPos + region.width, endY = yPos + region.height;
+
+		if (xPos < 0 || yPos < 0 || xPos % TILE_SIZE != 0 || yPos % TILE_SIZE != 0
+				|| endX > this.width || endY > this.height
+				|| (endX % TILE_SIZE != 0 && endX != this.width)
+				|| (endY % TILE_SIZE != 0 && endY != this.height)) {
+
+			throw new IllegalArgumentException(String.format("Region %dx%d at (%d, %d) does not match tiles of %dx%d image."
+					, region.width, region.height, xPos, yPos, this.width, this.height));
+		}
+	}
+
+	/**
+	 * Copy marked tiles of given image into previous image. If previous image is not known,
+	 * complete image is copied.
+	 *
+	 * @param image		-	new image of screen
+	 * @param dirty		-	map of changed tiles, as marked by {@link #compare(TrueColorImage, DirtyTileMap)}
+	 */
+	public void update(final TrueColorImage image, final DirtyTileMap dirty) {
+
+		final int width = image.width, height = image.height;
+		final int[] current = image.raw;
+
+		if (hasPrevious(image) == false) {
+
+			if (this.previous.length != current.length) {
+
+				this.previous = new int[current.length];
+			}
+
+			System.arraycopy(current, 0, this.previous, 0, current.length);
+
+			this.width = width;
+			this.height = height;
+
+			this.reset = false;
+
+			return;
+		}
+
+		final int[] previous = this.previous;
+		final int tilesX = dirty.getTilesX();
+
+		for (int index = dirty.nextSetBit(0) ; index >= 0 ; index = dirty.nextSetBit(index + 1)) {
+
+			final int x = (index % tilesX) << 4, bandY = (index / tilesX) << 4;
+			final int tileWidth = Math.min(TILE_SIZE, width - x);
+			final int tileHeight = Math.min(TILE_SIZE, height - bandY);
+
+			for (int y = bandY ; y < bandY + tileHeight ; y++) {
+
+				final int offset = x + y * width;
+
+				System.arraycopy(current, offset, previous, offset, tileWidth);
+			}
+		}
+	}
+}
@@ -0,0 +1,560 @@
+package com.scoreunit.rfb.screen;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+/**
+ * Find parts of screen image which are moved, comparing to previous image of screen.
+ * This happens when window is dragged across the screen, or content of window is scrolled.
+ * <p>
+ * Moved parts can be sent to VNC client with <i>CopyRect</i> encoding, as just source position,
+ * and only newly exposed parts of screen are encoded with normal encoder.
+ * <p>
+ * Detection works in two steps:
+ * <ul>
+ * <li>few short horizontal segments (anchors) of new image, inside changed tiles, are searched in previous image,
+ * using rolling hash. Each found anchor gives one candidate motion vector,</li>
+ * <li>for best candidates, each changed tile of new image is compared with shifted tile of previous image,
+ * and candidate with most equal tiles is selected.</li>
+ * </ul>
+ * Only single motion vector per frame is detected.
+ * <p>
+ * This object is not thread-safe. Each VNC client session should have its own instance.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class MotionDetector {
+
+	/**
+	 * Min. number of moved tiles. Less moved tiles are not worth of <i>CopyRect</i> rectangles.
+	 */
+	public final static int MIN_TILES = 4;
+
+	/**
+	 * Max. number of <i>CopyRect</i> rectangles in single frame.
+	 */
+	public final static int MAX_RECTANGLES = 256;
+
+	/**
+	 * Length of anchor segment, in pixel.
+	 */
+	private final static int SEGMENT = 32;
+
+	/**
+	 * Max. number of anchor segments.
+	 */
+	private final static int ANCHORS = 16;
+
+	/**
+	 * Max. number of matches in previous image, for each anchor segment.
+	 * Repetitive content, like text, can match many times.
+	 */
+	private final static int MAX_MATCHES = 256;
+
+	/**
+	 * Number of best candidates which are verified, tile by tile.
+	 */
+	private final static int CANDIDATES = 4;
+
+	/**
+	 * Multiplier of rolling hash.
+	 */
+	private final static int HASH_MULTIPLIER = 0x01000193;
+
+	/**
+	 * Value of {@link #HASH_MULTIPLIER} raised to the power of {@link #SEGMENT}.
+	 */
+	private final static int HASH_POWER;
+
+	static {
+
+		int power = 1;
+
+		for (int i = 0 ; i < SEGMENT ; i++) {
+
+			power *= HASH_MULTIPLIER;
+		}
+
+		HASH_POWER = power;
+	}
+
+	/**
+	 * Position and hash of anchor segments, in new image.
+	 */
+	private final int[] anchorX, anchorY, anchorHash;
+
+	/**
+	 * Number of anchor segments found.
+	 */
+	private int anchorCount;
+
+	/**
+	 * Moved tiles of new image, for selected motion vector, and for candidate which is verified.
+	 */
+	private DirtyTileMap moved, candidate;
+
+	/**
+	 * Join moved tiles into rectangles.
+	 */
+	private final RectangleMerger merger;
+
+	/**
+	 * Selected motion vector, in pixel.
+	 */
+	private int deltaX, deltaY;
+
+	/**
+	 * Create new instance.
+	 */
+	public MotionDetector() {
+
+		this.anchorX = new int[ANCHORS];
+		this.anchorY = new int[ANCHORS];
+		this.anchorHash = new int[ANCHORS];
+
+		this.moved = new DirtyTileMap(0, 0);
+		this.candidate = new DirtyTileMap(0, 0);
+
+		// Size of CopyRect rectangle does not matter, only source position is sent.
+		this.merger = new RectangleMerger(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Horizontal motion of last detection. Source of moved rectangle is at <i>x - deltaX</i> position.
+	 *
+	 * @return	motion in pixel, positive value is motion to the right
+	 */
+	public int getDeltaX() {
+
+		return this.deltaX;
+	}
+
+	/**
+	 * Vertical motion of last detection. Source of moved rectangle is at <i>y - deltaY</i> position.
+	 *
+	 * @return	motion in pixel, positive value is motion down
+	 */
+	public int getDeltaY() {
+
+		return this.deltaY;
+	}
+
+	/**
+	 * Tiles of new image which are covered by rectangles of last detection.
+	 * These tiles should not be encoded with normal encoder.
+	 * <p>
+	 * Do not change content of map.
+	 *
+	 * @return	map of moved tiles
+	 */
+	public DirtyTileMap getMovedTiles() {
+
+		return this.moved;
+	}
+
+	/**
+	 * Find moved parts of new image.
+	 * <p>
+	 * Result rectangles should be sent in given order, before other rectangles of frame buffer update.
+	 * Source of each rectangle does not overlap destination of rectangles that are sent before it.
+	 *
+	 * @param previous	-	previous image, as known by VNC client, with same dimension as new image
+	 * @param image		-	new image
+	 * @param dirty		-	changed tiles of new image, map is not changed
+	 *
+	 * @return	destination rectangles of moved parts, or empty list if motion is not found
+	 */
+	public List<Rectangle> detect(final int[] previous, final TrueColorImage image, final DirtyTileMap dirty) {
+
+		this.deltaX = 0;
+		this.deltaY = 0;
+
+		this.moved.resize(dirty.getWidth(), dirty.getHeight());
+
+		final List<Rectangle> result = new ArrayList<>();
+
+		if (dirty.count() < MIN_TILES) {
+
+			return result;
+		}
+
+		final Rectangle bounds = RectangleMerger.bounds(dirty);
+
+		if (bounds.width < SEGMENT) {
+
+			return result;
+		}
+
+		findAnchors(image, dirty, bounds);
+
+		if (this.anchorCount == 0) {
+
+			return result;
+		}
+
+		//
+		// Verify best candidates, and keep one with most moved tiles.
+		//
+
+		int bestCount = MIN_TILES - 1;
+
+		for (final long vector : findCandidates(previous, image, bounds)) {
+
+			final int dx = (int) (vector >> 32), dy = (int) vector;
+
+			final int count = verify(previous, image, dirty, dx, dy, this.candidate);
+
+			if (count > bestCount) {
+
+				bestCount = count;
+
+				this.deltaX = dx;
+				this.deltaY = dy;
+
+				final DirtyTileMap swap = this.moved;
+				this.moved = this.candidate;
+				this.candidate = swap;
+			}
+		}
+
+		if (this.deltaX == 0 && this.deltaY == 0) {
+
+			return result;
+		}
+
+		final List<Rectangle> rectangles = this.merger.merge(this.moved);
+
+		if (rectangles.size() > MAX_RECTANGLES) {
+
+			this.moved.clear();
+
+			return result;
+		}
+
+		//
+		// Order rectangles, so that source of rectangle is copied before it is overwritten.
+		// Eg. if content is moved down, bottom rectangles are copied first.
+		//
+
+		final int dx = this.deltaX, dy = this.deltaY;
+
+		Collections.sort(rectangles, (r1, r2) -> {
+
+			if (r1.y != r2.y) {
+
+				return dy > 0 ? Integer.compare(r2.y, r1.y) : Integer.compare(r1.y, r2.y);
+			}
+
+			return dx > 0 ? Integer.compare(r2.x, r1.x) : Integer.compare(r1.x, r2.x);
+		});
+
+		for (final Rectangle rectangle : rectangles) {
+
+			final Rectangle source = new Rectangle(rectangle.x - dx, rectangle.y - dy, rectangle.width, rectangle.height);
+
+			boolean overwritten = false;
+
+			for (final Rectangle copied : result) {
+
+				if (copied.intersects(source) == true) {
+
+					overwritten = true;
+
+					break;
+				}
+			}
+
+			if (overwritten == true) {
+
+				// Tiles of this rectangle should be encoded with normal encoder.
+				clearTiles(this.moved, rectangle);
+			}
+			else {
+
+				result.add(rectangle);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Find anchor segments in new image, evenly distributed over rows of changed area.
+	 * Segments with uniform color are not used, since they match at too many positions.
+	 *
+	 * @param image		-	new image
+	 * @param dirty		-	changed tiles of new image
+	 * @param bounds	-	area of changed tiles
+	 */
+	private void findAnchors(final TrueColorImage image, final DirtyTileMap dirty, final Rectangle bounds) {
+
+		final int[] raw = image.raw;
+		final int width = image.width;
+
+		final int step = SEGMENT / 2;
+		final int steps = (bounds.width - SEGMENT) / step + 1;
+
+		this.anchorCount = 0;
+
+		for (int i = 0 ; i < ANCHORS ; i++) {
+
+			final int y = bounds.y + bounds.height * (2 * i + 1) / (2 * ANCHORS);
+
+			// Start search at different column for each anchor.
+			final int firstStep = (i * steps) / ANCHORS;
+
+			for (int k = 0 ; k < steps ; k++) {
+
+				final int x = bounds.x + ((firstStep + k) % steps) * step;
+
+				if (dirty.isSet(x / DirtyTileMap.TILE_SIZE, y / DirtyTileMap.TILE_SIZE) == false
+						|| dirty.isSet((x + SEGMENT - 1) / DirtyTileMap.TILE_SIZE, y / DirtyTileMap.TILE_SIZE) == false) {
+
+					continue;
+				}
+
+				final int offset = x + y * width;
+
+				int edges = 0;
+
+				for (int j = offset + 1 ; j < offset + SEGMENT ; j++) {
+
+					if (raw[j] != raw[j - 1]) {
+
+						edges++;
+					}
+				}
+
+				if (edges >= 3) {
+
+					this.anchorX[this.anchorCount] = x;
+					this.anchorY[this.anchorCount] = y;
+					this.anchorHash[this.anchorCount] = hash(raw, offset);
+
+					this.anchorCount++;
+
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Search anchor segments in previous image, and count how many anchors
+	 * support each motion vector.
+	 *
+	 * @param previous	-	previous image
+	 * @param image		-	new image
+	 * @param bounds	-	area of changed tiles, where source of moved content is expected
+	 *
+	 * @return	best motion vectors, ordered by number of anchors, x in upper and y in lower 32 bits
+	 */
+	private List<Long> findCandidates(final int[] previous, final TrueColorImage image, final Rectangle bounds) {
+
+		final int[] raw = image.raw;
+		final int width = image.width;
+
+		// Fast check if hash value might belong to some anchor.
+		long filter = 0;
+
+		for (int k = 0 ; k < this.anchorCount ; k++) {
+
+			filter |= 1L << filterBit(this.anchorHash[k]);
+		}
+
+		final int[] matches = new int[this.anchorCount];
+		int exhausted = 0;
+
+		final Map<Long, int[]> votes = new HashMap<>();
+
+		final int lastX = bounds.x + bounds.width - SEGMENT;
+
+		for (int y = bounds.y ; y < bounds.y + bounds.height && exhausted < this.anchorCount ; y++) {
+
+			final int rowOffset = y * width;
+
+			int hash = hash(previous, rowOffset + bounds.x);
+
+			for (int x = bounds.x ; ; x++) {
+
+				if ((filter & (1L << filterBit(hash))) != 0) {
+
+					for (int k = 0 ; k < this.anchorCount ; k++) {
+
+						if (this.anchorHash[k] != hash || matches[k] >= MAX_MATCHES) {
+
+							continue;
+						}
+
+						final int dx = this.anchorX[k] - x, dy = this.anchorY[k] - y;
+
+						if ((dx == 0 && dy == 0) ||
+								equals(previous, rowOffset + x, raw, this.anchorX[k] + this.anchorY[k] * width, SEGMENT) == false) {
+
+							continue;
+						}
+
+						matches[k]++;
+
+						if (matches[k] == MAX_MATCHES) {
+
+							exhausted++;
+						}
+
+						votes.computeIfAbsent(((long) dx << 32) | (dy & 0xFFFFFFFFL), key -> new int[1])[0]++;
+					}
+				}
+
+				if (x == lastX) {
+
+					break;
+				}
+
+				hash = hash * HASH_MULTIPLIER + previous[rowOffset + x + SEGMENT] - previous[rowOffset + x] * HASH_POWER;
+			}
+		}
+
+		//
+		// Most votes first. On same number of votes, prefer shorter motion.
+		//
+
+		final List<Long> result = new ArrayList<>(votes.keySet());
+
+		Collections.sort(result, (v1, v2) -> {
+
+			final int votes1 = votes.get(v1)[0], votes2 = votes.get(v2)[0];
+
+			if (votes1 != votes2) {
+
+				return Integer.compare(votes2, votes1);
+			}
+
+			return Integer.compare(distance(v1), distance(v2));
+		});
+
+		return result.size() > CANDIDATES ? result.subList(0, CANDIDATES) : result;
+	}
+
+	/**
+	 * Compare each changed tile of new image with tile of previous image, shifted by motion vector.
+	 *
+	 * @param previous	-	previous image
+	 * @param image		-	new image
+	 * @param dirty		-	changed tiles of new image
+	 * @param dx		-	horizontal motion
+	 * @param dy		-	vertical motion
+	 * @param target	-	map where equal tiles are marked
+	 *
+	 * @return	number of equal tiles
+	 */
+	private static int verify(final int[] previous, final TrueColorImage image, final DirtyTileMap dirty
+			, final int dx, final int dy, final DirtyTileMap target) {
+
+		final int[] raw = image.raw;
+		final int width = image.width, height = image.height;
+
+		target.resize(dirty.getWidth(), dirty.getHeight());
+
+		int count = 0;
+
+		for (int index = dirty.nextSetBit(0) ; index >= 0 ; index = dirty.nextSetBit(index + 1)) {
+
+			final int x = dirty.tileX(index), y = dirty.tileY(index);
+			final int tileWidth = dirty.tileWidth(index), tileHeight = dirty.tileHeight(index);
+
+			final int srcX = x - dx, srcY = y - dy;
+
+			if (srcX < 0 || srcY < 0 || srcX + tileWidth > width || srcY + tileHeight > height) {
+
+				continue;
+			}
+
+			boolean equal = true;
+
+			for (int row = 0 ; row < tileHeight && equal == true ; row++) {
+
+				equal = equals(previous, srcX + (srcY + row) * width, raw, x + (y + row) * width, tileWidth);
+			}
+
+			if (equal == true) {
+
+				target.set(index);
+
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Mark all tiles of rectangle as clean.
+	 *
+	 * @param map		-	map of tiles
+	 * @param rectangle	-	tile aligned rectangle
+	 */
+	private static void clearTiles(final DirtyTileMap map, final Rectangle rectangle) {
+
+		for (int y = rectangle.y ; y < rectangle.y + rectangle.height ; y += DirtyTileMap.TILE_SIZE) {
+
+			for (int x = rectangle.x ; x < rectangle.x + rectangle.width ; x += DirtyTileMap.TILE_SIZE) {
+
+				map.clear(x / DirtyTileMap.TILE_SIZE, y / DirtyTileMap.TILE_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * Hash of segment of pixels, with {@link #SEGMENT} length.
+	 */
+	private static int hash(final int[] raw, final int offset) {
+
+		int result = 0;
+
+		for (int i = offset ; i < offset + SEGMENT ; i++) {
+
+			result = result * HASH_MULTIPLIER + raw[i];
+		}
+
+		return result;
+	}
+
+	/**
+	 * Bit position, 0 - 63, of hash value in filter.
+	 */
+	private static int filterBit(final int hash) {
+
+		return (hash * 0x9E3779B9) >>> 26;
+	}
+
+	/**
+	 * Compare two segments of pixels.
+	 */
+	private static boolean equals(final int[] raw1, final int offset1, final int[] raw2, final int offset2, final int length) {
+
+		for (int i = 0 ; i < length ; i++) {
+
+			if (raw1[offset1 + i] != raw2[offset2 + i]) {
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Length of motion vector, as sum of absolute x and y values.
+	 */
+	private static int distance(final long vector) {
+
+		return Math.abs((int) (vector >> 32)) + Math.abs((int) vector);
+	}
+}
@@ -0,0 +1,237 @@
+package com.scoreunit.rfb.screen;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Join adjacent dirty tiles, see {@link DirtyTileMap}, into larger rectangles.
+ * <p>
+ * Each rectangle in frame buffer update message has its own header, and encoders like
+ * zlib or tight compress larger regions better than many small tiles. Rectangles are
+ * built greedily: starting from top-left dirty tile, rectangle is extended to the right
+ * while tiles are dirty, and then down while complete row of tiles below is dirty.
+ * <p>
+ * Rectangle size is limited by {@link #getMaxRectangleSize()} value.
+ * <p>
+ * This object is not thread-safe. Each VNC client session should have its own instance.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class RectangleMerger {
+
+	/**
+	 * Default max. width and height of rectangle in pixel.
+	 */
+	public final static int DEFAULT_MAX_RECTANGLE_SIZE = 512;
+
+	/**
+	 * Max. width and height of rectangle in pixel.
+	 */
+	private int maxRectangleSize;
+
+	/**
+	 * Scratch map, to keep track of tiles which are not yet part of some rectangle.
+	 */
+	private final DirtyTileMap remaining;
+
+	/**
+	 * Create new instance, with max. rectangle size set to {@link #DEFAULT_MAX_RECTANGLE_SIZE}.
+	 */
+	public RectangleMerger() {
+
+		this(DEFAULT_MAX_RECTANGLE_SIZE);
+	}
+
+	/**
+	 * Create new instance.
+	 *
+	 * @param maxRectangleSize	-	max. width and height of rectangle in pixel, rounded up to tile size
+	 */
+	public RectangleMerger(final int maxRectangleSize) {
+
+		this.remaining = new DirtyTileMap(0, 0);
+
+		setMaxRectangleSize(maxRectangleSize);
+	}
+
+	/**
+	 * Max. width and height of rectangle in pixel.
+	 *
+	 * @return	size in pixel
+	 */
+	public int getMaxRectangleSize() {
+
+		return this.maxRectangleSize;
+	}
+
+	/**
+	 * Set max. width and height of rectangle in pixel.
+	 *
+	 * @param maxRectangleSize	-	size in pixel, value less than tile size is treated as tile size
+	 */
+	public void setMaxRectangleSize(final int maxRectangleSize) {
+
+		this.maxRectangleSize = Math.max(DirtyTileMap.TILE_SIZE, maxRectangleSize);
+	}
+
+	/**
+	 * Join dirty tiles into rectangles. Given map is not changed.
+	 *
+	 * @param dirty		-	map of dirty tiles
+	 *
+	 * @return	list of rectangles which cover all dirty tiles, ordered from top-left to bottom-right
+	 */
+	public List<Rectangle> merge(final DirtyTileMap dirty) {
+
+		final List<Rectangle> result = new ArrayList<>();
+
+		this.remaining.copyFrom(dirty);
+
+		final DirtyTileMap remaining = this.remaining;
+
+		final int tilesX = remaining.getTilesX(), tilesY = remaining.getTilesY();
+		final int maxTiles = Math.max(1, this.maxRectangleSize / DirtyTileMap.TILE_SIZE);
+
+		for (int index = remaining.nextSetBit(0) ; index >= 0 ; index = remaining.nextSetBit(index + 1)) {
+
+			final int tileX = index % tilesX, tileY = index / tilesX;
+
+			// Extend rectangle to the right.
+			int w = 1;
+			while (tileX + w < tilesX && w < maxTiles && remaining.isSet(tileX + w, tileY) == true) {
+
+				w++;
+			}
+
+			// Extend rectangle down, while complete row of tiles is dirty.
+			int h = 1;
+			while (tileY + h < tilesY && h < maxTiles && isRowSet(remaining, tileX, tileY + h, w) == true) {
+
+				h++;
+			}
+
+			for (int y = tileY ; y < tileY + h ; y++) {
+
+				for (int x = tileX ; x < tileX + w ; x++) {
+
+					remaining.clear(x, y);
+				}
+			}
+
+			final int xPos = tileX * DirtyTileMap.TILE_SIZE, yPos = tileY * DirtyTileMap.TILE_SIZE;
+
+			result.add(new Rectangle(xPos, yPos
+					, Math.min(w * DirtyTileMap.TILE_SIZE, dirty.getWidth() - xPos)
+					, Math.min(h * DirtyTileMap.TILE_SIZE, dirty.getHeight() - yPos)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check if all tiles in part of row are dirty.
+	 *
+	 * @param map		-	map of tiles
+	 * @param tileX		-	first tile column
+	 * @param tileY		-	tile row
+	 * @param count		-	number of tiles
+	 *
+	 * @return	true if all tiles are dirty
+	 */
+	private static boolean isRowSet(final DirtyTileMap map, final int tileX, final int tileY, final int count) {
+
+		for (int x = tileX ; x < tileX + count ; x++) {
+
+			if (map.isSet(x, tileY) == false) {
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Smallest rectangle which covers all dirty tiles.
+	 *
+	 * @param dirty		-	map of dirty tiles
+	 *
+	 * @return	bounding rectangle, or null if there are no dirty tiles
+	 */
+	public static Rectangle bounds(final DirtyTileMap dirty) {
+
+		Rectangle result = null;
+
+		for (int index = dirty.nextSetBit(0) ; index >= 0 ; index = dirty.nextSetBit(index + 1)) {
+
+			final Rectangle tile = new Rectangle(dirty.tileX(index), dirty.tileY(index)
+					, dirty.tileWidth(index), dirty.tileHeight(index));
+
+			if (result == null) {
+
+				result = tile;
+			}
+			else {
+
+				result.add(tile);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Split list of rectangles into work units, for parallel encoding.
+	 * <p>
+	 * Each work unit is continuous part of list, so work units put together keep order of rectangles.
+	 * Work units have about same number of pixels.
+	 *
+	 * @param rectangles	-	list of rectangles, eg. from {@link #merge(DirtyTileMap)}
+	 * @param units			-	desired number of work units, eg. number of encoding threads
+	 *
+	 * @return	list of work units, at most given number of them, and at most one per rectangle
+	 */
+	public static List<List<Rectangle>> split(final List<Rectangle> rectangles, final int units) {
+
+		final List<List<Rectangle>> result = new ArrayList<>();
+
+		if (rectangles.isEmpty() == true) {
+
+			return result;
+		}
+
+		long total = 0;
+
+		for (final Rectangle rectangle : rectangles) {
+
+			total += (long) rectangle.width * rectangle.height;
+		}
+
+		final int count = Math.max(1, Math.min(units, rectangles.size()));
+
+		List<Rectangle> unit = new ArrayList<>();
+		long pixels = 0;
+
+		for (final Rectangle rectangle : rectangles) {
+
+			unit.add(rectangle);
+			pixels += (long) rectangle.width * rectangle.height;
+
+			// Close work unit once it reaches its share of all pixels.
+			if (result.size() < count - 1 && pixels * count >= total * (result.size() + 1)) {
+
+				result.add(unit);
+				unit = new ArrayList<>();
+			}
+		}
+
+		if (unit.isEmpty() == false) {
+
+			result.add(unit);
+		}
+
+		return result;
+	}
+}
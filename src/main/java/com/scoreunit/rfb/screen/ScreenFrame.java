@@ -0,0 +1,55 @@
+package com.scoreunit.rfb.screen;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+/**
+ * Single captured image of screen (clip), as published by {@link SharedScreenCapture}.
+ * <p>
+ * Every new screen content gets new, higher, generation number.
+ * If screen content did not change between two captures, same frame
+ * (and same generation number) is published again.
+ * <p>
+ * Note this object is immutable. Do not change pixels of {@link #image}, since
+ * same image is shared among all VNC client sessions.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class ScreenFrame {
+
+	/**
+	 * An 32-bit ARGB image of screen, or region of screen.
+	 */
+	public final TrueColorImage image;
+
+	/**
+	 * Generation number of this frame. Value is increased each time
+	 * screen content changes.
+	 */
+	public final long generation;
+
+	/**
+	 * Time in millisec. it took to capture this frame.
+	 */
+	public final long captureTime;
+
+	/**
+	 * Create new frame.
+	 *
+	 * @param image				-	captured image
+	 * @param generation		-	generation number
+	 * @param captureTime		-	time in millisec. spent to capture image
+	 */
+	public ScreenFrame(final TrueColorImage image, final long generation, final long captureTime) {
+
+		this.image = image;
+		this.generation = generation;
+		this.captureTime = captureTime;
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("%s-[%d]", ScreenFrame.class.getSimpleName(), this.generation);
+	}
+}
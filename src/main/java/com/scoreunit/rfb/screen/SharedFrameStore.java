@@ -0,0 +1,500 @@
+package com.scoreunit.rfb.screen;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+/**
+ * Last image of screen (clip), shared by all VNC client sessions which watch it,
+ * with changed tiles accumulated for each session.
+ * <p>
+ * Store keeps single copy of screen image. Each new {@link ScreenFrame} is compared with it once,
+ * and changed tiles are added to map of each {@link Subscriber}. Session takes all tiles changed
+ * since its last update, so session which missed several frames, eg. slow VNC client, gets single merged update.
+ * <p>
+ * Each session keeps only its map of changed tiles, 1 bit per 16x16 pixel tile, instead of its own copy of screen image.
+ * <p>
+ * This object is thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class SharedFrameStore {
+
+	/**
+	 * Screen clip of frames, or null for full screen.
+	 */
+	private final ScreenClip clip;
+
+	/**
+	 * Compare new screen frame with stored image. This is only copy of screen image for all subscribers.
+	 */
+	private final FrameDiff frameDiff;
+
+	/**
+	 * Changed tiles of last compared frame.
+	 */
+	private final DirtyTileMap changed;
+
+	/**
+	 * Tiles of areas requested by subscriber, see {@link #take(Subscriber, ScreenFrame, DirtyTileMap, List)}.
+	 */
+	private final DirtyTileMap requested;
+
+	private final Set<Subscriber> subscribers;
+
+	/**
+	 * Generation of last compared screen frame, see {@link ScreenFrame#generation}.
+	 */
+	private long generation;
+
+	/**
+	 * Image of last compared frame, or null if no frame is compared yet.
+	 */
+	private TrueColorImage image;
+
+	/**
+	 * Set if stored image was changed by {@link #takeRegion(Subscriber, TrueColorImage, int, int, DirtyTileMap)}
+	 * since last compared frame, so {@link #image} is not same as stored image any more.
+	 * Then same frame is compared again, since tiles of region may be reverted in it, eg. highlight of button.
+	 */
+	private boolean regionStored;
+
+	/**
+	 * Image of frame before last changed frame, or null if it is not same as stored image was before last change.
+	 */
+	private TrueColorImage previous;
+
+	/**
+	 * Number of compared frames, and number of merged updates, with changes of more than one frame.
+	 */
+	private long frames, mergedUpdates;
+
+	/**
+	 * Create new, empty, store.
+	 *
+	 * @param clip	-	{@link ScreenClip} instance, or null value for full screen
+	 */
+	public SharedFrameStore(final ScreenClip clip) {
+
+		this.clip = clip;
+		this.frameDiff = new FrameDiff();
+		this.changed = new DirtyTileMap(0, 0);
+		this.requested = new DirtyTileMap(0, 0);
+		this.subscribers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		this.generation = 0;
+		this.image = null;
+		this.regionStored = false;
+		this.previous = null;
+
+		this.frames = 0;
+		this.mergedUpdates = 0;
+	}
+
+	/**
+	 * Screen clip of frames in this store.
+	 *
+	 * @return	{@link ScreenClip} instance, or null value for full screen
+	 */
+	public ScreenClip getClip() {
+
+		return this.clip;
+	}
+
+	/**
+	 * Add subscriber to store. Subscriber takes all tiles first.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 */
+	public synchronized void subscribe(final Subscriber subscriber) {
+
+		subscriber.full = true;
+		subscriber.inSync = false;
+
+		this.subscribers.add(subscriber);
+	}
+
+	/**
+	 * Remove subscriber from store. Nothing happens if subscriber is not in store.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 *
+	 * @return	true if store has no subscribers
+	 */
+	public synchronized boolean unsubscribe(final Subscriber subscriber) {
+
+		this.subscribers.remove(subscriber);
+
+		return this.subscribers.isEmpty();
+	}
+
+	/**
+	 * @return	number of subscribers
+	 */
+	public synchronized int getSubscribers() {
+
+		return this.subscribers.size();
+	}
+
+	/**
+	 * Make sure that subscriber takes all tiles next time, eg. on non-incremental update request.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 */
+	public synchronized void reset(final Subscriber subscriber) {
+
+		subscriber.full = true;
+		subscriber.inSync = false;
+	}
+
+	/**
+	 * Make sure that subscriber takes all tiles of given areas next time,
+	 * eg. on non-incremental update request for part of frame buffer.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 * @param areas			-	areas of screen image, which VNC client has lost
+	 */
+	public synchronized void invalidate(final Subscriber subscriber, final List<Rectangle> areas) {
+
+		// Moved parts can not be copied from lost areas.
+		subscriber.inSync = false;
+
+		if (subscriber.full == true || this.image == null) {
+
+			return;
+		}
+
+		for (final Rectangle area : areas) {
+
+			subscriber.dirty.setArea(area.x, area.y, area.width, area.height);
+		}
+	}
+
+	/**
+	 * Width of stored image.
+	 *
+	 * @return	width in pixel, 0 if no frame is compared yet
+	 */
+	public synchronized int getWidth() {
+
+		return this.frameDiff.getWidth();
+	}
+
+	/**
+	 * Height of stored image.
+	 *
+	 * @return	height in pixel, 0 if no frame is compared yet
+	 */
+	public synchronized int getHeight() {
+
+		return this.frameDiff.getHeight();
+	}
+
+	/**
+	 * Take all tiles changed since last update of subscriber, see {@link #take(Subscriber, ScreenFrame, DirtyTileMap, List)}.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 * @param frame			-	current screen frame
+	 * @param dirty			-	map where to copy changed tiles
+	 *
+	 * @return	image which contains changed tiles, or null if screen did not change since last update of subscriber
+	 */
+	public TrueColorImage take(final Subscriber subscriber, final ScreenFrame frame, final DirtyTileMap dirty) {
+
+		return take(subscriber, frame, dirty, null);
+	}
+
+	/**
+	 * Take tiles changed since last update of subscriber, within given areas, and clear them in map of subscriber.
+	 * Other changed tiles stay in map of subscriber, until it requests their area.
+	 * <p>
+	 * If given screen frame is new, or region was stored since it was compared, it is compared with stored image first,
+	 * and changed tiles are added to maps of all subscribers. So returned image is always image of a frame,
+	 * and tiles of region are not copied into another image.
+	 * <p>
+	 * If given screen frame is older than last compared frame, and region was stored since, nothing is taken,
+	 * and changed tiles are taken with newer frame.
+	 * <p>
+	 * After this method, {@link Subscriber#getPrevious()} gives image which VNC client has, if it is known.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 * @param frame			-	current screen frame
+	 * @param dirty			-	map where to copy changed tiles
+	 * @param areas			-	areas of screen image requested by VNC client, or null for whole image
+	 *
+	 * @return	image which contains changed tiles, or null if screen did not change within areas since last update of subscriber,
+	 * 			or if frame is older than stored image
+	 */
+	public synchronized TrueColorImage take(final Subscriber subscriber, final ScreenFrame frame
+			, final DirtyTileMap dirty, final List<Rectangle> areas) {
+
+		subscriber.previous = null;
+
+		if (frame.generation > this.generation
+				|| (frame.generation == this.generation && this.regionStored == true)) {
+
+			advance(frame);
+		}
+		else if (this.regionStored == true) {
+
+			// Stored image is newer than frame, and frame image does not contain tiles of region.
+			return null;
+		}
+
+		if (this.image == null) {
+
+			return null;
+		}
+
+		final boolean full = subscriber.full;
+
+		if (full == true) {
+
+			subscriber.dirty.resize(this.image.width, this.image.height);
+			subscriber.dirty.setAll();
+			subscriber.full = false;
+		}
+
+		if (subscriber.dirty.isEmpty() == true) {
+
+			return null;
+		}
+
+		dirty.copyFrom(subscriber.dirty);
+
+		if (areas != null) {
+
+			this.requested.resize(this.image.width, this.image.height);
+
+			for (final Rectangle area : areas) {
+
+				this.requested.setArea(area.x, area.y, area.width, area.height);
+			}
+
+			dirty.and(this.requested);
+
+			if (dirty.isEmpty() == true) {
+
+				return null;
+			}
+
+			subscriber.dirty.andNot(this.requested);
+		}
+		else {
+
+			subscriber.dirty.clear();
+		}
+
+		if (full == false && subscriber.inSync == false) {
+
+			this.mergedUpdates++;
+		}
+
+		subscriber.previous = subscriber.inSync == true ? this.previous : null;
+		subscriber.inSync = false;
+
+		return this.image;
+	}
+
+	/**
+	 * Compare region of screen with stored image, eg. area around mouse pointer, captured directly.
+	 * Changed tiles of region are stored, and they are added to maps of other subscribers.
+	 * <p>
+	 * Tiles of region, which subscriber should take, are marked in given map, and cleared in map of subscriber.
+	 * Region must start at tile boundary, and it must fit into stored image,
+	 * see {@link FrameDiff#compareRegion(TrueColorImage, int, int, DirtyTileMap)}.
+	 *
+	 * @param subscriber	-	subscriber of session
+	 * @param region		-	new image of region of screen
+	 * @param xPos			-	position of region in screen image, multiple of tile size
+	 * @param yPos			-	position of region in screen image, multiple of tile size
+	 * @param dirty			-	map of tiles of whole screen image, where to mark tiles of region
+	 *
+	 * @return	number of marked tiles, or -1 if stored image is not known, or subscriber should take all tiles
+	 */
+	public synchronized int takeRegion(final Subscriber subscriber, final TrueColorImage region
+			, final int xPos, final int yPos, final DirtyTileMap dirty) {
+
+		if (this.image == null || subscriber.full == true) {
+
+			return -1;
+		}
+
+		dirty.clear();
+
+		final int changed = this.frameDiff.compareRegion(region, xPos, yPos, dirty);
+
+		if (changed < 0) {
+
+			return -1;
+		}
+
+		if (changed > 0) {
+
+			this.frameDiff.updateRegion(region, xPos, yPos, dirty);
+			this.regionStored = true;
+
+			for (final Subscriber other : this.subscribers) {
+
+				if (other != subscriber) {
+
+					mark(other, dirty);
+				}
+			}
+		}
+
+		// Stored image is same as region now, so tiles which subscriber missed are taken from region too.
+		final DirtyTileMap pending = subscriber.dirty;
+
+		final int firstX = xPos / DirtyTileMap.TILE_SIZE, firstY = yPos / DirtyTileMap.TILE_SIZE;
+		final int endX = (xPos + region.width + DirtyTileMap.TILE_SIZE - 1) / DirtyTileMap.TILE_SIZE;
+		final int endY = (yPos + region.height + DirtyTileMap.TILE_SIZE - 1) / DirtyTileMap.TILE_SIZE;
+
+		for (int tileY = firstY ; tileY < endY ; tileY++) {
+
+			for (int tileX = firstX ; tileX < endX ; tileX++) {
+
+				if (pending.isSet(tileX, tileY) == true) {
+
+					dirty.set(tileX, tileY);
+					pending.clear(tileX, tileY);
+				}
+			}
+		}
+
+		// VNC client has tiles of region, which are not in previous image.
+		subscriber.inSync = false;
+
+		return dirty.count();
+	}
+
+	/**
+	 * Compare new screen frame with stored image, and add changed tiles to maps of subscribers.
+	 */
+	private void advance(final ScreenFrame frame) {
+
+		// VNC client which has taken region does not have image of last frame.
+		final boolean regionStored = this.regionStored;
+
+		this.generation = frame.generation;
+		this.regionStored = false;
+
+		final TrueColorImage image = frame.image;
+
+		this.changed.clear();
+
+		if (this.frameDiff.compare(image, this.changed) == 0) {
+
+			// Same pixels as stored image.
+			this.image = image;
+
+			return;
+		}
+
+		final boolean sameSize = this.image != null && this.image.width == image.width && this.image.height == image.height;
+
+		this.previous = (sameSize == true && regionStored == false) ? this.image : null;
+
+		this.frameDiff.update(image, this.changed);
+
+		for (final Subscriber subscriber : this.subscribers) {
+
+			// Subscriber which has taken all changes so far, has previous image.
+			subscriber.inSync = subscriber.full == false && subscriber.dirty.isEmpty() == true;
+
+			mark(subscriber, this.changed);
+		}
+
+		this.image = image;
+		this.frames++;
+	}
+
+	/**
+	 * Add changed tiles to map of subscriber.
+	 */
+	private static void mark(final Subscriber subscriber, final DirtyTileMap changed) {
+
+		if (subscriber.full == true) {
+
+			return;
+		}
+
+		if (subscriber.dirty.getWidth() != changed.getWidth() || subscriber.dirty.getHeight() != changed.getHeight()) {
+
+			// Image dimension has changed.
+			subscriber.dirty.resize(changed.getWidth(), changed.getHeight());
+			subscriber.dirty.setAll();
+
+			return;
+		}
+
+		subscriber.dirty.or(changed);
+	}
+
+	/**
+	 * @return	number of compared frames with changed tiles
+	 */
+	public synchronized long getFrames() {
+
+		return this.frames;
+	}
+
+	/**
+	 * @return	number of incremental updates taken by subscribers, which did not take previous frame
+	 */
+	public synchronized long getMergedUpdates() {
+
+		return this.mergedUpdates;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("%s: %d subscribers, %dx%d, frames %d, merged updates %d"
+				, this.clip, this.subscribers.size(), this.frameDiff.getWidth(), this.frameDiff.getHeight()
+				, this.frames, this.mergedUpdates);
+	}
+
+	/**
+	 * Subscriber of store, one per session. Its state is changed only by store.
+	 */
+	public static class Subscriber {
+
+		/**
+		 * Tiles which VNC client did not receive yet.
+		 */
+		private final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		/**
+		 * Set if subscriber should take all tiles.
+		 */
+		private boolean full = true;
+
+		/**
+		 * Set if VNC client had image of {@link SharedFrameStore#previous}, when last frame was compared.
+		 */
+		private boolean inSync = false;
+
+		/**
+		 * Image which VNC client has, as found by last {@link SharedFrameStore#take(Subscriber, ScreenFrame, DirtyTileMap)}.
+		 */
+		private TrueColorImage previous;
+
+		/**
+		 * Image which VNC client has, before update which was just taken. This is used to find moved parts of screen.
+		 * <p>
+		 * Do not change image pixels.
+		 *
+		 * @return	image with same dimension as current image, or null if it is not known, eg. VNC client missed some frames
+		 */
+		public TrueColorImage getPrevious() {
+
+			return this.previous;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.scoreunit.rfb.screen;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+/**
+ * Screen capture service shared by all VNC client sessions.
+ * <p>
+ * Instead of each session capturing screen on its own, sessions ask this service
+ * for current {@link ScreenFrame}. Screen is captured at most once per {@link #getInterval()}
+ * period, for each distinct {@link ScreenClip}, and the same frame is given to all sessions.
+ * This keeps screen capture cost flat, no matter how many VNC clients are connected.
+ * <p>
+ * Each frame carries a generation number. Session should compare it with generation
+ * of last frame it has sent to VNC client, and skip comparison of images if they are equal.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class SharedScreenCapture {
+
+	/**
+	 * Default {@link Logger} instance.
+	 */
+	public final static Logger log = LoggerFactory.getLogger(SharedScreenCapture.class);
+
+	/**
+	 * Default minimal period in millisec. between two screen captures.
+	 */
+	public final static long DEFAULT_INTERVAL = 100;
+
+	/**
+	 * A capture channel which is not used for this many intervals will be released.
+	 */
+	private final static int STALE_INTERVALS = 50;
+
+	/**
+	 * Used to capture image of screen or part of screen.
+	 */
+	private final ScreenCaptureInterface screenCapture;
+
+	/**
+	 * Last captured frame for each screen clip. Key might be null value for full screen.
+	 */
+	private final Map<ScreenClip, Channel> channels;
+
+	/**
+	 * Minimal period in millisec. between two screen captures.
+	 */
+	private volatile long interval;
+
+	/**
+	 * Generation counter. Shared by all channels, so that each frame has unique number.
+	 */
+	private long generation;
+
+	/**
+	 * Create new service which use AWT {@link ScreenCapture} implementation.
+	 */
+	public SharedScreenCapture() {
+
+		this(new ScreenCapture());
+	}
+
+	/**
+	 * Create new service with given screen capture implementation.
+	 *
+	 * @param screenCapture		-	instance of {@link ScreenCaptureInterface}
+	 */
+	public SharedScreenCapture(final ScreenCaptureInterface screenCapture) {
+
+		this.screenCapture = screenCapture;
+
+		this.channels = new HashMap<>();
+
+		this.interval = DEFAULT_INTERVAL;
+
+		this.generation = 0;
+	}
+
+	/**
+	 * Minimal period in millisec. between two screen captures.
+	 *
+	 * @return	period in millisec.
+	 */
+	public long getInterval() {
+
+		return this.interval;
+	}
+
+	/**
+	 * Set minimal period in millisec. between two screen captures.
+	 *
+	 * @param interval	-	period in millisec., 0 to capture on each request
+	 */
+	public void setInterval(final long interval) {
+
+		this.interval = Math.max(0, interval);
+	}
+
+	/**
+	 * Access to underlying screen capture implementation, eg. to get screen dimension.
+	 *
+	 * @return	instance of {@link ScreenCaptureInterface}
+	 */
+	public ScreenCaptureInterface getScreenCapture() {
+
+		return this.screenCapture;
+	}
+
+	/**
+	 * Get current frame of screen (clip). If last frame is older than {@link #getInterval()},
+	 * new frame is captured, otherwise last frame is returned.
+	 * <p>
+	 * If many threads ask for the frame of same clip at the same time,
+	 * only one of them will capture screen, and others will wait and receive that frame.
+	 *
+	 * @param clip		-	{@link ScreenClip} instance, or null value for full screen
+	 *
+	 * @return	current {@link ScreenFrame}
+	 *
+	 * @throws Exception	if screen capture fails
+	 */
+	public ScreenFrame getFrame(final ScreenClip clip) throws Exception {
+
+		final Channel channel = getChannel(clip);
+
+		synchronized (channel) {
+
+			final long now = System.currentTimeMillis();
+
+			channel.lastAccess = now;
+
+			if (channel.frame != null && now - channel.capturedAt < this.interval) {
+
+				return channel.frame;
+			}
+
+			final TrueColorImage image;
+
+			if (clip != null) {
+
+				image = this.screenCapture.getScreenshot(clip.xPos, clip.yPos, clip.width, clip.height);
+			}
+			else {
+
+				image = this.screenCapture.getScreenshot();
+			}
+
+			final long captureTime = System.currentTimeMillis() - now;
+
+			channel.capturedAt = now;
+
+			if (channel.frame != null && sameContent(channel.frame.image, image) == true) {
+
+				// Screen did not change. Keep previous frame, and previous generation number.
+				return channel.frame;
+			}
+
+			channel.frame = new ScreenFrame(image, nextGeneration(), captureTime);
+
+			return channel.frame;
+		}
+	}
+
+	/**
+	 * Next {@link #getFrame(ScreenClip)} of given clip will capture screen, even if last frame is not older than {@link #getInterval()}.
+	 * Used when part of screen was captured directly, so that last frame might be older than that part.
+	 *
+	 * @param clip		-	{@link ScreenClip} instance, or null value for full screen
+	 */
+	public void invalidate(final ScreenClip clip) {
+
+		final Channel channel = getChannel(clip);
+
+		synchronized (channel) {
+
+			channel.capturedAt = 0;
+		}
+	}
+
+	/**
+	 * Find or create capture channel for given clip. Also release channels
+	 * which are not used any more, eg. after screen clip was changed.
+	 *
+	 * @param clip	-	{@link ScreenClip} instance, or null value
+	 *
+	 * @return	channel instance
+	 */
+	private synchronized Channel getChannel(final ScreenClip clip) {
+
+		final long now = System.currentTimeMillis();
+
+		final Iterator<Map.Entry<ScreenClip, Channel>> iterator = this.channels.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+
+			final Channel channel = iterator.next().getValue();
+
+			if (now - channel.lastAccess > STALE_INTERVALS * Math.max(this.interval, DEFAULT_INTERVAL)) {
+
+				iterator.remove();
+			}
+		}
+
+		Channel channel = this.channels.get(clip);
+
+		if (channel == null) {
+
+			channel = new Channel();
+			channel.lastAccess = now;
+
+			this.channels.put(clip, channel);
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Next generation number.
+	 *
+	 * @return	unique, increasing value
+	 */
+	private synchronized long nextGeneration() {
+
+		this.generation++;
+
+		return this.generation;
+	}
+
+	/**
+	 * Compare two images.
+	 *
+	 * @param img1	-	first image
+	 * @param img2	-	second image
+	 *
+	 * @return	true if both images have same dimension and same pixels
+	 */
+	private static boolean sameContent(final TrueColorImage img1, final TrueColorImage img2) {
+
+		return img1.width == img2.width
+				&& img1.height == img2.height
+				&& Arrays.equals(img1.raw, img2.raw);
+	}
+
+	/**
+	 * Holds last frame for single screen clip.
+	 */
+	private static class Channel {
+
+		ScreenFrame frame;
+
+		long capturedAt;
+
+		long lastAccess;
+	}
+}
@@ -0,0 +1,422 @@
+package com.scoreunit.rfb.service;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.screen.DirtyTileMap;
+import com.scoreunit.rfb.screen.FrameDiff;
+import com.scoreunit.rfb.screen.ScreenClip;
+import com.scoreunit.rfb.screen.ScreenFrame;
+
+/**
+ * Group of VNC client sessions with same pixel format, encoding, compression and quality level, and screen clip,
+ * in broadcast mode, see {@link RFBConfig#isBroadcast()}.
+ * <p>
+ * Group compares each new screen frame with previous one, and encodes changed tiles once, into single
+ * frame buffer update message. Each member, which received previous frame, writes same message to its VNC client.
+ * <p>
+ * Member which falls behind, eg. it did not request update in time, or its connection is congested,
+ * catches up: changed tiles of frames it missed are accumulated, and its session encodes them from current frame.
+ * Group keeps changed tiles of last {@link #HISTORY} frames. Member which missed more frames, or which has just
+ * joined group, receives full update.
+ * <p>
+ * Only stateless encoders are used in broadcast mode, since zlib stream of stateful encoder
+ * can not be shared by sessions which joined group at different time.
+ * <p>
+ * This object is thread-safe.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class BroadcastGroup {
+
+	/**
+	 * Number of frames, for which changed tiles are kept.
+	 */
+	public final static int HISTORY = 16;
+
+	/**
+	 * Frame number of member which did not receive any frame of group.
+	 */
+	private final static long NONE = -1;
+
+	private final Key key;
+
+	/**
+	 * Compare new screen frame with previous one. This is only copy of screen image for all members of group.
+	 */
+	private final FrameDiff frameDiff;
+
+	/**
+	 * Changed tiles of last frames, indexed by frame number modulo {@link #HISTORY}.
+	 */
+	private final DirtyTileMap[] history;
+
+	/**
+	 * Changed tiles of new frame. Copied into {@link #history} only if frame has changed,
+	 * so that history of older frames is kept for members which are behind.
+	 */
+	private final DirtyTileMap changed;
+
+	private final Set<Member> members;
+
+	/**
+	 * Generation of last compared screen frame, see {@link ScreenFrame#generation}.
+	 */
+	private long generation;
+
+	/**
+	 * Number of last changed frame, 0 if no frame is compared yet.
+	 */
+	private long frameNumber;
+
+	/**
+	 * Image of last changed frame.
+	 */
+	private TrueColorImage image;
+
+	/**
+	 * Frame buffer update message, with changed tiles of last frame.
+	 */
+	private byte[] message;
+
+	/**
+	 * Set if message contains all tiles, so it can be sent to any member.
+	 */
+	private boolean messageFull;
+
+	/**
+	 * Number of messages encoded by group, number of messages sent to members, and number of catch-up updates.
+	 */
+	private long encoded, broadcasts, catchUps;
+
+	/**
+	 * Create new, empty, group.
+	 *
+	 * @param key	-	settings which are same for all members
+	 */
+	public BroadcastGroup(final Key key) {
+
+		this.key = key;
+		this.frameDiff = new FrameDiff();
+		this.history = new DirtyTileMap[HISTORY];
+		this.changed = new DirtyTileMap(0, 0);
+
+		for (int i = 0 ; i < HISTORY ; i++) {
+
+			this.history[i] = new DirtyTileMap(0, 0);
+		}
+
+		this.members = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		this.generation = 0;
+		this.frameNumber = 0;
+		this.image = null;
+		this.message = null;
+		this.messageFull = false;
+	}
+
+	/**
+	 * Settings which are same for all members.
+	 *
+	 * @return	key of group
+	 */
+	public Key getKey() {
+
+		return this.key;
+	}
+
+	/**
+	 * Add member to group. Member receives full update first.
+	 *
+	 * @param member	-	member of session
+	 */
+	public synchronized void join(final Member member) {
+
+		member.frame = NONE;
+
+		this.members.add(member);
+	}
+
+	/**
+	 * Remove member from group. Nothing happens if member is not in group.
+	 *
+	 * @param member	-	member of session
+	 *
+	 * @return	true if group is empty
+	 */
+	public synchronized boolean leave(final Member member) {
+
+		this.members.remove(member);
+
+		return this.members.isEmpty();
+	}
+
+	/**
+	 * @return	number of members
+	 */
+	public synchronized int getMembers() {
+
+		return this.members.size();
+	}
+
+	/**
+	 * Find update for member, in response to its update request.
+	 * <p>
+	 * If given screen frame is new, it is compared with previous frame, and changed tiles are encoded into message,
+	 * with given encoder. Member receives that message, if it received previous frame, or it receives
+	 * changed tiles of frames which it missed.
+	 *
+	 * @param member	-	member of session
+	 * @param frame		-	current screen frame
+	 * @param encoder	-	encoder of message, used by session of member
+	 *
+	 * @return	update for member, or null if screen did not change since last update of member
+	 *
+	 * @throws IOException	if message can not be encoded
+	 */
+	public synchronized Update update(final Member member, final ScreenFrame frame, final MessageEncoder encoder) throws IOException {
+
+		if (this.image == null || frame.generation != this.generation) {
+
+			advance(frame, encoder);
+		}
+
+		if (this.image == null || member.frame == this.frameNumber) {
+
+			return null;
+		}
+
+		final Update update;
+
+		if (this.message != null && (member.frame == this.frameNumber - 1 || this.messageFull == true)) {
+
+			this.broadcasts++;
+
+			update = new Update(this.message, this.image, null);
+		}
+		else {
+
+			final DirtyTileMap dirty = new DirtyTileMap(this.image.width, this.image.height);
+
+			if (member.frame == NONE || this.frameNumber - member.frame > HISTORY) {
+
+				dirty.setAll();
+			}
+			else {
+
+				// Changed tiles of all frames which member missed.
+				for (long number = member.frame + 1 ; number <= this.frameNumber ; number++) {
+
+					dirty.or(this.history[(int) (number % HISTORY)]);
+				}
+			}
+
+			this.catchUps++;
+
+			update = new Update(null, this.image, dirty);
+		}
+
+		member.frame = this.frameNumber;
+
+		return update;
+	}
+
+	/**
+	 * Compare new screen frame with previous one, and encode message with changed tiles.
+	 */
+	private void advance(final ScreenFrame frame, final MessageEncoder encoder) throws IOException {
+
+		this.generation = frame.generation;
+
+		this.changed.resize(frame.image.width, frame.image.height);
+
+		if (this.frameDiff.compare(frame.image, this.changed) == 0) {
+
+			return;
+		}
+
+		final DirtyTileMap dirty = this.history[(int) ((this.frameNumber + 1) % HISTORY)];
+
+		dirty.copyFrom(this.changed);
+
+		this.frameDiff.update(frame.image, dirty);
+
+		if (this.image != null && (this.image.width != frame.image.width || this.image.height != frame.image.height)) {
+
+			// History of other dimension does not apply to new frames.
+			for (final DirtyTileMap map : this.history) {
+
+				if (map != dirty) {
+
+					map.resize(frame.image.width, frame.image.height);
+					map.setAll();
+				}
+			}
+		}
+
+		this.frameNumber++;
+		this.image = frame.image;
+
+		// Message is not valid for any member, until encoding succeeds.
+		this.message = null;
+		this.message = encoder.encode(frame.image, dirty);
+		this.messageFull = dirty.count() == dirty.getTileCount();
+		this.encoded++;
+	}
+
+	/**
+	 * @return	number of messages encoded by group
+	 */
+	public synchronized long getEncoded() {
+
+		return this.encoded;
+	}
+
+	/**
+	 * @return	number of encoded messages sent to members
+	 */
+	public synchronized long getBroadcasts() {
+
+		return this.broadcasts;
+	}
+
+	/**
+	 * @return	number of updates which members encoded on their own, to catch up with group
+	 */
+	public synchronized long getCatchUps() {
+
+		return this.catchUps;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("%s: %d members, frame %d, encoded %d, broadcasts %d, catch-ups %d"
+				, this.key, this.members.size(), this.frameNumber, this.encoded, this.broadcasts, this.catchUps);
+	}
+
+	/**
+	 * Encode changed tiles of screen image into frame buffer update message.
+	 */
+	interface MessageEncoder {
+
+		/**
+		 * @param image		-	current screen image
+		 * @param dirty		-	changed tiles
+		 *
+		 * @return	complete frame buffer update message
+		 *
+		 * @throws IOException	if image can not be encoded
+		 */
+		byte[] encode(final TrueColorImage image, final DirtyTileMap dirty) throws IOException;
+	}
+
+	/**
+	 * Update for single member: either message of group, or changed tiles which member should encode on its own.
+	 */
+	static class Update {
+
+		/**
+		 * Frame buffer update message, or null if member catches up.
+		 */
+		final byte[] message;
+
+		/**
+		 * Current screen image.
+		 */
+		final TrueColorImage image;
+
+		/**
+		 * Tiles which member should encode from current image, if it catches up, otherwise null.
+		 */
+		final DirtyTileMap dirtyTiles;
+
+		Update(final byte[] message, final TrueColorImage image, final DirtyTileMap dirtyTiles) {
+
+			this.message = message;
+			this.image = image;
+			this.dirtyTiles = dirtyTiles;
+		}
+	}
+
+	/**
+	 * Member of group, one per session. Its state is changed only by group.
+	 */
+	static class Member {
+
+		/**
+		 * Number of last frame which member received, or {@link BroadcastGroup#NONE}.
+		 */
+		private long frame = NONE;
+
+		/**
+		 * Make sure that member receives full update next time, eg. on non-incremental update request.
+		 *
+		 * @param group		-	group of member
+		 */
+		void reset(final BroadcastGroup group) {
+
+			synchronized (group) {
+
+				this.frame = NONE;
+			}
+		}
+	}
+
+	/**
+	 * Settings which are same for all members of group.
+	 */
+	static class Key {
+
+		final SetPixelFormat pixelFormat;
+
+		final int encodingType, compressionLevel, qualityLevel;
+
+		final ScreenClip screenClip;
+
+		Key(final SetPixelFormat pixelFormat, final int encodingType
+				, final int compressionLevel, final int qualityLevel, final ScreenClip screenClip) {
+
+			this.pixelFormat = pixelFormat;
+			this.encodingType = encodingType;
+			this.compressionLevel = compressionLevel;
+			this.qualityLevel = qualityLevel;
+			this.screenClip = screenClip;
+		}
+
+		@Override
+		public int hashCode() {
+
+			return Objects.hash(this.pixelFormat, this.encodingType, this.compressionLevel, this.qualityLevel, this.screenClip);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+
+			if (obj instanceof Key == false) {
+
+				return false;
+			}
+
+			final Key other = (Key) obj;
+
+			return this.pixelFormat.equals(other.pixelFormat)
+					&& this.encodingType == other.encodingType
+					&& this.compressionLevel == other.compressionLevel
+					&& this.qualityLevel == other.qualityLevel
+					&& Objects.equals(this.screenClip, other.screenClip);
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format("%d bpp, encoding %d, compression %d, quality %d, clip %s"
+					, this.pixelFormat.bitsPerPixel, this.encodingType, this.compressionLevel, this.qualityLevel, this.screenClip);
+		}
+	}
+}
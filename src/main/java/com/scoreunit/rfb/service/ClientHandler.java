@@ -1,8 +1,5 @@
 package com.scoreunit.rfb.service;
 
-import java.awt.Toolkit;
-import java.awt.datatransfer.Clipboard;
-import java.awt.datatransfer.StringSelection;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,7 +9,6 @@ import java.net.Socket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.scoreunit.rfb.keyboard.KeyboardController;
 import com.scoreunit.rfb.mouse.MouseController;
 import com.scoreunit.rfb.screen.ScreenClip;
 
@@ -26,7 +22,7 @@ import com.scoreunit.rfb.screen.ScreenClip;
  * @author igor.delac@gmail.com
  *
  */
-class ClientHandler implements Runnable {
+class ClientHandler implements Runnable, ClientSession {
 	
 	public final static Logger log = LoggerFactory.getLogger(ClientHandler.class);
 	
@@ -38,6 +34,10 @@ class ClientHandler implements Runnable {
 	
 	private final MouseController mouseController;
 	
+	private final ConnectionEstimator connectionEstimator;
+	
+	private final LatencyHistogram inputLatency;
+	
 	public ClientHandler(final Socket socket, final RFBConfig config) {
 		
 		this.socket = socket;
@@ -48,6 +48,9 @@ class ClientHandler implements Runnable {
 		
 		this.mouseController = new MouseController();
 		
+		this.connectionEstimator = new ConnectionEstimator();
+		this.inputLatency = new LatencyHistogram();
+		
 		if (this.config.getScreenClip() == null) {
 			
 			this.config.setScreenClip(new ScreenClip());
@@ -64,9 +67,53 @@ class ClientHandler implements Runnable {
 		return this.running;
 	}
 	
+	/**
+	 * Configuration of RFB service, shared by all client handlers.
+	 * 
+	 * @return	instance of {@link RFBConfig}
+	 */
+	@Override
+	public RFBConfig getConfig() {
+		
+		return this.config;
+	}
+	
+	/**
+	 * Round-trip time and throughput of connection with VNC client,
+	 * measured if VNC client supports fences.
+	 * 
+	 * @return	instance of {@link ConnectionEstimator}
+	 */
+	@Override
+	public ConnectionEstimator getConnectionEstimator() {
+		
+		return this.connectionEstimator;
+	}
+	
+	/**
+	 * Latency from key or pointer event of VNC client, until frame buffer update with changed screen is sent.
+	 * 
+	 * @return	instance of {@link LatencyHistogram}
+	 */
+	@Override
+	public LatencyHistogram getInputLatency() {
+		
+		return this.inputLatency;
+	}
+	
+	/**
+	 * Blocking socket writes all data before write returns.
+	 */
+	@Override
+	public long getPendingOutput() {
+		
+		return 0;
+	}
+	
 	/**
 	 * Terminate connection with VNC client.
 	 */
+	@Override
 	public void terminate() {
 	
 		if (this.socket != null) {
@@ -114,13 +161,6 @@ class ClientHandler implements Runnable {
 		final SecurityTypes sec;
 		final ClientInit clientInit;
 		
-		//
-		// Variable values which VNC client might send a request to change.
-		//
-		
-		SetPixelFormat setPixelFormat;
-		SetEncodings setEncodings;
-		
 		//
 		// Check & prepare TCP socket object.
 		//
@@ -145,6 +185,7 @@ class ClientHandler implements Runnable {
 			frameBufferUpdater = new FramebufferUpdater(this, out);
 			frameBufferUpdater.setScreenClip(this.config.getScreenClip()); // Forward information about screen region, if set.
 			frameBufferUpdater.setPreferredEncodings(this.config.getPreferredEncodings()); // If set, favor encodings of RFB service, instead of VNC client encoding list.
+			frameBufferUpdater.setMaxRectangleSize(this.config.getMaxRectangleSize()); // Limit size of rectangles in frame buffer update.
 			frameBufferUpdater.start();
 			
 			//
@@ -219,6 +260,8 @@ class ClientHandler implements Runnable {
 			// Run in loop, wait for some requests from client. 
 			//
 
+			final ClientMessageHandler messageHandler = new ClientMessageHandler(frameBufferUpdater, this.mouseController);
+			
 			while (this.running == true) {
 				
 				if (frameBufferUpdater.isRunning() == false) {
@@ -226,127 +269,20 @@ class ClientHandler implements Runnable {
 					break; // Stop this client handler, if updater is not running anymore.
 				}
 				
-				//
-				// 'The RFB Protocol' documentation, page 19,
-				// by Tristan Richardson, RealVNC Ltd.
-				//
-				// Version 3.8, Last updated 26 November 2010
-				//
-				
-				final int EOF = -1
-						, SET_PIXEL_FORMAT = 0
-						, SET_ENCODINGS = 2
-						, FRAMEBUFFER_UPDATE_REQUEST = 3
-						, KEY_EVENT = 4
-						, POINTER_EVENT = 5
-						, CLIENT_CUT_TEXT = 6;
-				
 				//
 				// Read VNC client messages and handle them.
 				//
 				
+				final int EOF = -1;
+				
 				int msgType = in.read();
 				
 				if (msgType == EOF) {
 					
 					break;					
 				}
-				else if (msgType == SET_PIXEL_FORMAT) {
-					
-					in.read(new byte[3]); // padding.
-					setPixelFormat = SetPixelFormat.read(in);
-					
-					frameBufferUpdater.setPixelFormat(setPixelFormat);
-				}
-				else if (msgType == SET_ENCODINGS) {
-					
-					in.read(); // padding.					
-					setEncodings = SetEncodings.read(in);
-					frameBufferUpdater.setClientEncodings(setEncodings);
-				}
-				else if (msgType == FRAMEBUFFER_UPDATE_REQUEST) {
-					
-					final FramebufferUpdateRequest request = 
-							FramebufferUpdateRequest.read(in);
-
-					frameBufferUpdater.update(request);
-				}
-				else if (msgType == KEY_EVENT) {
 				
-					final KeyEvent keyEvent = KeyEvent.read(in);
-					KeyboardController.sendKey(keyEvent.key, keyEvent.downFlag);
-				}
-				else if (msgType == POINTER_EVENT) {
-					
-					final PointerEvent pointerEvent = PointerEvent.read(in);
-					
-					int x = pointerEvent.xPos;
-					int y = pointerEvent.yPos;
-					
-					this.mouseController.mouseMove(x, y);
-					
-					if (pointerEvent.isButtonPressed(PointerEvent.BUTTON1)) {
-					
-						// Button 1 pressed.
-						this.mouseController.mousePress(MouseController.BUTTON1);
-					}
-					else {
-						
-						// Button 1 released.
-						this.mouseController.mouseRelease(MouseController.BUTTON1);
-					}
-					
-					if (pointerEvent.isButtonPressed(PointerEvent.BUTTON2)) {
-						
-						// Button 2 pressed.
-						this.mouseController.mousePress(MouseController.BUTTON2);
-					}
-					else {
-						
-						// Button 2 released.
-						this.mouseController.mouseRelease(MouseController.BUTTON2);
-					}
-					
-					if (pointerEvent.isButtonPressed(PointerEvent.BUTTON3)) {
-						
-						// Button 3 pressed.
-						this.mouseController.mousePress(MouseController.BUTTON3);
-					}
-					else {
-						
-						// Button 3 released.
-						this.mouseController.mouseRelease(MouseController.BUTTON3);
-					}
-					
-					if (pointerEvent.isWheelDown()) {
-						
-						this.mouseController.mouseWheel(100);
-					}
-					
-					if (pointerEvent.isWheelUp()) {
-						
-						this.mouseController.mouseWheel(-100);
-					}
-				}
-				else if (msgType == CLIENT_CUT_TEXT) {
-					
-					final ClientCutText event = ClientCutText.read(in);
-					
-					try {
-					
-						final Clipboard clipboard = 
-								Toolkit.getDefaultToolkit().getSystemClipboard();
-						final StringSelection selection = new StringSelection(event.text);
-						clipboard.setContents(selection, selection);
-					}
-					catch (final Exception ex) {
-						
-						log.error("Unable to copy to clipboard text.", ex);
-					}
-				}
-				else {
-					
-					log.error("Unknown VNC client message type received: " + msgType);
+				if (messageHandler.handle(msgType, in) == false) {
 					
 					break;
 				}
@@ -0,0 +1,298 @@
+package com.scoreunit.rfb.service;
+
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scoreunit.rfb.keyboard.KeyboardController;
+import com.scoreunit.rfb.mouse.MouseController;
+
+/**
+ * Handle messages which VNC client sends after handshake: pixel format, encodings,
+ * frame buffer update requests, key and pointer events, and clipboard text.
+ * <p>
+ * 'The RFB Protocol' documentation, page 19,
+ * by Tristan Richardson, RealVNC Ltd.
+ * <p>
+ * Version 3.8, Last updated 26 November 2010
+ * <p>
+ * Same handler is used with blocking socket, see {@link ClientHandler},
+ * and with non-blocking socket channel, see {@link NioClientSession}.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class ClientMessageHandler {
+
+	public final static Logger log = LoggerFactory.getLogger(ClientMessageHandler.class);
+
+	/**
+	 * VNC client message types.
+	 */
+	public final static int SET_PIXEL_FORMAT = 0
+			, SET_ENCODINGS = 2
+			, FRAMEBUFFER_UPDATE_REQUEST = 3
+			, KEY_EVENT = 4
+			, POINTER_EVENT = 5
+			, CLIENT_CUT_TEXT = 6
+			, ENABLE_CONTINUOUS_UPDATES = 150
+			, FENCE = Fence.MESSAGE_TYPE;
+
+	/**
+	 * Max. length of clipboard text accepted from VNC client.
+	 */
+	public final static int MAX_CUT_TEXT_LENGTH = 16 * 1024 * 1024;
+
+	private final FramebufferUpdater frameBufferUpdater;
+
+	private final MouseController mouseController;
+
+	/**
+	 * Create new handler.
+	 *
+	 * @param frameBufferUpdater	-	updater of VNC client session
+	 * @param mouseController		-	mouse controller, which will perform pointer events
+	 */
+	public ClientMessageHandler(final FramebufferUpdater frameBufferUpdater, final MouseController mouseController) {
+
+		this.frameBufferUpdater = frameBufferUpdater;
+		this.mouseController = mouseController;
+	}
+
+	/**
+	 * Find length of VNC client message, including message type byte.
+	 * <p>
+	 * Some messages have variable length, and their length is known only after first few bytes arrive.
+	 *
+	 * @param data		-	received data, message type at given offset
+	 * @param offset	-	offset of message in data array
+	 * @param length	-	number of received bytes, from offset
+	 *
+	 * @return	length of message in bytes, or -1 if more bytes are needed to find out length
+	 *
+	 * @throws IOException	if message type is unknown, or message is too long
+	 */
+	public static int messageLength(final byte[] data, final int offset, final int length) throws IOException {
+
+		if (length < 1) {
+
+			return -1;
+		}
+
+		final int msgType = data[offset] & 0xFF;
+
+		switch (msgType) {
+
+		case SET_PIXEL_FORMAT:
+
+			return 20;
+
+		case SET_ENCODINGS:
+
+			if (length < 4) {
+
+				return -1;
+			}
+
+			// Padding, and number of encodings as unsigned 16-bit value.
+			return 4 + 4 * (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+
+		case FRAMEBUFFER_UPDATE_REQUEST:
+
+			return 10;
+
+		case KEY_EVENT:
+
+			return 8;
+
+		case POINTER_EVENT:
+
+			return 6;
+
+		case ENABLE_CONTINUOUS_UPDATES:
+
+			return 10;
+
+		case FENCE:
+
+			if (length < 9) {
+
+				return -1;
+			}
+
+			// Padding, flags, and length of payload as unsigned 8-bit value.
+			final int payloadLength = data[offset + 8] & 0xFF;
+
+			if (payloadLength > Fence.MAX_PAYLOAD_LENGTH) {
+
+				throw new IOException("Fence payload is too long: " + payloadLength);
+			}
+
+			return 9 + payloadLength;
+
+		case CLIENT_CUT_TEXT:
+
+			if (length < 8) {
+
+				return -1;
+			}
+
+			// Padding, and length of text as 32-bit value.
+			final int textLength = ((data[offset + 4] & 0xFF) << 24) | ((data[offset + 5] & 0xFF) << 16)
+					| ((data[offset + 6] & 0xFF) << 8) | (data[offset + 7] & 0xFF);
+
+			if (textLength < 0 || textLength > MAX_CUT_TEXT_LENGTH) {
+
+				throw new IOException("Client cut text is too long: " + textLength);
+			}
+
+			return 8 + textLength;
+
+		default:
+
+			throw new IOException("Unknown VNC client message type received: " + msgType);
+		}
+	}
+
+	/**
+	 * Read rest of message, after message type byte, and handle it.
+	 *
+	 * @param msgType	-	message type, already read from input stream
+	 * @param in		-	input stream, with rest of message
+	 *
+	 * @return	false if message type is unknown
+	 *
+	 * @throws IOException	if connection breaks
+	 * @throws InterruptedException	if interrupted while frame buffer update request is queued
+	 */
+	public boolean handle(final int msgType, final InputStream in) throws IOException, InterruptedException {
+
+		if (msgType == SET_PIXEL_FORMAT) {
+
+			in.read(new byte[3]); // padding.
+			final SetPixelFormat setPixelFormat = SetPixelFormat.read(in);
+
+			this.frameBufferUpdater.setPixelFormat(setPixelFormat);
+		}
+		else if (msgType == SET_ENCODINGS) {
+
+			in.read(); // padding.
+			final SetEncodings setEncodings = SetEncodings.read(in);
+			this.frameBufferUpdater.setClientEncodings(setEncodings);
+		}
+		else if (msgType == FRAMEBUFFER_UPDATE_REQUEST) {
+
+			final FramebufferUpdateRequest request =
+					FramebufferUpdateRequest.read(in);
+
+			this.frameBufferUpdater.update(request);
+		}
+		else if (msgType == KEY_EVENT) {
+
+			final KeyEvent keyEvent = KeyEvent.read(in);
+			KeyboardController.sendKey(keyEvent.key, keyEvent.downFlag);
+
+			this.frameBufferUpdater.inputReceived();
+		}
+		else if (msgType == POINTER_EVENT) {
+
+			final PointerEvent pointerEvent = PointerEvent.read(in);
+
+			handlePointerEvent(pointerEvent);
+
+			// Screen around mouse pointer is captured first.
+			this.frameBufferUpdater.inputReceived(pointerEvent.xPos & 0xFFFF, pointerEvent.yPos & 0xFFFF);
+		}
+		else if (msgType == CLIENT_CUT_TEXT) {
+
+			final ClientCutText event = ClientCutText.read(in);
+
+			try {
+
+				final Clipboard clipboard =
+						Toolkit.getDefaultToolkit().getSystemClipboard();
+				final StringSelection selection = new StringSelection(event.text);
+				clipboard.setContents(selection, selection);
+			}
+			catch (final Exception ex) {
+
+				log.error("Unable to copy to clipboard text.", ex);
+			}
+		}
+		else if (msgType == ENABLE_CONTINUOUS_UPDATES) {
+
+			final EnableContinuousUpdates message = EnableContinuousUpdates.read(in);
+
+			this.frameBufferUpdater.setContinuousUpdates(message.isEnabled()
+					, message.xPosition, message.yPosition, message.width, message.height);
+		}
+		else if (msgType == FENCE) {
+
+			this.frameBufferUpdater.fence(Fence.read(in));
+		}
+		else {
+
+			log.error("Unknown VNC client message type received: " + msgType);
+
+			return false;
+		}
+
+		return true;
+	}
+
+	private void handlePointerEvent(final PointerEvent pointerEvent) {
+
+		int x = pointerEvent.xPos;
+		int y = pointerEvent.yPos;
+
+		this.mouseController.mouseMove(x, y);
+
+		if (pointerEvent.isButtonPressed(PointerEvent.BUTTON1)) {
+
+			// Button 1 pressed.
+			this.mouseController.mousePress(MouseController.BUTTON1);
+		}
+		else {
+
+			// Button 1 released.
+			this.mouseController.mouseRelease(MouseController.BUTTON1);
+		}
+
+		if (pointerEvent.isButtonPressed(PointerEvent.BUTTON2)) {
+
+			// Button 2 pressed.
+			this.mouseController.mousePress(MouseController.BUTTON2);
+		}
+		else {
+
+			// Button 2 released.
+			this.mouseController.mouseRelease(MouseController.BUTTON2);
+		}
+
+		if (pointerEvent.isButtonPressed(PointerEvent.BUTTON3)) {
+
+			// Button 3 pressed.
+			this.mouseController.mousePress(MouseController.BUTTON3);
+		}
+		else {
+
+			// Button 3 released.
+			this.mouseController.mouseRelease(MouseController.BUTTON3);
+		}
+
+		if (pointerEvent.isWheelDown()) {
+
+			this.mouseController.mouseWheel(100);
+		}
+
+		if (pointerEvent.isWheelUp()) {
+
+			this.mouseController.mouseWheel(-100);
+		}
+	}
+}
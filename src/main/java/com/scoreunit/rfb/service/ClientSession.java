@@ -0,0 +1,46 @@
+package com.scoreunit.rfb.service;
+
+/**
+ * Connection with single VNC client, as seen by {@link FramebufferUpdater}.
+ * <p>
+ * Implemented by {@link ClientHandler}, which serves VNC client with blocking socket,
+ * and by {@link NioClientSession}, which serves VNC client with non-blocking socket channel.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+interface ClientSession {
+
+	/**
+	 * Configuration of RFB service, shared by all sessions.
+	 *
+	 * @return	instance of {@link RFBConfig}
+	 */
+	RFBConfig getConfig();
+
+	/**
+	 * Round-trip time and throughput of connection with VNC client.
+	 *
+	 * @return	instance of {@link ConnectionEstimator}, one per session
+	 */
+	ConnectionEstimator getConnectionEstimator();
+
+	/**
+	 * Latency from key or pointer event of VNC client, until frame buffer update with changed screen is sent.
+	 *
+	 * @return	instance of {@link LatencyHistogram}, one per session
+	 */
+	LatencyHistogram getInputLatency();
+
+	/**
+	 * Number of bytes which are sent, but not yet written to connection with VNC client.
+	 *
+	 * @return	number of pending bytes, always 0 if data is written before send returns
+	 */
+	long getPendingOutput();
+
+	/**
+	 * Terminate connection with VNC client.
+	 */
+	void terminate();
+}
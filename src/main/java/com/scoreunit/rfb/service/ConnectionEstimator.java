@@ -0,0 +1,309 @@
+package com.scoreunit.rfb.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimate round-trip time and throughput of connection with single VNC client.
+ * <p>
+ * If VNC client supports {@link com.scoreunit.rfb.encoding.Encodings#FENCE} pseudo-encoding,
+ * server sends {@link Fence} request after frame buffer update. VNC client answers it once
+ * preceding updates are handled, so answered fence tells how long it took, and how many bytes
+ * VNC client has handled meanwhile.
+ * <p>
+ * Bytes which are sent, but not yet confirmed by fence, are in flight. If there are more bytes in flight
+ * than connection can deliver in about two round-trip times, connection is congested,
+ * and frame buffer updates are postponed, with lower JPEG quality, until VNC client catches up.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class ConnectionEstimator {
+
+	/**
+	 * Max. number of fences which are sent, and not yet answered.
+	 */
+	public final static int MAX_PENDING_FENCES = 2;
+
+	/**
+	 * Connection is never congested with less bytes in flight.
+	 */
+	public final static long MIN_CONGESTION_WINDOW = 256 * 1024;
+
+	/**
+	 * JPEG quality level is lowered by this step while connection is congested.
+	 */
+	public final static int QUALITY_LEVEL_STEP = 3;
+
+	/**
+	 * Number of bytes written to VNC client.
+	 */
+	private final AtomicLong bytesSent;
+
+	/**
+	 * Fences which are sent, and not yet answered, in order.
+	 */
+	private final Deque<Probe> pendingFences;
+
+	/**
+	 * Sequence number of next fence.
+	 */
+	private long sequence;
+
+	/**
+	 * Number of bytes sent before last answered fence, and time in nanosec. when it was sent.
+	 */
+	private long bytesConfirmed, confirmedSentAt;
+
+	/**
+	 * Number of answered fences.
+	 */
+	private long fencesAnswered;
+
+	/**
+	 * Smoothed and min. round-trip time in nanosec., 0 if not known.
+	 */
+	private long roundTripTime, minRoundTripTime;
+
+	/**
+	 * Smoothed throughput in bytes per second, 0 if not known.
+	 */
+	private double throughput;
+
+	/**
+	 * Create new estimator.
+	 */
+	public ConnectionEstimator() {
+
+		this.bytesSent = new AtomicLong();
+		this.pendingFences = new ArrayDeque<>();
+
+		this.sequence = 0;
+		this.bytesConfirmed = 0;
+		this.confirmedSentAt = 0;
+		this.fencesAnswered = 0;
+		this.roundTripTime = 0;
+		this.minRoundTripTime = 0;
+		this.throughput = 0;
+	}
+
+	/**
+	 * Count bytes written to VNC client.
+	 *
+	 * @param count	-	number of bytes
+	 */
+	public void sent(final long count) {
+
+		this.bytesSent.addAndGet(count);
+	}
+
+	/**
+	 * Remember that fence is about to be sent, after all bytes counted so far.
+	 *
+	 * @return	payload of fence, it is sent back by VNC client
+	 */
+	public synchronized byte[] fenceSent() {
+
+		final Probe probe = new Probe(this.sequence++, this.bytesSent.get(), System.nanoTime());
+
+		this.pendingFences.add(probe);
+
+		return ByteBuffer.allocate(8).putLong(probe.sequence).array();
+	}
+
+	/**
+	 * Update estimates with answered fence.
+	 *
+	 * @param payload	-	payload of fence, as sent back by VNC client
+	 *
+	 * @return	false if fence was not sent by this estimator, or it was already answered
+	 */
+	public synchronized boolean fenceAnswered(final byte[] payload) {
+
+		if (payload.length != 8) {
+
+			return false;
+		}
+
+		final long sequence = ByteBuffer.wrap(payload).getLong();
+
+		// Fences are answered in order, earlier ones might be lost only if VNC client ignores them.
+		Probe probe;
+
+		do {
+
+			probe = this.pendingFences.poll();
+		}
+		while (probe != null && probe.sequence < sequence);
+
+		if (probe == null || probe.sequence != sequence) {
+
+			return false;
+		}
+
+		final long now = System.nanoTime();
+		final long sample = Math.max(1, now - probe.sentAt);
+
+		// Exponentially weighted moving average, with same weight as TCP uses for round-trip time.
+		this.roundTripTime = this.roundTripTime == 0 ? sample : this.roundTripTime + (sample - this.roundTripTime) / 8;
+		this.minRoundTripTime = this.minRoundTripTime == 0 ? sample : Math.min(this.minRoundTripTime, sample);
+
+		// Bytes handled by VNC client from previous answered fence, until this one is answered.
+		if (this.fencesAnswered > 0 && probe.bytesSent > this.bytesConfirmed) {
+
+			final double rate = (probe.bytesSent - this.bytesConfirmed) * 1e9 / (now - this.confirmedSentAt);
+
+			this.throughput = this.throughput == 0 ? rate : this.throughput + (rate - this.throughput) / 4;
+		}
+
+		this.bytesConfirmed = probe.bytesSent;
+		this.confirmedSentAt = probe.sentAt;
+		this.fencesAnswered++;
+
+		return true;
+	}
+
+	/**
+	 * Check if another fence may be sent.
+	 *
+	 * @return	true if less than {@link #MAX_PENDING_FENCES} fences are not answered
+	 */
+	public synchronized boolean canSendFence() {
+
+		return this.pendingFences.size() < MAX_PENDING_FENCES;
+	}
+
+	/**
+	 * Check if connection is congested, see {@link #getCongestionWindow()}.
+	 * Connection is not congested until VNC client answers first fence.
+	 *
+	 * @return	true if there are more bytes in flight than congestion window
+	 */
+	public synchronized boolean isCongested() {
+
+		return this.fencesAnswered > 0 && getBytesInFlight() > getCongestionWindow();
+	}
+
+	/**
+	 * Adapt JPEG quality level, as requested by VNC client, to connection.
+	 *
+	 * @param level	-	requested quality level 0 - 9, or -1 if not requested
+	 *
+	 * @return	lower quality level while connection is congested, or given level
+	 */
+	public int adaptQualityLevel(final int level) {
+
+		if (level <= 0 || isCongested() == false) {
+
+			return level;
+		}
+
+		return Math.max(0, level - QUALITY_LEVEL_STEP);
+	}
+
+	/**
+	 * Number of bytes which connection can deliver in two round-trip times, but not less than {@link #MIN_CONGESTION_WINDOW}.
+	 *
+	 * @return	number of bytes
+	 */
+	public synchronized long getCongestionWindow() {
+
+		return Math.max(MIN_CONGESTION_WINDOW, (long) (2 * this.throughput * this.roundTripTime / 1e9));
+	}
+
+	/**
+	 * Number of bytes which are sent, and not yet confirmed by answered fence.
+	 *
+	 * @return	number of bytes
+	 */
+	public synchronized long getBytesInFlight() {
+
+		return this.bytesSent.get() - this.bytesConfirmed;
+	}
+
+	/**
+	 * Number of bytes written to VNC client.
+	 *
+	 * @return	number of bytes
+	 */
+	public long getBytesSent() {
+
+		return this.bytesSent.get();
+	}
+
+	/**
+	 * Number of fences which are sent, and not yet answered.
+	 *
+	 * @return	number of fences
+	 */
+	public synchronized int getPendingFences() {
+
+		return this.pendingFences.size();
+	}
+
+	/**
+	 * Number of fences answered by VNC client.
+	 *
+	 * @return	0 if VNC client does not support fences, or it did not answer yet
+	 */
+	public synchronized long getFencesAnswered() {
+
+		return this.fencesAnswered;
+	}
+
+	/**
+	 * Smoothed round-trip time: from fence request, until VNC client handles preceding updates and answers.
+	 *
+	 * @return	time in millisec., or 0 if not known
+	 */
+	public synchronized double getRoundTripTime() {
+
+		return this.roundTripTime / 1e6;
+	}
+
+	/**
+	 * Min. round-trip time, closest to network latency.
+	 *
+	 * @return	time in millisec., or 0 if not known
+	 */
+	public synchronized double getMinRoundTripTime() {
+
+		return this.minRoundTripTime / 1e6;
+	}
+
+	/**
+	 * Smoothed throughput, number of bytes handled by VNC client per second.
+	 * It is achievable throughput only while frame buffer updates are sent without pause.
+	 *
+	 * @return	bytes per second, or 0 if not known
+	 */
+	public synchronized double getThroughput() {
+
+		return this.throughput;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("rtt %.1f ms (min. %.1f ms), throughput %.0f KB/s, in flight %d bytes, fences %d/%d"
+				, getRoundTripTime(), getMinRoundTripTime(), this.throughput / 1024
+				, getBytesInFlight(), this.fencesAnswered, this.fencesAnswered + this.pendingFences.size());
+	}
+
+	/**
+	 * Fence which is sent, and not yet answered.
+	 */
+	private static class Probe {
+
+		final long sequence, bytesSent, sentAt;
+
+		Probe(final long sequence, final long bytesSent, final long sentAt) {
+
+			this.sequence = sequence;
+			this.bytesSent = bytesSent;
+			this.sentAt = sentAt;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.scoreunit.rfb.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * EnableContinuousUpdates message, from 'The RFB Protocol' community edition,
+ * extension of RFB protocol 3.8.
+ * <p>
+ * VNC client which supports {@link com.scoreunit.rfb.encoding.Encodings#CONTINUOUS_UPDATES} pseudo-encoding
+ * sends this message to ask server to send frame buffer updates for given area as soon as
+ * it changes, without waiting for {@link FramebufferUpdateRequest} message.
+ * <p>
+ * Server confirms that continuous updates are disabled with EndOfContinuousUpdates message.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class EnableContinuousUpdates {
+
+	/**
+	 * If non-zero, continuous updates are enabled for given area. If zero, continuous updates are disabled.
+	 */
+	public byte enableFlag;
+
+	/**
+	 * Area of frame buffer which is updated continuously.
+	 */
+	public short xPosition, yPosition, width, height;
+
+	/**
+	 * Create new EnableContinuousUpdates object.
+	 */
+	public EnableContinuousUpdates(final byte enableFlag
+			, final short xPosition, final short yPosition
+			, final short width, final short height
+			) {
+
+		this.enableFlag = enableFlag;
+		this.xPosition = xPosition;
+		this.yPosition = yPosition;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Check if continuous updates are enabled, or disabled by this message.
+	 *
+	 * @return	true if continuous updates are enabled
+	 */
+	public boolean isEnabled() {
+
+		return this.enableFlag != 0;
+	}
+
+	/**
+	 * Read EnableContinuousUpdates message, message type is already read.
+	 *
+	 * @param inputStream		-	{@link InputStream} to read raw data from
+	 *
+	 * @return	instance of {@link EnableContinuousUpdates} message
+	 *
+	 * @throws IOException	if connections breaks
+	 */
+	public static EnableContinuousUpdates read(final InputStream inputStream) throws IOException {
+
+		final DataInputStream in = new DataInputStream(inputStream);
+
+		byte enableFlag = in.readByte();
+		short xPosition = in.readShort();
+		short yPosition = in.readShort();
+		short width = in.readShort();
+		short height = in.readShort();
+
+		return new EnableContinuousUpdates(enableFlag, xPosition, yPosition, width, height);
+	}
+}
@@ -0,0 +1,443 @@
+package com.scoreunit.rfb.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encoding scheduler, shared by all VNC client sessions of {@link RFBService}.
+ * <p>
+ * Fixed number of worker threads encode rectangles, eg. one thread per CPU core, no matter how many
+ * VNC clients are connected. Each VNC client session submits its tasks to its own {@link Session} queue.
+ * Workers take tasks from session queues in round-robin order, one task at a time, so VNC client
+ * with large frame buffer update does not delay other VNC clients until all its rectangles are encoded.
+ * <p>
+ * If too many tasks are queued, see {@link #getMaxQueuedTasks()}, new task is run by thread which submits it.
+ * This slows down VNC client sessions which produce tasks faster than workers can encode them.
+ * <p>
+ * Session is cancelled with {@link Session#shutdownNow()}, eg. when VNC client disconnects. Its queued tasks
+ * are dropped, without affecting other sessions.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class EncodingScheduler {
+
+	public final static Logger log = LoggerFactory.getLogger(EncodingScheduler.class);
+
+	/**
+	 * Default number of worker threads, one per CPU core.
+	 */
+	public final static int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Default max. number of queued tasks, per worker thread.
+	 */
+	public final static int DEFAULT_MAX_QUEUED_TASKS_PER_THREAD = 64;
+
+	private final String name;
+
+	private final Thread[] workers;
+
+	/**
+	 * Sessions which have queued tasks, in order in which they are served.
+	 * Each session is in this queue at most once.
+	 */
+	private final BlockingQueue<Session> readySessions;
+
+	private final List<Session> sessions;
+
+	private final int maxQueuedTasks;
+
+	private final AtomicInteger queuedTasks, activeTasks;
+
+	private final AtomicLong completedTasks, callerRunsTasks;
+
+	private volatile boolean running;
+
+	/**
+	 * Create scheduler with {@link #DEFAULT_THREADS} worker threads.
+	 *
+	 * @param name	-	name prefix of worker threads
+	 */
+	public EncodingScheduler(final String name) {
+
+		this(name, DEFAULT_THREADS, false);
+	}
+
+	/**
+	 * Create scheduler, and start its worker threads.
+	 *
+	 * @param name		-	name prefix of worker threads
+	 * @param threads	-	number of worker threads, at least 1
+	 * @param virtual	-	true to run workers in virtual threads, if supported by JVM, see {@link VirtualThreads}
+	 */
+	public EncodingScheduler(final String name, final int threads, final boolean virtual) {
+
+		this.name = name;
+
+		this.readySessions = new LinkedBlockingQueue<>();
+		this.sessions = Collections.synchronizedList(new ArrayList<>());
+
+		this.workers = new Thread[Math.max(1, threads)];
+		this.maxQueuedTasks = this.workers.length * DEFAULT_MAX_QUEUED_TASKS_PER_THREAD;
+
+		this.queuedTasks = new AtomicInteger();
+		this.activeTasks = new AtomicInteger();
+		this.completedTasks = new AtomicLong();
+		this.callerRunsTasks = new AtomicLong();
+
+		this.running = true;
+
+		for (int i = 0 ; i < this.workers.length ; i++) {
+
+			this.workers[i] = VirtualThreads.newThread(this::work, String.format("%s-%d", name, i + 1), virtual);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Open new session, for one VNC client.
+	 *
+	 * @param sessionName	-	name of session, eg. VNC client address
+	 *
+	 * @return	new session, use it as {@link java.util.concurrent.ExecutorService} to submit encoding tasks
+	 */
+	public Session openSession(final String sessionName) {
+
+		final Session session = new Session(sessionName);
+
+		this.sessions.add(session);
+
+		return session;
+	}
+
+	/**
+	 * Stop worker threads, and cancel all sessions.
+	 */
+	public void shutdown() {
+
+		this.running = false;
+
+		for (final Session session : getSessions()) {
+
+			session.shutdownNow();
+		}
+
+		for (final Thread worker : this.workers) {
+
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * @return	true until scheduler is shut down
+	 */
+	public boolean isRunning() {
+
+		return this.running;
+	}
+
+	/**
+	 * @return	number of worker threads
+	 */
+	public int getThreads() {
+
+		return this.workers.length;
+	}
+
+	/**
+	 * @return	max. number of queued tasks, before tasks are run by submitting thread
+	 */
+	public int getMaxQueuedTasks() {
+
+		return this.maxQueuedTasks;
+	}
+
+	/**
+	 * Gauge of queue depth.
+	 *
+	 * @return	number of tasks waiting for worker thread, in all sessions
+	 */
+	public int getQueueDepth() {
+
+		return this.queuedTasks.get();
+	}
+
+	/**
+	 * Gauge of busy worker threads.
+	 *
+	 * @return	number of tasks being encoded at the moment
+	 */
+	public int getActiveTasks() {
+
+		return this.activeTasks.get();
+	}
+
+	/**
+	 * @return	number of tasks completed by worker threads
+	 */
+	public long getCompletedTasks() {
+
+		return this.completedTasks.get();
+	}
+
+	/**
+	 * @return	number of tasks run by submitting thread, because queue was full
+	 */
+	public long getCallerRunsTasks() {
+
+		return this.callerRunsTasks.get();
+	}
+
+	/**
+	 * @return	list of open sessions
+	 */
+	public List<Session> getSessions() {
+
+		synchronized (this.sessions) {
+
+			return new ArrayList<>(this.sessions);
+		}
+	}
+
+	/**
+	 * Main loop of worker thread.
+	 */
+	private void work() {
+
+		while (this.running == true) {
+
+			final Runnable task;
+
+			try {
+
+				task = this.readySessions.take().poll();
+			}
+			catch (final InterruptedException exception) {
+
+				break;
+			}
+
+			if (task == null) {
+
+				continue;
+			}
+
+			this.activeTasks.incrementAndGet();
+
+			try {
+
+				task.run();
+			}
+			catch (final Exception exception) {
+
+				log.error("Encoding task failure.", exception);
+			}
+			finally {
+
+				this.activeTasks.decrementAndGet();
+				this.completedTasks.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("%s-[%s], threads: %d, queue depth: %d, active: %d, sessions: %d"
+				, EncodingScheduler.class.getSimpleName(), this.name
+				, getThreads(), getQueueDepth(), getActiveTasks(), this.sessions.size());
+	}
+
+	/**
+	 * Encoding tasks of one VNC client session. Tasks of session are queued in order,
+	 * and taken by worker threads of {@link EncodingScheduler}, fairly with other sessions.
+	 * <p>
+	 * Shut down of session does not affect other sessions, nor worker threads.
+	 */
+	public class Session extends AbstractExecutorService {
+
+		private final String sessionName;
+
+		private final Queue<Runnable> tasks;
+
+		/**
+		 * True if this session is in queue of ready sessions.
+		 */
+		private boolean ready;
+
+		private volatile boolean shutdown;
+
+		private Session(final String sessionName) {
+
+			this.sessionName = sessionName;
+
+			this.tasks = new ArrayDeque<>();
+
+			this.ready = false;
+			this.shutdown = false;
+		}
+
+		/**
+		 * Gauge of queue depth of this session.
+		 *
+		 * @return	number of tasks waiting for worker thread
+		 */
+		public synchronized int getQueueDepth() {
+
+			return this.tasks.size();
+		}
+
+		@Override
+		public void execute(final Runnable task) {
+
+			final boolean queued;
+
+			synchronized (this) {
+
+				if (this.shutdown == true || EncodingScheduler.this.running == false) {
+
+					throw new RejectedExecutionException(String.format("Session '%s' is shut down.", this.sessionName));
+				}
+
+				queued = EncodingScheduler.this.queuedTasks.get() < EncodingScheduler.this.maxQueuedTasks;
+
+				if (queued == true) {
+
+					this.tasks.add(task);
+					EncodingScheduler.this.queuedTasks.incrementAndGet();
+
+					if (this.ready == false) {
+
+						this.ready = true;
+						EncodingScheduler.this.readySessions.add(this);
+					}
+				}
+			}
+
+			if (queued == false) {
+
+				// Too many tasks queued, encode in this thread instead.
+				EncodingScheduler.this.callerRunsTasks.incrementAndGet();
+
+				task.run();
+			}
+		}
+
+		/**
+		 * Take next task, invoked by worker thread. Session is queued again, after other ready sessions,
+		 * if it has more tasks.
+		 *
+		 * @return	next task, or null if session was shut down meanwhile
+		 */
+		private synchronized Runnable poll() {
+
+			final Runnable task = this.tasks.poll();
+
+			if (task != null) {
+
+				EncodingScheduler.this.queuedTasks.decrementAndGet();
+			}
+
+			if (this.tasks.isEmpty() == true) {
+
+				this.ready = false;
+			}
+			else {
+
+				EncodingScheduler.this.readySessions.add(this);
+			}
+
+			return task;
+		}
+
+		@Override
+		public void shutdown() {
+
+			this.shutdown = true;
+
+			EncodingScheduler.this.sessions.remove(this);
+		}
+
+		/**
+		 * Cancel this session. Queued tasks are dropped, and their futures are cancelled,
+		 * so thread waiting for them is released. Tasks already being encoded are completed.
+		 */
+		@Override
+		public List<Runnable> shutdownNow() {
+
+			shutdown();
+
+			final List<Runnable> dropped;
+
+			synchronized (this) {
+
+				dropped = new ArrayList<>(this.tasks);
+
+				EncodingScheduler.this.queuedTasks.addAndGet(-this.tasks.size());
+				this.tasks.clear();
+			}
+
+			for (final Runnable task : dropped) {
+
+				if (task instanceof Future) {
+
+					((Future<?>) task).cancel(false);
+				}
+			}
+
+			return dropped;
+		}
+
+		@Override
+		public boolean isShutdown() {
+
+			return this.shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+
+			return this.shutdown == true && getQueueDepth() == 0;
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+			while (isTerminated() == false) {
+
+				if (System.nanoTime() > deadline) {
+
+					return false;
+				}
+
+				TimeUnit.MILLISECONDS.sleep(1);
+			}
+
+			return true;
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format("%s-[%s], queue depth: %d", Session.class.getSimpleName(), this.sessionName, getQueueDepth());
+		}
+	}
+}
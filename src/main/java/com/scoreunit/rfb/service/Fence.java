@@ -0,0 +1,118 @@
+package com.scoreunit.rfb.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fence message, from 'The RFB Protocol' community edition, extension of RFB protocol 3.8.
+ * <p>
+ * Same message is sent by server and by VNC client, which supports {@link com.scoreunit.rfb.encoding.Encodings#FENCE}
+ * pseudo-encoding. Fence with {@link #REQUEST} flag must be answered with fence with same payload,
+ * once all messages received before it are processed. Server uses it to measure round-trip time,
+ * and how fast VNC client handles frame buffer updates, see {@link ConnectionEstimator}.
+ * <p>
+ * Message: type (248), 3 bytes padding, 32-bit flags, 8-bit payload length, payload up to 64 bytes.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class Fence {
+
+	/**
+	 * Message type of fence, same for server and for VNC client.
+	 */
+	public final static int MESSAGE_TYPE = 248;
+
+	/**
+	 * Flags of fence.
+	 */
+	public final static int BLOCK_BEFORE = 1
+			, BLOCK_AFTER = 2
+			, SYNC_NEXT = 4
+			, REQUEST = 0x80000000;
+
+	/**
+	 * Flags which are supported by this server, in answer to fence request.
+	 */
+	public final static int SUPPORTED_FLAGS = BLOCK_BEFORE | BLOCK_AFTER | SYNC_NEXT;
+
+	/**
+	 * Max. length of payload.
+	 */
+	public final static int MAX_PAYLOAD_LENGTH = 64;
+
+	public int flags;
+
+	public byte[] payload;
+
+	/**
+	 * Create new Fence object.
+	 */
+	public Fence(final int flags, final byte[] payload) {
+
+		this.flags = flags;
+		this.payload = payload;
+	}
+
+	/**
+	 * Check if fence must be answered.
+	 *
+	 * @return	true if {@link #REQUEST} flag is set
+	 */
+	public boolean isRequest() {
+
+		return (this.flags & REQUEST) != 0;
+	}
+
+	/**
+	 * Read fence message, message type is already read.
+	 *
+	 * @param inputStream		-	{@link InputStream} to read raw data from
+	 *
+	 * @return	instance of {@link Fence} message
+	 *
+	 * @throws IOException	if connections breaks, or payload is too long
+	 */
+	public static Fence read(final InputStream inputStream) throws IOException {
+
+		final DataInputStream in = new DataInputStream(inputStream);
+
+		in.readFully(new byte[3]); // padding.
+
+		final int flags = in.readInt();
+		final int length = in.readUnsignedByte();
+
+		if (length > MAX_PAYLOAD_LENGTH) {
+
+			throw new IOException("Fence payload is too long: " + length);
+		}
+
+		final byte[] payload = new byte[length];
+		in.readFully(payload);
+
+		return new Fence(flags, payload);
+	}
+
+	/**
+	 * Write fence message.
+	 *
+	 * @param outputStream	-	{@link OutputStream} where to write
+	 * @param flags			-	flags of fence
+	 * @param payload		-	payload, up to {@link #MAX_PAYLOAD_LENGTH} bytes
+	 *
+	 * @throws IOException	if connections breaks
+	 */
+	public static void write(final OutputStream outputStream, final int flags, final byte[] payload) throws IOException {
+
+		final DataOutputStream out = new DataOutputStream(outputStream);
+
+		out.write(MESSAGE_TYPE);
+		out.write(new byte[3]); // padding.
+		out.writeInt(flags);
+		out.write(payload.length);
+		out.write(payload);
+	}
+}
@@ -0,0 +1,233 @@
+package com.scoreunit.rfb.service;
+
+/**
+ * Decide when frame buffer updater should capture screen again, for single VNC client session.
+ * <p>
+ * While screen changes, or after input from VNC client, screen is captured at max. frame rate.
+ * If screen did not change, next capture is done at target frame rate, and then interval is doubled
+ * on each capture without change, up to {@link #MAX_IDLE_INTERVAL}, so idle desktop is rarely captured.
+ * <p>
+ * Cost of capture, comparison and encoding is measured, and interval is never shorter than
+ * cost divided by {@link #MAX_CPU_SHARE}, so single session does not keep CPU core busy.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class FrameScheduler {
+
+	/**
+	 * Default target frame rate, frames per second. Screen is captured at this rate after change.
+	 */
+	public final static int DEFAULT_TARGET_FRAME_RATE = (int) (1000 / FramebufferUpdater.DELAY);
+
+	/**
+	 * Default max. frame rate, frames per second. Screen is captured at this rate while it changes.
+	 */
+	public final static int DEFAULT_MAX_FRAME_RATE = 30;
+
+	/**
+	 * Max. interval in millisec. between captures of idle screen.
+	 */
+	public final static long MAX_IDLE_INTERVAL = 1000;
+
+	/**
+	 * Delay in millisec. from input event until screen is captured, so application has time to draw change.
+	 */
+	public final static long INPUT_CAPTURE_DELAY = 5;
+
+	/**
+	 * Max. part of one CPU core used by capture, comparison and encoding, for single session.
+	 */
+	public final static double MAX_CPU_SHARE = 0.5;
+
+	/**
+	 * Interval in millisec. at target frame rate, and at max. frame rate.
+	 */
+	private final long targetInterval, minInterval;
+
+	/**
+	 * Current interval in millisec. between captures.
+	 */
+	private long interval;
+
+	/**
+	 * Smoothed cost of single frame in millisec.
+	 */
+	private double frameCost;
+
+	/**
+	 * Time in millisec. when last frame was captured, and when screen should be captured again.
+	 */
+	private long lastFrameAt, nextFrameAt;
+
+	/**
+	 * Number of input events, used to wake up waiting updater.
+	 */
+	private long inputs;
+
+	/**
+	 * Create new scheduler.
+	 *
+	 * @param targetFrameRate	-	frames per second after screen change
+	 * @param maxFrameRate		-	frames per second while screen changes, not less than target frame rate
+	 */
+	public FrameScheduler(final int targetFrameRate, final int maxFrameRate) {
+
+		this.targetInterval = 1000 / Math.max(1, targetFrameRate);
+		this.minInterval = Math.min(this.targetInterval, 1000 / Math.max(1, maxFrameRate));
+
+		this.interval = this.minInterval;
+		this.frameCost = 0;
+		this.lastFrameAt = 0;
+		this.nextFrameAt = 0;
+		this.inputs = 0;
+	}
+
+	/**
+	 * Frame with changes is sent to VNC client, next frame is captured at max. frame rate.
+	 *
+	 * @param startedAt	-	time in millisec. when capture of frame started
+	 * @param cost		-	time in millisec. spent on capture, comparison and encoding
+	 *
+	 * @return	delay in millisec. until next capture
+	 */
+	public synchronized long frameChanged(final long startedAt, final long cost) {
+
+		this.interval = this.minInterval;
+
+		return schedule(startedAt, cost);
+	}
+
+	/**
+	 * Screen did not change, next capture is done at target frame rate,
+	 * or twice later than last one, if screen remains idle.
+	 *
+	 * @param startedAt	-	time in millisec. when capture of frame started
+	 * @param cost		-	time in millisec. spent on capture and comparison
+	 *
+	 * @return	delay in millisec. until next capture
+	 */
+	public synchronized long frameUnchanged(final long startedAt, final long cost) {
+
+		this.interval = this.interval < this.targetInterval
+				? this.targetInterval
+				: Math.min(2 * this.interval, Math.max(MAX_IDLE_INTERVAL, this.targetInterval));
+
+		return schedule(startedAt, cost);
+	}
+
+	/**
+	 * Input event is received from VNC client. Screen is likely to change,
+	 * so next capture is done {@link #INPUT_CAPTURE_DELAY} after input, but not sooner than max. frame rate allows,
+	 * and waiting updater is woken up.
+	 */
+	public synchronized void inputReceived() {
+
+		this.interval = this.minInterval;
+		this.nextFrameAt = Math.min(this.nextFrameAt
+				, Math.max(System.currentTimeMillis() + INPUT_CAPTURE_DELAY, this.lastFrameAt + period()));
+		this.inputs++;
+
+		notifyAll();
+	}
+
+	/**
+	 * Wait for given delay, or until input event is received.
+	 *
+	 * @param delay	-	delay in millisec.
+	 *
+	 * @return	true if input event is received meanwhile
+	 *
+	 * @throws InterruptedException	if interrupted while waiting
+	 */
+	public synchronized boolean await(final long delay) throws InterruptedException {
+
+		final long deadline = System.currentTimeMillis() + delay;
+		final long inputs = this.inputs;
+
+		while (this.inputs == inputs) {
+
+			final long remaining = deadline - System.currentTimeMillis();
+
+			if (remaining <= 0) {
+
+				return false;
+			}
+
+			wait(remaining);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Delay until screen should be captured again.
+	 *
+	 * @return	delay in millisec., 0 if screen can be captured now
+	 */
+	public synchronized long getDelay() {
+
+		return Math.max(0, this.nextFrameAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * Current interval between captures.
+	 *
+	 * @return	interval in millisec.
+	 */
+	public synchronized long getInterval() {
+
+		return this.interval;
+	}
+
+	/**
+	 * Interval between captures at target frame rate.
+	 *
+	 * @return	interval in millisec.
+	 */
+	public long getTargetInterval() {
+
+		return this.targetInterval;
+	}
+
+	/**
+	 * Interval between captures at max. frame rate.
+	 *
+	 * @return	interval in millisec.
+	 */
+	public long getMinInterval() {
+
+		return this.minInterval;
+	}
+
+	/**
+	 * Smoothed cost of single frame: capture, comparison and encoding.
+	 *
+	 * @return	time in millisec.
+	 */
+	public synchronized double getFrameCost() {
+
+		return this.frameCost;
+	}
+
+	/**
+	 * Update frame cost, and find time of next capture.
+	 */
+	private long schedule(final long startedAt, final long cost) {
+
+		this.frameCost = this.frameCost == 0 ? cost : this.frameCost + (cost - this.frameCost) / 4;
+
+		this.lastFrameAt = startedAt;
+		this.nextFrameAt = startedAt + period();
+
+		return getDelay();
+	}
+
+	/**
+	 * Current interval, but not shorter than frame cost allows.
+	 */
+	private long period() {
+
+		return Math.max(this.interval, (long) (this.frameCost / MAX_CPU_SHARE));
+	}
+}
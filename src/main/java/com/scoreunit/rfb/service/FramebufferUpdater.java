@@ -1,29 +1,46 @@
 package com.scoreunit.rfb.service;
 
-import java.awt.AWTException;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.scoreunit.rfb.encoding.CopyRectEncoder;
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+import com.scoreunit.rfb.encoding.EncodeBufferPool;
+import com.scoreunit.rfb.encoding.EncodedRectCache;
 import com.scoreunit.rfb.encoding.EncodingInterface;
 import com.scoreunit.rfb.encoding.Encodings;
 import com.scoreunit.rfb.encoding.HextileEncoder;
 import com.scoreunit.rfb.encoding.RawEncoder;
 import com.scoreunit.rfb.encoding.RichCursorEncoder;
+import com.scoreunit.rfb.encoding.StreamEncoder;
 import com.scoreunit.rfb.encoding.Tile;
 import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.screen.DirtyTileMap;
 import com.scoreunit.rfb.screen.LoadingResource;
-import com.scoreunit.rfb.screen.ScreenCapture;
-import com.scoreunit.rfb.screen.ScreenCaptureInterface;
+import com.scoreunit.rfb.screen.MotionDetector;
+import com.scoreunit.rfb.screen.RectangleMerger;
 import com.scoreunit.rfb.screen.ScreenClip;
+import com.scoreunit.rfb.screen.ScreenFrame;
+import com.scoreunit.rfb.screen.SharedFrameStore;
+import com.scoreunit.rfb.screen.SharedScreenCapture;
 
 /**
  * 'The RFB Protocol' documentation, page 28,
@@ -39,10 +56,51 @@ class FramebufferUpdater implements Runnable {
 	public final static Logger log = LoggerFactory.getLogger(FramebufferUpdater.class);
 	
 	/**
-	 * Delay in millisec. which prevents framebuffer update flooding.
+	 * Delay in millisec. which prevents framebuffer update flooding,
+	 * if update request can not be handled at the moment. Screen is captured
+	 * when {@link FrameScheduler} decides, at default target frame rate once per this delay.
 	 */
 	public static final long DELAY = 100;
 	
+	/**
+	 * Max. number of rectangles in single frame buffer update message.
+	 * Number of rectangles is unsigned 16-bit value.
+	 */
+	public static final int MAX_RECTANGLES = 0xFFFF;
+	
+	/**
+	 * Min. number of pixels in work unit of parallel encoding.
+	 * Smaller updates are encoded in fewer work units, so task overhead does not exceed encoding work.
+	 */
+	public static final int MIN_WORK_UNIT_PIXELS = 128 * 128;
+	
+	/**
+	 * Width and height in pixel of area around mouse pointer, which is captured first after pointer event.
+	 */
+	public static final int NEIGHBOURHOOD_SIZE = 256;
+	
+	/**
+	 * Max. number of distinct areas of pending update requests. More areas are joined into single area which covers all of them.
+	 */
+	public static final int MAX_REQUESTED_AREAS = 16;
+	
+	/**
+	 * Frame buffer update is deferred while more bytes than this are not yet written to VNC client,
+	 * eg. non-blocking socket channel of slow VNC client, which does not support fences.
+	 */
+	public static final long MAX_PENDING_OUTPUT = 1024 * 1024;
+	
+	/**
+	 * Input event, which is not followed by changed screen within this time in millisec.,
+	 * is not counted in input latency histogram.
+	 */
+	public static final long INPUT_LATENCY_TIMEOUT = 2000;
+	
+	/**
+	 * Server message type of EndOfContinuousUpdates message.
+	 */
+	public static final int END_OF_CONTINUOUS_UPDATES = 150;
+	
 	/**
 	 * Output stream where to write frame buffer updates.
 	 */
@@ -51,7 +109,7 @@ class FramebufferUpdater implements Runnable {
 	/**
 	 * Flag to control this thread.
 	 */
-	private boolean running;
+	private volatile boolean running;
 	
 	/**
 	 * A queue for request message from VNC client.
@@ -70,9 +128,9 @@ class FramebufferUpdater implements Runnable {
 	private final CountDownLatch latch;
 	
 	/**
-	 * Reference to parent client handler which created this updater instance.
+	 * Reference to parent client session which created this updater instance.
 	 */
-	private final ClientHandler clientHandler;
+	private final ClientSession session;
 	
 	/**
 	 * Flag which is used to send initial screen, from 'loading.raw' file
@@ -104,6 +162,18 @@ class FramebufferUpdater implements Runnable {
 	 */
 	private int[] preferredEncodings;
 
+	/**
+	 * Compression level and JPEG quality level 0 - 9, as requested by VNC client with pseudo-encodings
+	 * in {@link #clientEncodings} list, or -1 if not requested.
+	 * Set by thread of VNC client, and read by updater and encoding threads.
+	 */
+	private volatile int compressionLevel, qualityLevel;
+	
+	/**
+	 * JPEG quality level set to last encoder, lower than requested while connection is congested.
+	 */
+	private int encoderQualityLevel;
+
 	/**
 	 * Save reference to last used encoder, in case that
 	 * client does not change very of encoding scheme.
@@ -111,13 +181,38 @@ class FramebufferUpdater implements Runnable {
 	private EncodingInterface lastEncoder;
 	
 	/**
-	 * Divide screen image into tiles, 
-	 * and keep last frame buffer image.
+	 * Last image of screen, shared by sessions with same screen clip. New screen image is compared with it
+	 * once for all sessions, and changed tiles are accumulated for each session, until it takes them.
 	 * <p>
-	 * This is used to update tiles (parts of screen image) 
-	 * that are changed.
+	 * Session does not keep its own copy of screen image.
+	 */
+	private volatile SharedFrameStore frameStore;
+	
+	/**
+	 * Subscriber of this session in {@link #frameStore}, with tiles which VNC client did not receive yet.
+	 */
+	private final SharedFrameStore.Subscriber frameSubscriber;
+	
+	/**
+	 * Tiles of screen image that are changed, as taken from {@link #frameStore}.
+	 */
+	private final DirtyTileMap dirtyTiles;
+	
+	/**
+	 * Join changed tiles into larger rectangles, before encoding.
+	 */
+	private final RectangleMerger rectangleMerger;
+	
+	/**
+	 * Find moved parts of screen image, eg. on window move or scroll.
+	 * Those parts are sent with {@link Encodings#COPY_RECT} encoding.
+	 */
+	private final MotionDetector motionDetector;
+	
+	/**
+	 * Moved parts of screen image, as found by {@link #motionDetector}.
 	 */
-	private List<Tile> lastImage;
+	private List<Rectangle> copyRectangles;
 	
 	/**
 	 * If set, this object will define which area of screen should be 
@@ -136,30 +231,129 @@ class FramebufferUpdater implements Runnable {
 	private SetPixelFormat pixelFormat;
 	
 	/**
-	 * Instance of {@link ScreenCaptureInterface}, to capture image of screen or part of screen.
+	 * Screen capture service, shared with other VNC client sessions.
+	 * It will provide image of screen or part of screen.
+	 */
+	private final SharedScreenCapture sharedScreenCapture;
+
+	/**
+	 * Buffers for encoded rectangles. Each rectangle, with its header, is encoded into
+	 * buffer from this pool, and buffer is written to VNC client without further copy.
 	 */
-	private final ScreenCaptureInterface screenCapture;
+	private final EncodeBufferPool bufferPool;
 
 	/**
 	 * This can speed up the encoding of the changed part of the screen,
 	 * by forcing encoding using more CPU cores.
+	 * <p>
+	 * Session of {@link EncodingScheduler}, shared by all VNC clients, opened on first use,
+	 * unless executor is set with {@link #setEncodingExecutor(ExecutorService)}.
+	 */
+	private ExecutorService executor;
+	
+	/**
+	 * True if {@link #executor} is session opened by this updater, and it is cancelled on {@link #terminate()}.
+	 */
+	private boolean ownExecutor;
+	
+	/**
+	 * If set, updater has no thread of its own. Update requests are handled by this scheduler,
+	 * shared with other VNC client sessions, see {@link #start(ScheduledExecutorService)}.
+	 */
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * Flag is set while step of this updater is scheduled, or running, on {@link #scheduler}.
+	 */
+	private final AtomicBoolean stepScheduled;
+	
+	/**
+	 * Step which is scheduled on {@link #scheduler}, it is scheduled again earlier on input from VNC client.
+	 */
+	private volatile ScheduledFuture<?> nextStep;
+	
+	/**
+	 * Decide when screen is captured again: at max. frame rate while screen changes, less often while it is idle.
+	 */
+	private final FrameScheduler frameScheduler;
+	
+	/**
+	 * Time in nanosec. of first input event which is not yet followed by frame buffer update, or 0.
 	 */
-	private final ExecutorService executor;
+	private final AtomicLong inputAt;
+	
+	/**
+	 * Position of mouse pointer, set by pointer event, until area around it is captured.
+	 */
+	private final AtomicReference<Point> pointer;
+	
+	/**
+	 * Latency from input event until frame buffer update, shared with client session.
+	 */
+	private final LatencyHistogram inputLatency;
+	
+	/**
+	 * Time in millisec. to process last frame buffer update request, which did not result in update.
+	 */
+	private long lastDelta;
+	
+	/**
+	 * Standing request for area of frame buffer which is updated continuously,
+	 * or null if continuous updates are not enabled, see {@link #setContinuousUpdates(boolean, short, short, short, short)}.
+	 */
+	private volatile ContinuousUpdateRequest continuousRequest;
+	
+	/**
+	 * Flag is set once VNC client is told that continuous updates are supported.
+	 */
+	private boolean continuousUpdatesConfirmed;
+	
+	/**
+	 * Frame buffer updates, and other server messages, are written while holding this lock.
+	 * Server messages may be sent by thread which reads VNC client messages.
+	 */
+	private final Object outputLock;
+	
+	/**
+	 * Round-trip time and throughput of connection, measured with fences, shared with client session.
+	 * Each byte written to {@link #out} is counted by estimator.
+	 */
+	private final ConnectionEstimator connectionEstimator;
+	
+	/**
+	 * Flag is set once VNC client tells that it supports {@link Encodings#FENCE} pseudo-encoding.
+	 * Fence is then sent after each frame buffer update.
+	 */
+	private volatile boolean fenceSupported;
+	
+	/**
+	 * Group of sessions in broadcast mode, or null if this session is not in group, see {@link BroadcastGroup}.
+	 */
+	private volatile BroadcastGroup broadcastGroup;
+	
+	/**
+	 * Member of this session in broadcast group.
+	 */
+	private final BroadcastGroup.Member broadcastMember;
 
 	/**
 	 * Create new instance of updater.
 	 * 
-	 * @param clientHandler	-	reference to client handler
+	 * @param session		-	reference to client session, eg. {@link ClientHandler}
 	 * @param out			-	{@link OutputStream} object obtained from client handler's socket object
 	 */
-	public FramebufferUpdater(final ClientHandler clientHandler, final OutputStream out) {
+	public FramebufferUpdater(final ClientSession session, final OutputStream out) {
 
-		this.clientHandler = clientHandler;
-		this.out = out;
+		this.session = session;
+		this.connectionEstimator = session.getConnectionEstimator();
+		this.out = new CountingOutputStream(out, this.connectionEstimator);
 
 		this.running = false;
 		
 		this.updateRequests = new LinkedBlockingQueue<>();
+		
+		this.broadcastGroup = null;
+		this.broadcastMember = new BroadcastGroup.Member();
 	
 		this.loadingState = true;
 		this.richCursorSent = true;
@@ -168,19 +362,80 @@ class FramebufferUpdater implements Runnable {
 				
 		// Initially support only RAW encoding.
 		this.clientEncodings = new int[] {Encodings.RAW};
+		this.compressionLevel = -1;
+		this.qualityLevel = -1;
+		this.encoderQualityLevel = -1;
 		
-		this.lastImage = null;
+		this.frameStore = null;
+		this.frameSubscriber = new SharedFrameStore.Subscriber();
+		this.dirtyTiles = new DirtyTileMap(0, 0);
+		this.rectangleMerger = new RectangleMerger();
+		this.motionDetector = new MotionDetector();
+		this.copyRectangles = new ArrayList<>();
 		
 		this.screenClip = null;
 		
 		// Default pixel format, 32-bit true image.
 		this.pixelFormat = SetPixelFormat.default32bit();
 		
-		this.screenCapture = new ScreenCapture();
+		this.sharedScreenCapture = session.getConfig().getSharedScreenCapture();
 		
 		this.latch = new CountDownLatch(1);
 
-		this.executor = Executors.newFixedThreadPool(4);
+		this.bufferPool = new EncodeBufferPool();
+
+		this.executor = null;
+		this.ownExecutor = false;
+		this.scheduler = null;
+		this.stepScheduled = new AtomicBoolean(false);
+		this.nextStep = null;
+		this.frameScheduler = new FrameScheduler(session.getConfig().getTargetFrameRate(), session.getConfig().getMaxFrameRate());
+		this.inputAt = new AtomicLong(0);
+		this.pointer = new AtomicReference<>(null);
+		this.inputLatency = session.getInputLatency();
+		this.lastDelta = DELAY;
+		
+		this.continuousRequest = null;
+		this.continuousUpdatesConfirmed = false;
+		this.outputLock = new Object();
+		this.fenceSupported = false;
+	}
+	
+	/**
+	 * Use given executor to encode rectangles, instead of shared encoding scheduler.
+	 * Set executor before updater is started.
+	 * 
+	 * @param executor	-	shared executor, it is not shut down by this updater
+	 */
+	public void setEncodingExecutor(final ExecutorService executor) {
+		
+		this.executor = executor;
+	}
+	
+	/**
+	 * Pool of buffers, into which rectangles are encoded.
+	 * 
+	 * @return	buffer pool of this updater
+	 */
+	EncodeBufferPool getBufferPool() {
+		
+		return this.bufferPool;
+	}
+	
+	/**
+	 * Executor which will encode rectangles, if encoder is stateless.
+	 * 
+	 * @return	given executor, or session of shared encoding scheduler, opened on first use
+	 */
+	private synchronized ExecutorService getEncodingExecutor() {
+		
+		if (this.executor == null) {
+			
+			this.executor = this.session.getConfig().getEncodingScheduler().openSession(this.session.toString());
+			this.ownExecutor = true;
+		}
+		
+		return this.executor;
 	}
 	
 	/**
@@ -209,6 +464,17 @@ class FramebufferUpdater implements Runnable {
 		this.screenClip = clip;
 	}
 	
+	/**
+	 * Set max. width and height of rectangle in frame buffer update message.
+	 * Changed tiles of screen image are joined into rectangles up to this size.
+	 * 
+	 * @param maxRectangleSize	-	size in pixel
+	 */
+	public void setMaxRectangleSize(final int maxRectangleSize) {
+		
+		this.rectangleMerger.setMaxRectangleSize(maxRectangleSize);
+	}
+	
 	/**
 	 * Tell frame buffer updater thread that there is a new 
 	 * frame buffer update request.
@@ -220,18 +486,204 @@ class FramebufferUpdater implements Runnable {
 	public void update(final FramebufferUpdateRequest request) throws InterruptedException {
 		
 		this.updateRequests.put(request);
+		
+		if (this.scheduler != null && this.running == true) {
+			
+			scheduleStep(0);
+		}
+	}
+
+	/**
+	 * Tell frame buffer updater that key event is received from VNC client.
+	 * Screen is likely to change, so it is captured few millisec. later, without waiting for idle interval,
+	 * see {@link FrameScheduler#inputReceived()}.
+	 */
+	public void inputReceived() {
+		
+		this.inputAt.compareAndSet(0, System.nanoTime());
+		
+		this.frameScheduler.inputReceived();
+		
+		if (this.scheduler != null && this.running == true) {
+			
+			rescheduleStep();
+		}
+	}
+
+	/**
+	 * Tell frame buffer updater that pointer event is received from VNC client.
+	 * Only area around mouse pointer is captured first, see {@link #NEIGHBOURHOOD_SIZE}, and rest of screen
+	 * is captured with next frame.
+	 * 
+	 * @param xPos	-	position of mouse pointer in frame buffer
+	 * @param yPos	-	position of mouse pointer in frame buffer
+	 */
+	public void inputReceived(final int xPos, final int yPos) {
+		
+		this.pointer.set(new Point(xPos, yPos));
+		
+		inputReceived();
 	}
 
 	/**
 	 * Update list of supported encoding schema(s) by VNC client.
 	 * <p>
 	 * Note that in this list are also <i>pseudo-encodings</i> for cursor rendering, desktop resize, etc.
+	 * Compression level and JPEG quality level pseudo-encodings are passed to encoder.
 	 *  
 	 * @param setEncodingsRequest	-	list of encodings from {@link SetEncodings} message from VNC client
 	 */
 	public void setClientEncodings(final SetEncodings setEncodingsRequest) {
 	
-		this.clientEncodings = setEncodingsRequest.encodingType;		
+		this.compressionLevel = SelectEncoder.findLevel(Encodings.COMPRESS_LEVEL_0, setEncodingsRequest.encodingType);
+		this.qualityLevel = SelectEncoder.findLevel(Encodings.JPEG_QUALITY_LEVEL_0, setEncodingsRequest.encodingType);
+		
+		this.clientEncodings = setEncodingsRequest.encodingType;
+		
+		if (this.continuousUpdatesConfirmed == false &&
+				SelectEncoder.containsEncoding(Encodings.CONTINUOUS_UPDATES, this.clientEncodings) == true) {
+			
+			// Server confirms support for continuous updates with EndOfContinuousUpdates message.
+			this.continuousUpdatesConfirmed = true;
+			
+			sendEndOfContinuousUpdates();
+		}
+		
+		if (this.fenceSupported == false &&
+				SelectEncoder.containsEncoding(Encodings.FENCE, this.clientEncodings) == true) {
+			
+			// Server confirms support for fences with fence request, which is also first round-trip time probe.
+			this.fenceSupported = true;
+			
+			sendFence();
+		}
+	}
+	
+	/**
+	 * Enable or disable continuous updates, as requested by VNC client with {@link EnableContinuousUpdates} message.
+	 * <p>
+	 * Once enabled, changes of screen are sent without waiting for {@link FramebufferUpdateRequest} message,
+	 * at most at max. frame rate of {@link FrameScheduler}, see {@link FrameScheduler#getMinInterval()}.
+	 * When disabled, VNC client is told with EndOfContinuousUpdates message.
+	 * 
+	 * @param enabled	-	true to enable continuous updates
+	 * @param xPosition	-	area of frame buffer which is updated continuously
+	 * @param yPosition	-	area of frame buffer which is updated continuously
+	 * @param width		-	area of frame buffer which is updated continuously
+	 * @param height	-	area of frame buffer which is updated continuously
+	 * 
+	 * @throws InterruptedException	if interrupted while standing request is queued
+	 */
+	public void setContinuousUpdates(final boolean enabled
+			, final short xPosition, final short yPosition, final short width, final short height) throws InterruptedException {
+		
+		if (enabled == true) {
+			
+			this.continuousRequest = new ContinuousUpdateRequest(xPosition, yPosition, width, height);
+			
+			update(this.continuousRequest);
+		}
+		else {
+			
+			this.continuousRequest = null;
+			
+			sendEndOfContinuousUpdates();
+		}
+	}
+	
+	/**
+	 * Check if continuous updates are enabled.
+	 * 
+	 * @return	true if changes of screen are sent without frame buffer update requests
+	 */
+	public boolean isContinuousUpdates() {
+		
+		return this.continuousRequest != null;
+	}
+	
+	/**
+	 * Send EndOfContinuousUpdates message. It confirms that server supports continuous updates,
+	 * and it tells VNC client that continuous updates are disabled.
+	 */
+	private void sendEndOfContinuousUpdates() {
+		
+		synchronized (this.outputLock) {
+			
+			try {
+				
+				this.out.write(END_OF_CONTINUOUS_UPDATES);
+				this.out.flush();
+			}
+			catch (final IOException exception) {
+				
+				log.error("Unable to send end of continuous updates.", exception);
+				
+				this.session.terminate();
+			}
+		}
+	}
+	
+	/**
+	 * Handle {@link Fence} message from VNC client. Fence request is answered at once,
+	 * since messages from VNC client are handled in order. Answer to fence of this updater
+	 * is passed to {@link ConnectionEstimator}.
+	 * 
+	 * @param fence	-	fence from VNC client
+	 */
+	public void fence(final Fence fence) {
+		
+		if (fence.isRequest() == true) {
+			
+			// Answer keeps payload, and only flags supported by server.
+			writeFence(fence.flags & Fence.SUPPORTED_FLAGS, fence.payload);
+		}
+		else if (this.connectionEstimator.fenceAnswered(fence.payload) == false) {
+			
+			log.warn(String.format("Unexpected fence answer, with payload of %d bytes.", fence.payload.length));
+		}
+	}
+	
+	/**
+	 * Check if VNC client supports fences.
+	 * 
+	 * @return	true if fences are sent after frame buffer updates
+	 */
+	public boolean isFenceSupported() {
+		
+		return this.fenceSupported;
+	}
+	
+	/**
+	 * Send fence request, after all data written so far. VNC client answers it once preceding
+	 * frame buffer updates are handled, see {@link ConnectionEstimator}.
+	 */
+	private void sendFence() {
+		
+		synchronized (this.outputLock) {
+			
+			writeFence(Fence.REQUEST | Fence.BLOCK_BEFORE, this.connectionEstimator.fenceSent());
+		}
+	}
+	
+	/**
+	 * Write fence message, and terminate session if it fails.
+	 */
+	private void writeFence(final int flags, final byte[] payload) {
+		
+		synchronized (this.outputLock) {
+			
+			try {
+				
+				Fence.write(this.out, flags, payload);
+				this.out.flush();
+			}
+			catch (final IOException exception) {
+				
+				log.error("Unable to send fence.", exception);
+				
+				this.session.terminate();
+			}
+		}
 	}
 	
 	/**
@@ -252,8 +704,6 @@ class FramebufferUpdater implements Runnable {
 		this.running = true;
 		this.latch.countDown();
 
-		long lastDelta = DELAY;
-
 		try {
 			
 			while (this.running == true) {				
@@ -270,81 +720,22 @@ class FramebufferUpdater implements Runnable {
 				// with the framebuffer update requests, ignore all but the last request.
 				incomingRequests.add(this.updateRequests.take());
 
-				this.updateRequests.drainTo(incomingRequests);
-
-				// Remove all null elements (if any).
-				incomingRequests.removeIf(Objects::isNull);
+				final FramebufferUpdateRequest updateRequest = lastRequest(incomingRequests);
 
 				// Go back, and wait again for update request(s).
-				if (incomingRequests.size() == 0) {
+				if (updateRequest == null) {
 
 					TimeUnit.MILLISECONDS.sleep(DELAY);
 
 					continue;
 				}
 
-				// Get that last update request. Previous requests are ignored.
-				// This prevents the flooding from the client side.
-				final FramebufferUpdateRequest updateRequest = incomingRequests.get(incomingRequests.size() - 1);
-
-				if (this.loadingState == true) {
-
-					//
-					// On first message, welcome VNC client with 'Loading ...' splash screen.
-					//
-										
-					this.framebufferUpdateLoading();
-
-					this.loadingState = false;
-					
-					// TimeUnit.SECONDS.sleep(4); // Give user few seconds to read welcome message.
-				}
-				else if (this.richCursorSent == false &&
-						SelectEncoder.containsEncoding(Encodings.RICH_CURSOR, this.clientEncodings) == true) {
-					
-					//
-					// Here is routine to send rich cursor data, which is available if pixel format is set to 32-bit.
-					//
-					
-					this.framebufferUpdateRichCursor();
-					
-					this.richCursorSent = true;
-				}
-				else {
-
-					//
-					// Now create new frame buffer update message, and write to socket.
-					//
-
-					long startedAt = System.currentTimeMillis();
-					boolean updated = this.framebufferUpdate(updateRequest);
-					long endedAt = System.currentTimeMillis();
-
-					long delta = endedAt - startedAt;
-
-					long delay = DELAY - delta;
-
-					// It might happen that method returns false, if screen image did not change.
-					if (updated == false) {
+				final long delay = process(updateRequest);
+				
+				if (delay > 0) {
 					
-						// Put back frame buffer update request in queue.
-						// Take it again after DELAY time period.
-						this.updateRequests.put(updateRequest);
-
-						if (delay > 0) {
-
-							TimeUnit.MILLISECONDS.sleep(delay);
-						}
-						else {
-
-							if (Math.abs(delta - lastDelta) > DELAY) {
-
-								log.warn(String.format("Took %d msec. to process framebuffer update request.", delta));
-							}
-
-							lastDelta = delta;
-						}
-					}
+					// Input from VNC client ends waiting earlier.
+					this.frameScheduler.await(delay);
 				}
 			}
 		}
@@ -354,201 +745,1335 @@ class FramebufferUpdater implements Runnable {
 		}
 		
 		this.running = false;
-		this.clientHandler.terminate();
+		this.session.terminate();
 	}
 
 	/**
-	 * Take image of screen (clip).
+	 * Drain queue of update requests into given list, and find last request.
+	 * If the client starts flooding with the framebuffer update requests, all but the last request are ignored,
+	 * unless they request other areas of frame buffer. Then single request for all areas is returned,
+	 * see {@link #mergeRequests(List)}.
+	 * 
+	 * @param incomingRequests	-	list of requests, already taken from queue
 	 * 
-	 * @return	an 32-bit ARGB image.
+	 * @return	last request, or null if there is no request
 	 */
-	private TrueColorImage getScreenImage() {
+	private FramebufferUpdateRequest lastRequest(final List<FramebufferUpdateRequest> incomingRequests) {
 		
-		try {
-			
-			if (this.screenClip != null) {
-				
-				int x = this.screenClip.xPos
-						, y = this.screenClip.yPos
-						, w = this.screenClip.width
-						, h = this.screenClip.height;
-
-				// Return region (clip) of screen image.
-				return this.screenCapture.getScreenshot(x, y, w, h);
-			}
+		this.updateRequests.drainTo(incomingRequests);
 
-			// Return full screen image.
-			return this.screenCapture.getScreenshot();
-		} catch (final Exception exception) {
+		// Remove all null elements (if any).
+		incomingRequests.removeIf(Objects::isNull);
 
-			log.error("Unable to capture screen image.", exception);			
+		if (incomingRequests.size() == 0) {
+			
+			return null;
+		}
+		
+		// Get that last update request. Previous requests for same area are ignored.
+		// This prevents the flooding from the client side.
+		return mergeRequests(incomingRequests);
+	}
+	
+	/**
+	 * Join pending update requests into single request, which is answered by single frame buffer update.
+	 * <p>
+	 * Frame buffer update covers union of requested areas, and it sends areas of non-incremental requests completely.
+	 * Requests of continuous updates, which are not standing any more, are ignored.
+	 * 
+	 * @param requests	-	pending requests, at least one
+	 * 
+	 * @return	last request, if it covers all requested areas, otherwise {@link MergedUpdateRequest}
+	 */
+	private FramebufferUpdateRequest mergeRequests(final List<FramebufferUpdateRequest> requests) {
+		
+		final FramebufferUpdateRequest last = requests.get(requests.size() - 1);
+		
+		final List<Rectangle> areas = new ArrayList<>(), lostAreas = new ArrayList<>();
+		
+		for (final FramebufferUpdateRequest request : requests) {
+			
+			if (request instanceof ContinuousUpdateRequest && request != this.continuousRequest) {
+				
+				continue;
+			}
+			
+			addAreas(areas, requestedAreas(request));
+			addAreas(lostAreas, lostAreas(request));
+		}
+		
+		if (areas.isEmpty() == true
+				|| (areas.equals(requestedAreas(last)) == true && lostAreas.equals(lostAreas(last)) == true)) {
+			
+			return last;
+		}
+		
+		return new MergedUpdateRequest(areas, lostAreas);
+	}
+	
+	/**
+	 * Add areas to list. Area which is already covered by other area in list is not added,
+	 * and areas in list which are covered by new area are removed.
+	 * If there are more than {@link #MAX_REQUESTED_AREAS}, they are replaced with single area which covers all of them.
+	 * 
+	 * @param list		-	list of distinct areas
+	 * @param areas		-	areas to add
+	 */
+	private static void addAreas(final List<Rectangle> list, final List<Rectangle> areas) {
+		
+		for (final Rectangle area : areas) {
+			
+			if (list.stream().anyMatch(other -> other.contains(area)) == true) {
+				
+				continue;
+			}
+			
+			list.removeIf(area::contains);
+			list.add(area);
+		}
+		
+		if (list.size() > MAX_REQUESTED_AREAS) {
+			
+			final Rectangle bounds = MergedUpdateRequest.bounds(list);
+			
+			list.clear();
+			list.add(bounds);
+		}
+	}
+	
+	/**
+	 * Areas of frame buffer requested by update request.
+	 * 
+	 * @param request	-	update request, or merged request
+	 * 
+	 * @return	list of areas
+	 */
+	private static List<Rectangle> requestedAreas(final FramebufferUpdateRequest request) {
+		
+		if (request instanceof MergedUpdateRequest) {
+			
+			return ((MergedUpdateRequest) request).areas;
+		}
+		
+		// Position and size are unsigned 16-bit values.
+		return Collections.singletonList(new Rectangle(request.xPosition & 0xFFFF, request.yPosition & 0xFFFF
+				, request.width & 0xFFFF, request.height & 0xFFFF));
+	}
+	
+	/**
+	 * Areas of frame buffer which VNC client has lost, ie. areas of non-incremental requests.
+	 * 
+	 * @param request	-	update request, or merged request
+	 * 
+	 * @return	list of areas, empty if request is incremental
+	 */
+	private static List<Rectangle> lostAreas(final FramebufferUpdateRequest request) {
+		
+		if (request instanceof MergedUpdateRequest) {
+			
+			return ((MergedUpdateRequest) request).lostAreas;
+		}
+		
+		return request.incremental == 0 ? requestedAreas(request) : Collections.emptyList();
+	}
+	
+	/**
+	 * Handle frame buffer update request: send loading screen, rich cursor, or changed part of screen.
+	 * <p>
+	 * If screen did not change, or it is too early for next frame, see {@link FrameScheduler},
+	 * request is put back in queue, and it should be handled again after returned delay.
+	 * While continuous updates are enabled, standing request is put back in queue after each update.
+	 * <p>
+	 * If VNC client supports fences, fence is sent after each update. While connection is congested,
+	 * request is put back in queue, until VNC client answers fences of earlier updates.
+	 * Request is also put back while earlier updates are not written to connection, see {@link #MAX_PENDING_OUTPUT}.
+	 * 
+	 * @param updateRequest	-	last request from VNC client
+	 * 
+	 * @return	delay in millisec. before request is handled again, or 0 if request is handled
+	 * 
+	 * @throws IOException	if the network connection breaks
+	 * @throws InterruptedException	if interrupted while request is put back in queue
+	 */
+	private long process(final FramebufferUpdateRequest updateRequest) throws IOException, InterruptedException {
+		
+		if (updateRequest instanceof ContinuousUpdateRequest && updateRequest != this.continuousRequest) {
+			
+			// Continuous updates were disabled, or area was changed, meanwhile.
+			return 0;
+		}
+		
+		if (this.fenceSupported == true && this.connectionEstimator.isCongested() == true) {
+			
+			// VNC client did not handle earlier updates yet, make sure that some fence will tell when it does.
+			if (this.connectionEstimator.getPendingFences() == 0) {
+				
+				sendFence();
+			}
+			
+			this.updateRequests.put(updateRequest);
+			
+			return this.frameScheduler.getTargetInterval();
+		}
+		
+		if (this.session.getPendingOutput() > MAX_PENDING_OUTPUT) {
+			
+			// Socket channel did not take earlier updates yet, so queued data would grow without limit.
+			this.updateRequests.put(updateRequest);
+			
+			return this.frameScheduler.getTargetInterval();
+		}
+		
+		if (updateRequest.incremental != 0 && this.loadingState == false) {
+			
+			// Incremental updates are sent at frame rate of scheduler, full update is sent at once.
+			final long wait = this.frameScheduler.getDelay();
+			
+			if (wait > 0) {
+				
+				this.updateRequests.put(updateRequest);
+				
+				return wait;
+			}
+		}
+		
+		final long delay;
+		
+		synchronized (this.outputLock) {
+			
+			delay = respond(updateRequest);
+		}
+		
+		if (delay == 0 && this.fenceSupported == true && this.connectionEstimator.canSendFence() == true) {
+			
+			sendFence();
+		}
+		
+		final ContinuousUpdateRequest continuous = this.continuousRequest;
+		
+		if (continuous != null && delay == 0 && this.updateRequests.isEmpty() == true) {
+			
+			// Keep standing request of continuous updates, next update is sent when scheduler decides.
+			this.updateRequests.put(continuous);
+			
+			return this.frameScheduler.getDelay();
+		}
+		
+		return delay;
+	}
+	
+	/**
+	 * Send loading screen, rich cursor, or changed part of screen, see {@link #process(FramebufferUpdateRequest)}.
+	 */
+	private long respond(final FramebufferUpdateRequest updateRequest) throws IOException, InterruptedException {
+		
+		if (this.loadingState == true) {
+
+			//
+			// On first message, welcome VNC client with 'Loading ...' splash screen.
+			//
+								
+			this.framebufferUpdateLoading();
+
+			this.loadingState = false;
+			
+			// TimeUnit.SECONDS.sleep(4); // Give user few seconds to read welcome message.
+		}
+		else if (this.richCursorSent == false &&
+				SelectEncoder.containsEncoding(Encodings.RICH_CURSOR, this.clientEncodings) == true) {
+			
+			//
+			// Here is routine to send rich cursor data, which is available if pixel format is set to 32-bit.
+			//
+			
+			this.framebufferUpdateRichCursor();
+			
+			this.richCursorSent = true;
+		}
+		else {
+
+			//
+			// Now create new frame buffer update message, and write to socket.
+			//
+
+			long startedAt = System.currentTimeMillis();
+			boolean updated = this.framebufferUpdate(updateRequest);
+			long endedAt = System.currentTimeMillis();
+
+			long delta = endedAt - startedAt;
+
+			if (updated == true) {
+				
+				this.frameScheduler.frameChanged(startedAt, delta);
+			}
+			else {
+			
+				// It might happen that method returns false, if screen image did not change.
+				// Put back frame buffer update request in queue.
+				// Take it again when scheduler decides, later if screen remains idle.
+				this.updateRequests.put(updateRequest);
+				
+				final long delay = this.frameScheduler.frameUnchanged(startedAt, delta);
+
+				if (delay > 0) {
+
+					return delay;
+				}
+				else {
+
+					if (Math.abs(delta - this.lastDelta) > DELAY) {
+
+						log.warn(String.format("Took %d msec. to process framebuffer update request.", delta));
+					}
+
+					this.lastDelta = delta;
+				}
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Handle pending update requests, when updater is driven by shared scheduler, see {@link #start(ScheduledExecutorService)}.
+	 * <p>
+	 * Only one step of same updater runs at a time, so rectangles are sent in order.
+	 */
+	private void step() {
+		
+		long delay = 0;
+		
+		try {
+			
+			final FramebufferUpdateRequest updateRequest = lastRequest(new ArrayList<>());
+			
+			if (updateRequest != null && this.running == true) {
+				
+				delay = process(updateRequest);
+			}
+		}
+		catch (final Exception exception) {
+			
+			// On any problem, just terminate this session.
+			this.running = false;
+			this.session.terminate();
+			
+			return;
+		}
+		
+		this.stepScheduled.set(false);
+		
+		// Request might have arrived while this step was running.
+		if (this.running == true && this.updateRequests.isEmpty() == false) {
+			
+			scheduleStep(delay);
+		}
+	}
+	
+	/**
+	 * Schedule next step, unless it is already scheduled.
+	 * 
+	 * @param delay		-	delay in millisec.
+	 */
+	private void scheduleStep(final long delay) {
+		
+		if (this.stepScheduled.compareAndSet(false, true) == true) {
+			
+			try {
+				
+				this.nextStep = this.scheduler.schedule(this::step, delay, TimeUnit.MILLISECONDS);
+			}
+			catch (final RejectedExecutionException exception) {
+				
+				// Scheduler is shut down, RFB service is terminated.
+				this.stepScheduled.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Run scheduled step earlier, if frame scheduler allows it, eg. after input from VNC client.
+	 */
+	private void rescheduleStep() {
+		
+		final ScheduledFuture<?> step = this.nextStep;
+		final long delay = this.frameScheduler.getDelay();
+		
+		// Step which is not cancelled, is already running, or it will run soon enough.
+		if (step != null && step.getDelay(TimeUnit.MILLISECONDS) > delay && step.cancel(false) == true) {
+			
+			try {
+				
+				this.nextStep = this.scheduler.schedule(this::step, delay, TimeUnit.MILLISECONDS);
+			}
+			catch (final RejectedExecutionException exception) {
+				
+				this.stepScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Take image of screen (clip), from shared screen capture service.
+	 * 
+	 * @return	an frame with 32-bit ARGB image, or null if screen capture fails
+	 */
+	private ScreenFrame getScreenFrame() {
+		
+		try {
+			
+			// Same frame is given to all VNC client sessions, 
+			//  screen is captured at most once per capture interval.
+			return this.sharedScreenCapture.getFrame(this.screenClip);
+		} catch (final Exception exception) {
+
+			log.error("Unable to capture screen image.", exception);			
 		}
 		
 		return null;
 	}
 	
 	/**
-	 * Get part of screen image that has changed.
-	 * <p>
-	 * Also update {@link FramebufferUpdater#lastImage} member reference.
+	 * Frame store of screen clip of this session. Session moves to other store, if screen clip has changed.
+	 * 
+	 * @return	frame store of this session
+	 */
+	private SharedFrameStore frameStore() {
+		
+		final SharedFrameStore store = this.frameStore;
+		final ScreenClip clip = this.screenClip;
+		
+		if (store != null && Objects.equals(store.getClip(), clip) == true) {
+			
+			return store;
+		}
+		
+		final RFBConfig config = this.session.getConfig();
+		
+		if (store != null) {
+			
+			config.leaveFrameStore(store, this.frameSubscriber);
+		}
+		
+		// Session takes all tiles of new store first.
+		this.frameStore = config.joinFrameStore(clip, this.frameSubscriber);
+		
+		return this.frameStore;
+	}
+	
+	/**
+	 * Find part of screen image that has changed, and mark changed tiles
+	 * in {@link #dirtyTiles} map.
+	 * <p>
+	 * Changed tiles of all frames since last update of this session are taken from {@link #frameStore},
+	 * so if this session missed some frames, eg. VNC client is slow, it sends single merged update.
+	 * <p>
+	 * Only tiles of requested areas are taken, other changed tiles are sent when VNC client requests their area.
+	 * <p>
+	 * If VNC client supports {@link Encodings#COPY_RECT} encoding, moved parts of
+	 * screen image are put in {@link #copyRectangles} list, and removed from {@link #dirtyTiles} map.
+	 * 
+	 * @param areas		-	areas of frame buffer requested by VNC client, or null for whole frame buffer
+	 * 
+	 * @return	current screen image, or null if screen image did not change from last invocation
+	 */
+	private TrueColorImage getChangedTiles(final List<Rectangle> areas) {
+		
+		final ScreenFrame frame = getScreenFrame();
+		
+		this.dirtyTiles.clear();
+		this.copyRectangles.clear();
+		
+		if (frame == null) {
+			
+			return null;
+		}
+		
+		final TrueColorImage image = frameStore().take(this.frameSubscriber, frame, this.dirtyTiles, areas);
+		
+		if (image == null) {
+			
+			// Screen did not change since last frame buffer update.
+			return null;
+		}
+		
+		// Motion is found only if VNC client has previous image, ie. it did not miss any frame.
+		final TrueColorImage previous = this.frameSubscriber.getPrevious();
+		
+		if (previous != null && SelectEncoder.containsEncoding(Encodings.COPY_RECT, this.clientEncodings) == true) {
+			
+			this.copyRectangles = this.motionDetector.detect(previous.raw, image, this.dirtyTiles);
+		}
+		
+		if (this.copyRectangles.isEmpty() == false) {
+			
+			// Moved tiles are not encoded with normal encoder.
+			this.dirtyTiles.andNot(this.motionDetector.getMovedTiles());
+		}
+		
+		return image;
+	}
+	
+	/**
+	 * Capture only given area of screen, and mark changed tiles of area in {@link #dirtyTiles} map.
+	 * Area is captured directly, not by shared screen capture, and it is compared with image
+	 * of {@link #frameStore}. Rest of screen is compared on next invocation of {@link #getChangedTiles(List)}.
+	 * 
+	 * @param area	-	area of frame buffer, aligned to tiles, see {@link #neighbourhood(Point)}
+	 * 
+	 * @return	image of area, or null if area did not change, or previous image of screen is not known
+	 */
+	private TrueColorImage getChangedTiles(final Rectangle area) {
+		
+		this.dirtyTiles.clear();
+		this.copyRectangles.clear();
+		
+		final TrueColorImage image;
+		
+		try {
+			
+			final int clipX = this.screenClip != null ? this.screenClip.xPos : 0;
+			final int clipY = this.screenClip != null ? this.screenClip.yPos : 0;
+			
+			image = this.sharedScreenCapture.getScreenCapture().getScreenshot(clipX + area.x, clipY + area.y, area.width, area.height);
+		}
+		catch (final Exception exception) {
+			
+			log.error("Unable to capture area around mouse pointer.", exception);
+			
+			return null;
+		}
+		
+		if (image == null || image.width != area.width || image.height != area.height) {
+			
+			return null;
+		}
+		
+		if (frameStore().takeRegion(this.frameSubscriber, image, area.x, area.y, this.dirtyTiles) <= 0) {
+			
+			return null;
+		}
+		
+		// Last shared frame might be older than area, so next comparison of whole screen should use new frame.
+		this.sharedScreenCapture.invalidate(this.screenClip);
+		
+		return image;
+	}
+	
+	/**
+	 * Join changed tiles from {@link #dirtyTiles} map into rectangles.
+	 * <p>
+	 * Frame buffer update message can carry up to {@link #MAX_RECTANGLES} rectangles,
+	 * including {@link #copyRectangles}.
+	 * If there are more rectangles, single rectangle which covers all changed tiles is returned.
+	 * 
+	 * @return	list of rectangles to encode
+	 */
+	private List<Rectangle> getChangedRectangles() {
+		
+		final List<Rectangle> rectangles = this.rectangleMerger.merge(this.dirtyTiles);
+		
+		if (rectangles.size() > MAX_RECTANGLES - this.copyRectangles.size()) {
+			
+			rectangles.clear();
+			rectangles.add(RectangleMerger.bounds(this.dirtyTiles));
+		}
+		
+		return rectangles;
+	}
+	
+	/**
+	 * Method will select appropriate {@link EncodingInterface} instance,
+	 * based on {@link #clientEncodings} and {@link #preferredEncodings}.
+	 * <p>
+	 * It will also consider {@link #lastEncoder} reference.
+	 * <p>
+	 * Compression level and JPEG quality level, as requested by VNC client, are set to selected encoder.
+	 * JPEG quality level is lowered while connection is congested, see {@link ConnectionEstimator#adaptQualityLevel(int)}.
+	 * Encoder is used only by this thread, so new levels take effect from next frame buffer update.
+	 * 
+	 * @return	on of {@link RawEncoder}, {@link HextileEncoder}, etc.
+	 * 
+	 */
+	private EncodingInterface selectEncoder() {
+		
+		this.lastEncoder = SelectEncoder.selectEncoder(this.lastEncoder, this.clientEncodings, this.preferredEncodings);
+		
+		this.lastEncoder.setCompressionLevel(this.compressionLevel);
+		this.encoderQualityLevel = this.connectionEstimator.adaptQualityLevel(this.qualityLevel);
+		this.lastEncoder.setQualityLevel(this.encoderQualityLevel);
+		
+		return this.lastEncoder;
+	}	
+	
+	/**
+	 * A framebuffer update consists of a sequence of rectangles of pixel data which the client
+	 * should put into its framebuffer. It is sent in response to a FramebufferUpdateRequest
+	 * from the client. Note that there may be an indefinite period between the Framebuffer-
+	 * UpdateRequest and the FramebufferUpdate.
+	 * <p>
+	 * If the client has not lost any contents of the area in which it is interested, then it
+	 * sends a FramebufferUpdateRequest with incremental set to non-zero (true). If and
+	 * when there are changes to the specified area of the framebuffer, the server will send a
+	 * FramebufferUpdate. Note that there may be an indefinite period between the Frame-
+	 * bufferUpdateRequest and the FramebufferUpdate.
+	 * <p>
+	 * @param updateRequest	-	received message {@link FramebufferUpdateRequest} from VNC client
+	 * 
+	 * @return	true if frame buffer was updated, or false if screen image did not change from last invocation
+	 * 
+	 * @throws IOException if the network connection breaks
+	 */
+	private boolean framebufferUpdate(final FramebufferUpdateRequest updateRequest) throws IOException {
+
+		// Find suitable encoder for frame buffer update response.
+		final EncodingInterface encoder = selectEncoder();
+		
+		// Indicator if VNC client needs full frame buffer data (screen image), of requested area.
+		final boolean fullUpdate = (updateRequest.incremental == 0);
+		
+		// Areas of frame buffer requested by VNC client, or null if whole frame buffer is requested.
+		final List<Rectangle> requested = requestedAreas(updateRequest);
+		final List<Rectangle> areas = coversFrameBuffer(requested) == true ? null : requested;
+		
+		// In broadcast mode, update is encoded once for group of sessions with same settings.
+		final BroadcastGroup group = broadcastGroup(encoder, areas);
+		
+		if (group != null) {
+			
+			return broadcastUpdate(group, encoder, fullUpdate);
+		}
+		
+		if (fullUpdate == true) {
+
+			// This will enforce method getChangedTiles() to mark lost area of screen image as changed,
+			//  small area does not cause full screen update.
+			frameStore().invalidate(this.frameSubscriber, lostAreas(updateRequest));
+		}
+		
+		//
+		// Take current image of screen,
+		// and find tiles that are different comparing to last invocation.
+		// After pointer event, area around mouse pointer is captured first.
+		//
+
+		final Point pointer = this.pointer.getAndSet(null);
+		
+		final Rectangle neighbourhood = (fullUpdate == true || pointer == null) ? null : neighbourhood(pointer, areas);
+		
+		TrueColorImage image = neighbourhood == null ? null : getChangedTiles(neighbourhood);
+		
+		// Position of image in frame buffer.
+		final int originX, originY;
+		
+		if (image != null) {
+			
+			originX = neighbourhood.x;
+			originY = neighbourhood.y;
+		}
+		else {
+			
+			image = getChangedTiles(areas);
+			
+			originX = 0;
+			originY = 0;
+		}
+
+		if (image == null) {
+			
+			return false;
+		}
+		
+		return writeUpdate(encoder, image, originX, originY);
+	}
+	
+	/**
+	 * Write frame buffer update with changed tiles from {@link #dirtyTiles} map, and with {@link #copyRectangles}.
+	 * 
+	 * @param encoder	-	selected encoder
+	 * @param image		-	image of screen, or of part of screen, which contains changed tiles
+	 * @param originX	-	position of image in frame buffer
+	 * @param originY	-	position of image in frame buffer
+	 * 
+	 * @return	true, frame buffer was updated
+	 * 
+	 * @throws IOException if the network connection breaks
+	 */
+	private boolean writeUpdate(final EncodingInterface encoder, final TrueColorImage image
+			, final int originX, final int originY) throws IOException {
+		
+		//
+		// Join adjacent changed tiles into larger rectangles.
+		//
+		
+		final List<Rectangle> rectangles = getChangedRectangles();
+		
+		// If VNC client supports it, rectangles are sent as soon as they are encoded,
+		//  and end of frame buffer update is marked with last rectangle.
+		final boolean lastRect = SelectEncoder.containsEncoding(Encodings.LAST_RECT, this.clientEncodings);
+		
+		final DataOutputStream dataOut = new DataOutputStream(this.out);
+		
+		dataOut.write(0); // FrameBufferUpdate message type.
+		dataOut.write(0); // Padding.
+		
+		// Number of rectangles is unsigned 16-bit value, or 0xFFFF if not known in advance.
+		dataOut.writeShort(lastRect == true ? MAX_RECTANGLES : this.copyRectangles.size() + rectangles.size());
+
+		//
+		// Moved parts of screen image go first, VNC client will copy them
+		// from its frame buffer, before other rectangles are drawn.
+		//
+		
+		for (final Rectangle rectangle : this.copyRectangles) {
+			
+			dataOut.writeShort(rectangle.x);
+			dataOut.writeShort(rectangle.y);
+			dataOut.writeShort(rectangle.width);
+			dataOut.writeShort(rectangle.height);
+			dataOut.writeInt(CopyRectEncoder.getType());
+			
+			dataOut.write(CopyRectEncoder.encode(
+					rectangle.x - this.motionDetector.getDeltaX()
+					, rectangle.y - this.motionDetector.getDeltaY()));
+		}
+		
+		if (lastRect == true) {
+			
+			// VNC client can start with moved parts, while rest is encoded.
+			dataOut.flush();
+		}
+		
+		final int units = workUnits(encoder, rectangles);
+		
+		if (encoder instanceof StreamEncoder && units > 1) {
+			
+			// Pixels are converted in other threads, and compressed in order, with zlib stream of this session.
+			writePipelined((StreamEncoder) encoder, image, originX, originY, rectangles, units, dataOut, lastRect);
+		}
+		else {
+			
+			// Encode rectangles, with their headers, in few work units, each into one buffer.
+			// Stateful encoder must encode rectangles in order, in this thread. If VNC client
+			//  supports last rectangle, each rectangle is then sent as soon as it is encoded.
+			final List<Callable<EncodeBuffer>> tasks = encodingTasks(encoder, image, originX, originY, rectangles
+					, (lastRect == true && encoder.isStateful() == true) ? rectangles.size() : units);
+
+			if (encoder.isStateful() == true || tasks.size() == 1) {
+				
+				// Small update, or stateful encoder with zlib stream, is encoded in this thread.
+				for (final Callable<EncodeBuffer> task : tasks) {
+					
+					final EncodeBuffer encoded;
+					
+					try {
+						
+						encoded = task.call();
+					}
+					catch (final Exception ex) {
+						
+						throw new IOException("Unable to encode rectangle.", ex);
+					}
+					
+					writeAndRelease(encoded, dataOut);
+					
+					if (lastRect == true) {
+						
+						dataOut.flush();
+					}
+				}
+			}
+			else {
+				
+				// Encode work units in other threads.
+				final List<Future<EncodeBuffer>> futures = new ArrayList<>();
+				
+				for (final Callable<EncodeBuffer> task : tasks) {
+					
+					futures.add(getEncodingExecutor().submit(task));
+				}
+				
+				int taken = 0;
+				
+				try {
+		
+					for (final Future<EncodeBuffer> future : futures) {
+		
+						// Write out to the RFB client the result, in order.
+						final EncodeBuffer buffer = future.get();
+						
+						taken++;
+						
+						writeAndRelease(buffer, dataOut);
+						
+						if (lastRect == true) {
+							
+							dataOut.flush();
+						}
+					}
+				}
+				catch (final InterruptedException | ExecutionException ex) {
+					
+					// Header has announced all rectangles, so rest of update can not be sent.
+					throw new IOException("Unable to encode rectangle.", ex);
+				}
+				finally {
+					
+					cancelEncoding(futures.subList(taken, futures.size()));
+				}
+			}
+		}
+		
+		if (lastRect == true) {
+			
+			// End of frame buffer update.
+			dataOut.writeShort(0);
+			dataOut.writeShort(0);
+			dataOut.writeShort(0);
+			dataOut.writeShort(0);
+			dataOut.writeInt(Encodings.LAST_RECT);
+		}
+
+		dataOut.flush();
+		
+		recordInputLatency();
+		
+		return true;
+	}
+	
+	/**
+	 * Find broadcast group of this session, for selected encoder. Session joins other group,
+	 * if its pixel format, encoding, or levels have changed, and it leaves group if broadcast mode does not apply.
+	 * 
+	 * @param encoder	-	selected encoder
+	 * @param areas		-	areas of frame buffer requested by VNC client, or null for whole frame buffer
+	 * 
+	 * @return	group of this session, or null if update is not encoded by group
+	 */
+	private BroadcastGroup broadcastGroup(final EncodingInterface encoder, final List<Rectangle> areas) {
+		
+		final RFBConfig config = this.session.getConfig();
+		
+		// Zlib stream of stateful encoder can not be shared by group, and message of group covers whole frame buffer.
+		final BroadcastGroup.Key key = (config.isBroadcast() == true && encoder.isStateful() == false && areas == null)
+				? new BroadcastGroup.Key(this.pixelFormat, encoder.getType(), this.compressionLevel, this.qualityLevel, this.screenClip)
+				: null;
+		
+		final BroadcastGroup group = this.broadcastGroup;
+		
+		if (group != null && group.getKey().equals(key) == true) {
+			
+			return group;
+		}
+		
+		if (group != null) {
+			
+			config.leaveBroadcastGroup(group, this.broadcastMember);
+			
+			// Frame buffer of VNC client is not known to frame store of this session.
+			frameStore().reset(this.frameSubscriber);
+		}
+		
+		this.broadcastGroup = key == null ? null : config.joinBroadcastGroup(key, this.broadcastMember);
+		
+		return this.broadcastGroup;
+	}
+	
+	/**
+	 * Send update of broadcast group: message encoded by group, if this session received previous frame,
+	 * or changed tiles of frames which this session missed.
+	 * 
+	 * @param group			-	group of this session
+	 * @param encoder		-	selected encoder
+	 * @param fullUpdate	-	if set, VNC client needs complete screen image
+	 * 
+	 * @return	true if frame buffer was updated, or false if screen image did not change
+	 * 
+	 * @throws IOException if the network connection breaks
+	 */
+	private boolean broadcastUpdate(final BroadcastGroup group, final EncodingInterface encoder, final boolean fullUpdate) throws IOException {
+		
+		// Area around mouse pointer is not captured on its own, group has single image of screen.
+		this.pointer.set(null);
+		
+		this.dirtyTiles.clear();
+		this.copyRectangles.clear();
+		
+		final ScreenFrame frame = getScreenFrame();
+		
+		if (frame == null) {
+			
+			return false;
+		}
+		
+		if (fullUpdate == true) {
+			
+			this.broadcastMember.reset(group);
+		}
+		
+		final BroadcastGroup.Update update = group.update(this.broadcastMember, frame
+				, (image, dirty) -> encodeMessage(encoder, image, dirty));
+		
+		if (update == null) {
+			
+			return false;
+		}
+		
+		if (update.message == null) {
+			
+			// Catch up with group: changed tiles of missed frames are encoded by this session.
+			this.dirtyTiles.copyFrom(update.dirtyTiles);
+			
+			return writeUpdate(encoder, update.image, 0, 0);
+		}
+		
+		this.out.write(update.message);
+		this.out.flush();
+		
+		recordInputLatency();
+		
+		return true;
+	}
+	
+	/**
+	 * Encode complete frame buffer update message, with changed tiles of image, for broadcast group.
+	 * 
+	 * @param encoder	-	selected encoder, stateless
+	 * @param image		-	screen image
+	 * @param dirty		-	changed tiles
+	 * 
+	 * @return	frame buffer update message
+	 * 
+	 * @throws IOException	if image can not be encoded
+	 */
+	private byte[] encodeMessage(final EncodingInterface encoder, final TrueColorImage image, final DirtyTileMap dirty) throws IOException {
+		
+		final List<Rectangle> rectangles = this.rectangleMerger.merge(dirty);
+		
+		if (rectangles.size() > MAX_RECTANGLES) {
+			
+			rectangles.clear();
+			rectangles.add(RectangleMerger.bounds(dirty));
+		}
+		
+		// Number of rectangles is known, so message is same for VNC clients with or without last rectangle support.
+		final ByteArrayOutputStream message = new ByteArrayOutputStream();
+		final DataOutputStream dataOut = new DataOutputStream(message);
+		
+		dataOut.write(0); // FrameBufferUpdate message type.
+		dataOut.write(0); // Padding.
+		dataOut.writeShort(rectangles.size());
+		
+		final List<Future<EncodeBuffer>> futures = new ArrayList<>();
+		
+		int taken = 0;
+		
+		try {
+			
+			for (final Callable<EncodeBuffer> task : encodingTasks(encoder, image, 0, 0, rectangles, workUnits(encoder, rectangles))) {
+				
+				futures.add(getEncodingExecutor().submit(task));
+			}
+			
+			for (final Future<EncodeBuffer> future : futures) {
+				
+				final EncodeBuffer buffer = future.get();
+				
+				taken++;
+				
+				writeAndRelease(buffer, message);
+			}
+		}
+		catch (final InterruptedException | ExecutionException ex) {
+			
+			throw new IOException("Unable to encode broadcast message.", ex);
+		}
+		finally {
+			
+			cancelEncoding(futures.subList(taken, futures.size()));
+		}
+		
+		return message.toByteArray();
+	}
+	
+	/**
+	 * Record latency from first input event, which is not yet followed by frame buffer update, until now.
+	 */
+	private void recordInputLatency() {
+		
+		final long inputAt = this.inputAt.getAndSet(0);
+		
+		if (inputAt != 0) {
+			
+			final long latency = System.nanoTime() - inputAt;
+			
+			// Input without visible effect is not related to this update.
+			if (latency < TimeUnit.MILLISECONDS.toNanos(INPUT_LATENCY_TIMEOUT)) {
+				
+				this.inputLatency.record(latency);
+			}
+		}
+	}
+	
+	/**
+	 * Area of {@link #NEIGHBOURHOOD_SIZE} pixels around mouse pointer, aligned to tiles, within frame buffer,
+	 * and within tiles of requested areas.
+	 * 
+	 * @param pointer	-	position of mouse pointer
+	 * @param areas		-	areas of frame buffer requested by VNC client, or null for whole frame buffer
+	 * 
+	 * @return	area in frame buffer, or null if previous image of screen is not known, or pointer is not in requested area
+	 */
+	private Rectangle neighbourhood(final Point pointer, final List<Rectangle> areas) {
+		
+		final SharedFrameStore store = frameStore();
+		
+		final int width = store.getWidth(), height = store.getHeight();
+		
+		if (width == 0 || height == 0) {
+			
+			return null;
+		}
+		
+		final int tileSize = DirtyTileMap.TILE_SIZE;
+		
+		final int x = Math.max(0, Math.min(pointer.x - NEIGHBOURHOOD_SIZE / 2, width - NEIGHBOURHOOD_SIZE)) / tileSize * tileSize;
+		final int y = Math.max(0, Math.min(pointer.y - NEIGHBOURHOOD_SIZE / 2, height - NEIGHBOURHOOD_SIZE)) / tileSize * tileSize;
+		
+		final Rectangle neighbourhood = new Rectangle(x, y, Math.min(NEIGHBOURHOOD_SIZE, width - x), Math.min(NEIGHBOURHOOD_SIZE, height - y));
+		
+		if (areas == null) {
+			
+			return neighbourhood;
+		}
+		
+		// Requested areas, extended to tile boundaries, so that captured area stays aligned to tiles.
+		final Rectangle bounds = MergedUpdateRequest.bounds(areas);
+		
+		final int boundsX = bounds.x / tileSize * tileSize, boundsY = bounds.y / tileSize * tileSize;
+		final int boundsEndX = Math.min(width, (bounds.x + bounds.width + tileSize - 1) / tileSize * tileSize);
+		final int boundsEndY = Math.min(height, (bounds.y + bounds.height + tileSize - 1) / tileSize * tileSize);
+		
+		final Rectangle area = neighbourhood.intersection(new Rectangle(boundsX, boundsY, boundsEndX - boundsX, boundsEndY - boundsY));
+		
+		return area.isEmpty() == true ? null : area;
+	}
+	
+	/**
+	 * Check if requested areas cover whole frame buffer, ie. screen clip or whole screen.
 	 * 
-	 * @return	{@link List} of {@link Tile} objects that are changed comparing to last invocation
+	 * @param areas		-	areas of frame buffer requested by VNC client
+	 * 
+	 * @return	true if single area covers frame buffer, or if frame buffer dimension is not known
 	 */
-	private List<Tile> getChangedTiles() {
+	private boolean coversFrameBuffer(final List<Rectangle> areas) {
 		
-		final TrueColorImage image = getScreenImage();
+		final SharedFrameStore store = frameStore();
+		final ScreenClip clip = this.screenClip;
 		
-		if (this.lastImage == null) {
-					
-			this.lastImage = Tile.build(image.raw, image.width, image.height);
+		int width = store.getWidth(), height = store.getHeight();
+		
+		if (width == 0 || height == 0) {
+			
+			// No frame is compared yet, eg. all sessions are in broadcast groups.
+			width = clip != null ? clip.width : this.sharedScreenCapture.getScreenCapture().getScreenWidth();
+			height = clip != null ? clip.height : this.sharedScreenCapture.getScreenCapture().getScreenHeight();
+		}
+		
+		if (width <= 0 || height <= 0) {
 			
-			return this.lastImage;
+			return true;
 		}
 		
-		final List<Tile> newImage = Tile.build(image.raw, image.width, image.height);
+		final Rectangle frameBuffer = new Rectangle(0, 0, width, height);
 		
-		if (newImage.size() != this.lastImage.size()) {
+		return areas.stream().anyMatch(area -> area.contains(frameBuffer));
+	}
+
+	/**
+	 * Number of work units for parallel encoding of given rectangles: about one per encoding thread,
+	 * but not less than {@link #MIN_WORK_UNIT_PIXELS} pixels per work unit.
+	 * 
+	 * @param encoder		-	selected encoder
+	 * @param rectangles	-	rectangles to encode
+	 * 
+	 * @return	number of work units, 1 if encoder is stateful, and it can not convert pixels in parallel
+	 */
+	private int workUnits(final EncodingInterface encoder, final List<Rectangle> rectangles) {
+		
+		if (encoder.isStateful() == true && (encoder instanceof StreamEncoder) == false) {
+			
+			return 1;
+		}
+		
+		long pixels = 0;
 		
-			this.lastImage = newImage;
+		for (final Rectangle rectangle : rectangles) {
 			
-			return this.lastImage;
+			pixels += (long) rectangle.width * rectangle.height;
 		}
 		
-		final List<Tile> result = new ArrayList<>();
+		return (int) Math.max(1, Math.min(this.session.getConfig().getEncodingThreads(), pixels / MIN_WORK_UNIT_PIXELS));
+	}
+	
+	/**
+	 * Encode rectangles with stream encoder, and write them to VNC client, with their headers.
+	 * <p>
+	 * Rectangles are split into given number of work units, and pixels of each work unit are converted in encoding executor.
+	 * Converted rectangles are then compressed in this thread, in order, since single zlib stream lives for whole RFB connection.
+	 * Compression of first rectangles goes on, while next work units are converted.
+	 * 
+	 * @param encoder		-	selected encoder
+	 * @param image			-	image of screen, or of part of screen
+	 * @param originX		-	position of image in frame buffer
+	 * @param originY		-	position of image in frame buffer
+	 * @param rectangles	-	rectangles to encode, in frame buffer, within image
+	 * @param units			-	number of work units
+	 * @param out			-	where to write encoded rectangles
+	 * @param flush			-	if set, each rectangle is flushed as soon as it is encoded
+	 * 
+	 * @throws IOException	if the network connection breaks, or encoding fails
+	 */
+	void writePipelined(final StreamEncoder encoder, final TrueColorImage image, final int originX, final int originY
+			, final List<Rectangle> rectangles, final int units, final OutputStream out, final boolean flush) throws IOException {
+		
+		final List<List<Rectangle>> workUnits = RectangleMerger.split(rectangles, units);
 		
-		for (int index = 0 ; index < newImage.size() ; index++) {
+		final List<Future<List<EncodeBuffer>>> futures = new ArrayList<>();
 		
-			if (this.lastImage.get(index).equals(newImage.get(index)) == false) {
+		for (final List<Rectangle> unit : workUnits) {
+			
+			futures.add(getEncodingExecutor().submit( () -> {
 				
-				// Found tile that's changed.
-				result.add(newImage.get(index));
-			}
+				final List<EncodeBuffer> prepared = new ArrayList<>();
+				
+				try {
+					
+					for (final Rectangle rectangle : unit) {
+						
+						final EncodeBuffer buffer = this.bufferPool.acquire();
+						prepared.add(buffer);
+						
+						encoder.prepareTo(TrueColorImage.subImage(image, rectangle.x - originX, rectangle.y - originY
+								, rectangle.width, rectangle.height)
+								, this.pixelFormat, buffer);
+					}
+				}
+				catch (final RuntimeException exception) {
+					
+					prepared.forEach(this.bufferPool::release);
+					
+					throw exception;
+				}
+				
+				return prepared;
+			}));
 		}
 		
-		// Update reference with current screen image.
-		this.lastImage = newImage;
+		final EncodeBuffer buffer = this.bufferPool.acquire();
 		
-		return result;
+		int taken = 0;
+		
+		try {
+			
+			for (int i = 0 ; i < futures.size() ; i++) {
+				
+				final List<EncodeBuffer> prepared = futures.get(i).get();
+				
+				taken++;
+				
+				try {
+					
+					for (int j = 0 ; j < prepared.size() ; j++) {
+						
+						final Rectangle rectangle = workUnits.get(i).get(j);
+						
+						buffer.clear();
+						
+						writeRectangleHeader(buffer, rectangle.x, rectangle.y, rectangle.width, rectangle.height, encoder.getType());
+						
+						encoder.compressTo(prepared.get(j), buffer);
+						
+						buffer.writeTo(out);
+						
+						if (flush == true) {
+							
+							out.flush();
+						}
+					}
+				}
+				finally {
+					
+					prepared.forEach(this.bufferPool::release);
+				}
+			}
+		}
+		catch (final InterruptedException | ExecutionException ex) {
+			
+			// Rest of update can not be sent, and zlib stream would not match one of VNC client.
+			throw new IOException("Unable to encode rectangle.", ex);
+		}
+		finally {
+			
+			cancelEncoding(futures.subList(taken, futures.size()), (prepared) -> prepared.forEach(this.bufferPool::release));
+			
+			this.bufferPool.release(buffer);
+		}
 	}
 	
 	/**
-	 * Method will select appropriate {@link EncodingInterface} instance,
-	 * based on {@link #clientEncodings} and {@link #preferredEncodings}.
-	 * <p>
-	 * It will also consider {@link #lastEncoder} reference.
+	 * Split rectangles into given number of work units, see {@link RectangleMerger#split(List, int)}.
+	 * Each task encodes rectangles of its work unit, with their headers, into one buffer.
+	 * Buffers of tasks put together keep order of rectangles.
 	 * 
-	 * @return	on of {@link RawEncoder}, {@link HextileEncoder}, etc.
+	 * @param encoder		-	selected encoder
+	 * @param image			-	screen image
+	 * @param rectangles	-	rectangles to encode
+	 * @param units			-	number of work units
 	 * 
+	 * @return	list of tasks, one per work unit
 	 */
-	private EncodingInterface selectEncoder() {
-		
-		this.lastEncoder = SelectEncoder.selectEncoder(this.lastEncoder, this.clientEncodings, this.preferredEncodings);
+	List<Callable<EncodeBuffer>> encodingTasks(final EncodingInterface encoder, final TrueColorImage image
+			, final List<Rectangle> rectangles, final int units) {
 		
-		return this.lastEncoder;
-	}	
+		return encodingTasks(encoder, image, 0, 0, rectangles, units);
+	}
 	
 	/**
-	 * A framebuffer update consists of a sequence of rectangles of pixel data which the client
-	 * should put into its framebuffer. It is sent in response to a FramebufferUpdateRequest
-	 * from the client. Note that there may be an indefinite period between the Framebuffer-
-	 * UpdateRequest and the FramebufferUpdate.
-	 * <p>
-	 * If the client has not lost any contents of the area in which it is interested, then it
-	 * sends a FramebufferUpdateRequest with incremental set to non-zero (true). If and
-	 * when there are changes to the specified area of the framebuffer, the server will send a
-	 * FramebufferUpdate. Note that there may be an indefinite period between the Frame-
-	 * bufferUpdateRequest and the FramebufferUpdate.
-	 * <p>
-	 * @param updateRequest	-	received message {@link FramebufferUpdateRequest} from VNC client
+	 * Split rectangles into given number of work units, see {@link #encodingTasks(EncodingInterface, TrueColorImage, List, int)}.
+	 * Image covers only part of frame buffer, eg. area around mouse pointer.
 	 * 
-	 * @return	true if frame buffer was updated, or false if screen image did not change from last invocation
+	 * @param encoder		-	selected encoder
+	 * @param image			-	image of part of screen
+	 * @param originX		-	position of image in frame buffer
+	 * @param originY		-	position of image in frame buffer
+	 * @param rectangles	-	rectangles to encode, in frame buffer, within image
+	 * @param units			-	number of work units
 	 * 
-	 * @throws IOException if the network connection breaks
+	 * @return	list of tasks, one per work unit
 	 */
-	private boolean framebufferUpdate(final FramebufferUpdateRequest updateRequest) throws IOException {
-
-		// Find suitable encoder for frame buffer update response.
-		final EncodingInterface encoder = selectEncoder();
+	private List<Callable<EncodeBuffer>> encodingTasks(final EncodingInterface encoder, final TrueColorImage image
+			, final int originX, final int originY, final List<Rectangle> rectangles, final int units) {
 		
-		// Indicator if VNC client needs full frame buffer data (screen image).
-		final boolean fullUpdate = (updateRequest.incremental == 0);
+		final List<Callable<EncodeBuffer>> tasks = new ArrayList<>();
 		
-		if (fullUpdate == true) {
-
-			// This will enforce method getChangedTiles() to return list with complete screen image.
-			this.lastImage = null;
-		}
+		// Data of eg. ZRLE encoder is never reused, so it is not looked up in cache.
+		final EncodedRectCache cache = encoder.mayBeReusable() == true ? this.session.getConfig().getEncodedRectCache() : null;
+		final int compressionLevel = this.compressionLevel, qualityLevel = this.encoderQualityLevel;
 		
-		//
-		// Take current image of screen,
-		// as list of tiles.
-		// Update only tiles that are different comparing to last invocation.
-		//
-
-		final List<Tile> tiles = getChangedTiles();
-
-		if (tiles.isEmpty() == true) {
+		for (final List<Rectangle> unit : RectangleMerger.split(rectangles, units)) {
 			
-			return false;
+			tasks.add( () -> {
+				
+				final EncodeBuffer buffer = this.bufferPool.acquire();
+				
+				try {
+					
+					for (final Rectangle rectangle : unit) {
+						
+						writeRectangleHeader(buffer, rectangle.x, rectangle.y, rectangle.width, rectangle.height, encoder.getType());
+						
+						final TrueColorImage subImage = TrueColorImage.subImage(image, rectangle.x - originX, rectangle.y - originY
+								, rectangle.width, rectangle.height);
+						
+						// Other sessions might have encoded same rectangle already.
+						if (cache != null) {
+							
+							cache.encodeTo(encoder, subImage, this.pixelFormat, compressionLevel, qualityLevel, buffer);
+						}
+						else {
+							
+							encoder.encodeTo(subImage, this.pixelFormat, buffer);
+						}
+					}
+				}
+				catch (final RuntimeException exception) {
+					
+					this.bufferPool.release(buffer);
+					
+					throw exception;
+				}
+				
+				return buffer;
+			});
 		}
 		
-		final DataOutputStream dataOut = new DataOutputStream(this.out);
+		return tasks;
+	}
+	
+	/**
+	 * Write rectangle header: position, size and encoding type.
+	 * 
+	 * @param buffer		-	buffer where to write
+	 * @param xPos			-	rectangle position
+	 * @param yPos			-	rectangle position
+	 * @param width			-	rectangle width
+	 * @param height		-	rectangle height
+	 * @param encodingType	-	encoding type, see {@link Encodings}
+	 */
+	private static void writeRectangleHeader(final EncodeBuffer buffer
+			, final int xPos, final int yPos, final int width, final int height, final int encodingType) {
 		
-		dataOut.write(0); // FrameBufferUpdate message type.
-		dataOut.write(0); // Padding.
+		final ByteBuffer header = buffer.ensureRemaining(12);
 		
-		short numberOfRectangles = (short) tiles.size();
+		header.putShort((short) xPos);
+		header.putShort((short) yPos);
+		header.putShort((short) width);
+		header.putShort((short) height);
+		header.putInt(encodingType);
+	}
+	
+	/**
+	 * Write encoded rectangles to VNC client, and give buffer back to pool.
+	 * 
+	 * @throws IOException	if the network connection breaks
+	 */
+	private void writeAndRelease(final EncodeBuffer buffer, final OutputStream out) throws IOException {
 		
-		dataOut.writeShort(numberOfRectangles);
-
-		// Store here the Future instances for each encoded tile.
-		final List<Future<ByteArrayOutputStream>> tasks = new ArrayList<>();
-		final CountDownLatch latch = new CountDownLatch(tiles.size());
-		for (final Tile tile : tiles) {
-
-			// Encode in another thread, each tile.
-			final Future<ByteArrayOutputStream> future = this.executor.submit( () -> {
-
-				final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-				final DataOutputStream dataOut0 = new DataOutputStream(bOut);
-
-				dataOut0.writeShort(tile.xPos);
-				dataOut0.writeShort(tile.yPos);
-				dataOut0.writeShort(tile.width);
-				dataOut0.writeShort(tile.height);
-				dataOut0.writeInt(encoder.getType());
-
-				final byte[] encodedImage = encoder.encode(new TrueColorImage(tile.raw(), tile.width, tile.height), this.pixelFormat);
-				dataOut0.write(encodedImage);
-
-				latch.countDown();
-
-				return bOut;
-			});
-
-			tasks.add(future);
-		}
-
 		try {
-
-			// Wait for the all tasks / encoders to finish encoding.
-			latch.await();
-			for (final Future<ByteArrayOutputStream> future : tasks) {
-
-				// Write out to the RFB client the result.
-				final ByteArrayOutputStream bOut = future.get();
-				dataOut.write(bOut.toByteArray());
-			}
+			
+			buffer.writeTo(out);
 		}
-		catch (final InterruptedException | ExecutionException ex) {
-			log.error(String.format("Interrupted while encoding." ), ex);
+		finally {
+			
+			this.bufferPool.release(buffer);
 		}
-
-		dataOut.flush();
+	}
+	
+	/**
+	 * Cancel encoding tasks, which results are not taken, and return buffers of completed tasks to pool.
+	 * 
+	 * @param futures	-	encoding tasks
+	 */
+	private void cancelEncoding(final List<Future<EncodeBuffer>> futures) {
 		
-		return true;
+		cancelEncoding(futures, this.bufferPool::release);
 	}
-
+	
+	/**
+	 * Cancel encoding tasks, which results are not taken, and release results of completed tasks.
+	 * 
+	 * @param futures	-	encoding tasks
+	 * @param release	-	returns buffers of a task result to pool
+	 */
+	private <T> void cancelEncoding(final List<Future<T>> futures, final Consumer<T> release) {
+		
+		for (final Future<T> future : futures) {
+			
+			if (future.cancel(true) == false && future.isCancelled() == false) {
+				
+				try {
+					
+					release.accept(future.get());
+				}
+				catch (final InterruptedException | ExecutionException ex) {
+					
+					// Task has failed, it has no buffer.
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Helper method to write and send 'loading.png' image.
 	 * <p>
@@ -567,8 +2092,8 @@ class FramebufferUpdater implements Runnable {
 		}
 		else {
 			
-			width = this.screenCapture.getScreenWidth();
-			height = this.screenCapture.getScreenHeight();
+			width = this.sharedScreenCapture.getScreenCapture().getScreenWidth();
+			height = this.sharedScreenCapture.getScreenCapture().getScreenHeight();
 		}
 		
 		if (width == -1 || height == -1) {
@@ -586,26 +2111,30 @@ class FramebufferUpdater implements Runnable {
 		
 		final List<Tile> tiles = Tile.build(loadingImage);
 		
-		short numberOfRectangles = (short) tiles.size();
-		
-		dataOut.writeShort(numberOfRectangles);
+		// Number of rectangles is unsigned 16-bit value.
+		dataOut.writeShort(tiles.size());
 			
+		// Same buffer is used for each tile.
+		final EncodeBuffer buffer = this.bufferPool.acquire();
+		
 		for (final Tile tile : tiles) {
 			
 			final short xPos = tile.xPos, yPos = tile.yPos
 					, tileWidth = tile.width, tileHeight = tile.height;
 			
-			dataOut.writeShort(xPos);
-			dataOut.writeShort(yPos);
-			dataOut.writeShort(tileWidth);
-			dataOut.writeShort(tileHeight);		
-				
 			this.lastEncoder = SelectEncoder.selectEncoder(this.lastEncoder, this.clientEncodings, this.preferredEncodings);
-			dataOut.writeInt(this.lastEncoder.getType());
 			
-			dataOut.write(this.lastEncoder.encode(new TrueColorImage(tile.raw(), tileWidth, tileHeight), this.pixelFormat));
+			buffer.clear();
+			
+			writeRectangleHeader(buffer, xPos, yPos, tileWidth, tileHeight, this.lastEncoder.getType());
+			
+			this.lastEncoder.encodeTo(new TrueColorImage(tile.raw(), tileWidth, tileHeight), this.pixelFormat, buffer);
+			
+			buffer.writeTo(dataOut);
 		}
 		
+		this.bufferPool.release(buffer);
+		
 		dataOut.flush();
 	}
 	
@@ -620,9 +2149,7 @@ class FramebufferUpdater implements Runnable {
 		
 		final RichCursorEncoder encoder = new RichCursorEncoder();
 		
-		final byte[] cursorData = encoder.encode(null, pixelFormat);
-		
-		if (cursorData == null) {
+		if (encoder.isAvailable() == false) {
 			
 			return;
 		}
@@ -640,13 +2167,13 @@ class FramebufferUpdater implements Runnable {
 			, width = 18
 			, height = 18; // Depends on 'cursor*.raw' captured data.
 		
-		dataOut.writeShort(xPos);
-		dataOut.writeShort(yPos);
-		dataOut.writeShort(width);
-		dataOut.writeShort(height);
-		dataOut.writeInt(Encodings.RICH_CURSOR);
+		final EncodeBuffer buffer = this.bufferPool.acquire();
+		
+		writeRectangleHeader(buffer, xPos, yPos, width, height, Encodings.RICH_CURSOR);
 		
-		dataOut.write(cursorData);
+		encoder.encodeTo(null, this.pixelFormat, buffer);
+		
+		writeAndRelease(buffer, dataOut);
 		
 		dataOut.flush();
 	}
@@ -658,20 +2185,73 @@ class FramebufferUpdater implements Runnable {
 	 */
 	public void start() throws InterruptedException {
 		
-		final Thread frameBufferUpdateThread = new Thread(this,
+		final Thread frameBufferUpdateThread = VirtualThreads.newThread(this,
 				String.format("%s-[%s]",
-						FramebufferUpdater.class.getSimpleName(), this.clientHandler.toString()));
+						FramebufferUpdater.class.getSimpleName(), this.session.toString())
+				, this.session.getConfig().isVirtualThreads());
 		frameBufferUpdateThread.start();
 		
 		this.latch.await(10, TimeUnit.SECONDS);
 	}
 	
+	/**
+	 * Start an framebuffer updater instance, without thread of its own.
+	 * Each update request is handled by given scheduler, shared with other VNC client sessions.
+	 * 
+	 * @param scheduler		-	shared scheduler, it is not shut down by this updater
+	 */
+	public void start(final ScheduledExecutorService scheduler) {
+		
+		this.scheduler = scheduler;
+		
+		this.running = true;
+		this.latch.countDown();
+		
+		if (this.updateRequests.isEmpty() == false) {
+			
+			scheduleStep(0);
+		}
+	}
+	
 	/**
 	 * Stop this updater instance.
 	 */
 	public void terminate() {
 		
-		this.running = false;		
+		this.running = false;
+		
+		final BroadcastGroup group = this.broadcastGroup;
+		
+		if (group != null) {
+			
+			this.session.getConfig().leaveBroadcastGroup(group, this.broadcastMember);
+		}
+		
+		final SharedFrameStore store = this.frameStore;
+		
+		if (store != null) {
+			
+			this.session.getConfig().leaveFrameStore(store, this.frameSubscriber);
+		}
+		
+		synchronized (this) {
+			
+			if (this.ownExecutor == true) {
+				
+				// Drop queued encoding tasks of this session.
+				this.executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Frame scheduler of this updater.
+	 * 
+	 * @return	instance of {@link FrameScheduler}
+	 */
+	FrameScheduler getFrameScheduler() {
+		
+		return this.frameScheduler;
 	}
 
 	/**
@@ -683,4 +2263,83 @@ class FramebufferUpdater implements Runnable {
 		
 		return this.running;
 	}
+	
+	/**
+	 * Output stream which counts written bytes, for {@link ConnectionEstimator}.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		
+		private final ConnectionEstimator estimator;
+		
+		CountingOutputStream(final OutputStream out, final ConnectionEstimator estimator) {
+			
+			super(out);
+			
+			this.estimator = estimator;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			
+			this.out.write(b);
+			this.estimator.sent(1);
+		}
+		
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			
+			// Whole array is passed on, not byte by byte as in filter output stream.
+			this.out.write(b, off, len);
+			this.estimator.sent(len);
+		}
+	}
+	
+	/**
+	 * Incremental update request, which is kept in queue while continuous updates are enabled.
+	 */
+	private static class ContinuousUpdateRequest extends FramebufferUpdateRequest {
+		
+		ContinuousUpdateRequest(final short xPosition, final short yPosition, final short width, final short height) {
+			
+			super((byte) 1, xPosition, yPosition, width, height);
+		}
+	}
+	
+	/**
+	 * Several pending update requests for different areas, which are answered by single frame buffer update.
+	 * Position and size of request cover all areas.
+	 */
+	private static class MergedUpdateRequest extends FramebufferUpdateRequest {
+		
+		/**
+		 * Requested areas, and areas of non-incremental requests.
+		 */
+		final List<Rectangle> areas, lostAreas;
+		
+		MergedUpdateRequest(final List<Rectangle> areas, final List<Rectangle> lostAreas) {
+			
+			this(areas, lostAreas, bounds(areas));
+		}
+		
+		private MergedUpdateRequest(final List<Rectangle> areas, final List<Rectangle> lostAreas, final Rectangle bounds) {
+			
+			super(lostAreas.isEmpty() == true ? (byte) 1 : (byte) 0
+					, (short) bounds.x, (short) bounds.y, (short) bounds.width, (short) bounds.height);
+			
+			this.areas = areas;
+			this.lostAreas = lostAreas;
+		}
+		
+		private static Rectangle bounds(final List<Rectangle> areas) {
+			
+			final Rectangle bounds = new Rectangle(areas.get(0));
+			
+			for (final Rectangle area : areas) {
+				
+				bounds.add(area);
+			}
+			
+			return bounds;
+		}
+	}
 }
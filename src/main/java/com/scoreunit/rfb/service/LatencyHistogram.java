@@ -0,0 +1,168 @@
+package com.scoreunit.rfb.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latency, eg. from key or pointer event of VNC client until
+ * frame buffer update with changed screen is sent.
+ * <p>
+ * Buckets have exponential bounds in millisec.: 0 - 1, 1 - 2, 2 - 4, ... 512 - 1024, and 1024 or more.
+ * Recording is lock free, histogram can be read while it is recorded.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of buckets. Last bucket counts latencies of {@link #upperBound(int) 1024} millisec. or more.
+	 */
+	public final static int BUCKETS = 12;
+
+	/**
+	 * Count of latencies per bucket.
+	 */
+	private final AtomicLongArray buckets;
+
+	/**
+	 * Count of all latencies, and their sum in nanosec.
+	 */
+	private final AtomicLongArray totals;
+
+	/**
+	 * Create new, empty, histogram.
+	 */
+	public LatencyHistogram() {
+
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.totals = new AtomicLongArray(2);
+	}
+
+	/**
+	 * Record single latency.
+	 *
+	 * @param nanos	-	latency in nanosec.
+	 */
+	public void record(final long nanos) {
+
+		final long millis = Math.max(0, nanos) / 1000000;
+
+		// Bucket 0 for less than 1 millisec., bucket n for 2^(n-1) up to 2^n millisec.
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+
+		this.buckets.incrementAndGet(bucket);
+		this.totals.incrementAndGet(0);
+		this.totals.addAndGet(1, Math.max(0, nanos));
+	}
+
+	/**
+	 * Upper bound of bucket.
+	 *
+	 * @param bucket	-	bucket index, 0 to {@link #BUCKETS} - 1
+	 *
+	 * @return	latency in millisec., exclusive, or {@link Long#MAX_VALUE} for last bucket
+	 */
+	public static long upperBound(final int bucket) {
+
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/**
+	 * Count of latencies in each bucket.
+	 *
+	 * @return	array of {@link #BUCKETS} counts
+	 */
+	public long[] getBuckets() {
+
+		final long[] counts = new long[BUCKETS];
+
+		for (int i = 0 ; i < BUCKETS ; i++) {
+
+			counts[i] = this.buckets.get(i);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Number of recorded latencies.
+	 *
+	 * @return	count
+	 */
+	public long getCount() {
+
+		return this.totals.get(0);
+	}
+
+	/**
+	 * Mean latency.
+	 *
+	 * @return	latency in millisec., or 0 if nothing is recorded
+	 */
+	public double getMean() {
+
+		final long count = this.totals.get(0);
+
+		return count == 0 ? 0 : this.totals.get(1) / 1e6 / count;
+	}
+
+	/**
+	 * Find latency which is not exceeded by given part of recorded latencies.
+	 *
+	 * @param percentile	-	value between 0 and 100, eg. 50 for median, 99 for tail latency
+	 *
+	 * @return	upper bound in millisec. of bucket which contains percentile, or 0 if nothing is recorded
+	 */
+	public long getPercentile(final double percentile) {
+
+		final long[] counts = getBuckets();
+
+		long count = 0;
+
+		for (final long bucketCount : counts) {
+
+			count += bucketCount;
+		}
+
+		if (count == 0) {
+
+			return 0;
+		}
+
+		final long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+
+		long seen = 0;
+
+		for (int i = 0 ; i < BUCKETS ; i++) {
+
+			seen += counts[i];
+
+			if (seen >= Math.max(1, rank)) {
+
+				return upperBound(i);
+			}
+		}
+
+		return upperBound(BUCKETS - 1);
+	}
+
+	@Override
+	public String toString() {
+
+		final StringBuilder builder = new StringBuilder();
+
+		builder.append(String.format("count %d, mean %.1f ms, p50 < %d ms, p99 < %d ms, buckets:"
+				, getCount(), getMean(), getPercentile(50), getPercentile(99)));
+
+		final long[] counts = getBuckets();
+
+		for (int i = 0 ; i < BUCKETS ; i++) {
+
+			builder.append(i == BUCKETS - 1
+					? String.format(" >=%d ms: %d", upperBound(i - 1), counts[i])
+					: String.format(" <%d ms: %d", upperBound(i), counts[i]));
+		}
+
+		return builder.toString();
+	}
+}
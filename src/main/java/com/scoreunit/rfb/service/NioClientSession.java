@@ -0,0 +1,511 @@
+package com.scoreunit.rfb.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+import com.scoreunit.rfb.mouse.MouseController;
+
+/**
+ * Session with single VNC client, served by non-blocking socket channel, see {@link NioTransport}.
+ * <p>
+ * Received data is parsed as state machine: protocol version, security type, VNC auth. response,
+ * client init., and then VNC client messages. Each message is handled once all its bytes arrive,
+ * by same handshake classes as with blocking socket, eg. {@link ProtocolVersion}, {@link SecurityTypes},
+ * {@link ClientInit}, {@link ServerInit}, and by {@link ClientMessageHandler}.
+ * <p>
+ * This session has no thread of its own. Data is read and written by {@link NioEventLoop} thread,
+ * and frame buffer updates are prepared by scheduler shared with other sessions.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class NioClientSession implements ClientSession {
+
+	public final static Logger log = LoggerFactory.getLogger(NioClientSession.class);
+
+	/**
+	 * States of session, each state waits for one message from VNC client.
+	 */
+	private final static int STATE_PROTOCOL_VERSION = 0
+			, STATE_SECURITY_TYPE = 1
+			, STATE_VNC_AUTH = 2
+			, STATE_CLIENT_INIT = 3
+			, STATE_MESSAGES = 4;
+
+	/**
+	 * Initial size of buffer for received data. Buffer grows for longer messages.
+	 */
+	private final static int INPUT_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * Frame buffer update output buffer larger than this is not kept after flush.
+	 */
+	private final static int MAX_KEPT_OUTPUT_BUFFER = 1024 * 1024;
+
+	private final SocketChannel channel;
+
+	private final NioEventLoop eventLoop;
+
+	private final RFBConfig config;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final FramebufferUpdater frameBufferUpdater;
+
+	private final ClientMessageHandler messageHandler;
+
+	private final ConnectionEstimator connectionEstimator;
+
+	private final LatencyHistogram inputLatency;
+
+	private SelectionKey key;
+
+	private int state;
+
+	private ByteBuffer input;
+
+	/**
+	 * Data to write, in order. Filled by event loop thread, and by frame buffer updater.
+	 */
+	private final Queue<ByteBuffer> output;
+
+	/**
+	 * Number of bytes in {@link #output} queue, which are not yet written to socket channel.
+	 */
+	private final AtomicLong pendingOutput;
+
+	private VNCAuth vncAuth;
+
+	/**
+	 * If set, connection is closed once all pending data is written, eg. after failed authentication.
+	 */
+	private volatile boolean closeAfterWrite;
+
+	private volatile boolean running;
+
+	/**
+	 * Create new session.
+	 *
+	 * @param channel			-	socket channel of VNC client
+	 * @param eventLoop			-	event loop which will read and write socket channel
+	 * @param config			-	configuration of RFB service
+	 * @param scheduler			-	scheduler shared by sessions, which prepares frame buffer updates
+	 */
+	public NioClientSession(final SocketChannel channel, final NioEventLoop eventLoop, final RFBConfig config
+			, final ScheduledExecutorService scheduler) {
+
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.config = config;
+		this.scheduler = scheduler;
+
+		this.state = STATE_PROTOCOL_VERSION;
+		this.input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		this.output = new ConcurrentLinkedQueue<>();
+		this.pendingOutput = new AtomicLong();
+
+		this.closeAfterWrite = false;
+		this.running = false;
+
+		this.connectionEstimator = new ConnectionEstimator();
+		this.inputLatency = new LatencyHistogram();
+
+		this.frameBufferUpdater = new FramebufferUpdater(this, new ChannelOutputStream());
+		this.frameBufferUpdater.setScreenClip(config.getScreenClip());
+		this.frameBufferUpdater.setPreferredEncodings(config.getPreferredEncodings());
+		this.frameBufferUpdater.setMaxRectangleSize(config.getMaxRectangleSize());
+
+		this.messageHandler = new ClientMessageHandler(this.frameBufferUpdater, new MouseController());
+	}
+
+	@Override
+	public RFBConfig getConfig() {
+
+		return this.config;
+	}
+
+	@Override
+	public ConnectionEstimator getConnectionEstimator() {
+
+		return this.connectionEstimator;
+	}
+
+	@Override
+	public LatencyHistogram getInputLatency() {
+
+		return this.inputLatency;
+	}
+
+	@Override
+	public long getPendingOutput() {
+
+		return this.pendingOutput.get();
+	}
+
+	/**
+	 * Check if session is running.
+	 *
+	 * @return	true until connection with VNC client is closed
+	 */
+	public boolean isRunning() {
+
+		return this.running;
+	}
+
+	/**
+	 * Register socket channel with selector of event loop, and send protocol version to VNC client.
+	 * Invoked by event loop thread.
+	 *
+	 * @param selector	-	selector of event loop
+	 *
+	 * @throws IOException	if channel can not be registered
+	 */
+	void start(final Selector selector) throws IOException {
+
+		this.running = true;
+
+		this.channel.configureBlocking(false);
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+
+		//
+		// RFB protocol starts by sending version string
+		//  and waiting for VNC client to reply with its version string.
+		//
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ProtocolVersion.sendProtocolVersion(out);
+		send(out);
+	}
+
+	/**
+	 * Read available data, and handle each complete message. Invoked by event loop thread.
+	 *
+	 * @throws IOException	if connection breaks, or VNC client sends bad message
+	 * @throws InterruptedException	if interrupted while frame buffer update request is queued
+	 */
+	void read() throws IOException, InterruptedException {
+
+		if (this.input.hasRemaining() == false) {
+
+			// Message is longer than buffer.
+			final ByteBuffer newInput = ByteBuffer.allocate(this.input.capacity() * 2);
+			this.input.flip();
+			newInput.put(this.input);
+
+			this.input = newInput;
+		}
+
+		if (this.channel.read(this.input) < 0) {
+
+			terminate();
+
+			return;
+		}
+
+		this.input.flip();
+
+		while (this.running == true) {
+
+			final int length = messageLength();
+
+			if (length < 0 || this.input.remaining() < length) {
+
+				break;
+			}
+
+			final InputStream in = new ByteArrayInputStream(this.input.array(), this.input.position(), length);
+
+			this.input.position(this.input.position() + length);
+
+			handle(in);
+		}
+
+		this.input.compact();
+	}
+
+	/**
+	 * Write pending data, as much as socket channel accepts. Invoked by event loop thread.
+	 *
+	 * @throws IOException	if connection breaks
+	 */
+	void write() throws IOException {
+
+		if (this.key == null || this.key.isValid() == false) {
+
+			return;
+		}
+
+		ByteBuffer buffer;
+
+		while ((buffer = this.output.peek()) != null) {
+
+			this.pendingOutput.addAndGet(-this.channel.write(buffer));
+
+			if (buffer.hasRemaining() == true) {
+
+				// Socket send buffer is full, continue when channel is writable again.
+				this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+				return;
+			}
+
+			this.output.poll();
+		}
+
+		this.key.interestOps(SelectionKey.OP_READ);
+
+		if (this.closeAfterWrite == true) {
+
+			terminate();
+		}
+	}
+
+	/**
+	 * Length of message expected in current state.
+	 *
+	 * @return	length in bytes, or -1 if length is not known yet
+	 *
+	 * @throws IOException	if VNC client sends unknown message
+	 */
+	private int messageLength() throws IOException {
+
+		switch (this.state) {
+
+		case STATE_PROTOCOL_VERSION:
+
+			return 12;
+
+		case STATE_SECURITY_TYPE:
+
+			return 1;
+
+		case STATE_VNC_AUTH:
+
+			return 16;
+
+		case STATE_CLIENT_INIT:
+
+			return 1;
+
+		default:
+
+			return ClientMessageHandler.messageLength(this.input.array(), this.input.position(), this.input.remaining());
+		}
+	}
+
+	/**
+	 * Handle complete message, according to state of session.
+	 */
+	private void handle(final InputStream in) throws IOException, InterruptedException {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		switch (this.state) {
+
+		case STATE_PROTOCOL_VERSION:
+
+			final ProtocolVersion ver = ProtocolVersion.readProtocolVersion(in);
+			log.info("RFB protocol: " + ver);
+
+			//
+			// Send supported security types.
+			//
+
+			SecurityTypes.send(out, new byte[] {getSecurityType()});
+
+			this.state = STATE_SECURITY_TYPE;
+			break;
+
+		case STATE_SECURITY_TYPE:
+
+			final SecurityTypes sec = SecurityTypes.read(in);
+
+			if (sec.securityType != getSecurityType()) {
+
+				SecurityTypes.sendSecurityResult(out, "Unsupported security type.");
+
+				this.closeAfterWrite = true;
+			}
+			else if (sec.securityType == SecurityTypes.VNC_AUTH) {
+
+				// Send challenge data if VNC auth. is used.
+				this.vncAuth = new VNCAuth(this.config.getPassword());
+				this.vncAuth.sendChallenge(out);
+
+				this.state = STATE_VNC_AUTH;
+			}
+			else {
+
+				SecurityTypes.sendSecurityResult(out, null);
+
+				this.state = STATE_CLIENT_INIT;
+			}
+			break;
+
+		case STATE_VNC_AUTH:
+
+			this.vncAuth.readChallenge(in);
+
+			if (this.vncAuth.isValid() == false) {
+
+				// Wrong password received from VNC client!
+				SecurityTypes.sendSecurityResult(out, "Wrong password.");
+
+				this.closeAfterWrite = true;
+			}
+			else {
+
+				SecurityTypes.sendSecurityResult(out, null);
+
+				this.state = STATE_CLIENT_INIT;
+			}
+			break;
+
+		case STATE_CLIENT_INIT:
+
+			final ClientInit clientInit = ClientInit.readClientInit(in);
+
+			if (clientInit.sharedDesktop == false) {
+
+				log.info("Client requested exclusive access to desktop. We won't kick other VNC clients for now.");
+			}
+
+			ServerInit.send(out, (short) this.config.getScreenClip().width, (short) this.config.getScreenClip().height);
+
+			// Frame buffer updates are prepared by shared scheduler.
+			this.frameBufferUpdater.start(this.scheduler);
+
+			this.state = STATE_MESSAGES;
+			break;
+
+		default:
+
+			this.messageHandler.handle(in.read(), in);
+		}
+
+		send(out);
+	}
+
+	/**
+	 * Security type offered to VNC client.
+	 */
+	private byte getSecurityType() {
+
+		return (byte) ((this.config.getPassword() == null) ? SecurityTypes.NONE : SecurityTypes.VNC_AUTH);
+	}
+
+	/**
+	 * Queue data for writing, and ask event loop to write it.
+	 */
+	private void send(final ByteArrayOutputStream out) {
+
+		if (out.size() > 0) {
+
+			send(out.toByteArray());
+		}
+		else if (this.closeAfterWrite == true) {
+
+			this.eventLoop.requestWrite(this);
+		}
+	}
+
+	private void send(final byte[] data) {
+
+		this.pendingOutput.addAndGet(data.length);
+		this.output.add(ByteBuffer.wrap(data));
+
+		this.eventLoop.requestWrite(this);
+	}
+
+	@Override
+	public void terminate() {
+
+		if (this.running == true) {
+
+			log.info(String.format("Client connection '%s' closed.", this));
+		}
+
+		this.running = false;
+
+		this.frameBufferUpdater.terminate();
+
+		try {
+
+			this.channel.close();
+		}
+		catch (final IOException exception) {
+
+			log.error("Client session termination failure.", exception);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		try {
+
+			return String.format("%s-[%s]", NioClientSession.class.getSimpleName(), this.channel.getRemoteAddress());
+		}
+		catch (final IOException exception) {
+
+			return NioClientSession.class.getSimpleName();
+		}
+	}
+
+	/**
+	 * Output stream of frame buffer updater. Data is collected until {@link #flush()},
+	 * and then it is queued for event loop, so updater never blocks on socket.
+	 * Updater defers next update while queued data is not written, see {@link #getPendingOutput()}.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+
+		private EncodeBuffer buffer = new EncodeBuffer(INPUT_BUFFER_SIZE);
+
+		@Override
+		public void write(final int b) {
+
+			this.buffer.ensureRemaining(1).put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+
+			this.buffer.put(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+
+			if (this.buffer.length() == 0) {
+
+				return;
+			}
+
+			send(this.buffer.toByteArray());
+
+			if (this.buffer.capacity() > MAX_KEPT_OUTPUT_BUFFER) {
+
+				this.buffer = new EncodeBuffer(INPUT_BUFFER_SIZE);
+			}
+			else {
+
+				this.buffer.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.scoreunit.rfb.service;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event loop, which reads and writes non-blocking socket channels of many VNC clients,
+ * with single thread and {@link Selector}.
+ * <p>
+ * Sessions are registered with {@link #register(NioClientSession)}. Other threads,
+ * eg. frame buffer updaters, ask for data to be written with {@link #requestWrite(NioClientSession)}.
+ * Selection keys are changed only by event loop thread.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class NioEventLoop implements Runnable {
+
+	public final static Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+	private final String name;
+
+	private final Selector selector;
+
+	/**
+	 * Sessions waiting to be registered with {@link #selector}.
+	 */
+	private final Queue<NioClientSession> pendingRegistrations;
+
+	/**
+	 * Sessions which have data to write, queued by other threads.
+	 */
+	private final Queue<NioClientSession> pendingWrites;
+
+	private volatile boolean running;
+
+	private Thread thread;
+
+	/**
+	 * Create new event loop.
+	 *
+	 * @param name	-	name of event loop thread
+	 *
+	 * @throws IOException	if selector can not be opened
+	 */
+	public NioEventLoop(final String name) throws IOException {
+
+		this.name = name;
+
+		this.selector = Selector.open();
+
+		this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+		this.pendingWrites = new ConcurrentLinkedQueue<>();
+
+		this.running = false;
+	}
+
+	/**
+	 * Start event loop thread.
+	 */
+	public void start() {
+
+		this.running = true;
+
+		this.thread = new Thread(this, this.name);
+		this.thread.start();
+	}
+
+	/**
+	 * Stop event loop thread. All sessions of this event loop are terminated.
+	 */
+	public void terminate() {
+
+		this.running = false;
+
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Register session, its channel will be read and written by this event loop.
+	 *
+	 * @param session	-	new session
+	 */
+	public void register(final NioClientSession session) {
+
+		this.pendingRegistrations.add(session);
+
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Ask event loop to write pending data of session. Data is written immediately,
+	 * if this method is invoked by event loop thread.
+	 *
+	 * @param session	-	session with pending data
+	 */
+	public void requestWrite(final NioClientSession session) {
+
+		if (Thread.currentThread() == this.thread) {
+
+			write(session);
+		}
+		else {
+
+			this.pendingWrites.add(session);
+
+			this.selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+
+		try {
+
+			while (this.running == true) {
+
+				this.selector.select();
+
+				NioClientSession session;
+
+				while ((session = this.pendingRegistrations.poll()) != null) {
+
+					try {
+
+						session.start(this.selector);
+					}
+					catch (final IOException exception) {
+
+						log.error("Unable to register VNC client session.", exception);
+
+						session.terminate();
+					}
+				}
+
+				while ((session = this.pendingWrites.poll()) != null) {
+
+					write(session);
+				}
+
+				final Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+
+				while (iterator.hasNext()) {
+
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+
+					session = (NioClientSession) key.attachment();
+
+					try {
+
+						if (key.isValid() == true && key.isReadable() == true) {
+
+							session.read();
+						}
+
+						if (key.isValid() == true && key.isWritable() == true) {
+
+							session.write();
+						}
+					}
+					catch (final Exception exception) {
+
+						// Connection is broken, or VNC client sent bad message.
+						log.error(String.format("Client session '%s' failure.", session), exception);
+
+						session.terminate();
+					}
+				}
+			}
+		}
+		catch (final IOException exception) {
+
+			log.error("Event loop failure.", exception);
+		}
+
+		for (final SelectionKey key : this.selector.keys()) {
+
+			((NioClientSession) key.attachment()).terminate();
+		}
+
+		NioClientSession session;
+
+		while ((session = this.pendingRegistrations.poll()) != null) {
+
+			session.terminate();
+		}
+
+		try {
+
+			this.selector.close();
+		}
+		catch (final IOException exception) {
+
+			log.error("Unable to close selector.", exception);
+		}
+
+		this.running = false;
+	}
+
+	private void write(final NioClientSession session) {
+
+		try {
+
+			session.write();
+		}
+		catch (final Exception exception) {
+
+			log.error(String.format("Client session '%s' failure.", session), exception);
+
+			session.terminate();
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return this.name;
+	}
+}
@@ -0,0 +1,179 @@
+package com.scoreunit.rfb.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking transport of RFB service. VNC clients are served by few threads,
+ * instead of thread per client:
+ * <ul>
+ *  <li>accepting thread, which is thread of {@link RFBService},</li>
+ *  <li>small group of event loops, see {@link NioEventLoop}, which read and write socket channels,</li>
+ *  <li>scheduler, which prepares frame buffer updates of all sessions,</li>
+ *  <li>encoding scheduler of RFB service, see {@link EncodingScheduler}, which encodes rectangles of all sessions.</li>
+ * </ul>
+ * Each VNC client session is {@link NioClientSession}. New sessions are given to event loops in round-robin order.
+ * <p>
+ * SSL layer is not supported by this transport.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class NioTransport {
+
+	public final static Logger log = LoggerFactory.getLogger(NioTransport.class);
+
+	/**
+	 * Default number of event loop threads.
+	 */
+	public final static int DEFAULT_EVENT_LOOPS = 2;
+
+	private final RFBConfig config;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final NioEventLoop[] eventLoops;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final List<NioClientSession> sessions;
+
+	private int nextEventLoop;
+
+	private volatile boolean running;
+
+	/**
+	 * Bind to TCP port, and start event loops.
+	 *
+	 * @param port		-	TCP port on which to listen
+	 * @param config	-	configuration of RFB service
+	 *
+	 * @throws IOException	if TCP port can not be opened
+	 */
+	public NioTransport(final int port, final RFBConfig config) throws IOException {
+
+		this.config = config;
+
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.bind(new InetSocketAddress(port));
+
+		final int threads = Runtime.getRuntime().availableProcessors();
+
+		this.scheduler = Executors.newScheduledThreadPool(threads, threadFactory("RFBService-updater"));
+
+		this.eventLoops = new NioEventLoop[config.getNioEventLoops()];
+
+		for (int i = 0 ; i < this.eventLoops.length ; i++) {
+
+			this.eventLoops[i] = new NioEventLoop(String.format("%s-[:%d]-%d", NioEventLoop.class.getSimpleName(), getPort(), i));
+			this.eventLoops[i].start();
+		}
+
+		this.sessions = new CopyOnWriteArrayList<>();
+		this.nextEventLoop = 0;
+
+		this.running = true;
+	}
+
+	/**
+	 * @return	TCP port on which transport listens
+	 */
+	public int getPort() {
+
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Accept VNC client connections, until transport is terminated.
+	 * This method blocks, it is invoked by thread of {@link RFBService}.
+	 */
+	public void run() {
+
+		while (this.running == true) {
+
+			try {
+
+				final SocketChannel channel = this.serverChannel.accept();
+
+				final NioEventLoop eventLoop = this.eventLoops[this.nextEventLoop];
+				this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+
+				final NioClientSession session = new NioClientSession(channel, eventLoop, this.config
+						, this.scheduler);
+
+				// Forget sessions which are closed.
+				this.sessions.removeIf(s -> s.isRunning() == false);
+				this.sessions.add(session);
+
+				eventLoop.register(session);
+			}
+			catch (final IOException exception) {
+
+				if (this.running == true) {
+
+					log.error("Problem occured while waiting for client connection.", exception);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting connections, and terminate all sessions.
+	 */
+	public void terminate() {
+
+		this.running = false;
+
+		try {
+
+			this.serverChannel.close();
+		}
+		catch (final IOException exception) {
+
+			log.error("Unable to close server socket channel.", exception);
+		}
+
+		for (final NioEventLoop eventLoop : this.eventLoops) {
+
+			eventLoop.terminate();
+		}
+
+		for (final NioClientSession session : this.sessions) {
+
+			session.terminate();
+		}
+
+		this.sessions.clear();
+
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Get list of sessions. Note that this list might contain sessions that were disconnected as well.
+	 *
+	 * @return	list of {@link NioClientSession} instances
+	 */
+	public List<NioClientSession> getSessions() {
+
+		return new ArrayList<>(this.sessions);
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		return runnable -> new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+	}
+}
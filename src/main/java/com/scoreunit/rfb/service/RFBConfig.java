@@ -1,10 +1,19 @@
 package com.scoreunit.rfb.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 
+import com.scoreunit.rfb.encoding.EncodedRectCache;
 import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.screen.RectangleMerger;
 import com.scoreunit.rfb.screen.ScreenClip;
+import com.scoreunit.rfb.screen.SharedFrameStore;
+import com.scoreunit.rfb.screen.SharedScreenCapture;
 import com.scoreunit.rfb.ssl.SSLUtil;
 
 /**
@@ -46,6 +55,76 @@ class RFBConfig {
 	 */
 	private SSLServerSocketFactory sslServerSocketFactory;
 	
+	/**
+	 * Max. width and height of rectangle in frame buffer update message.
+	 */
+	private int maxRectangleSize = RectangleMerger.DEFAULT_MAX_RECTANGLE_SIZE;
+	
+	/**
+	 * Screen capture service, shared by all VNC client sessions.
+	 * Each frame buffer updater will take screen image from this service
+	 * instead of capturing screen on its own.
+	 */
+	private SharedScreenCapture sharedScreenCapture;
+	
+	/**
+	 * If set, VNC clients are served by non-blocking socket channels, see {@link NioTransport},
+	 * instead of thread per client.
+	 */
+	private boolean nioTransport = false;
+	
+	/**
+	 * Number of event loop threads, which read and write non-blocking socket channels.
+	 */
+	private int nioEventLoops = NioTransport.DEFAULT_EVENT_LOOPS;
+	
+	/**
+	 * If set, client handlers, frame buffer updaters and encoding tasks run in virtual threads,
+	 * if JVM supports them, see {@link VirtualThreads}.
+	 */
+	private boolean virtualThreads = false;
+	
+	/**
+	 * Number of worker threads of {@link EncodingScheduler}.
+	 */
+	private int encodingThreads = EncodingScheduler.DEFAULT_THREADS;
+	
+	/**
+	 * Encoding scheduler, shared by all VNC client sessions.
+	 */
+	private EncodingScheduler encodingScheduler;
+	
+	/**
+	 * Frame rate after screen change, and max. frame rate while screen changes, see {@link FrameScheduler}.
+	 */
+	private int targetFrameRate = FrameScheduler.DEFAULT_TARGET_FRAME_RATE
+			, maxFrameRate = FrameScheduler.DEFAULT_MAX_FRAME_RATE;
+	
+	/**
+	 * Capacity of cache of encoded rectangles in bytes, 0 if cache is disabled.
+	 */
+	private long encodedRectCacheSize = EncodedRectCache.DEFAULT_CAPACITY;
+	
+	/**
+	 * Cache of encoded rectangles, shared by all VNC client sessions.
+	 */
+	private EncodedRectCache encodedRectCache;
+	
+	/**
+	 * If set, sessions with same pixel format and encoding are grouped, and each update is encoded once per group.
+	 */
+	private boolean broadcast = false;
+	
+	/**
+	 * Groups of sessions in broadcast mode, by their settings.
+	 */
+	private final Map<BroadcastGroup.Key, BroadcastGroup> broadcastGroups = new HashMap<>();
+	
+	/**
+	 * Last image of screen, with changed tiles of each session, by screen clip. Key might be null value for full screen.
+	 */
+	private final Map<ScreenClip, SharedFrameStore> frameStores = new HashMap<>();
+	
 	/**
 	 * If set, a password that VNC client must provide for authentication.
 	 * 
@@ -137,4 +216,359 @@ class RFBConfig {
 		
 		return this.sslServerSocketFactory;
 	}
+
+	/**
+	 * Max. width and height of rectangle in frame buffer update message.
+	 * Changed tiles of screen image are joined into rectangles up to this size.
+	 * 
+	 * @return	size in pixel
+	 */
+	public int getMaxRectangleSize() {
+		
+		return this.maxRectangleSize;
+	}
+	
+	/**
+	 * Max. width and height of rectangle in frame buffer update message.
+	 * Changed tiles of screen image are joined into rectangles up to this size.
+	 * 
+	 * @param maxRectangleSize	-	size in pixel
+	 */
+	public void setMaxRectangleSize(final int maxRectangleSize) {
+		
+		this.maxRectangleSize = maxRectangleSize;
+	}
+	
+	/**
+	 * Screen capture service, shared by all VNC client sessions.
+	 * <p>
+	 * Instance is created on first invocation of this method. Screen is captured
+	 * at most once per frame, at max. frame rate, see {@link #getMaxFrameRate()}.
+	 * 
+	 * @return	instance of {@link SharedScreenCapture}
+	 */
+	public synchronized SharedScreenCapture getSharedScreenCapture() {
+		
+		if (this.sharedScreenCapture == null) {
+			
+			this.sharedScreenCapture = new SharedScreenCapture();
+			this.sharedScreenCapture.setInterval(Math.min(SharedScreenCapture.DEFAULT_INTERVAL, 1000 / this.maxFrameRate));
+		}
+		
+		return this.sharedScreenCapture;
+	}
+	
+	/**
+	 * Set screen capture service, shared by all VNC client sessions.
+	 * 
+	 * @param sharedScreenCapture	-	instance of {@link SharedScreenCapture}, or null value to create default instance on demand
+	 */
+	public synchronized void setSharedScreenCapture(final SharedScreenCapture sharedScreenCapture) {
+		
+		this.sharedScreenCapture = sharedScreenCapture;
+	}
+	
+	/**
+	 * Check if VNC clients are served by non-blocking socket channels.
+	 * 
+	 * @return	true if {@link NioTransport} is used
+	 */
+	public boolean isNioTransport() {
+		
+		return this.nioTransport;
+	}
+	
+	/**
+	 * Serve VNC clients by non-blocking socket channels, with few event loop threads,
+	 * instead of thread per client.
+	 * 
+	 * @param nioTransport	-	true to use {@link NioTransport}
+	 */
+	public void setNioTransport(final boolean nioTransport) {
+		
+		this.nioTransport = nioTransport;
+	}
+	
+	/**
+	 * Number of event loop threads, which read and write non-blocking socket channels.
+	 * 
+	 * @return	number of threads
+	 */
+	public int getNioEventLoops() {
+		
+		return this.nioEventLoops;
+	}
+	
+	/**
+	 * Number of event loop threads, which read and write non-blocking socket channels.
+	 * 
+	 * @param nioEventLoops	-	number of threads, at least 1
+	 */
+	public void setNioEventLoops(final int nioEventLoops) {
+		
+		this.nioEventLoops = Math.max(1, nioEventLoops);
+	}
+	
+	/**
+	 * Check if virtual threads are requested for VNC client sessions.
+	 * 
+	 * @return	true if virtual threads are used, when supported by JVM
+	 */
+	public boolean isVirtualThreads() {
+		
+		return this.virtualThreads;
+	}
+	
+	/**
+	 * Run client handlers, frame buffer updaters and encoding tasks in virtual threads.
+	 * If JVM does not support virtual threads, platform threads are used.
+	 * 
+	 * @param virtualThreads	-	true to use virtual threads
+	 */
+	public void setVirtualThreads(final boolean virtualThreads) {
+		
+		this.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * Number of worker threads of encoding scheduler, shared by all VNC client sessions.
+	 * 
+	 * @return	number of threads
+	 */
+	public int getEncodingThreads() {
+		
+		return this.encodingThreads;
+	}
+	
+	/**
+	 * Number of worker threads of encoding scheduler, shared by all VNC client sessions.
+	 * Set value before scheduler is created, see {@link #getEncodingScheduler()}.
+	 * 
+	 * @param encodingThreads	-	number of threads, at least 1
+	 */
+	public void setEncodingThreads(final int encodingThreads) {
+		
+		this.encodingThreads = Math.max(1, encodingThreads);
+	}
+	
+	/**
+	 * Frame rate of screen updates, after screen changes.
+	 * 
+	 * @return	frames per second
+	 */
+	public int getTargetFrameRate() {
+		
+		return this.targetFrameRate;
+	}
+	
+	/**
+	 * Frame rate of screen updates, after screen changes. Idle screen is captured less often.
+	 * 
+	 * @param targetFrameRate	-	frames per second, at least 1
+	 */
+	public void setTargetFrameRate(final int targetFrameRate) {
+		
+		this.targetFrameRate = Math.max(1, targetFrameRate);
+	}
+	
+	/**
+	 * Max. frame rate of screen updates, while screen changes, or after input from VNC client.
+	 * 
+	 * @return	frames per second
+	 */
+	public int getMaxFrameRate() {
+		
+		return this.maxFrameRate;
+	}
+	
+	/**
+	 * Max. frame rate of screen updates, while screen changes, or after input from VNC client.
+	 * Set value before shared screen capture is created, see {@link #getSharedScreenCapture()}.
+	 * 
+	 * @param maxFrameRate	-	frames per second, at least 1
+	 */
+	public void setMaxFrameRate(final int maxFrameRate) {
+		
+		this.maxFrameRate = Math.max(1, maxFrameRate);
+	}
+	
+	/**
+	 * Capacity of cache of encoded rectangles, shared by all VNC client sessions.
+	 * 
+	 * @return	size in bytes, 0 if cache is disabled
+	 */
+	public long getEncodedRectCacheSize() {
+		
+		return this.encodedRectCacheSize;
+	}
+	
+	/**
+	 * Capacity of cache of encoded rectangles, shared by all VNC client sessions.
+	 * Set value before cache is created, see {@link #getEncodedRectCache()}.
+	 * 
+	 * @param encodedRectCacheSize	-	size in bytes, 0 to disable cache
+	 */
+	public void setEncodedRectCacheSize(final long encodedRectCacheSize) {
+		
+		this.encodedRectCacheSize = Math.max(0, encodedRectCacheSize);
+	}
+	
+	/**
+	 * Cache of encoded rectangles, shared by all VNC client sessions.
+	 * <p>
+	 * Instance is created on first invocation of this method.
+	 * 
+	 * @return	instance of {@link EncodedRectCache}, or null value if cache is disabled
+	 */
+	public synchronized EncodedRectCache getEncodedRectCache() {
+		
+		if (this.encodedRectCache == null && this.encodedRectCacheSize > 0) {
+			
+			this.encodedRectCache = new EncodedRectCache(this.encodedRectCacheSize);
+		}
+		
+		return this.encodedRectCache;
+	}
+	
+	/**
+	 * Check if sessions are grouped in broadcast mode, see {@link BroadcastGroup}.
+	 * 
+	 * @return	true if each update is encoded once for group of sessions with same settings
+	 */
+	public boolean isBroadcast() {
+		
+		return this.broadcast;
+	}
+	
+	/**
+	 * Group sessions with same pixel format, encoding, compression and quality level, and screen clip.
+	 * Each update is encoded once per group, and same message is sent to all members of group.
+	 * 
+	 * @param broadcast	-	true to enable broadcast mode
+	 */
+	public void setBroadcast(final boolean broadcast) {
+		
+		this.broadcast = broadcast;
+	}
+	
+	/**
+	 * Add member of session to group with given settings. Group is created if needed.
+	 * 
+	 * @param key		-	settings of session
+	 * @param member	-	member of session
+	 * 
+	 * @return	group of member
+	 */
+	public BroadcastGroup joinBroadcastGroup(final BroadcastGroup.Key key, final BroadcastGroup.Member member) {
+		
+		// Not synchronized on this instance, since group takes shared encoding services while encoding.
+		synchronized (this.broadcastGroups) {
+			
+			final BroadcastGroup group = this.broadcastGroups.computeIfAbsent(key, BroadcastGroup::new);
+			
+			group.join(member);
+			
+			return group;
+		}
+	}
+	
+	/**
+	 * Remove member of session from its group. Empty group is removed.
+	 * 
+	 * @param group		-	group of member
+	 * @param member	-	member of session
+	 */
+	public void leaveBroadcastGroup(final BroadcastGroup group, final BroadcastGroup.Member member) {
+		
+		synchronized (this.broadcastGroups) {
+			
+			if (group.leave(member) == true) {
+				
+				this.broadcastGroups.remove(group.getKey(), group);
+			}
+		}
+	}
+	
+	/**
+	 * Groups of sessions in broadcast mode.
+	 * 
+	 * @return	copy of list of groups
+	 */
+	public List<BroadcastGroup> getBroadcastGroups() {
+		
+		synchronized (this.broadcastGroups) {
+			
+			return new ArrayList<>(this.broadcastGroups.values());
+		}
+	}
+	
+	/**
+	 * Add subscriber of session to frame store of given screen clip. Store is created if needed.
+	 * 
+	 * @param clip			-	screen clip of session, or null value for full screen
+	 * @param subscriber	-	subscriber of session
+	 * 
+	 * @return	frame store of subscriber
+	 */
+	public synchronized SharedFrameStore joinFrameStore(final ScreenClip clip, final SharedFrameStore.Subscriber subscriber) {
+		
+		final SharedFrameStore store = this.frameStores.computeIfAbsent(clip, SharedFrameStore::new);
+		
+		store.subscribe(subscriber);
+		
+		return store;
+	}
+	
+	/**
+	 * Remove subscriber of session from its frame store. Store without subscribers is removed, with its image.
+	 * 
+	 * @param store			-	frame store of subscriber
+	 * @param subscriber	-	subscriber of session
+	 */
+	public synchronized void leaveFrameStore(final SharedFrameStore store, final SharedFrameStore.Subscriber subscriber) {
+		
+		if (store.unsubscribe(subscriber) == true) {
+			
+			this.frameStores.remove(store.getClip(), store);
+		}
+	}
+	
+	/**
+	 * Frame stores of sessions.
+	 * 
+	 * @return	copy of list of frame stores
+	 */
+	public synchronized List<SharedFrameStore> getFrameStores() {
+		
+		return new ArrayList<>(this.frameStores.values());
+	}
+	
+	/**
+	 * Encoding scheduler, shared by all VNC client sessions.
+	 * <p>
+	 * Instance is created on first invocation of this method.
+	 * 
+	 * @return	instance of {@link EncodingScheduler}
+	 */
+	public synchronized EncodingScheduler getEncodingScheduler() {
+		
+		if (this.encodingScheduler == null || this.encodingScheduler.isRunning() == false) {
+			
+			this.encodingScheduler = new EncodingScheduler("RFBService-encoder", this.encodingThreads, this.virtualThreads);
+		}
+		
+		return this.encodingScheduler;
+	}
+	
+	/**
+	 * Shut down encoding scheduler, if created. New instance is created on demand.
+	 */
+	public synchronized void shutdownEncodingScheduler() {
+		
+		if (this.encodingScheduler != null) {
+			
+			this.encodingScheduler.shutdown();
+			this.encodingScheduler = null;
+		}
+	}
 }
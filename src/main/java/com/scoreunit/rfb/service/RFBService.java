@@ -15,7 +15,9 @@ import javax.net.ssl.SSLServerSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.scoreunit.rfb.encoding.EncodedRectCache;
 import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.screen.RectangleMerger;
 import com.scoreunit.rfb.screen.ScreenClip;
 import com.scoreunit.rfb.ssl.SSLUtil;
 
@@ -52,6 +54,11 @@ public class RFBService implements Runnable {
 	
 	private RFBConfig rfbConfig;
 	
+	/**
+	 * Non-blocking transport, if enabled with {@link #setNioTransport(boolean)}.
+	 */
+	private NioTransport nioTransport = null;
+	
 	/**
 	 * Create default instance, with TCP port set to {@link #DEFAULT_PORT} value.
 	 */
@@ -125,6 +132,19 @@ public class RFBService implements Runnable {
 		this.rfbConfig.setPreferredEncodings(encodings);
 	}
 	
+	/**
+	 * Set max. width and height of rectangle in frame buffer update message.
+	 * <p>
+	 * Changed parts of screen are joined into rectangles up to this size. Larger rectangles
+	 * mean less overhead and better compression, smaller rectangles allow more parallel encoding.
+	 * 
+	 * @param maxRectangleSize	-	size in pixel, default is {@link RectangleMerger#DEFAULT_MAX_RECTANGLE_SIZE}
+	 */
+	public void setMaxRectangleSize(final int maxRectangleSize) {
+		
+		this.rfbConfig.setMaxRectangleSize(maxRectangleSize);
+	}
+	
 	/**
 	 * Enable SSL communication from provided <i>*.pfx</i> or <i>*.p12</i> file.
 	 * <p>
@@ -183,6 +203,135 @@ public class RFBService implements Runnable {
 		return this.rfbConfig.getSSLServerSocketFactory() != null;
 	}
 	
+	/**
+	 * Serve VNC clients by non-blocking socket channels, with few event loop threads,
+	 * instead of two threads per client. This is useful when many VNC clients, eg. view-only clients,
+	 * are connected at the same time.
+	 * <p>
+	 * Note that SSL layer is not supported by non-blocking transport. If SSL is enabled,
+	 * blocking sockets are used.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param enabled		-	true to use non-blocking transport
+	 */
+	public void setNioTransport(final boolean enabled) {
+		
+		this.rfbConfig.setNioTransport(enabled);
+	}
+	
+	/**
+	 * Set number of event loop threads, used by non-blocking transport.
+	 * 
+	 * @param eventLoops	-	number of threads, default is {@link NioTransport#DEFAULT_EVENT_LOOPS}
+	 */
+	public void setNioEventLoops(final int eventLoops) {
+		
+		this.rfbConfig.setNioEventLoops(eventLoops);
+	}
+	
+	/**
+	 * Run each VNC client session in virtual threads, instead of platform threads:
+	 * client handler, frame buffer updater, and rectangle encoding tasks.
+	 * This is useful when many, mostly idle, VNC clients are connected at the same time.
+	 * <p>
+	 * Virtual threads require Java 21 or newer. With older JVM, platform threads are used.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param enabled		-	true to use virtual threads, if supported by JVM
+	 */
+	public void setVirtualThreads(final boolean enabled) {
+		
+		if (enabled == true && VirtualThreads.isSupported() == false) {
+			
+			log.warn("Virtual threads are not supported by this JVM. Platform threads are used.");
+		}
+		
+		this.rfbConfig.setVirtualThreads(enabled);
+	}
+	
+	/**
+	 * Set number of threads which encode rectangles, shared by all VNC clients.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param threads	-	number of threads, default is one per CPU core, see {@link EncodingScheduler#DEFAULT_THREADS}
+	 */
+	public void setEncodingThreads(final int threads) {
+		
+		this.rfbConfig.setEncodingThreads(threads);
+	}
+	
+	/**
+	 * Set frame rate of screen updates, after screen changes. Idle screen is captured less often, see {@link FrameScheduler}.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param frameRate	-	frames per second, default is {@link FrameScheduler#DEFAULT_TARGET_FRAME_RATE}
+	 */
+	public void setTargetFrameRate(final int frameRate) {
+		
+		this.rfbConfig.setTargetFrameRate(frameRate);
+	}
+	
+	/**
+	 * Set max. frame rate of screen updates, while screen changes, or after input from VNC client.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param frameRate	-	frames per second, default is {@link FrameScheduler#DEFAULT_MAX_FRAME_RATE}
+	 */
+	public void setMaxFrameRate(final int frameRate) {
+		
+		this.rfbConfig.setMaxFrameRate(frameRate);
+	}
+	
+	/**
+	 * Set capacity of cache of encoded rectangles, shared by all VNC clients. When several VNC clients
+	 * watch same screen, with same pixel format and encoding, each changed rectangle is encoded once.
+	 * <p>
+	 * Note that this method should be invoked before {@link #start()} method, to take effect.
+	 * 
+	 * @param size	-	size in bytes, default is {@link EncodedRectCache#DEFAULT_CAPACITY}, 0 to disable cache
+	 */
+	public void setEncodedRectCacheSize(final long size) {
+		
+		this.rfbConfig.setEncodedRectCacheSize(size);
+	}
+	
+	/**
+	 * Enable broadcast mode, eg. for presentation to many view-only VNC clients. VNC clients with same pixel format,
+	 * encoding, compression and quality level are grouped, and each update is encoded once per group, see {@link BroadcastGroup}.
+	 * Broadcast mode applies to stateless encodings, eg. Raw and Hextile, VNC clients with other encodings are served as usual.
+	 * 
+	 * @param enabled	-	true to enable broadcast mode, default is false
+	 */
+	public void setBroadcast(final boolean enabled) {
+		
+		this.rfbConfig.setBroadcast(enabled);
+	}
+	
+	/**
+	 * Cache of encoded rectangles, shared by all VNC clients. Use it to read hit rate, eg. {@link EncodedRectCache#getHits()}.
+	 * 
+	 * @return	instance of {@link EncodedRectCache}, or null value if cache is disabled
+	 */
+	public EncodedRectCache getEncodedRectCache() {
+		
+		return this.rfbConfig.getEncodedRectCache();
+	}
+	
+	/**
+	 * Encoding scheduler, shared by all VNC clients. Use it to read gauges, eg. {@link EncodingScheduler#getQueueDepth()}.
+	 * 
+	 * @return	instance of {@link EncodingScheduler}
+	 */
+	public EncodingScheduler getEncodingScheduler() {
+		
+		return this.rfbConfig.getEncodingScheduler();
+	}
+	
 	/**
 	 * Check if it's running.
 	 * 
@@ -211,7 +360,16 @@ public class RFBService implements Runnable {
 		
 			this.running = false;
 			
-			this.socket.close(); // Do not accept new connections.
+			if (this.nioTransport != null) {
+				
+				this.nioTransport.terminate();
+				this.nioTransport = null;
+			}
+			
+			if (this.socket != null) {
+				
+				this.socket.close(); // Do not accept new connections.
+			}
 			
 			for (final ClientHandler handler : this.clientHandlers) {
 				
@@ -219,6 +377,8 @@ public class RFBService implements Runnable {
 			}
 			
 			this.clientHandlers.clear();
+			
+			this.rfbConfig.shutdownEncodingScheduler();
 		} catch (final IOException exception) {
 
 			log.error("Unable to terminate RFB service socket.", exception);
@@ -264,8 +424,9 @@ public class RFBService implements Runnable {
 		final Socket socket = new Socket(hostname, port);
 		final ClientHandler clientHandler = new ClientHandler(socket, this.rfbConfig);
 		
-		final Thread clientThread = new Thread(clientHandler
-				, String.format("%s-[%s:%d]", ClientHandler.class.getSimpleName(), hostname, port));
+		final Thread clientThread = VirtualThreads.newThread(clientHandler
+				, String.format("%s-[%s:%d]", ClientHandler.class.getSimpleName(), hostname, port)
+				, this.rfbConfig.isVirtualThreads());
 		clientThread.start();
 	}
 	
@@ -293,6 +454,18 @@ public class RFBService implements Runnable {
 
 	public void run() {
 		
+		if (this.rfbConfig.isNioTransport() == true) {
+			
+			if (this.rfbConfig.getSSLServerSocketFactory() == null) {
+				
+				runNioTransport();
+				
+				return;
+			}
+			
+			log.warn("SSL is not supported by non-blocking transport. Blocking sockets are used.");
+		}
+		
 		//
 		// Prepare server socket, bind to TCP port (eg. 5900).
 		//
@@ -356,7 +529,8 @@ public class RFBService implements Runnable {
 				
 				final ClientHandler handler = new ClientHandler(clientSocket, this.rfbConfig);
 				
-				final Thread clientThread = new Thread(handler, handler.toString());
+				final Thread clientThread = VirtualThreads.newThread(handler, handler.toString()
+						, this.rfbConfig.isVirtualThreads());
 				clientThread.start();
 				
 				this.clientHandlers.add(handler);
@@ -372,6 +546,45 @@ public class RFBService implements Runnable {
 		this.running = false;
 	}
 	
+	/**
+	 * Bind to TCP port, and serve VNC clients with non-blocking transport, until service is terminated.
+	 */
+	private void runNioTransport() {
+		
+		if (this.rfbConfig.getScreenClip() == null) {
+			
+			this.rfbConfig.setScreenClip(new ScreenClip());
+		}
+		
+		final NioTransport transport;
+		
+		try {
+			
+			transport = new NioTransport(this.port, this.rfbConfig);
+			
+			log.info(
+					String.format("RFB service (VNC server) started at TCP port '%d', with non-blocking transport.",
+							transport.getPort())
+					);
+		} catch (final IOException exception) {
+
+			log.error(
+					String.format("Unable to open TCP port '%d'. RFB service terminated."
+							, this.port)
+					, exception
+					);
+			
+			return;
+		}
+		
+		this.nioTransport = transport;
+		this.running = true;
+		
+		transport.run();
+		
+		this.running = false;
+	}
+	
 	@Override
 	public String toString() {
 		
@@ -63,7 +63,7 @@ class SelectEncoder {
 				
 				if (containsEncoding(encoding, clientEncodings) == true) {
 					
-					lastEncoder = Encodings.newInstance((byte) encoding);
+					lastEncoder = newEncoder(encoding);
 					
 					if (lastEncoder == null) {
 						
@@ -80,7 +80,7 @@ class SelectEncoder {
 		// Finally, use client list of supported encoding types.
 		for (int encoding : clientEncodings) {
 
-			lastEncoder = Encodings.newInstance((byte) encoding);
+			lastEncoder = newEncoder(encoding);
 			
 			if (lastEncoder != null) {
 				
@@ -96,6 +96,25 @@ class SelectEncoder {
 		return new RawEncoder();
 	}
 	
+	/**
+	 * Create new encoder for frame buffer.
+	 * <p>
+	 * Pseudo-encodings, like {@link Encodings#RICH_CURSOR}, have negative values and they are not used for frame buffer.
+	 * 
+	 * @param encoding	-	encoding type
+	 * 
+	 * @return	encoder instance, or null if encoding type is not supported
+	 */
+	private static EncodingInterface newEncoder(final int encoding) {
+		
+		if (encoding < 0) {
+			
+			return null;
+		}
+		
+		return Encodings.newInstance(encoding);
+	}
+	
 	/**
 	 * Method will examine if list of encodings contain given encoding type.
 	 * 
@@ -121,4 +140,33 @@ class SelectEncoder {
 		
 		return false;
 	}
+
+	/**
+	 * Find level 0 - 9 in list of encodings, as sent by VNC client with pseudo-encodings,
+	 * eg. {@link Encodings#COMPRESS_LEVEL_0} ... {@link Encodings#COMPRESS_LEVEL_9}.
+	 * <p>
+	 * If there is more than one such pseudo-encoding in list, first one is used.
+	 * 
+	 * @param level0		-	pseudo-encoding for level 0, eg. {@link Encodings#COMPRESS_LEVEL_0} or {@link Encodings#JPEG_QUALITY_LEVEL_0}
+	 * @param encodings		-	encoding list
+	 * 
+	 * @return	level 0 - 9, or -1 if not found in encoding list
+	 */
+	public static int findLevel(final int level0, final int[] encodings) {
+		
+		if (encodings == null) {
+			
+			return -1;
+		}
+		
+		for (int encodingType : encodings) {
+			
+			if (encodingType >= level0 && encodingType <= level0 + 9) {
+				
+				return encodingType - level0;
+			}
+		}
+		
+		return -1;
+	}
 }
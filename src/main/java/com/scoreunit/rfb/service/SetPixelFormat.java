@@ -9,6 +9,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Objects;
 
 /**
  * 'The RFB Protocol' documentation, page 20,
@@ -117,6 +118,41 @@ public class SetPixelFormat {
 		}
 	}
 	
+	@Override
+	public int hashCode() {
+		
+		return Objects.hash(this.bitsPerPixel, this.depth, this.bigEndianFlag, this.trueColorFlag
+				, this.redMax, this.greenMax, this.blueMax
+				, this.redShift, this.greenShift, this.blueShift);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		
+		if (this == obj) {
+			
+			return true;
+		}
+		
+		if (obj == null || getClass() != obj.getClass()) {
+			
+			return false;
+		}
+		
+		final SetPixelFormat other = (SetPixelFormat) obj;
+		
+		return this.bitsPerPixel == other.bitsPerPixel
+				&& this.depth == other.depth
+				&& this.bigEndianFlag == other.bigEndianFlag
+				&& this.trueColorFlag == other.trueColorFlag
+				&& this.redMax == other.redMax
+				&& this.greenMax == other.greenMax
+				&& this.blueMax == other.blueMax
+				&& this.redShift == other.redShift
+				&& this.greenShift == other.greenShift
+				&& this.blueShift == other.blueShift;
+	}
+
 	/**
 	 * An convenience method to write {@link SetPixelFormat} message to {@link OutputStream}.
 	 * 
@@ -0,0 +1,95 @@
+package com.scoreunit.rfb.service;
+
+import java.lang.reflect.Method;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Create threads of VNC client sessions, either platform threads, or virtual threads.
+ * <p>
+ * Virtual threads are available with Java 21 or newer. This project is built for Java 8,
+ * so virtual threads are found at runtime, by reflection. If JVM does not support them,
+ * platform threads are created instead, and VNC clients are served as before.
+ * <p>
+ * Virtual thread is cheap while it waits on socket, which is what most of VNC client
+ * sessions do, eg. view-only clients with rarely changing screen.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class VirtualThreads {
+
+	public final static Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+	/**
+	 * Method <i>Thread.ofVirtual()</i>, or null if JVM does not support virtual threads.
+	 */
+	private final static Method ofVirtual;
+
+	/**
+	 * Methods of <i>Thread.Builder</i> interface.
+	 */
+	private final static Method name, unstarted;
+
+	static {
+
+		Method ofVirtualMethod = null, nameMethod = null, unstartedMethod = null;
+
+		try {
+
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+			nameMethod = builder.getMethod("name", String.class);
+			unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+		}
+		catch (final ReflectiveOperationException exception) {
+
+			// Java 20 or older.
+			ofVirtualMethod = null;
+		}
+
+		ofVirtual = ofVirtualMethod;
+		name = nameMethod;
+		unstarted = unstartedMethod;
+	}
+
+	/**
+	 * Check if JVM supports virtual threads.
+	 *
+	 * @return	true if running on Java 21 or newer
+	 */
+	public static boolean isSupported() {
+
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Create new thread, not started.
+	 *
+	 * @param runnable	-	task of thread
+	 * @param threadName	-	name of thread
+	 * @param virtual	-	true to create virtual thread, if supported by JVM
+	 *
+	 * @return	virtual thread, or platform thread if virtual thread is not requested or not supported
+	 */
+	public static Thread newThread(final Runnable runnable, final String threadName, final boolean virtual) {
+
+		if (virtual == true && isSupported() == true) {
+
+			try {
+
+				final Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+
+				return (Thread) unstarted.invoke(builder, runnable);
+			}
+			catch (final ReflectiveOperationException exception) {
+
+				log.error("Unable to create virtual thread. Platform thread is used.", exception);
+			}
+		}
+
+		return new Thread(runnable, threadName);
+	}
+}
@@ -1,93 +1,282 @@
 package com.scoreunit.rfb.tight;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.Deflater;
+import java.nio.ByteBuffer;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.scoreunit.rfb.encoding.RawEncoder;
-import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+import com.scoreunit.rfb.encoding.EncodeBufferPool;
+import com.scoreunit.rfb.encoding.ZlibStream;
 import com.scoreunit.rfb.service.SetPixelFormat;
 
 /**
- * Basic compression method, with only copy filter.
+ * Basic compression method, with copy, palette and gradient filter.
+ * <p>
+ * Each filter uses its own zlib stream, since statistics of filtered data are different:
+ * <table border=1>
+ *  <tr><th>Stream</th><th>Data</th></tr>
+ *  <tr><td>0</td><td>full color pixels, copy filter</td></tr>
+ *  <tr><td>1</td><td>mono bitmap, palette filter with 2 colors</td></tr>
+ *  <tr><td>2</td><td>color indices, palette filter with 3 - 256 colors</td></tr>
+ *  <tr><td>3</td><td>gradient filter</td></tr>
+ * </table>
+ * Zlib streams live for whole RFB connection, and are never reset.
  * <p>
- * Support for gradient and palette filter are not supported yet.
- * 
+ * Filtered and compressed data are kept in buffers which are reused for each rectangle.
+ *
  * @author igor.delac@gmail.com
  *
  */
 class BasicCompression {
-	
-	public final static Logger log = LoggerFactory.getLogger(BasicCompression.class);
 
-	final private Deflater deflater;
-	
-	final private RawEncoder rawEncoder;
-	
+	/**
+	 * Zlib stream ids.
+	 */
+	final static int STREAM_COPY = 0, STREAM_MONO = 1, STREAM_INDEXED = 2, STREAM_GRADIENT = 3;
+
+	/**
+	 * Filter ids.
+	 */
+	final static int FILTER_COPY = 0, FILTER_PALETTE = 1, FILTER_GRADIENT = 2;
+
+	/**
+	 * Data shorter than this is sent without zlib compression.
+	 */
+	final static int MIN_TO_COMPRESS = 12;
+
+	//
+	// Basic compression, last four bits of compression control byte are according to table:
+	// +--Bits---+--Binary value--+--Description--+
+	// | 5-4 	 |  00 	          | Use stream 0  |
+	// |         |  01 	          | Use stream 1  |
+	// |         |  10            | Use stream 2  |
+	// |         |  11            | Use stream 3  |
+	// | 6 	     |   0            |               |
+	// |         |   1            |read-filter-id |
+	// | 7       |   0            |BasicCompressio|
+	// +---------+----------------+---------------+
+	//
+	private final static int EXPLICIT_FILTER = 0b01000000;
+
+	final private ZlibStream[] streams;
+
+	/**
+	 * Filtered data, before compression.
+	 */
+	final private EncodeBuffer data;
+
+	/**
+	 * Compressed data, which is written after its compact length.
+	 */
+	final private EncodeBuffer compressed;
+
 	public BasicCompression() {
 
-		this.deflater = new Deflater();
-		
-		this.rawEncoder = new RawEncoder();
+		this.streams = new ZlibStream[4];
+
+		for (int i = 0 ; i < this.streams.length ; i++) {
+
+			this.streams[i] = new ZlibStream();
+		}
+
+		this.data = new EncodeBuffer(EncodeBufferPool.INITIAL_CAPACITY);
+		this.compressed = new EncodeBuffer(EncodeBufferPool.INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Encode full color pixels, with copy filter.
+	 *
+	 * @param pixels		-	pixel values, see {@link TightEncoder#writePixel(ByteBuffer, int, SetPixelFormat, boolean)}
+	 * @param pixelFormat	-	pixel format of VNC client
+	 * @param tpixel		-	if set, pixels are sent as 3-byte <i>TPIXEL</i> values
+	 * @param out			-	buffer where to write encoded rectangle
+	 */
+	public void encodeCopy(final int[] pixels, final SetPixelFormat pixelFormat, final boolean tpixel, final EncodeBuffer out) {
+
+		// Copy filter is default, no need to send filter id.
+		out.ensureRemaining(1).put((byte) (STREAM_COPY << 4));
+
+		this.data.clear();
+
+		final ByteBuffer data = this.data.ensureRemaining(pixels.length * (tpixel ? 3 : pixelFormat.bitsPerPixel / 8));
+
+		for (final int pixel : pixels) {
+
+			TightEncoder.writePixel(data, pixel, pixelFormat, tpixel);
+		}
+
+		writeData(out, STREAM_COPY);
 	}
-	
-	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
-		
-		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		
-		// First four bits: stream reset (four streams).
-
-		//
-		// Basic compression, last four bits are according to table:
-		// +--Bits---+--Binary value--+--Description--+
-		// | 5-4 	 |  00 	          | Use stream 0  |
-		// |         |  01 	          | Use stream 1  |
-		// |         |  10            | Use stream 2  |
-		// |         |  11            | Use stream 3  |
-		// | 6 	     |   0            |               |
-		// |         |   1            |read-filter-id |
-		// | 7       |   0            |BasicCompressio|
-		// +---------+----------------+---------------+
-		//
-		
-		byte compressionControl = 0b00000000;	// Use copy filter (no filter).
-		
-		bOut.write(compressionControl);
-		
-		final byte[] raw;
-		if (pixelFormat.bitsPerPixel == 32 && pixelFormat.depth == 24) {
-		
-			// As per description ( https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#tight-encoding ),
-			// convert PIXEL into TPIXEL (ARGB --> BGR). Reduce 1 byte for each pixel.
-			raw = TrueColorImage.toBGR(image);			
+
+	/**
+	 * Encode pixels with palette filter. For 2 colors, pixels are sent as bitmap,
+	 * with each row padded to whole byte. Otherwise, each pixel is sent as 1-byte palette index.
+	 *
+	 * @param pixels		-	pixel values
+	 * @param width			-	width of rectangle
+	 * @param palette		-	palette with 2 - 256 colors, built for given pixels
+	 * @param pixelFormat	-	pixel format of VNC client
+	 * @param tpixel		-	if set, palette colors are sent as 3-byte <i>TPIXEL</i> values
+	 * @param out			-	buffer where to write encoded rectangle
+	 */
+	public void encodePalette(final int[] pixels, final int width
+			, final TightPalette palette, final SetPixelFormat pixelFormat, final boolean tpixel, final EncodeBuffer out) {
+
+		final int size = palette.size();
+		final int stream = (size == 2) ? STREAM_MONO : STREAM_INDEXED;
+
+		final ByteBuffer header = out.ensureRemaining(3 + size * 4);
+
+		header.put((byte) (EXPLICIT_FILTER | (stream << 4)));
+		header.put((byte) FILTER_PALETTE);
+		header.put((byte) (size - 1));
+
+		for (int i = 0 ; i < size ; i++) {
+
+			TightEncoder.writePixel(header, palette.colors[i], pixelFormat, tpixel);
+		}
+
+		this.data.clear();
+
+		if (size == 2) {
+
+			final int height = pixels.length / width;
+			final int background = palette.colors[0];
+
+			final ByteBuffer data = this.data.ensureRemaining((width + 7) / 8 * height);
+
+			for (int y = 0 ; y < height ; y++) {
+
+				int b = 0, bits = 0;
+
+				for (int x = 0 ; x < width ; x++) {
+
+					b = (b << 1) | (pixels[x + y * width] == background ? 0 : 1);
+
+					if (++bits == 8) {
+
+						data.put((byte) b);
+						b = bits = 0;
+					}
+				}
+
+				if (bits > 0) {
+
+					data.put((byte) (b << (8 - bits)));
+				}
+			}
 		}
 		else {
-			
-			// Let RAW encoder convert 32-bit ARGB image of screen into appropriate
-			// raw bytes according to pixel format information.
-			raw = rawEncoder.encode(image, pixelFormat);
+
+			final ByteBuffer data = this.data.ensureRemaining(pixels.length);
+
+			int previous = palette.colors[0], index = 0;
+
+			for (final int pixel : pixels) {
+
+				if (pixel != previous) {
+
+					previous = pixel;
+					index = palette.indexOf(pixel);
+				}
+
+				data.put((byte) index);
+			}
 		}
-		
-		deflater.setInput(raw);
-		
-		final byte[] buff = new byte[raw.length];
-
-		// Compress using Java built-in Z-lib compressor.
-		int count = deflater.deflate(buff, 0, buff.length, Deflater.FULL_FLUSH);
-
-		try {
-			
-			bOut.write(CompactLength.calc(count));
-			bOut.write(buff, 0, count);
+
+		writeData(out, stream);
+	}
+
+	/**
+	 * Encode pixels with gradient filter. Each color component is predicted from
+	 * left, upper and upper-left neighbour, and only prediction error is sent.
+	 * Neighbours outside of rectangle have value zero.
+	 *
+	 * @param pixels		-	24-bit RGB pixel values
+	 * @param width			-	width of rectangle
+	 * @param out			-	buffer where to write encoded rectangle
+	 */
+	public void encodeGradient(final int[] pixels, final int width, final EncodeBuffer out) {
+
+		final ByteBuffer header = out.ensureRemaining(2);
+
+		header.put((byte) (EXPLICIT_FILTER | (STREAM_GRADIENT << 4)));
+		header.put((byte) FILTER_GRADIENT);
+
+		final int height = pixels.length / width;
+
+		this.data.clear();
+
+		final ByteBuffer buffer = this.data.ensureRemaining(pixels.length * 3);
+		final byte[] data = buffer.array();
+
+		int offset = buffer.position();
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int pixel = pixels[x + y * width];
+				final int left = (x > 0) ? pixels[x - 1 + y * width] : 0;
+				final int up = (y > 0) ? pixels[x + (y - 1) * width] : 0;
+				final int upLeft = (x > 0 && y > 0) ? pixels[x - 1 + (y - 1) * width] : 0;
+
+				for (int shift = 16 ; shift >= 0 ; shift -= 8) {
+
+					int predicted = ((left >> shift) & 0xFF) + ((up >> shift) & 0xFF) - ((upLeft >> shift) & 0xFF);
+
+					if (predicted < 0) {
+
+						predicted = 0;
+					}
+					else if (predicted > 0xFF) {
+
+						predicted = 0xFF;
+					}
+
+					data[offset++] = (byte) (((pixel >> shift) & 0xFF) - predicted);
+				}
+			}
+		}
+
+		buffer.position(offset);
+
+		writeData(out, STREAM_GRADIENT);
+	}
+
+	/**
+	 * Change compression level of all zlib streams.
+	 *
+	 * @param level		-	compression level 0 - 9, or -1 for default level
+	 */
+	public void setCompressionLevel(final int level) {
+
+		for (final ZlibStream stream : this.streams) {
+
+			stream.setLevel(level);
 		}
-		catch (final IOException ex) {
-			
-			log.error("Unable to write stream data using basic compression.", ex);
+	}
+
+	/**
+	 * Write filtered data, from {@link #data} buffer. Short data is written as is, otherwise data is
+	 * compressed with given zlib stream and prefixed with its compact length.
+	 */
+	private void writeData(final EncodeBuffer out, final int stream) {
+
+		final byte[] data = this.data.buffer().array();
+		final int length = this.data.length();
+
+		if (length < MIN_TO_COMPRESS) {
+
+			out.put(data, 0, length);
+
+			return;
 		}
-		
-		return bOut.toByteArray();
+
+		this.compressed.clear();
+
+		this.streams[stream].compressTo(data, 0, length, this.compressed);
+
+		CompactLength.write(out, this.compressed.length());
+
+		out.put(this.compressed.buffer().array(), 0, this.compressed.length());
 	}
 }
@@ -1,5 +1,9 @@
 package com.scoreunit.rfb.tight;
 
+import java.nio.ByteBuffer;
+
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+
 /**
  * Helper class to calculate length value in compact form. Used for tight encoding.
  * 
@@ -48,4 +52,31 @@ class CompactLength {
 		return new byte[] {b1, b2, b3};
 	}
 
+	/**
+	 * Write length value in compact form, see {@link #calc(int)}, without temporary array.
+	 * 
+	 * @param out		-	buffer where to write
+	 * @param length	-	length value
+	 */
+	public static void write(final EncodeBuffer out, final int length) {
+		
+		final ByteBuffer buffer = out.ensureRemaining(3);
+		
+		if (length < 128) {
+			
+			buffer.put((byte) length);
+		}
+		else if (length <= 16383) {
+			
+			buffer.put((byte) ((length & 0b01111111) | 0b10000000));
+			buffer.put((byte) ((length >> 7) & 0b01111111));
+		}
+		else {
+			
+			buffer.put((byte) ((length & 0b01111111) | 0b10000000));
+			buffer.put((byte) (((length >> 7) & 0b01111111) | 0b10000000));
+			buffer.put((byte) (length >> 14));
+		}
+	}
+
 }
@@ -1,64 +1,219 @@
 package com.scoreunit.rfb.tight;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.scoreunit.rfb.encoding.EncodeBuffer;
 import com.scoreunit.rfb.image.TrueColorImage;
 import com.scoreunit.rfb.service.SetPixelFormat;
 
 /**
  * JPEG compression method, using built-in Java JPEG library.
  * <p>
- * 
+ * JPEG quality depends on quality level requested by VNC client.
+ * <p>
+ * Same {@link ImageWriter}, raster array and output buffer are used for each rectangle.
+ * This object is not thread-safe, it is confined to thread which encodes rectangles
+ * for single VNC client, see {@link TightEncoder#isStateful()}.
+ *
  * @author igor.delac@gmail.com
  *
  */
 class JpegCompression {
-	
+
 	public final static Logger log = LoggerFactory.getLogger(JpegCompression.class);
-	
+
+	/**
+	 * JPEG quality, in percent, for each quality level 0 - 9.
+	 * Same values are used by other VNC servers, so image quality is as VNC client user expects.
+	 */
+	private final static int[] QUALITY = {15, 29, 41, 42, 62, 77, 79, 86, 92, 100};
+
+	/**
+	 * Byte offsets of red, green and blue component within 3-byte BGR pixel.
+	 */
+	private final static int[] BGR_OFFSETS = {2, 1, 0};
+
+	/**
+	 * Color model of 3-byte BGR image, same as for {@link BufferedImage#TYPE_3BYTE_BGR},
+	 * which is fast path of JPEG library.
+	 */
+	private final static ColorModel COLOR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB)
+			, new int[] {8, 8, 8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+	/**
+	 * Quality level 0 - 9, or -1 for default quality of JPEG library.
+	 */
+	private int qualityLevel;
+
+	/**
+	 * JPEG writer and its parameters, created on first use.
+	 */
+	private ImageWriter writer;
+
+	private ImageWriteParam param;
+
+	/**
+	 * BGR pixels of rectangle, grows to size of largest rectangle.
+	 */
+	private byte[] bgr;
+
+	private final JpegOutputBuffer output;
+
 	public JpegCompression() {
 
+		this.qualityLevel = -1;
+
+		this.bgr = new byte[0];
+
+		this.output = new JpegOutputBuffer(16 * 1024);
 	}
-	
+
+	/**
+	 * Set JPEG quality level.
+	 *
+	 * @param level		-	quality level 0 - 9, or -1 for default quality
+	 */
+	public void setQualityLevel(final int level) {
+
+		if (this.qualityLevel != level) {
+
+			this.qualityLevel = level;
+
+			// Parameters are created again, on next use.
+			this.param = null;
+		}
+	}
+
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
-		
-		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		
+
+		final EncodeBuffer out = new EncodeBuffer(1024);
+
+		encodeTo(image, pixelFormat, out);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write compression control byte, compact length and JPEG data into buffer.
+	 *
+	 * @param image			-	an 32-bit ARGB image, or part of image
+	 * @param pixelFormat	-	pixel format of VNC client
+	 * @param out			-	buffer where to write encoded rectangle
+	 */
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+
 		//
 		// First four bits (least significant): stream reset, for the four streams.
 		// JPEG compression, sets most significant bits to 0b1001:
 		//
-		
-		byte compressionControl = (byte) 0b10010000;		
-		bOut.write(compressionControl);
-		
-		final ByteArrayOutputStream jpgOut = new ByteArrayOutputStream();
+
+		byte compressionControl = (byte) 0b10010000;
+		out.ensureRemaining(1).put(compressionControl);
 
 		try {
-		
-			final byte[] bgr = TrueColorImage.toBGR(image);
-			
-			final BufferedImage bgrBufferedImage = new BufferedImage(image.width, image.height, BufferedImage.TYPE_3BYTE_BGR);
-			final byte[] rasterArray = ((DataBufferByte) bgrBufferedImage.getRaster().getDataBuffer()).getData();
-			System.arraycopy(bgr, 0, rasterArray, 0, rasterArray.length);
-			
-			ImageIO.write(bgrBufferedImage, "jpg", jpgOut);			
-			
-			bOut.write(CompactLength.calc(jpgOut.size()));
-			bOut.write(jpgOut.toByteArray());
-			
+
+			final ImageWriter writer = getWriter();
+
+			this.output.clear();
+
+			writer.setOutput(this.output);
+			writer.write(null, new IIOImage(toBufferedImage(image), null, null), this.param);
+
+			final int length = (int) this.output.length();
+
+			CompactLength.write(out, length);
+			out.put(this.output.buffer(), 0, length);
+
 		} catch (final Exception ex) {
-			
+
 			log.error("Unable to write JPEG compressed stream data.", ex);
+
+			// Writer might be in bad state, so next rectangle will use new one.
+			dispose();
+		}
+	}
+
+	/**
+	 * Release JPEG writer. It is created again, on next use.
+	 */
+	public void dispose() {
+
+		if (this.writer != null) {
+
+			this.writer.dispose();
+
+			this.writer = null;
+			this.param = null;
 		}
-		
-		return bOut.toByteArray();
+	}
+
+	/**
+	 * Find JPEG writer only once, since service registry look-up is slow.
+	 */
+	private ImageWriter getWriter() {
+
+		if (this.writer == null) {
+
+			this.writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		}
+
+		if (this.param == null) {
+
+			this.param = this.writer.getDefaultWriteParam();
+
+			if (this.qualityLevel >= 0) {
+
+				this.param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				this.param.setCompressionQuality(QUALITY[this.qualityLevel] / 100f);
+			}
+		}
+
+		return this.writer;
+	}
+
+	/**
+	 * Convert ARGB pixels directly into reusable BGR array, and wrap it as image of rectangle size.
+	 */
+	private BufferedImage toBufferedImage(final TrueColorImage image) {
+
+		final int[] raw = image.raw;
+		final int length = image.width * image.height;
+
+		if (this.bgr.length < length * 3) {
+
+			this.bgr = new byte[length * 3];
+		}
+
+		final byte[] bgr = this.bgr;
+
+		for (int i = 0, j = 0 ; i < length ; i++, j += 3) {
+
+			final int pixel = raw[i];
+
+			bgr[j] = (byte) pixel;				// Blue component.
+			bgr[j + 1] = (byte) (pixel >> 8);	// Green component.
+			bgr[j + 2] = (byte) (pixel >> 16);	// Red component.
+		}
+
+		final WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(bgr, length * 3)
+				, image.width, image.height, image.width * 3, 3, BGR_OFFSETS, null);
+
+		return new BufferedImage(COLOR_MODEL, raster, false, null);
 	}
 }
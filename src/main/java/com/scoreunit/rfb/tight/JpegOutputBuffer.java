@@ -0,0 +1,123 @@
+package com.scoreunit.rfb.tight;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Image output stream which writes into byte array, that grows as needed.
+ * <p>
+ * Same buffer is used for each JPEG image, after {@link #clear()}, so
+ * there is no new stream and no new array for each rectangle.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class JpegOutputBuffer extends ImageOutputStreamImpl {
+
+	private byte[] buff;
+
+	/**
+	 * Number of valid bytes in {@link #buff}.
+	 */
+	private int length;
+
+	JpegOutputBuffer(final int initialSize) {
+
+		this.buff = new byte[initialSize];
+		this.length = 0;
+	}
+
+	/**
+	 * Discard written data, and start again from position zero.
+	 */
+	void clear() {
+
+		this.streamPos = 0;
+		this.flushedPos = 0;
+		this.bitOffset = 0;
+
+		this.length = 0;
+	}
+
+	/**
+	 * @return	internal buffer, with valid data up to {@link #length()}
+	 */
+	byte[] buffer() {
+
+		return this.buff;
+	}
+
+	@Override
+	public long length() {
+
+		return this.length;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+
+		flushBits();
+
+		ensureCapacity(this.streamPos + 1);
+
+		this.buff[(int) this.streamPos++] = (byte) b;
+
+		this.length = (int) Math.max(this.length, this.streamPos);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+
+		flushBits();
+
+		ensureCapacity(this.streamPos + len);
+
+		System.arraycopy(b, off, this.buff, (int) this.streamPos, len);
+
+		this.streamPos += len;
+
+		this.length = (int) Math.max(this.length, this.streamPos);
+	}
+
+	@Override
+	public int read() {
+
+		this.bitOffset = 0;
+
+		if (this.streamPos >= this.length) {
+
+			return -1;
+		}
+
+		return this.buff[(int) this.streamPos++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) {
+
+		this.bitOffset = 0;
+
+		if (this.streamPos >= this.length) {
+
+			return -1;
+		}
+
+		final int count = (int) Math.min(len, this.length - this.streamPos);
+
+		System.arraycopy(this.buff, (int) this.streamPos, b, off, count);
+
+		this.streamPos += count;
+
+		return count;
+	}
+
+	private void ensureCapacity(final long capacity) {
+
+		if (capacity > this.buff.length) {
+
+			this.buff = Arrays.copyOf(this.buff, (int) Math.max(capacity, 2L * this.buff.length));
+		}
+	}
+}
@@ -1,46 +1,176 @@
 package com.scoreunit.rfb.tight;
 
+import java.nio.ByteBuffer;
+
+import com.scoreunit.rfb.encoding.EncodeBuffer;
 import com.scoreunit.rfb.encoding.EncodingInterface;
 import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.encoding.PixelConverter;
 import com.scoreunit.rfb.image.TrueColorImage;
 import com.scoreunit.rfb.service.SetPixelFormat;
 
 /**
- * Implementation as described in 
+ * Implementation as described in
  * <a href="https://github.com/rfbproto/rfbproto/blob/master/rfbproto.rst#tight-encoding">Tight encoding</a>.
  * <p>
- * Note that this is early implementation, not efficient as it could be.
- * 
+ * Each rectangle is classified by its content, and encoded with method that suits it best:
+ * <table border=1>
+ *  <tr><th>Content</th><th>Method</th></tr>
+ *  <tr><td>solid color</td><td>fill compression</td></tr>
+ *  <tr><td>2 colors, eg. text</td><td>palette filter, mono bitmap</td></tr>
+ *  <tr><td>few colors</td><td>palette filter, color indices</td></tr>
+ *  <tr><td>smooth, eg. color gradient</td><td>gradient filter</td></tr>
+ *  <tr><td>photo</td><td>JPEG compression</td></tr>
+ *  <tr><td>other</td><td>copy filter</td></tr>
+ * </table>
+ * Gradient filter and JPEG compression are used only for pixel formats with 3-byte <i>TPIXEL</i> values.
+ * JPEG compression is used only if VNC client has requested JPEG quality level, otherwise photo is sent
+ * with gradient filter.
+ * <p>
+ * This encoder is stateful, ensure that each RFB connection with VNC client,
+ * has its own instance of this encoder.
+ *
  * @author igor.delac@gmail.com
  *
  */
 public class TightEncoder implements EncodingInterface {
 
+	/**
+	 * Fill compression, sets most significant bits of compression control byte to 0b1000.
+	 */
+	private final static int FILL_COMPRESSION = 0b10000000;
+
+	/**
+	 * Palette filter is used for rectangles which have at least this many pixels for each color.
+	 */
+	private final static int PIXELS_PER_COLOR = 4;
+
+	/**
+	 * Average prediction error of gradient filter, per color component.
+	 * Rectangles with smaller error are smooth, and rectangles with larger error,
+	 * up to photo threshold, are photos.
+	 */
+	private final static int SMOOTH_THRESHOLD = 2, PHOTO_THRESHOLD = 40;
+
+	/**
+	 * Min. width and height of rectangle for JPEG compression.
+	 */
+	private final static int MIN_JPEG_SIZE = 8;
+
+	private final TightPalette palette;
+
 	private final BasicCompression basicCompression;
-	
+
 	private final JpegCompression jpegCompression;
 
+	/**
+	 * JPEG quality level 0 - 9, or -1 if VNC client did not request it, and JPEG compression is not allowed.
+	 */
+	private int qualityLevel;
+
+	/**
+	 * Set if last rectangle is encoded without zlib stream, with fill or JPEG compression.
+	 */
+	private boolean reusable;
+
 	/**
 	 * New Tight encoder.
 	 */
 	public TightEncoder() {
-	
+
+		this.palette = new TightPalette();
 		this.basicCompression = new BasicCompression();
 		this.jpegCompression = new JpegCompression();
+		this.qualityLevel = -1;
+		this.reusable = false;
 	}
-	
+
 	@Override
 	public byte[] encode(final TrueColorImage image, final SetPixelFormat pixelFormat) {
-		
-		// If pixel format allows JPEG compression, then use it.
-		if (pixelFormat.bitsPerPixel == 32 
-				&& pixelFormat.depth == 24) {
-		
-			return this.jpegCompression.encode(image, pixelFormat);
+
+		final EncodeBuffer out = new EncodeBuffer(1024);
+
+		encodeTo(image, pixelFormat, out);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Each compression method writes directly into buffer.
+	 */
+	@Override
+	public void encodeTo(final TrueColorImage image, final SetPixelFormat pixelFormat, final EncodeBuffer out) {
+
+		final boolean tpixel = isTPixel(pixelFormat);
+
+		this.reusable = false;
+
+		final int[] pixels = new int[image.raw.length];
+
+		if (tpixel) {
+
+			for (int i = 0 ; i < pixels.length ; i++) {
+
+				pixels[i] = image.raw[i] & 0xFFFFFF;
+			}
+		}
+		else {
+
+			PixelConverter.of(pixelFormat).convert(image.raw, 0, pixels, 0, pixels.length);
+		}
+
+		// For 8-bit pixels, palette indices would not be smaller than pixels.
+		final int maxColors = (pixelFormat.bitsPerPixel == 8) ? 2
+				: Math.max(2, Math.min(TightPalette.MAX_COLORS, pixels.length / PIXELS_PER_COLOR));
+
+		if (this.palette.build(pixels, maxColors)) {
+
+			if (this.palette.size() == 1) {
+
+				final ByteBuffer buffer = out.ensureRemaining(1 + 4);
+
+				buffer.put((byte) FILL_COMPRESSION);
+				writePixel(buffer, pixels[0], pixelFormat, tpixel);
+
+				this.reusable = true;
+
+				return;
+			}
+
+			this.basicCompression.encodePalette(pixels, image.width, this.palette, pixelFormat, tpixel, out);
+
+			return;
+		}
+
+		if (tpixel) {
+
+			final int error = gradientError(pixels, image.width, image.height);
+
+			if (error < SMOOTH_THRESHOLD) {
+
+				this.basicCompression.encodeGradient(pixels, image.width, out);
+
+				return;
+			}
+
+			if (error < PHOTO_THRESHOLD) {
+
+				if (this.qualityLevel >= 0 && image.width >= MIN_JPEG_SIZE && image.height >= MIN_JPEG_SIZE) {
+
+					this.jpegCompression.encodeTo(image, pixelFormat, out);
+
+					this.reusable = true;
+				}
+				else {
+
+					this.basicCompression.encodeGradient(pixels, image.width, out);
+				}
+
+				return;
+			}
 		}
-		
-		// Otherwise, fall-back to basic compression.
-		return this.basicCompression.encode(image, pixelFormat);		
+
+		this.basicCompression.encodeCopy(pixels, pixelFormat, tpixel, out);
 	}
 
 	@Override
@@ -48,4 +178,137 @@ public class TightEncoder implements EncodingInterface {
 
 		return Encodings.TIGHT;
 	}
+
+	@Override
+	public void setCompressionLevel(final int level) {
+
+		this.basicCompression.setCompressionLevel(level);
+	}
+
+	/**
+	 * VNC client must request JPEG quality level, before JPEG compression is used.
+	 */
+	@Override
+	public void setQualityLevel(final int level) {
+
+		this.qualityLevel = level;
+		this.jpegCompression.setQualityLevel(level);
+	}
+
+	/**
+	 * Zlib streams live for whole RFB connection.
+	 */
+	@Override
+	public boolean isStateful() {
+
+		return true;
+	}
+
+	/**
+	 * Fill and JPEG compression do not use zlib streams.
+	 */
+	@Override
+	public boolean isReusable() {
+
+		return this.reusable;
+	}
+
+	/**
+	 * Fill or JPEG compression might be used for any rectangle.
+	 */
+	@Override
+	public boolean mayBeReusable() {
+
+		return true;
+	}
+
+	/**
+	 * Check if pixel values are sent as 3-byte <i>TPIXEL</i> values, with red, green and blue component, in that order.
+	 *
+	 * @param pixelFormat	-	pixel format of VNC client
+	 *
+	 * @return	true for 32-bit true color pixel format, with depth 24 and 8 bits per color component
+	 */
+	static boolean isTPixel(final SetPixelFormat pixelFormat) {
+
+		return pixelFormat.bitsPerPixel == 32
+				&& pixelFormat.depth == 24
+				&& pixelFormat.trueColorFlag != 0
+				&& pixelFormat.redMax == 255
+				&& pixelFormat.greenMax == 255
+				&& pixelFormat.blueMax == 255;
+	}
+
+	/**
+	 * Write pixel value.
+	 *
+	 * @param out			-	buffer, with room for pixel value
+	 * @param pixel			-	24-bit RGB value if <i>tpixel</i> is set, otherwise pixel value converted by {@link PixelConverter}
+	 * @param pixelFormat	-	pixel format of VNC client
+	 * @param tpixel		-	if set, write 3-byte <i>TPIXEL</i> value
+	 */
+	static void writePixel(final ByteBuffer out, final int pixel, final SetPixelFormat pixelFormat, final boolean tpixel) {
+
+		if (tpixel) {
+
+			out.put((byte) (pixel >> 16));
+			out.put((byte) (pixel >> 8));
+			out.put((byte) pixel);
+		}
+		else if (pixelFormat.bitsPerPixel == 8) {
+
+			out.put((byte) pixel);
+		}
+		else if (pixelFormat.bitsPerPixel == 16) {
+
+			out.putShort((short) pixel);
+		}
+		else {
+
+			out.putInt(pixel);
+		}
+	}
+
+	/**
+	 * Average prediction error of gradient filter, per color component.
+	 * Every second row is sampled.
+	 *
+	 * @param pixels	-	24-bit RGB values
+	 * @param width		-	width of rectangle
+	 * @param height	-	height of rectangle
+	 *
+	 * @return	average error, or {@link Integer#MAX_VALUE} if rectangle is too small to tell
+	 */
+	static int gradientError(final int[] pixels, final int width, final int height) {
+
+		if (width < 2 || height < 2) {
+
+			return Integer.MAX_VALUE;
+		}
+
+		long error = 0, count = 0;
+
+		for (int y = 1 ; y < height ; y += 2) {
+
+			for (int x = 1 ; x < width ; x++) {
+
+				final int pixel = pixels[x + y * width];
+				final int left = pixels[x - 1 + y * width];
+				final int up = pixels[x + (y - 1) * width];
+				final int upLeft = pixels[x - 1 + (y - 1) * width];
+
+				for (int shift = 16 ; shift >= 0 ; shift -= 8) {
+
+					final int predicted = Math.max(0, Math.min(0xFF
+							, ((left >> shift) & 0xFF) + ((up >> shift) & 0xFF) - ((upLeft >> shift) & 0xFF)));
+
+					error += Math.abs(((pixel >> shift) & 0xFF) - predicted);
+				}
+
+				count += 3;
+			}
+		}
+
+		return (int) (error / count);
+	}
 }
@@ -0,0 +1,136 @@
+package com.scoreunit.rfb.tight;
+
+import java.util.Arrays;
+
+/**
+ * Palette of rectangle, used to choose between fill, mono and indexed color encoding,
+ * and to find palette index of pixel.
+ * <p>
+ * Colors are searched with hash table. Slot of table is used if its stamp is equal to current stamp,
+ * so table does not need clearing for each rectangle.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+class TightPalette {
+
+	/**
+	 * Max. number of colors that palette filter can use.
+	 */
+	final static int MAX_COLORS = 256;
+
+	/**
+	 * Size of hash table, power of two.
+	 */
+	private final static int HASH_SIZE = 1024;
+
+	/**
+	 * Palette colors, in order of appearance.
+	 */
+	final int[] colors;
+
+	private int size;
+
+	final private int[] hashPixels, hashIndices, hashStamps;
+
+	private int stamp;
+
+	TightPalette() {
+
+		this.colors = new int[MAX_COLORS];
+
+		this.hashPixels = new int[HASH_SIZE];
+		this.hashIndices = new int[HASH_SIZE];
+		this.hashStamps = new int[HASH_SIZE];
+
+		this.stamp = 0;
+	}
+
+	/**
+	 * Build palette for given pixels.
+	 *
+	 * @param pixels	-	pixel values
+	 * @param maxColors	-	max. number of colors
+	 *
+	 * @return	true if pixels have up to given number of colors
+	 */
+	boolean build(final int[] pixels, final int maxColors) {
+
+		this.size = 0;
+
+		if (++this.stamp == 0) {
+
+			Arrays.fill(this.hashStamps, 0);
+			this.stamp = 1;
+		}
+
+		int previous = 0, previousIndex = -1;
+
+		for (final int pixel : pixels) {
+
+			// Pixels come in runs, so skip hash lookup for same pixel value.
+			if (pixel == previous && previousIndex >= 0) {
+
+				continue;
+			}
+
+			int slot = hash(pixel);
+
+			while (this.hashStamps[slot] == this.stamp && this.hashPixels[slot] != pixel) {
+
+				slot = (slot + 1) & (HASH_SIZE - 1);
+			}
+
+			if (this.hashStamps[slot] != this.stamp) {
+
+				if (this.size == maxColors) {
+
+					return false;
+				}
+
+				this.hashStamps[slot] = this.stamp;
+				this.hashPixels[slot] = pixel;
+				this.hashIndices[slot] = this.size;
+
+				this.colors[this.size++] = pixel;
+			}
+
+			previous = pixel;
+			previousIndex = this.hashIndices[slot];
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return	number of colors, after last {@link #build(int[], int)} invocation
+	 */
+	int size() {
+
+		return this.size;
+	}
+
+	/**
+	 * Find palette index of pixel value. Pixel value must be in palette.
+	 *
+	 * @param pixel	-	pixel value
+	 *
+	 * @return	palette index
+	 */
+	int indexOf(final int pixel) {
+
+		int slot = hash(pixel);
+
+		while (this.hashPixels[slot] != pixel) {
+
+			slot = (slot + 1) & (HASH_SIZE - 1);
+		}
+
+		return this.hashIndices[slot];
+	}
+
+	private static int hash(final int pixel) {
+
+		return ((pixel * 0x9E3779B1) >>> 22) & (HASH_SIZE - 1);
+	}
+}
@@ -0,0 +1,13 @@
+package com.scoreunit.rfb;
+
+/**
+ * JUnit category of benchmark tests, which measure and print speed-up of optimized code.
+ * <p>
+ * Benchmarks are not part of default test suite, run them with <code>mvn test -Pbenchmark</code>.
+ *
+ * @author igor.delac@gmail.com
+ *
+ */
+public interface Benchmark {
+
+}
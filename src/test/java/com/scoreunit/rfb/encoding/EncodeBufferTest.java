@@ -0,0 +1,208 @@
+package com.scoreunit.rfb.encoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+import com.scoreunit.rfb.tight.TightEncoder;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class EncodeBufferTest {
+
+	/**
+	 * Images of different content: solid, text-like, smooth, photo-like and noise,
+	 * so all methods of each encoder are used.
+	 */
+	private static TrueColorImage[] images() {
+
+		final Random random = new Random(3);
+
+		final int width = 64, height = 48;
+
+		final int[] solid = new int[width * height], text = new int[width * height]
+				, smooth = new int[width * height], photo = new int[width * height], noise = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int i = x + y * width;
+
+				solid[i] = 0xFF336699;
+				text[i] = ((x / 3 + y / 5) % 4 == 0) ? 0xFF000000 : 0xFFFFFFFF;
+				smooth[i] = 0xFF000000 | (x * 3 << 16) | (y * 5 << 8) | (x + y);
+
+				final int value = (int) (100 + 60 * Math.sin(x / 10.0) * Math.cos(y / 15.0));
+				photo[i] = 0xFF000000 | ((value + random.nextInt(9)) << 16) | ((value / 2 + random.nextInt(9)) << 8) | (255 - value);
+
+				noise[i] = random.nextInt();
+			}
+		}
+
+		return new TrueColorImage[] {
+				new TrueColorImage(solid, width, height)
+				, new TrueColorImage(text, width, height)
+				, new TrueColorImage(smooth, width, height)
+				, new TrueColorImage(photo, width, height)
+				, new TrueColorImage(noise, width, height)
+				, new TrueColorImage(Arrays.copyOf(noise, 15), 5, 3)
+		};
+	}
+
+	private static SetPixelFormat[] formats() {
+
+		return new SetPixelFormat[] {
+				SetPixelFormat.default32bit()
+				, new SetPixelFormat((byte) 16, (byte) 16, (byte) 0, (byte) 1, (short) 31, (short) 63, (short) 31, (byte) 11, (byte) 5, (byte) 0)
+				, new SetPixelFormat((byte) 8, (byte) 8, (byte) 0, (byte) 1, (short) 7, (short) 7, (short) 3, (byte) 5, (byte) 2, (byte) 0)
+		};
+	}
+
+	/**
+	 * Encode same images with two encoder instances, one with {@link EncodingInterface#encode(TrueColorImage, SetPixelFormat)}
+	 * and other with {@link EncodingInterface#encodeTo(TrueColorImage, SetPixelFormat, EncodeBuffer)}.
+	 * Result must be same, also for stateful encoders.
+	 */
+	private static void assertSameEncoding(final Supplier<EncodingInterface> encoders) {
+
+		for (final SetPixelFormat pixelFormat : formats()) {
+
+			final EncodingInterface encoder1 = encoders.get(), encoder2 = encoders.get();
+
+			// Small buffer, so it has to grow.
+			final EncodeBuffer buffer = new EncodeBuffer(0);
+
+			for (final TrueColorImage image : images()) {
+
+				final byte[] expected = encoder1.encode(image, pixelFormat);
+
+				// Data in buffer, eg. rectangle header, is kept.
+				buffer.clear();
+				buffer.put(new byte[] {1, 2, 3}, 0, 3);
+
+				encoder2.encodeTo(image, pixelFormat, buffer);
+
+				final byte[] actual = buffer.toByteArray();
+
+				assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(actual, 3));
+				assertArrayEquals(encoder1.getClass().getSimpleName() + ", " + pixelFormat.bitsPerPixel + "-bit"
+						, expected, Arrays.copyOfRange(actual, 3, actual.length));
+			}
+		}
+	}
+
+	@Test
+	public void test_01_grow() throws Exception {
+
+		final EncodeBuffer buffer = new EncodeBuffer(16);
+
+		for (int i = 0 ; i < 100 ; i++) {
+
+			buffer.ensureRemaining(4).putInt(i);
+		}
+
+		assertEquals(400, buffer.length());
+		assertTrue(buffer.capacity() >= 400);
+
+		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		buffer.writeTo(bOut);
+
+		assertArrayEquals(buffer.toByteArray(), bOut.toByteArray());
+		assertEquals(99, buffer.buffer().getInt(396));
+
+		buffer.clear();
+		assertEquals(0, buffer.length());
+	}
+
+	@Test
+	public void test_02_pool() {
+
+		final EncodeBufferPool pool = new EncodeBufferPool();
+
+		final EncodeBuffer buffer1 = pool.acquire();
+		buffer1.put(new byte[10], 0, 10);
+
+		pool.release(buffer1);
+		assertEquals(1, pool.size());
+
+		// Same buffer is given again, empty.
+		final EncodeBuffer buffer2 = pool.acquire();
+		assertSame(buffer1, buffer2);
+		assertEquals(0, buffer2.length());
+
+		assertNotSame(buffer2, pool.acquire());
+
+		// Very large buffer is not kept.
+		buffer2.ensureRemaining(EncodeBufferPool.MAX_POOLED_CAPACITY + 1);
+		pool.release(buffer2);
+		assertEquals(0, pool.size());
+
+		// Pool has limited size.
+		for (int i = 0 ; i < EncodeBufferPool.MAX_POOLED + 5 ; i++) {
+
+			pool.release(new EncodeBuffer(16));
+		}
+		assertEquals(EncodeBufferPool.MAX_POOLED, pool.size());
+	}
+
+	@Test
+	public void test_03_raw() {
+
+		assertSameEncoding(RawEncoder::new);
+	}
+
+	@Test
+	public void test_04_hextile() {
+
+		assertSameEncoding(HextileEncoder::new);
+	}
+
+	@Test
+	public void test_05_zlib() {
+
+		assertSameEncoding(ZlibEncoder::new);
+	}
+
+	@Test
+	public void test_06_tight() {
+
+		assertSameEncoding(TightEncoder::new);
+	}
+
+	@Test
+	public void test_07_richCursor() {
+
+		assertSameEncoding(RichCursorEncoder::new);
+	}
+
+	@Test
+	public void test_08_zlibStream() {
+
+		final byte[] data = new byte[100000];
+		new Random(5).nextBytes(data);
+
+		// Incompressible data, buffer has to grow while deflating.
+		final ZlibStream stream1 = new ZlibStream(), stream2 = new ZlibStream();
+
+		final EncodeBuffer buffer = new EncodeBuffer(0);
+		stream2.compressWithLengthTo(data, 10, 50000, buffer);
+
+		final byte[] expected = stream1.compressWithLength(data, 10, 50000);
+
+		assertArrayEquals(expected, buffer.toByteArray());
+		assertEquals(expected.length - 4, buffer.buffer().getInt(0));
+	}
+}
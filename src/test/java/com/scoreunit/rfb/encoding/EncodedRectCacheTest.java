@@ -0,0 +1,188 @@
+package com.scoreunit.rfb.encoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+import com.scoreunit.rfb.tight.TightEncoder;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class EncodedRectCacheTest {
+
+	private static TrueColorImage image(final int width, final int height, final int seed) {
+
+		final int[] raw = new int[width * height];
+
+		for (int i = 0 ; i < raw.length ; i++) {
+
+			raw[i] = (i % width) * 0x030201 + (i / width) * seed;
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	private static byte[] encode(final EncodedRectCache cache, final EncodingInterface encoder
+			, final TrueColorImage image, final SetPixelFormat pixelFormat, final int qualityLevel) {
+
+		final EncodeBuffer out = new EncodeBuffer(16);
+
+		// Header of rectangle goes first, only encoded data is cached.
+		out.put(new byte[] {1, 2, 3}, 0, 3);
+
+		cache.encodeTo(encoder, image, pixelFormat, -1, qualityLevel, out);
+
+		final byte[] data = out.toByteArray();
+
+		assertEquals(1, data[0]);
+		assertEquals(3, data[2]);
+
+		return data;
+	}
+
+	@Test
+	public void test_01_hitAndMiss() {
+
+		final EncodedRectCache cache = new EncodedRectCache(EncodedRectCache.DEFAULT_CAPACITY);
+
+		final TrueColorImage image = image(64, 32, 7);
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		final byte[] first = encode(cache, new HextileEncoder(), image, pixelFormat, -1);
+
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEntries());
+
+		// Other session, with own encoder, and copy of same image.
+		final byte[] second = encode(cache, new HextileEncoder(), image(64, 32, 7), SetPixelFormat.default32bit(), -1);
+
+		assertArrayEquals(first, second);
+		assertEquals(1, cache.getHits());
+
+		// Each setting of key is different.
+		encode(cache, new HextileEncoder(), image(64, 32, 8), pixelFormat, -1);
+		encode(cache, new HextileEncoder(), image(32, 64, 7), pixelFormat, -1);
+		encode(cache, new RawEncoder(), image, pixelFormat, -1);
+		encode(cache, new HextileEncoder(), image, pixelFormat, 5);
+
+		final SetPixelFormat pixelFormat8bit = SetPixelFormat.default32bit();
+		pixelFormat8bit.bitsPerPixel = 8;
+		pixelFormat8bit.depth = 8;
+		pixelFormat8bit.redMax = 7;
+		pixelFormat8bit.greenMax = 7;
+		pixelFormat8bit.blueMax = 3;
+		pixelFormat8bit.redShift = 0;
+		pixelFormat8bit.greenShift = 3;
+		pixelFormat8bit.blueShift = 6;
+
+		final byte[] encoded8bit = encode(cache, new HextileEncoder(), image, pixelFormat8bit, -1);
+		assertArrayEquals(concat(new byte[] {1, 2, 3}, new HextileEncoder().encode(image, pixelFormat8bit)), encoded8bit);
+
+		assertEquals(1, cache.getHits());
+		assertEquals(6, cache.getMisses());
+		assertEquals(6, cache.getEntries());
+
+		assertNotEquals(EncodedRectCache.hash(image(64, 32, 7)), EncodedRectCache.hash(image(64, 32, 8)));
+		assertNotEquals(EncodedRectCache.hash(image(64, 32, 7)), EncodedRectCache.hash(image(32, 64, 7)));
+	}
+
+	@Test
+	public void test_02_eviction() {
+
+		final TrueColorImage[] images = new TrueColorImage[8];
+
+		for (int i = 0 ; i < images.length ; i++) {
+
+			images[i] = image(16, 16, i);
+		}
+
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		// Room for 8 raw rectangles of 16x16 pixels, and for none in small cache.
+		final int entrySize = 16 * 16 * 4 + EncodedRectCache.ENTRY_OVERHEAD;
+		final EncodedRectCache cache = new EncodedRectCache(8 * entrySize);
+		final EncodedRectCache small = new EncodedRectCache(4 * entrySize);
+
+		for (final TrueColorImage image : images) {
+
+			encode(cache, new RawEncoder(), image, pixelFormat, -1);
+			encode(small, new RawEncoder(), image, pixelFormat, -1);
+		}
+
+		// Too large rectangles, for 1/8 of capacity, are not cached.
+		assertEquals(0, small.getEntries());
+		assertEquals(8, cache.getEntries());
+		assertEquals(8 * entrySize, cache.getSize());
+
+		// Recently used rectangle stays, least recently used is evicted.
+		encode(cache, new RawEncoder(), images[0], pixelFormat, -1);
+		encode(cache, new RawEncoder(), image(16, 16, 100), pixelFormat, -1);
+
+		assertEquals(8, cache.getEntries());
+		assertTrue(cache.getSize() <= cache.getCapacity());
+
+		final long hits = cache.getHits();
+
+		encode(cache, new RawEncoder(), images[0], pixelFormat, -1);
+		assertEquals(hits + 1, cache.getHits());
+
+		encode(cache, new RawEncoder(), images[1], pixelFormat, -1);
+		assertEquals(hits + 1, cache.getHits());
+
+		cache.clear();
+		assertEquals(0, cache.getEntries());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void test_03_statefulEncoder() {
+
+		final EncodedRectCache cache = new EncodedRectCache(EncodedRectCache.DEFAULT_CAPACITY);
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		// Zlib data depends on stream of each session.
+		encode(cache, new ZlibEncoder(), image(64, 32, 7), pixelFormat, -1);
+		encode(cache, new ZlibEncoder(), image(64, 32, 7), pixelFormat, -1);
+
+		// ZRLE data too, so image is not even looked up.
+		encode(cache, new ZRLEEncoder(), image(64, 32, 7), pixelFormat, -1);
+
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertEquals(0, cache.getEntries());
+
+		// Tight fill compression does not use zlib stream.
+		final TrueColorImage solid = new TrueColorImage(new int[64 * 64], 64, 64);
+
+		final byte[] first = encode(cache, new TightEncoder(), solid, pixelFormat, -1);
+		final byte[] second = encode(cache, new TightEncoder(), solid, pixelFormat, -1);
+
+		assertArrayEquals(first, second);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getEntries());
+
+		// Tight basic compression does.
+		encode(cache, new TightEncoder(), image(64, 32, 0), pixelFormat, -1);
+		encode(cache, new TightEncoder(), image(64, 32, 0), pixelFormat, -1);
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getEntries());
+	}
+
+	private static byte[] concat(final byte[] first, final byte[] second) {
+
+		final byte[] result = new byte[first.length + second.length];
+
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+
+		return result;
+	}
+}
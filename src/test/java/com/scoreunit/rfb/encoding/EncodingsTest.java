@@ -14,6 +14,7 @@ public class EncodingsTest {
 				, Encodings.ZLIB
 				, Encodings.RICH_CURSOR
 				, Encodings.TIGHT
+				, Encodings.ZRLE
 				};
 		
 		for (final int encodingType : encodings) {
@@ -1,6 +1,7 @@
 package com.scoreunit.rfb.encoding;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
@@ -193,4 +194,179 @@ public class HextileEncoderTest {
 			assertEquals(msg, originalPixel, decodedPixel);
 		}
 	}
+
+	@Test
+	public void test_03_encodePartialTiles() throws IOException {
+		
+		final HextileEncoder encoder = new HextileEncoder();
+		
+		// Image 20x20 pixel is divided into 16x16, 4x16, 16x4 and 4x4 tiles.
+		final int width = 20, height = 20;
+		
+		final int[] raw = new int[width * height];
+		
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+		
+		final byte[] encodedImage = encoder.encode(new TrueColorImage(raw, width, height), pixelFormat);
+
+		// First single-coloured tile takes mask byte and one pixel value,
+		//  other tiles have same background colour and take only mask byte.
+		assertEquals((1 + 4) + 3 * 1, encodedImage.length);
+		
+		// Random image, each tile is raw encoded.
+		for (int i = 0 ; i < raw.length ; i++) {
+			
+			raw[i] = i;
+		}
+		
+		final byte[] encodedRandomImage = encoder.encode(new TrueColorImage(raw, width, height), pixelFormat);
+		
+		assertEquals(4 + width * height * 4, encodedRandomImage.length);
+	}
+
+	@Test
+	public void test_04_encodeDecodeSubrects() throws IOException {
+		
+		final HextileEncoder encoder = new HextileEncoder();
+		
+		final int width = 100, height = 64;
+		
+		final int[] raw = new int[width * height];
+		
+		for (int y = 0 ; y < height ; y++) {
+			
+			for (int x = 0 ; x < width ; x++) {
+				
+				final int pixel;
+				
+				if (y < 16) {
+					
+					// Two-coloured tiles, eg. text.
+					pixel = ((x * 7 + y * 3) % 11) < 4 ? 0x000000 : 0xFFFFFF;
+				}
+				else if (y < 32) {
+					
+					// Few-coloured tiles, eg. buttons and borders.
+					pixel = (x % 16 < 2) ? 0xFF0000 : (y % 16 < 3) ? 0x00FF00 : (x % 16 > 12) ? 0x0000FF : 0x808080;
+				}
+				else if (y < 48) {
+					
+					// Many colours, raw tiles.
+					pixel = x * 1000 + y;
+				}
+				else {
+					
+					// Single-coloured tiles.
+					pixel = 0x336699;
+				}
+				
+				raw[x + y * width] = pixel;
+			}
+		}
+		
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+		
+		final byte[] encodedImage = encoder.encode(new TrueColorImage(raw, width, height), pixelFormat);
+		
+		final int[] decoded = decode(encodedImage, width, height);
+		
+		for (int i = 0 ; i < raw.length ; i++) {
+			
+			assertEquals(String.format("Pixel [%d].", i), Integer.reverseBytes(raw[i] & 0x00FFFFFF), decoded[i]);
+		}
+		
+		// Only third row of tiles is raw.
+		final int tiles = ((width + 15) / 16) * ((height + 15) / 16);
+		assertTrue(encodedImage.length < tiles + width * height * 4 / 2);
+	}
+	
+	/**
+	 * Decode hextile rectangle with 32-bit pixels, with all subencodings.
+	 * 
+	 * @param encodedImage	-	encoded rectangle
+	 * @param width			-	rectangle width
+	 * @param height		-	rectangle height
+	 * 
+	 * @return	decoded pixels
+	 */
+	private static int[] decode(final byte[] encodedImage, final int width, final int height) throws IOException {
+		
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedImage));
+		
+		final int[] result = new int[width * height];
+		
+		int background = 0, foreground = 0;
+		
+		for (int ty = 0 ; ty < height ; ty += 16) {
+			
+			for (int tx = 0 ; tx < width ; tx += 16) {
+				
+				final int tw = Math.min(16, width - tx), th = Math.min(16, height - ty);
+				
+				final int subencodingMask = in.readUnsignedByte();
+				
+				if ((subencodingMask & HextileEncoder.MASK_RAW) != 0) {
+					
+					for (int y = ty ; y < ty + th ; y++) {
+						
+						for (int x = tx ; x < tx + tw ; x++) {
+							
+							result[x + y * width] = in.readInt();
+						}
+					}
+					
+					continue;
+				}
+				
+				if ((subencodingMask & HextileEncoder.MASK_BACKGROUND_SPECIFIED) != 0) {
+					
+					background = in.readInt();
+				}
+				
+				if ((subencodingMask & HextileEncoder.MASK_FOREGROUND_SPECIFIED) != 0) {
+					
+					foreground = in.readInt();
+				}
+				
+				for (int y = ty ; y < ty + th ; y++) {
+					
+					for (int x = tx ; x < tx + tw ; x++) {
+						
+						result[x + y * width] = background;
+					}
+				}
+				
+				if ((subencodingMask & HextileEncoder.MASK_ANY_SUBRECT) == 0) {
+					
+					continue;
+				}
+				
+				final int subrects = in.readUnsignedByte();
+				
+				for (int i = 0 ; i < subrects ; i++) {
+					
+					final int color = ((subencodingMask & HextileEncoder.MASK_SUBRECTS_COLOURED) != 0) ? in.readInt() : foreground;
+					
+					final int xy = in.readUnsignedByte(), wh = in.readUnsignedByte();
+					
+					final int sx = tx + (xy >> 4), sy = ty + (xy & 0x0F);
+					final int sw = (wh >> 4) + 1, sh = (wh & 0x0F) + 1;
+					
+					assertTrue(sx + sw <= tx + tw && sy + sh <= ty + th);
+					
+					for (int y = sy ; y < sy + sh ; y++) {
+						
+						for (int x = sx ; x < sx + sw ; x++) {
+							
+							result[x + y * width] = color;
+						}
+					}
+				}
+			}
+		}
+		
+		assertEquals(0, in.available());
+		
+		return result;
+	}
 }
@@ -0,0 +1,248 @@
+package com.scoreunit.rfb.encoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.Benchmark;
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PixelConverterTest {
+
+	private static SetPixelFormat format(final int bitsPerPixel, final int bigEndianFlag
+			, final int redMax, final int greenMax, final int blueMax
+			, final int redShift, final int greenShift, final int blueShift) {
+
+		return new SetPixelFormat((byte) bitsPerPixel, (byte) Math.min(24, bitsPerPixel), (byte) bigEndianFlag, (byte) 1
+				, (short) redMax, (short) greenMax, (short) blueMax
+				, (byte) redShift, (byte) greenShift, (byte) blueShift);
+	}
+
+	/**
+	 * Pixel formats with fast conversion, and some other formats.
+	 */
+	private static SetPixelFormat[] formats() {
+
+		return new SetPixelFormat[] {
+				SetPixelFormat.default32bit()
+				, format(32, 1, 255, 255, 255, 16, 8, 0)
+				, format(32, 0, 255, 255, 255, 0, 8, 16)
+				, format(16, 0, 31, 63, 31, 11, 5, 0)
+				, format(16, 1, 31, 63, 31, 11, 5, 0)
+				, format(16, 0, 31, 31, 31, 10, 5, 0)
+				, format(8, 0, 7, 7, 3, 5, 2, 0)
+				, format(8, 0, 7, 7, 3, 0, 3, 6)
+		};
+	}
+
+	/**
+	 * Reference conversion: scale each color component, shift it into place,
+	 * and write pixel in client byte order.
+	 *
+	 * @return	bytes of pixel, as they go on the wire
+	 */
+	private static byte[] reference(final int pixel, final SetPixelFormat pixelFormat) {
+
+		final int red = ((pixel >> 16) & 0xFF) * (pixelFormat.redMax + 1) / 256;
+		final int green = ((pixel >> 8) & 0xFF) * (pixelFormat.greenMax + 1) / 256;
+		final int blue = (pixel & 0xFF) * (pixelFormat.blueMax + 1) / 256;
+
+		final int value = (red << pixelFormat.redShift) | (green << pixelFormat.greenShift) | (blue << pixelFormat.blueShift);
+
+		final int bytesPerPixel = pixelFormat.bitsPerPixel / 8;
+		final byte[] result = new byte[bytesPerPixel];
+
+		for (int i = 0 ; i < bytesPerPixel ; i++) {
+
+			// Big-endian order has most significant byte first.
+			final int shift = (pixelFormat.bigEndianFlag != 0) ? 8 * (bytesPerPixel - 1 - i) : 8 * i;
+
+			result[i] = (byte) (value >> shift);
+		}
+
+		return result;
+	}
+
+	private static int[] randomPixels(final int count) {
+
+		final Random random = new Random(1);
+
+		final int[] pixels = new int[count];
+
+		for (int i = 0 ; i < count ; i++) {
+
+			pixels[i] = random.nextInt();
+		}
+
+		return pixels;
+	}
+
+	@Test
+	public void test_01_convert() {
+
+		final int[] pixels = randomPixels(10000);
+
+		for (final SetPixelFormat pixelFormat : formats()) {
+
+			final PixelConverter converter = PixelConverter.of(pixelFormat);
+			final int bytesPerPixel = converter.getBytesPerPixel();
+
+			assertEquals(pixelFormat.bitsPerPixel / 8, bytesPerPixel);
+
+			final byte[] expected = new byte[pixels.length * bytesPerPixel];
+
+			for (int i = 0 ; i < pixels.length ; i++) {
+
+				System.arraycopy(reference(pixels[i], pixelFormat), 0, expected, i * bytesPerPixel, bytesPerPixel);
+			}
+
+			// Row of pixels, into bytes.
+			final byte[] bytes = new byte[expected.length + 2];
+			assertEquals(expected.length + 1, converter.convert(pixels, 0, bytes, 1, pixels.length));
+			assertArrayEquals(expected, Arrays.copyOfRange(bytes, 1, expected.length + 1));
+
+			// Row of pixels, into pixel values. Bytes on the wire are in least significant bytes of value.
+			final int[] values = new int[pixels.length];
+			converter.convert(pixels, 0, values, 0, pixels.length);
+
+			for (int i = 0 ; i < pixels.length ; i++) {
+
+				int value = 0;
+
+				for (int j = 0 ; j < bytesPerPixel ; j++) {
+
+					value = (value << 8) | (expected[i * bytesPerPixel + j] & 0xFF);
+				}
+
+				assertEquals(value, values[i]);
+				assertEquals(value, converter.convert(pixels[i]));
+				assertEquals(value, PixelTransform.transform(pixels[i], pixelFormat));
+			}
+		}
+	}
+
+	@Test
+	public void test_02_cache() {
+
+		// Equal pixel formats give same converter.
+		assertSame(PixelConverter.of(SetPixelFormat.default32bit()), PixelConverter.of(SetPixelFormat.default32bit()));
+		assertEquals(SetPixelFormat.default32bit(), SetPixelFormat.default32bit());
+		assertEquals(SetPixelFormat.default32bit().hashCode(), SetPixelFormat.default32bit().hashCode());
+	}
+
+	@Test
+	public void test_03_maxNotPowerOfTwo() {
+
+		final SetPixelFormat pixelFormat = format(8, 0, 5, 5, 5, 0, 3, 6);
+
+		final PixelConverter converter = PixelConverter.of(pixelFormat);
+
+		// Component value must not overflow into bits of other component.
+		assertEquals((5 << 0) | (5 << 3) | (3 << 6), converter.convert(0xFFFFFF80));
+	}
+
+	@Test
+	public void test_04_raw16bitLittleEndian() {
+
+		final SetPixelFormat pixelFormat = format(16, 0, 31, 63, 31, 11, 5, 0);
+
+		final TrueColorImage image = new TrueColorImage(new int[] {0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFFFFFFFF}, 2, 2);
+
+		// Little-endian RGB565, least significant byte first.
+		assertArrayEquals(new byte[] {0x00, (byte) 0xF8, (byte) 0xE0, 0x07, 0x1F, 0x00, (byte) 0xFF, (byte) 0xFF}
+				, new RawEncoder().encode(image, pixelFormat));
+	}
+
+	@Test
+	@Category(Benchmark.class)
+	public void test_05_benchmark() {
+
+		final int width = 1920, height = 1080, iterations = 20;
+
+		final TrueColorImage image = new TrueColorImage(randomPixels(width * height), width, height);
+
+		final SetPixelFormat[] pixelFormats = {SetPixelFormat.default32bit(), format(16, 0, 31, 63, 31, 11, 5, 0), format(8, 0, 7, 7, 3, 5, 2, 0)};
+
+		for (final SetPixelFormat pixelFormat : pixelFormats) {
+
+			final RawEncoder encoder = new RawEncoder();
+
+			byte[] perPixel = null, converted = null;
+
+			// Warm-up.
+			for (int i = 0 ; i < iterations ; i++) {
+
+				perPixel = encodePerPixel(image, pixelFormat);
+				converted = encoder.encode(image, pixelFormat);
+			}
+
+			final long perPixelStartedAt = System.nanoTime();
+			for (int i = 0 ; i < iterations ; i++) {
+
+				perPixel = encodePerPixel(image, pixelFormat);
+			}
+			final long perPixelTime = System.nanoTime() - perPixelStartedAt;
+
+			final long convertedStartedAt = System.nanoTime();
+			for (int i = 0 ; i < iterations ; i++) {
+
+				converted = encoder.encode(image, pixelFormat);
+			}
+			final long convertedTime = System.nanoTime() - convertedStartedAt;
+
+			assertArrayEquals(perPixel, converted);
+
+			System.out.println(String.format("%s: %dx%d frame, %d-bit raw, per-pixel transform: %.2f ms/frame, converter: %.2f ms/frame, speed-up: %.1fx"
+					, PixelConverterTest.class.getSimpleName(), width, height, pixelFormat.bitsPerPixel
+					, perPixelTime / 1e6 / iterations, convertedTime / 1e6 / iterations
+					, (double) perPixelTime / Math.max(1, convertedTime)));
+		}
+	}
+
+	/**
+	 * Raw encoding with per-pixel transform, as before: each pixel format field is read, and divisions are done, for each pixel.
+	 * Result must be same as one of {@link RawEncoder}.
+	 */
+	private static byte[] encodePerPixel(final TrueColorImage image, final SetPixelFormat pixelFormat) {
+
+		final byte[] result = new byte[pixelFormat.bitsPerPixel / 8 * image.raw.length];
+		final ByteBuffer buffer = ByteBuffer.wrap(result);
+
+		for (final int pixel : image.raw) {
+
+			final int red = ((pixel >> 16) & 0xFF) / (256 / (pixelFormat.redMax + 1));
+			final int green = ((pixel >> 8) & 0xFF) / (256 / (pixelFormat.greenMax + 1));
+			final int blue = (pixel & 0xFF) / (256 / (pixelFormat.blueMax + 1));
+
+			final int newPixel = (red << pixelFormat.redShift) | (green << pixelFormat.greenShift) | (blue << pixelFormat.blueShift);
+
+			final boolean littleEndian = pixelFormat.bigEndianFlag == 0;
+
+			if (pixelFormat.bitsPerPixel == 8) {
+
+				buffer.put((byte) newPixel);
+			}
+			else if (pixelFormat.bitsPerPixel == 16) {
+
+				buffer.putShort(littleEndian == true ? Short.reverseBytes((short) newPixel) : (short) newPixel);
+			}
+			else {
+
+				buffer.putInt(littleEndian == true ? Integer.reverseBytes(newPixel) : newPixel);
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,353 @@
+package com.scoreunit.rfb.encoding;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ZRLEEncoderTest {
+
+	/**
+	 * Test image with one part for each subencoding:
+	 * solid background, two-colour text, few-colour stripes, many-colour runs and noise.
+	 * Image dimension is not divisible by tile size.
+	 */
+	private static TrueColorImage testImage(final int width, final int height) {
+
+		final Random random = new Random(1);
+
+		final int[] raw = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int pixel;
+
+				if (y < 64) {
+
+					// Solid tiles.
+					pixel = 0xFF336699;
+				}
+				else if (y < 128) {
+
+					// Two colour tiles, eg. text.
+					pixel = ((x * 7 + y * 3) % 11) < 4 ? 0xFF000000 : 0xFFFFFFFF;
+				}
+				else if (y < 192) {
+
+					// Few colours, in long runs.
+					pixel = 0xFF000000 | (((x / 20) * 40) << 8);
+				}
+				else if (y < 256) {
+
+					// Many colours, in long runs.
+					pixel = 0xFF000000 | ((x / 4) << 16) | (y << 8);
+				}
+				else {
+
+					pixel = random.nextInt();
+				}
+
+				raw[x + y * width] = pixel;
+			}
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	/**
+	 * Decode ZRLE rectangle, as VNC client would do.
+	 * <p>
+	 * Logic is taken from <b>VncCanvas</b> class, method <i>void handleZRLERect(int x, int y, int w, int h)</i>,
+	 * and extended to any pixel format.
+	 * <p>
+	 * Ref.
+	 *  <a href="https://www.tightvnc.com/download/1.3.10/tightvnc-1.3.10_javasrc.zip">Java VNC Viewer source code</a>
+	 *
+	 * @param encodedData	-	encoded rectangle
+	 * @param width			-	rectangle width
+	 * @param height		-	rectangle height
+	 * @param cpixelSize	-	size of <i>CPIXEL</i> value
+	 * @param inflater		-	zlib stream, for whole RFB connection
+	 * @param subencodings	-	here are stored subencoding types that were found
+	 *
+	 * @return	pixel values, with bytes in same order as they were on the wire
+	 */
+	private static int[] decode(final byte[] encodedData, final int width, final int height
+			, final int cpixelSize, final Inflater inflater, final Set<Integer> subencodings) throws IOException {
+
+		final DataInputStream encoded = new DataInputStream(new ByteArrayInputStream(encodedData));
+
+		final int length = encoded.readInt();
+		assertEquals(encodedData.length - 4, length);
+
+		inflater.setInput(encodedData, 4, length);
+
+		final DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(new byte[0]), inflater) {
+
+			@Override
+			protected void fill() throws IOException {
+
+				throw new IOException("Rectangle data is incomplete.");
+			}
+		});
+
+		final int[] result = new int[width * height];
+
+		final int[] palette = new int[128];
+
+		for (int ty = 0 ; ty < height ; ty += 64) {
+
+			final int th = Math.min(64, height - ty);
+
+			for (int tx = 0 ; tx < width ; tx += 64) {
+
+				final int tw = Math.min(64, width - tx);
+
+				final int mode = in.readUnsignedByte();
+				subencodings.add(mode);
+
+				final boolean rle = (mode & 128) != 0;
+				final int paletteSize = mode & 127;
+
+				for (int i = 0 ; i < paletteSize ; i++) {
+
+					palette[i] = readPixel(in, cpixelSize);
+				}
+
+				if (paletteSize == 1) {
+
+					for (int y = ty ; y < ty + th ; y++) {
+
+						for (int x = tx ; x < tx + tw ; x++) {
+
+							result[x + y * width] = palette[0];
+						}
+					}
+
+					continue;
+				}
+
+				final int[] tile = new int[tw * th];
+
+				if (rle == false) {
+
+					if (paletteSize == 0) {
+
+						for (int i = 0 ; i < tile.length ; i++) {
+
+							tile[i] = readPixel(in, cpixelSize);
+						}
+					}
+					else {
+
+						final int bits = (paletteSize > 16) ? 8 : (paletteSize > 4) ? 4 : (paletteSize > 2) ? 2 : 1;
+
+						for (int y = 0 ; y < th ; y++) {
+
+							int b = 0, nbits = 0;
+
+							for (int x = 0 ; x < tw ; x++) {
+
+								if (nbits == 0) {
+
+									b = in.readUnsignedByte();
+									nbits = 8;
+								}
+
+								nbits -= bits;
+
+								tile[x + y * tw] = palette[(b >> nbits) & ((1 << bits) - 1)];
+							}
+						}
+					}
+				}
+				else {
+
+					int i = 0;
+
+					while (i < tile.length) {
+
+						final int pixel;
+						int runLength = 1;
+
+						if (paletteSize == 0) {
+
+							pixel = readPixel(in, cpixelSize);
+							runLength = readRunLength(in);
+						}
+						else {
+
+							final int index = in.readUnsignedByte();
+
+							pixel = palette[index & 127];
+
+							if ((index & 128) != 0) {
+
+								runLength = readRunLength(in);
+							}
+						}
+
+						assertTrue(i + runLength <= tile.length);
+
+						for (int j = 0 ; j < runLength ; j++) {
+
+							tile[i++] = pixel;
+						}
+					}
+				}
+
+				for (int y = 0 ; y < th ; y++) {
+
+					System.arraycopy(tile, y * tw, result, tx + (ty + y) * width, tw);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static int readPixel(final DataInputStream in, final int cpixelSize) throws IOException {
+
+		int pixel = 0;
+
+		for (int i = 0 ; i < cpixelSize ; i++) {
+
+			pixel = (pixel << 8) | in.readUnsignedByte();
+		}
+
+		return pixel;
+	}
+
+	private static int readRunLength(final DataInputStream in) throws IOException {
+
+		int runLength = 1, b;
+
+		do {
+
+			b = in.readUnsignedByte();
+			runLength += b;
+
+		} while (b == 255);
+
+		return runLength;
+	}
+
+	/**
+	 * Expected pixel values, as bytes on the wire.
+	 */
+	private static int[] expected(final TrueColorImage image, final SetPixelFormat pixelFormat) {
+
+		final int[] result = new int[image.raw.length];
+
+		for (int i = 0 ; i < result.length ; i++) {
+
+			final int pixel = PixelTransform.transform(image.raw[i], pixelFormat);
+
+			if (pixelFormat.bitsPerPixel == 8) {
+
+				result[i] = pixel & 0xFF;
+			}
+			else {
+
+				// Default 32-bit pixel format is little-endian, with blue, green and red in first 3 bytes.
+				result[i] = pixel >>> 8;
+			}
+		}
+
+		return result;
+	}
+
+	@Test
+	public void test_01_getType() {
+
+		final ZRLEEncoder encoder = new ZRLEEncoder();
+
+		assertEquals(Encodings.ZRLE, encoder.getType());
+		assertTrue(encoder.isStateful());
+	}
+
+	@Test
+	public void test_02_encodeDecode32bit() throws IOException {
+
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		final ZRLEEncoder encoder = new ZRLEEncoder();
+		final Inflater inflater = new Inflater();
+		final Set<Integer> subencodings = new TreeSet<>();
+
+		final TrueColorImage image = testImage(300, 300);
+
+		// Zlib stream is same for all rectangles.
+		for (int i = 0 ; i < 3 ; i++) {
+
+			final byte[] encodedData = encoder.encode(image, pixelFormat);
+
+			// Default pixel format has 3-byte CPIXEL values.
+			final int[] decoded = decode(encodedData, image.width, image.height, 3, inflater, subencodings);
+
+			assertArrayEquals(expected(image, pixelFormat), decoded);
+		}
+
+		assertTrue(subencodings.toString(), subencodings.contains(ZRLEEncoder.SUBENCODING_RAW));
+		assertTrue(subencodings.toString(), subencodings.contains(ZRLEEncoder.SUBENCODING_SOLID));
+		assertTrue(subencodings.toString(), subencodings.contains(2));
+		assertTrue(subencodings.toString(), subencodings.contains(ZRLEEncoder.SUBENCODING_PLAIN_RLE));
+		assertTrue(subencodings.toString(), subencodings.stream().anyMatch(mode -> mode > 2 && mode <= 16 || mode > 129));
+	}
+
+	@Test
+	public void test_03_encodeDecode8bit() throws IOException {
+
+		final byte bitsPerPixel = 8, depth = 8;
+		final byte bigEndianFlag = 0, trueColorFlag = 1;
+		final short redMax = 7, greenMax = 7, blueMax = 3;
+		final byte redShift = 5, greenShift = 2, blueShift = 0;
+
+		final SetPixelFormat pixelFormat = new SetPixelFormat(bitsPerPixel, depth
+				, bigEndianFlag, trueColorFlag
+				, redMax, greenMax, blueMax
+				, redShift, greenShift, blueShift);
+
+		final ZRLEEncoder encoder = new ZRLEEncoder();
+		final Inflater inflater = new Inflater();
+		final Set<Integer> subencodings = new TreeSet<>();
+
+		final TrueColorImage image = testImage(130, 300);
+
+		final byte[] encodedData = encoder.encode(image, pixelFormat);
+
+		assertArrayEquals(expected(image, pixelFormat), decode(encodedData, image.width, image.height, 1, inflater, subencodings));
+	}
+
+	@Test
+	public void test_04_smallerThanRaw() {
+
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		final TrueColorImage image = testImage(640, 256);
+
+		final int zrleSize = new ZRLEEncoder().encode(image, pixelFormat).length;
+		final int zlibSize = new ZlibEncoder().encode(image, pixelFormat).length;
+
+		// No noise in test image, so ZRLE should do better than zlib compression of raw pixels.
+		assertTrue(String.format("ZRLE: %d bytes, zlib: %d bytes.", zrleSize, zlibSize), zrleSize < zlibSize);
+	}
+}
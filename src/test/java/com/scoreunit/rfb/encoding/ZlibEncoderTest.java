@@ -1,9 +1,12 @@
 package com.scoreunit.rfb.encoding;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -68,4 +71,57 @@ public class ZlibEncoderTest {
 		}
 	}
 
+	@Test
+	public void test_02_prepareAndCompress() throws DataFormatException {
+		
+		final ZlibEncoder encoder = new ZlibEncoder(), other = new ZlibEncoder();
+		
+		final int width = 100, height = 50;
+		final int[] image = new int[width * height];
+		
+		for (int i = 0 ; i < image.length ; i++) {
+			
+			image[i] = (i % width) * 0x010203;
+		}
+		
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+		
+		// Both steps together give same result as single step, also for next rectangle of same zlib stream.
+		for (int round = 0 ; round < 2 ; round++) {
+			
+			final EncodeBuffer prepared = new EncodeBuffer(16), encoded = new EncodeBuffer(16);
+			
+			encoder.prepareTo(new TrueColorImage(image, width, height), pixelFormat, prepared);
+			assertArrayEquals(new RawEncoder().encode(new TrueColorImage(image, width, height), pixelFormat), prepared.toByteArray());
+			
+			encoder.compressTo(prepared, encoded);
+			
+			assertArrayEquals(other.encode(new TrueColorImage(image, width, height), pixelFormat), encoded.toByteArray());
+		}
+	}
+	
+	@Test
+	public void test_03_deflateBound() {
+		
+		final Random random = new Random(1);
+		
+		for (final int level : new int[] {0, 1, 6, 9}) {
+			
+			final ZlibStream stream = new ZlibStream(level);
+			
+			for (final int length : new int[] {0, 1, 100, 4096, 65535, 65536, 200000}) {
+				
+				// Random data does not compress at all.
+				final byte[] input = new byte[length];
+				random.nextBytes(input);
+				
+				final EncodeBuffer out = new EncodeBuffer(16);
+				
+				stream.compressTo(input, 0, length, out);
+				
+				assertTrue(String.format("Level %d, length %d, compressed %d.", level, length, out.length())
+						, out.length() <= ZlibStream.deflateBound(length));
+			}
+		}
+	}
 }
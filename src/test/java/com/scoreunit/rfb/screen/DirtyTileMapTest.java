@@ -0,0 +1,120 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class DirtyTileMapTest {
+
+	@Test
+	public void test_01_dimension() {
+
+		final DirtyTileMap map = new DirtyTileMap(100, 40);
+
+		// 100 / 16 = 6.25 and 40 / 16 = 2.5, edge tiles are included.
+		assertEquals(7, map.getTilesX());
+		assertEquals(3, map.getTilesY());
+		assertEquals(21, map.getTileCount());
+		assertTrue(map.isEmpty());
+
+		final int lastTile = map.getTileCount() - 1;
+		assertEquals(96, map.tileX(lastTile));
+		assertEquals(32, map.tileY(lastTile));
+		assertEquals(4, map.tileWidth(lastTile));
+		assertEquals(8, map.tileHeight(lastTile));
+	}
+
+	@Test
+	public void test_02_setClearIterate() {
+
+		final DirtyTileMap map = new DirtyTileMap(1920, 1080);
+
+		map.set(0, 0);
+		map.set(5, 3);
+		map.set(map.getTileCount() - 1);
+
+		assertEquals(3, map.count());
+		assertTrue(map.isSet(5, 3));
+		assertFalse(map.isSet(4, 3));
+
+		int found = 0;
+		for (int index = map.nextSetBit(0) ; index >= 0 ; index = map.nextSetBit(index + 1)) {
+
+			found++;
+		}
+		assertEquals(3, found);
+
+		map.clear(5, 3);
+		assertEquals(2, map.count());
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(-1, map.nextSetBit(0));
+	}
+
+	@Test
+	public void test_03_setAll() {
+
+		final DirtyTileMap map = new DirtyTileMap(100, 40);
+
+		map.setAll();
+		assertEquals(map.getTileCount(), map.count());
+
+		// Smaller dimension, same array, all tiles are clean after resize.
+		map.resize(20, 20);
+		assertTrue(map.isEmpty());
+
+		map.setAll();
+		assertEquals(4, map.count());
+	}
+
+	@Test
+	public void test_04_or() {
+
+		final DirtyTileMap map1 = new DirtyTileMap(64, 64);
+		final DirtyTileMap map2 = new DirtyTileMap(64, 64);
+
+		map1.set(0, 0);
+		map2.set(3, 3);
+
+		map1.or(map2);
+		assertEquals(2, map1.count());
+		assertTrue(map1.isSet(3, 3));
+
+		final DirtyTileMap copy = new DirtyTileMap(0, 0);
+		copy.copyFrom(map1);
+		assertEquals(2, copy.count());
+		assertEquals(64, copy.getWidth());
+	}
+
+	@Test
+	public void test_05_area() {
+
+		final DirtyTileMap map = new DirtyTileMap(100, 40);
+
+		// Tiles which overlap area, area is clipped to image.
+		map.setArea(10, 10, 20, 10);
+		assertEquals(4, map.count());
+		assertTrue(map.isSet(1, 1));
+
+		map.setArea(90, 30, 100, 100);
+		assertEquals(8, map.count());
+		assertTrue(map.isSet(6, 2));
+
+		map.setArea(-10, -10, 5, 5);
+		map.setArea(200, 0, 10, 10);
+		assertEquals(8, map.count());
+
+		final DirtyTileMap other = new DirtyTileMap(100, 40);
+		other.setArea(0, 0, 16, 32);
+
+		map.and(other);
+		assertEquals(2, map.count());
+		assertTrue(map.isSet(0, 1));
+	}
+}
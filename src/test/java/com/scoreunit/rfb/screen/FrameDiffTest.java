@@ -0,0 +1,220 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.Benchmark;
+import com.scoreunit.rfb.encoding.Tile;
+import com.scoreunit.rfb.image.TrueColorImage;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FrameDiffTest {
+
+	private static TrueColorImage randomImage(final int width, final int height, final long seed) {
+
+		final Random random = new Random(seed);
+
+		final int[] raw = new int[width * height];
+
+		for (int i = 0 ; i < raw.length ; i++) {
+
+			raw[i] = random.nextInt();
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	private static TrueColorImage copy(final TrueColorImage image) {
+
+		return new TrueColorImage(image.raw.clone(), image.width, image.height);
+	}
+
+	@Test
+	public void test_01_firstFrame() {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final TrueColorImage image = randomImage(100, 40, 1);
+
+		// All tiles are changed on first comparison, including edge tiles.
+		assertEquals(21, diff.diff(image, dirty));
+		assertEquals(21, dirty.count());
+		assertArrayEquals(image.raw, diff.getPrevious());
+	}
+
+	@Test
+	public void test_02_changedPixels() {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final TrueColorImage image1 = randomImage(100, 40, 1);
+		diff.diff(image1, dirty);
+		dirty.clear();
+
+		// Same image, no changes.
+		assertEquals(0, diff.diff(copy(image1), dirty));
+		assertTrue(dirty.isEmpty());
+
+		final TrueColorImage image2 = copy(image1);
+		image2.setPixel(0, 0, ~image2.getPixel(0, 0));		// tile (0, 0)
+		image2.setPixel(17, 15, ~image2.getPixel(17, 15));	// tile (1, 0)
+		image2.setPixel(99, 39, ~image2.getPixel(99, 39));	// tile (6, 2), edge tile
+
+		assertEquals(3, diff.diff(image2, dirty));
+		assertTrue(dirty.isSet(0, 0));
+		assertTrue(dirty.isSet(1, 0));
+		assertTrue(dirty.isSet(6, 2));
+
+		// Previous image should be updated with changed tiles.
+		assertArrayEquals(image2.raw, diff.getPrevious());
+	}
+
+	@Test
+	public void test_03_resetAndResize() {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final TrueColorImage image = randomImage(64, 64, 1);
+		diff.diff(image, dirty);
+
+		diff.reset();
+		dirty.clear();
+		assertEquals(16, diff.diff(copy(image), dirty));
+
+		dirty.clear();
+		assertEquals(4, diff.diff(randomImage(32, 32, 2), dirty));
+		assertEquals(32, diff.getWidth());
+	}
+
+	@Test
+	public void test_05_region() {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final TrueColorImage image = randomImage(100, 40, 1);
+
+		// Previous image is not known.
+		assertEquals(-1, diff.compareRegion(new TrueColorImage(new int[16 * 16], 16, 16), 0, 0, dirty));
+
+		diff.diff(image, dirty);
+		dirty.clear();
+
+		// Region of 36x24 pixels at (64, 16), up to right and bottom edge of image.
+		final TrueColorImage changed = copy(image);
+		changed.setPixel(70, 20, ~changed.getPixel(70, 20));	// tile (4, 1)
+		changed.setPixel(99, 39, ~changed.getPixel(99, 39));	// tile (6, 2), edge tile
+		changed.setPixel(0, 0, ~changed.getPixel(0, 0));		// tile (0, 0), outside of region
+
+		final TrueColorImage region = TrueColorImage.subImage(changed, 64, 16, 36, 24);
+
+		assertEquals(2, diff.compareRegion(region, 64, 16, dirty));
+		assertTrue(dirty.isSet(4, 1));
+		assertTrue(dirty.isSet(6, 2));
+		assertEquals(2, dirty.count());
+
+		diff.updateRegion(region, 64, 16, dirty);
+
+		// Rest of screen is found changed by next full comparison.
+		dirty.clear();
+		assertEquals(1, diff.diff(changed, dirty));
+		assertTrue(dirty.isSet(0, 0));
+		assertArrayEquals(changed.raw, diff.getPrevious());
+
+		// Region must start at tile boundary.
+		try {
+
+			diff.compareRegion(region, 60, 16, dirty);
+
+			assertTrue(false);
+		}
+		catch (final IllegalArgumentException exception) {
+
+			// Expected.
+		}
+	}
+
+	/**
+	 * Compare speed of in-place comparison with comparison of tile objects,
+	 * as {@link Tile#build(int[], int, int)} and {@link Tile#equals(Object)}.
+	 * <p>
+	 * Typical frame with small change (blinking cursor, clock) is used.
+	 */
+	@Test
+	@Category(Benchmark.class)
+	public void test_04_benchmark() {
+
+		final int width = 1920, height = 1080, iterations = 50;
+
+		final TrueColorImage image1 = randomImage(width, height, 1);
+		final TrueColorImage image2 = copy(image1);
+		image2.setPixel(1000, 500, ~image2.getPixel(1000, 500));
+
+		//
+		// Previous approach, build tiles on each frame and compare them pair-wise.
+		//
+
+		int changedTiles = 0;
+		List<Tile> lastImage = Tile.build(image1.raw, width, height);
+
+		final long tileStartedAt = System.nanoTime();
+		for (int i = 0 ; i < iterations ; i++) {
+
+			final TrueColorImage image = (i % 2 == 0) ? image2 : image1;
+
+			final List<Tile> newImage = Tile.build(image.raw, width, height);
+
+			changedTiles = 0;
+			for (int index = 0 ; index < newImage.size() ; index++) {
+
+				if (lastImage.get(index).equals(newImage.get(index)) == false) {
+
+					changedTiles++;
+				}
+			}
+
+			lastImage = newImage;
+		}
+		final long tileTime = System.nanoTime() - tileStartedAt;
+
+		//
+		// In-place comparison.
+		//
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(width, height);
+		diff.diff(image1, dirty);
+
+		int changedDiff = 0;
+
+		final long diffStartedAt = System.nanoTime();
+		for (int i = 0 ; i < iterations ; i++) {
+
+			final TrueColorImage image = (i % 2 == 0) ? image2 : image1;
+
+			dirty.clear();
+			changedDiff = diff.diff(image, dirty);
+		}
+		final long diffTime = System.nanoTime() - diffStartedAt;
+
+		assertEquals(1, changedTiles);
+		assertEquals(1, changedDiff);
+
+		System.out.println(String.format("%s: %dx%d frame, Tile.build + equals: %.2f ms/frame, FrameDiff: %.2f ms/frame, speed-up: %.1fx"
+				, FrameDiffTest.class.getSimpleName(), width, height
+				, tileTime / 1e6 / iterations, diffTime / 1e6 / iterations
+				, (double) tileTime / Math.max(1, diffTime)));
+	}
+}
@@ -0,0 +1,197 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MotionDetectorTest {
+
+	/**
+	 * Desktop background, with smooth gradient.
+	 */
+	private static TrueColorImage desktop(final int width, final int height) {
+
+		final int[] raw = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				raw[x + y * width] = 0xFF000000 | ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | 0x80;
+			}
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	/**
+	 * Draw window with random content at given position. Content is scrolled by given number of lines.
+	 */
+	private static TrueColorImage drawWindow(final TrueColorImage background
+			, final int xPos, final int yPos, final int width, final int height, final int scroll) {
+
+		final TrueColorImage image = new TrueColorImage(background.raw.clone(), background.width, background.height);
+
+		for (int y = 0 ; y < height ; y++) {
+
+			final Random random = new Random(y + scroll);
+
+			for (int x = 0 ; x < width ; x++) {
+
+				image.setPixel(xPos + x, yPos + y, random.nextInt(4) == 0 ? 0xFF000000 : 0xFFFFFFFF);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * Act as VNC client: apply <i>CopyRect</i> rectangles, in given order, to previous image,
+	 * then draw remaining changed tiles from new image. Result should be equal to new image.
+	 */
+	private static int[] client(final int[] previous, final TrueColorImage image
+			, final List<Rectangle> rectangles, final int dx, final int dy, final DirtyTileMap remaining) {
+
+		final int width = image.width;
+		final int[] result = previous.clone();
+
+		for (final Rectangle rectangle : rectangles) {
+
+			final int[] copy = new int[rectangle.width * rectangle.height];
+
+			for (int y = 0 ; y < rectangle.height ; y++) {
+
+				System.arraycopy(result, rectangle.x - dx + (rectangle.y - dy + y) * width, copy, y * rectangle.width, rectangle.width);
+			}
+
+			for (int y = 0 ; y < rectangle.height ; y++) {
+
+				System.arraycopy(copy, y * rectangle.width, result, rectangle.x + (rectangle.y + y) * width, rectangle.width);
+			}
+		}
+
+		for (int index = remaining.nextSetBit(0) ; index >= 0 ; index = remaining.nextSetBit(index + 1)) {
+
+			for (int y = remaining.tileY(index) ; y < remaining.tileY(index) + remaining.tileHeight(index) ; y++) {
+
+				final int offset = remaining.tileX(index) + y * width;
+
+				System.arraycopy(image.raw, offset, result, offset, remaining.tileWidth(index));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Detect motion between two images, and check that VNC client would get new image.
+	 *
+	 * @return	number of tiles which should be encoded with normal encoder
+	 */
+	private static int detect(final MotionDetector detector, final TrueColorImage image1, final TrueColorImage image2
+			, final int dx, final int dy) {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		diff.diff(image1, dirty);
+		dirty.clear();
+
+		assertTrue(diff.hasPrevious(image2));
+		diff.compare(image2, dirty);
+
+		final int changed = dirty.count();
+
+		final int[] previous = diff.getPrevious().clone();
+		final List<Rectangle> rectangles = detector.detect(previous, image2, dirty);
+
+		assertTrue(rectangles.size() > 0);
+		assertEquals(dx, detector.getDeltaX());
+		assertEquals(dy, detector.getDeltaY());
+
+		// Changed tiles are not modified by detection.
+		assertEquals(changed, dirty.count());
+
+		dirty.andNot(detector.getMovedTiles());
+
+		assertArrayEquals(image2.raw, client(previous, image2, rectangles, dx, dy, dirty));
+
+		return dirty.count();
+	}
+
+	@Test
+	public void test_01_noMotion() {
+
+		final MotionDetector detector = new MotionDetector();
+
+		final TrueColorImage background = desktop(320, 240);
+		final TrueColorImage image1 = drawWindow(background, 20, 20, 200, 150, 0);
+		final TrueColorImage image2 = drawWindow(background, 20, 20, 200, 150, 1000);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+		final FrameDiff diff = new FrameDiff();
+		diff.diff(image1, dirty);
+		dirty.clear();
+		diff.compare(image2, dirty);
+
+		// Content of window is replaced, nothing is moved.
+		assertTrue(detector.detect(diff.getPrevious(), image2, dirty).isEmpty());
+		assertTrue(detector.getMovedTiles().isEmpty());
+	}
+
+	@Test
+	public void test_02_scrollUp() {
+
+		final MotionDetector detector = new MotionDetector();
+
+		final TrueColorImage background = desktop(800, 600);
+		final TrueColorImage image1 = drawWindow(background, 100, 64, 600, 400, 0);
+		final TrueColorImage image2 = drawWindow(background, 100, 64, 600, 400, 37);
+
+		// Content moves up, only strip at bottom of window is new.
+		final int remaining = detect(detector, image1, image2, 0, -37);
+
+		// Window area is 38 x 25 tiles, only left and right edge of window and strip at bottom remain.
+		assertTrue(String.format("Remaining %d tiles.", remaining), remaining < 200);
+	}
+
+	@Test
+	public void test_03_scrollDown() {
+
+		final MotionDetector detector = new MotionDetector();
+
+		final TrueColorImage background = desktop(800, 600);
+		final TrueColorImage image1 = drawWindow(background, 100, 64, 600, 400, 37);
+		final TrueColorImage image2 = drawWindow(background, 100, 64, 600, 400, 0);
+
+		final int remaining = detect(detector, image1, image2, 0, 37);
+
+		assertTrue(String.format("Remaining %d tiles.", remaining), remaining < 200);
+	}
+
+	@Test
+	public void test_04_windowMove() {
+
+		final MotionDetector detector = new MotionDetector();
+
+		final TrueColorImage background = desktop(1024, 768);
+		final TrueColorImage image1 = drawWindow(background, 100, 100, 400, 300, 0);
+		final TrueColorImage image2 = drawWindow(background, 173, 141, 400, 300, 0);
+
+		final int remaining = detect(detector, image1, image2, 73, 41);
+
+		// Window area is 25 x 19 tiles, only edges of window and exposed background remain.
+		assertTrue(String.format("Remaining %d tiles.", remaining), remaining < 25 * 19);
+	}
+}
@@ -0,0 +1,289 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.encoding.EncodingInterface;
+import com.scoreunit.rfb.encoding.RawEncoder;
+import com.scoreunit.rfb.encoding.ZlibEncoder;
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RectangleMergerTest {
+
+	/**
+	 * Size of rectangle header in frame buffer update message: x, y, width, height and encoding type.
+	 */
+	private final static int HEADER_SIZE = 12;
+
+	/**
+	 * Desktop background, with smooth gradient.
+	 */
+	private static TrueColorImage desktop(final int width, final int height) {
+
+		final int[] raw = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				raw[x + y * width] = 0xFF000000 | ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | 0x80;
+			}
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	/**
+	 * Draw window with lines of text-like content at given position.
+	 */
+	private static TrueColorImage drawWindow(final TrueColorImage background
+			, final int xPos, final int yPos, final int width, final int height, final int scroll) {
+
+		final TrueColorImage image = new TrueColorImage(background.raw.clone(), background.width, background.height);
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int line = y + scroll;
+
+				final boolean text = (line % 14) < 9 && ((x * 7 + line * 3) % 11) < 4;
+
+				image.setPixel(xPos + x, yPos + y, text ? 0xFF000000 : 0xFFFFFFFF);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * Encode each rectangle, and count total number of bytes, including rectangle header.
+	 */
+	private static int encodedSize(final TrueColorImage image, final List<Rectangle> rectangles, final EncodingInterface encoder) {
+
+		final SetPixelFormat pixelFormat = SetPixelFormat.default32bit();
+
+		int result = 0;
+
+		for (final Rectangle rectangle : rectangles) {
+
+			final TrueColorImage part = TrueColorImage.subImage(image, rectangle.x, rectangle.y, rectangle.width, rectangle.height);
+
+			result += HEADER_SIZE + encoder.encode(part, pixelFormat).length;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Single rectangle for each dirty tile, as it was before merging.
+	 */
+	private static List<Rectangle> tiles(final DirtyTileMap dirty) {
+
+		final List<Rectangle> result = new ArrayList<>();
+
+		for (int index = dirty.nextSetBit(0) ; index >= 0 ; index = dirty.nextSetBit(index + 1)) {
+
+			result.add(new Rectangle(dirty.tileX(index), dirty.tileY(index), dirty.tileWidth(index), dirty.tileHeight(index)));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check that each dirty tile is covered by exactly one rectangle, and no clean tile is covered.
+	 */
+	private static void assertCovers(final DirtyTileMap dirty, final List<Rectangle> rectangles) {
+
+		final int[] covered = new int[dirty.getTileCount()];
+
+		for (final Rectangle rectangle : rectangles) {
+
+			for (int y = rectangle.y ; y < rectangle.y + rectangle.height ; y += DirtyTileMap.TILE_SIZE) {
+
+				for (int x = rectangle.x ; x < rectangle.x + rectangle.width ; x += DirtyTileMap.TILE_SIZE) {
+
+					covered[x / DirtyTileMap.TILE_SIZE + (y / DirtyTileMap.TILE_SIZE) * dirty.getTilesX()]++;
+				}
+			}
+		}
+
+		for (int index = 0 ; index < covered.length ; index++) {
+
+			assertEquals("Tile " + index, dirty.isSet(index) ? 1 : 0, covered[index]);
+		}
+	}
+
+	@Test
+	public void test_01_merge() {
+
+		final DirtyTileMap dirty = new DirtyTileMap(100, 40);
+
+		final RectangleMerger merger = new RectangleMerger();
+
+		// No dirty tiles.
+		assertTrue(merger.merge(dirty).isEmpty());
+		assertNull(RectangleMerger.bounds(dirty));
+
+		// Block of 2x2 tiles, and single edge tile.
+		dirty.set(0, 0);
+		dirty.set(1, 0);
+		dirty.set(0, 1);
+		dirty.set(1, 1);
+		dirty.set(6, 2);
+
+		final List<Rectangle> rectangles = merger.merge(dirty);
+
+		assertEquals(2, rectangles.size());
+		assertEquals(new Rectangle(0, 0, 32, 32), rectangles.get(0));
+		assertEquals(new Rectangle(96, 32, 4, 8), rectangles.get(1));
+		assertCovers(dirty, rectangles);
+
+		assertEquals(new Rectangle(0, 0, 100, 40), RectangleMerger.bounds(dirty));
+
+		// Given map is not changed.
+		assertEquals(5, dirty.count());
+	}
+
+	@Test
+	public void test_02_maxRectangleSize() {
+
+		final DirtyTileMap dirty = new DirtyTileMap(100, 40);
+		dirty.setAll();
+
+		final RectangleMerger merger = new RectangleMerger(32);
+
+		final List<Rectangle> rectangles = merger.merge(dirty);
+
+		// 7 x 3 tiles, split into blocks of 2 x 2 tiles at most.
+		assertEquals(8, rectangles.size());
+		assertCovers(dirty, rectangles);
+
+		for (final Rectangle rectangle : rectangles) {
+
+			assertTrue(rectangle.width <= 32 && rectangle.height <= 32);
+		}
+
+		// Values smaller than tile are not allowed.
+		merger.setMaxRectangleSize(1);
+		assertEquals(DirtyTileMap.TILE_SIZE, merger.getMaxRectangleSize());
+		assertEquals(dirty.getTileCount(), merger.merge(dirty).size());
+	}
+
+	/**
+	 * Window is moved across desktop.
+	 * Both old and new window area are changed.
+	 */
+	@Test
+	public void test_03_windowMove() {
+
+		final TrueColorImage background = desktop(1024, 768);
+
+		final TrueColorImage image1 = drawWindow(background, 100, 100, 400, 300, 0);
+		final TrueColorImage image2 = drawWindow(background, 140, 124, 400, 300, 0);
+
+		compare("window move", image1, image2);
+	}
+
+	/**
+	 * Content of window is scrolled by few lines.
+	 * Complete window area is changed.
+	 */
+	@Test
+	public void test_04_scroll() {
+
+		final TrueColorImage background = desktop(1024, 768);
+
+		final TrueColorImage image1 = drawWindow(background, 100, 100, 600, 500, 0);
+		final TrueColorImage image2 = drawWindow(background, 100, 100, 600, 500, 28);
+
+		compare("scroll", image1, image2);
+	}
+
+	/**
+	 * Find changed tiles between two images, and compare number of rectangles
+	 * and encoded size with and without merging of tiles.
+	 */
+	private static void compare(final String name, final TrueColorImage image1, final TrueColorImage image2) {
+
+		final FrameDiff diff = new FrameDiff();
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		diff.diff(image1, dirty);
+		dirty.clear();
+		diff.diff(image2, dirty);
+
+		final List<Rectangle> tiles = tiles(dirty);
+		final List<Rectangle> rectangles = new RectangleMerger().merge(dirty);
+
+		assertCovers(dirty, rectangles);
+
+		assertTrue(name, rectangles.size() * 10 < tiles.size());
+
+		final int rawTiles = encodedSize(image2, tiles, new RawEncoder());
+		final int rawRectangles = encodedSize(image2, rectangles, new RawEncoder());
+
+		final int zlibTiles = encodedSize(image2, tiles, new ZlibEncoder());
+		final int zlibRectangles = encodedSize(image2, rectangles, new ZlibEncoder());
+
+		assertTrue(name, rawRectangles < rawTiles);
+		assertTrue(name, zlibRectangles < zlibTiles);
+	}
+
+	@Test
+	public void test_05_split() {
+
+		final List<Rectangle> rectangles = new ArrayList<>();
+
+		for (int y = 0 ; y < 8 ; y++) {
+
+			for (int x = 0 ; x < 4 ; x++) {
+
+				rectangles.add(new Rectangle(x * 64, y * 64, 64, 64));
+			}
+		}
+
+		// One large rectangle at end of list.
+		rectangles.add(new Rectangle(0, 512, 256, 256));
+
+		for (final int units : new int[] {1, 2, 3, 4, 8, 100}) {
+
+			final List<List<Rectangle>> split = RectangleMerger.split(rectangles, units);
+
+			assertTrue(split.size() >= 1 && split.size() <= Math.min(units, rectangles.size()));
+
+			// Work units put together keep order of rectangles.
+			final List<Rectangle> joined = new ArrayList<>();
+
+			for (final List<Rectangle> unit : split) {
+
+				assertTrue(unit.isEmpty() == false);
+
+				joined.addAll(unit);
+			}
+
+			assertEquals(rectangles, joined);
+		}
+
+		// Work units have about same number of pixels.
+		final List<List<Rectangle>> split = RectangleMerger.split(rectangles, 2);
+		assertEquals(2, split.size());
+		assertEquals(24, split.get(0).size());
+		assertEquals(9, split.get(1).size());
+
+		assertEquals(4, RectangleMerger.split(rectangles.subList(0, 32), 4).size());
+
+		assertTrue(RectangleMerger.split(new ArrayList<>(), 4).isEmpty());
+	}
+}
@@ -0,0 +1,274 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SharedFrameStoreTest {
+
+	private final static int WIDTH = 64, HEIGHT = 32;
+
+	/**
+	 * Frame with given tiles of first row changed, compared to frame with black image.
+	 */
+	private static ScreenFrame frame(final long generation, final int... tiles) {
+
+		final int[] raw = new int[WIDTH * HEIGHT];
+
+		for (final int tileX : tiles) {
+
+			raw[tileX * DirtyTileMap.TILE_SIZE] = 0xFFFFFF;
+		}
+
+		return new ScreenFrame(new TrueColorImage(raw, WIDTH, HEIGHT), generation, 0);
+	}
+
+	@Test
+	public void test_01_take() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber first = new SharedFrameStore.Subscriber(), second = new SharedFrameStore.Subscriber();
+
+		store.subscribe(first);
+		store.subscribe(second);
+		assertEquals(2, store.getSubscribers());
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		// All tiles first.
+		final ScreenFrame frame1 = frame(1);
+		assertSame(frame1.image, store.take(first, frame1, dirty));
+		assertEquals(8, dirty.count());
+		assertNull(first.getPrevious());
+
+		assertNull(store.take(first, frame1, dirty));
+
+		assertSame(frame1.image, store.take(second, frame1, dirty));
+		assertEquals(8, dirty.count());
+
+		// Frame is compared once, both subscribers get same tile, and previous image.
+		final ScreenFrame frame2 = frame(2, 1);
+		assertSame(frame2.image, store.take(first, frame2, dirty));
+		assertEquals(1, dirty.count());
+		assertTrue(dirty.isSet(1, 0));
+		assertSame(frame1.image, first.getPrevious());
+
+		assertSame(frame2.image, store.take(second, frame2, dirty));
+		assertEquals(1, dirty.count());
+		assertSame(frame1.image, second.getPrevious());
+
+		// New frame with same pixels.
+		assertNull(store.take(first, frame(3, 1), dirty));
+
+		assertEquals(2, store.getFrames());
+		assertEquals(0, store.getMergedUpdates());
+		assertEquals(WIDTH, store.getWidth());
+		assertEquals(HEIGHT, store.getHeight());
+
+		// Non-incremental update.
+		store.reset(second);
+		assertNotNull(store.take(second, frame(3, 1), dirty));
+		assertEquals(8, dirty.count());
+
+		assertFalse(store.unsubscribe(first));
+		assertTrue(store.unsubscribe(second));
+	}
+
+	@Test
+	public void test_02_mergedUpdate() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber fast = new SharedFrameStore.Subscriber(), slow = new SharedFrameStore.Subscriber();
+
+		store.subscribe(fast);
+		store.subscribe(slow);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		store.take(fast, frame(1), dirty);
+		store.take(slow, frame(1), dirty);
+
+		// Slow subscriber misses three frames.
+		store.take(fast, frame(2, 1), dirty);
+		store.take(fast, frame(3, 1, 2), dirty);
+		final ScreenFrame frame4 = frame(4, 2, 3);
+		store.take(fast, frame4, dirty);
+
+		assertSame(frame4.image, store.take(slow, frame(4, 2, 3), dirty));
+
+		assertEquals(3, dirty.count());
+		assertTrue(dirty.isSet(1, 0));
+		assertTrue(dirty.isSet(2, 0));
+		assertTrue(dirty.isSet(3, 0));
+		assertEquals(1, store.getMergedUpdates());
+
+		// VNC client does not have previous image, so motion is not detected.
+		assertNull(slow.getPrevious());
+
+		// Changed dimension.
+		final ScreenFrame large = new ScreenFrame(new TrueColorImage(new int[WIDTH * 2 * HEIGHT], WIDTH * 2, HEIGHT), 5, 0);
+		store.take(fast, large, dirty);
+		assertEquals(16, dirty.count());
+		assertNull(fast.getPrevious());
+
+		store.take(slow, large, dirty);
+		assertEquals(16, dirty.count());
+	}
+
+	@Test
+	public void test_03_region() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber first = new SharedFrameStore.Subscriber(), second = new SharedFrameStore.Subscriber();
+
+		store.subscribe(first);
+		store.subscribe(second);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final int[] region = new int[32 * 16];
+
+		// Image of store is not known yet.
+		assertEquals(-1, store.takeRegion(first, new TrueColorImage(region, 32, 16), 0, 0, dirty));
+
+		store.take(first, frame(1), dirty);
+		store.take(second, frame(1), dirty);
+
+		// First subscriber missed change of tile 2, and captures region of tiles 2 and 3, where tile 3 has changed.
+		store.take(second, frame(2, 2), dirty);
+
+		region[16] = 0xFFFFFF;
+		region[0] = 0xFFFFFF;
+
+		assertEquals(2, store.takeRegion(first, new TrueColorImage(region, 32, 16), 32, 0, dirty));
+		assertTrue(dirty.isSet(2, 0));
+		assertTrue(dirty.isSet(3, 0));
+
+		// Second subscriber takes changed tile of region, next frame has same pixels as region.
+		final ScreenFrame frame3 = frame(3, 2, 3);
+		final TrueColorImage image = store.take(second, frame3, dirty);
+
+		assertSame(frame3.image, image);
+		assertEquals(1, dirty.count());
+		assertTrue(dirty.isSet(3, 0));
+		assertEquals(0xFFFFFF, image.raw[3 * 16]);
+		assertEquals(0xFFFFFF, image.raw[2 * 16]);
+
+		assertNull(store.take(first, frame(3, 2, 3), dirty));
+
+		// Same region again.
+		assertEquals(0, store.takeRegion(first, new TrueColorImage(region, 32, 16), 32, 0, dirty));
+	}
+
+	@Test
+	public void test_04_areas() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber subscriber = new SharedFrameStore.Subscriber();
+
+		store.subscribe(subscriber);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		// First update of requested area only.
+		final List<Rectangle> left = Arrays.asList(new Rectangle(0, 0, 20, 10));
+
+		assertNotNull(store.take(subscriber, frame(1), dirty, left));
+		assertEquals(2, dirty.count());
+		assertTrue(dirty.isSet(1, 0));
+
+		assertNull(store.take(subscriber, frame(1), dirty, left));
+
+		// Changed tiles outside of requested area are kept, until area is requested.
+		assertNull(store.take(subscriber, frame(2, 0, 3), dirty, Arrays.asList(new Rectangle(16, 0, 16, 10))));
+		assertNotNull(store.take(subscriber, frame(2, 0, 3), dirty, left));
+		assertEquals(1, dirty.count());
+		assertTrue(dirty.isSet(0, 0));
+
+		// Lost area is marked again, motion can not be copied from it.
+		store.invalidate(subscriber, Arrays.asList(new Rectangle(16, 16, 1, 1)));
+
+		assertNotNull(store.take(subscriber, frame(2, 0, 3), dirty));
+		assertEquals(6, dirty.count());
+		assertTrue(dirty.isSet(1, 1));
+		assertTrue(dirty.isSet(3, 0));
+		assertNull(subscriber.getPrevious());
+	}
+
+	@Test
+	public void test_05_regionReverted() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber subscriber = new SharedFrameStore.Subscriber();
+
+		store.subscribe(subscriber);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final ScreenFrame frame = frame(1);
+
+		store.take(subscriber, frame, dirty);
+
+		// Highlight of tile 1, captured in region around mouse pointer.
+		final int[] region = new int[32 * 16];
+		region[16] = 0xFFFFFF;
+
+		assertEquals(1, store.takeRegion(subscriber, new TrueColorImage(region, 32, 16), 0, 0, dirty));
+
+		// Highlight is gone, shared capture gives same frame again.
+		assertSame(frame.image, store.take(subscriber, frame, dirty));
+		assertEquals(1, dirty.count());
+		assertTrue(dirty.isSet(1, 0));
+
+		assertNull(store.take(subscriber, frame, dirty));
+	}
+
+	@Test
+	public void test_06_regionOlderFrame() {
+
+		final SharedFrameStore store = new SharedFrameStore(null);
+		final SharedFrameStore.Subscriber first = new SharedFrameStore.Subscriber(), second = new SharedFrameStore.Subscriber();
+
+		store.subscribe(first);
+		store.subscribe(second);
+
+		final DirtyTileMap dirty = new DirtyTileMap(0, 0);
+
+		final ScreenFrame frame1 = frame(1);
+
+		store.take(first, frame1, dirty);
+		store.take(second, frame1, dirty);
+		store.take(first, frame(2), dirty);
+
+		// First subscriber stores tile 1 of region.
+		final int[] region = new int[32 * 16];
+		region[16] = 0xFFFFFF;
+
+		assertEquals(1, store.takeRegion(first, new TrueColorImage(region, 32, 16), 0, 0, dirty));
+
+		// Second subscriber still has older frame, which does not contain region.
+		assertNull(store.take(second, frame1, dirty));
+
+		final ScreenFrame frame3 = frame(3, 1);
+		assertSame(frame3.image, store.take(second, frame3, dirty));
+		assertEquals(1, dirty.count());
+		assertTrue(dirty.isSet(1, 0));
+
+		// Region has not changed stored image in place.
+		assertEquals(0, frame1.image.raw[16]);
+	}
+}
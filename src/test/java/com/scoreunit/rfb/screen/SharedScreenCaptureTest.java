@@ -0,0 +1,164 @@
+package com.scoreunit.rfb.screen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.image.TrueColorImage;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SharedScreenCaptureTest {
+
+	/**
+	 * Fake screen, which counts how many times screen was captured.
+	 */
+	static class CountingScreenCapture implements ScreenCaptureInterface {
+
+		final AtomicInteger captures = new AtomicInteger();
+
+		volatile int color = 0;
+
+		@Override
+		public TrueColorImage getScreenshot(int x, int y, int width, int height) throws Exception {
+
+			this.captures.incrementAndGet();
+
+			final int[] raw = new int[width * height];
+
+			for (int i = 0 ; i < raw.length ; i++) {
+
+				raw[i] = this.color;
+			}
+
+			return new TrueColorImage(raw, width, height);
+		}
+
+		@Override
+		public TrueColorImage getScreenshot() throws Exception {
+
+			return getScreenshot(0, 0, getScreenWidth(), getScreenHeight());
+		}
+
+		@Override
+		public int getScreenWidth() {
+
+			return 64;
+		}
+
+		@Override
+		public int getScreenHeight() {
+
+			return 48;
+		}
+	}
+
+	@Test
+	public void test_01_oneCapturePerInterval() throws Exception {
+
+		final CountingScreenCapture screen = new CountingScreenCapture();
+		final SharedScreenCapture sharedCapture = new SharedScreenCapture(screen);
+		sharedCapture.setInterval(TimeUnit.SECONDS.toMillis(10));
+
+		final int clients = 10;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(clients);
+
+		final List<Callable<ScreenFrame>> tasks = new ArrayList<>();
+		for (int i = 0 ; i < clients ; i++) {
+
+			tasks.add( () -> sharedCapture.getFrame(null) );
+		}
+
+		final List<Future<ScreenFrame>> results = executor.invokeAll(tasks);
+
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+
+		// All clients should get the same frame, captured only once.
+		assertEquals(1, screen.captures.get());
+
+		final ScreenFrame first = results.get(0).get();
+		for (final Future<ScreenFrame> result : results) {
+
+			assertSame(first, result.get());
+		}
+
+		assertEquals(64, first.image.width);
+		assertEquals(48, first.image.height);
+	}
+
+	@Test
+	public void test_02_generation() throws Exception {
+
+		final CountingScreenCapture screen = new CountingScreenCapture();
+		final SharedScreenCapture sharedCapture = new SharedScreenCapture(screen);
+		sharedCapture.setInterval(0); // Capture on each request.
+
+		final ScreenFrame frame1 = sharedCapture.getFrame(null);
+		final ScreenFrame frame2 = sharedCapture.getFrame(null);
+
+		// Screen did not change, generation should stay the same.
+		assertEquals(2, screen.captures.get());
+		assertSame(frame1, frame2);
+		assertEquals(frame1.generation, frame2.generation);
+
+		screen.color = 0xFF00FF;
+
+		final ScreenFrame frame3 = sharedCapture.getFrame(null);
+
+		assertTrue(frame3.generation > frame2.generation);
+		assertEquals(0xFF00FF, frame3.image.raw[0]);
+	}
+
+	@Test
+	public void test_03_screenClip() throws Exception {
+
+		final CountingScreenCapture screen = new CountingScreenCapture();
+		final SharedScreenCapture sharedCapture = new SharedScreenCapture(screen);
+		sharedCapture.setInterval(TimeUnit.SECONDS.toMillis(10));
+
+		final ScreenFrame fullScreen = sharedCapture.getFrame(null);
+		final ScreenFrame clip1 = sharedCapture.getFrame(new ScreenClip(0, 0, 32, 16));
+		final ScreenFrame clip2 = sharedCapture.getFrame(new ScreenClip(0, 0, 32, 16));
+
+		// Each distinct clip has its own frame.
+		assertEquals(2, screen.captures.get());
+		assertSame(clip1, clip2);
+		assertNotEquals(fullScreen.generation, clip1.generation);
+	}
+
+	@Test
+	public void test_04_invalidate() throws Exception {
+
+		final CountingScreenCapture screen = new CountingScreenCapture();
+		final SharedScreenCapture sharedCapture = new SharedScreenCapture(screen);
+		sharedCapture.setInterval(TimeUnit.SECONDS.toMillis(10));
+
+		final ScreenFrame frame1 = sharedCapture.getFrame(null);
+
+		sharedCapture.invalidate(null);
+
+		// Screen is captured again, but it did not change.
+		final ScreenFrame frame2 = sharedCapture.getFrame(null);
+
+		assertEquals(2, screen.captures.get());
+		assertSame(frame1, frame2);
+
+		sharedCapture.getFrame(null);
+		assertEquals(2, screen.captures.get());
+	}
+}
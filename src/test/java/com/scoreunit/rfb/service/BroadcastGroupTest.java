@@ -0,0 +1,188 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.screen.DirtyTileMap;
+import com.scoreunit.rfb.screen.ScreenFrame;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BroadcastGroupTest {
+
+	private final static int WIDTH = 64, HEIGHT = 32;
+
+	/**
+	 * Frame with tiles at given indexes changed, compared to frame 0.
+	 */
+	private static ScreenFrame frame(final long generation, final int... tiles) {
+
+		final int[] raw = new int[WIDTH * HEIGHT];
+
+		for (final int tileX : tiles) {
+
+			if (tileX >= 0) {
+
+				raw[tileX * DirtyTileMap.TILE_SIZE] = 0xFFFFFF;
+			}
+		}
+
+		return new ScreenFrame(new TrueColorImage(raw, WIDTH, HEIGHT), generation, 0);
+	}
+
+	private static BroadcastGroup.Key key(final int encodingType) {
+
+		return new BroadcastGroup.Key(SetPixelFormat.default32bit(), encodingType, -1, -1, null);
+	}
+
+	@Test
+	public void test_01_broadcast() throws Exception {
+
+		final BroadcastGroup group = new BroadcastGroup(key(Encodings.HEXTILE));
+
+		final BroadcastGroup.Member first = new BroadcastGroup.Member(), second = new BroadcastGroup.Member();
+
+		group.join(first);
+		group.join(second);
+		assertEquals(2, group.getMembers());
+
+		final AtomicInteger encoded = new AtomicInteger();
+
+		final BroadcastGroup.MessageEncoder encoder = (image, dirty) -> {
+
+			encoded.incrementAndGet();
+
+			return new byte[] {(byte) dirty.count()};
+		};
+
+		// First frame is full update, same message is sent to all members.
+		final BroadcastGroup.Update update = group.update(first, frame(1, -1), encoder);
+		assertArrayEquals(new byte[] {8}, update.message);
+		assertSame(update.message, group.update(second, frame(1, -1), encoder).message);
+
+		assertNull(group.update(first, frame(1, -1), encoder));
+		assertNull(group.update(second, frame(1, -1), encoder));
+
+		// Changed tile.
+		assertArrayEquals(new byte[] {1}, group.update(first, frame(2, 0), encoder).message);
+		assertArrayEquals(new byte[] {1}, group.update(second, frame(2, 0), encoder).message);
+
+		// Screen did not change, but frame is new.
+		assertNull(group.update(first, frame(3, 0), encoder));
+
+		assertEquals(2, encoded.get());
+		assertEquals(4, group.getBroadcasts());
+		assertEquals(0, group.getCatchUps());
+
+		assertFalse(group.leave(first));
+		assertTrue(group.leave(second));
+		assertTrue(group.leave(second));
+	}
+
+	@Test
+	public void test_02_catchUp() throws Exception {
+
+		final BroadcastGroup group = new BroadcastGroup(key(Encodings.RAW));
+
+		final BroadcastGroup.Member fast = new BroadcastGroup.Member(), slow = new BroadcastGroup.Member();
+
+		group.join(fast);
+		group.join(slow);
+
+		final BroadcastGroup.MessageEncoder encoder = (image, dirty) -> new byte[] {(byte) dirty.count()};
+
+		group.update(fast, frame(1, -1), encoder);
+		group.update(slow, frame(1, -1), encoder);
+
+		// Slow member misses two frames, with changes of different tiles.
+		group.update(fast, frame(2, 1), encoder);
+		group.update(fast, frame(3, 2), encoder);
+
+		final BroadcastGroup.Update update = group.update(slow, frame(3, 2), encoder);
+
+		assertNull(update.message);
+		assertEquals(2, update.dirtyTiles.count());
+		assertTrue(update.dirtyTiles.isSet(1, 0));
+		assertTrue(update.dirtyTiles.isSet(2, 0));
+		assertEquals(1, group.getCatchUps());
+
+		// Slow member is in sync again.
+		assertNull(group.update(slow, frame(3, 2), encoder));
+		assertNotNull(group.update(slow, frame(4, 3), encoder).message);
+
+		// Member which missed more frames than history keeps, and member which asks for full update, get all tiles.
+		for (int generation = 5 ; generation < 5 + BroadcastGroup.HISTORY + 1 ; generation++) {
+
+			group.update(fast, frame(generation, generation % 4), encoder);
+		}
+
+		assertEquals(8, group.update(slow, frame(5 + BroadcastGroup.HISTORY, 0), encoder).dirtyTiles.count());
+
+		fast.reset(group);
+		assertEquals(8, group.update(fast, frame(5 + BroadcastGroup.HISTORY, 0), encoder).dirtyTiles.count());
+	}
+
+	@Test
+	public void test_03_catchUpIdleFrame() throws Exception {
+
+		final BroadcastGroup group = new BroadcastGroup(key(Encodings.RAW));
+
+		final BroadcastGroup.Member fast = new BroadcastGroup.Member(), slow = new BroadcastGroup.Member();
+
+		group.join(fast);
+		group.join(slow);
+
+		final BroadcastGroup.MessageEncoder encoder = (image, dirty) -> new byte[] {(byte) dirty.count()};
+
+		group.update(fast, frame(1, -1), encoder);
+		group.update(slow, frame(1, -1), encoder);
+
+		// Slow member misses as many frames as history keeps, tile 3 is changed only in first of them.
+		long generation = 2;
+
+		for (int i = 0 ; i < BroadcastGroup.HISTORY ; i++, generation++) {
+
+			group.update(fast, frame(generation, 3, i % 2), encoder);
+		}
+
+		// New frame, but screen did not change.
+		group.update(fast, frame(generation, 3, 1), encoder);
+
+		final BroadcastGroup.Update update = group.update(slow, frame(generation, 3, 1), encoder);
+
+		assertNull(update.message);
+		assertEquals(3, update.dirtyTiles.count());
+		assertTrue(update.dirtyTiles.isSet(3, 0));
+		assertEquals(1, group.getCatchUps());
+	}
+
+	@Test
+	public void test_04_key() {
+
+		assertEquals(key(Encodings.RAW), key(Encodings.RAW));
+		assertEquals(key(Encodings.RAW).hashCode(), key(Encodings.RAW).hashCode());
+		assertNotEquals(key(Encodings.RAW), key(Encodings.HEXTILE));
+
+		final RFBConfig config = new RFBConfig();
+
+		final BroadcastGroup.Member first = new BroadcastGroup.Member(), second = new BroadcastGroup.Member();
+
+		final BroadcastGroup group = config.joinBroadcastGroup(key(Encodings.RAW), first);
+		assertSame(group, config.joinBroadcastGroup(key(Encodings.RAW), second));
+		assertNotSame(group, config.joinBroadcastGroup(key(Encodings.HEXTILE), first));
+
+		// Member of other group is still in first group, until it leaves.
+		assertEquals(2, config.getBroadcastGroups().size());
+
+		config.leaveBroadcastGroup(group, first);
+		config.leaveBroadcastGroup(group, second);
+
+		assertEquals(1, config.getBroadcastGroups().size());
+	}
+}
@@ -0,0 +1,80 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ConnectionEstimatorTest {
+
+	@Test
+	public void test_01_roundTripTime() throws Exception {
+
+		final ConnectionEstimator estimator = new ConnectionEstimator();
+
+		assertEquals(0, estimator.getRoundTripTime(), 0);
+		assertEquals(0, estimator.getFencesAnswered());
+
+		final byte[] first = estimator.fenceSent();
+		estimator.sent(100 * 1024);
+		final byte[] second = estimator.fenceSent();
+
+		assertEquals(2, estimator.getPendingFences());
+		assertTrue(estimator.canSendFence() == false);
+
+		TimeUnit.MILLISECONDS.sleep(20);
+
+		assertTrue(estimator.fenceAnswered(first));
+		assertTrue(estimator.getRoundTripTime() >= 20);
+		assertEquals(estimator.getRoundTripTime(), estimator.getMinRoundTripTime(), 0);
+
+		// Throughput is known after second answer.
+		assertEquals(0, estimator.getThroughput(), 0);
+
+		assertTrue(estimator.fenceAnswered(second));
+		assertTrue(estimator.getThroughput() > 0);
+		assertTrue(estimator.getThroughput() <= 100 * 1024 / 0.02);
+		assertEquals(0, estimator.getBytesInFlight());
+		assertEquals(2, estimator.getFencesAnswered());
+		assertTrue(estimator.canSendFence());
+
+		// Fence is answered only once, unknown payload is ignored.
+		assertTrue(estimator.fenceAnswered(second) == false);
+		assertTrue(estimator.fenceAnswered(new byte[] {1, 2}) == false);
+	}
+
+	@Test
+	public void test_02_congestion() throws Exception {
+
+		final ConnectionEstimator estimator = new ConnectionEstimator();
+
+		// Not congested, until VNC client answers first fence.
+		estimator.sent(10 * ConnectionEstimator.MIN_CONGESTION_WINDOW);
+		assertTrue(estimator.isCongested() == false);
+		assertEquals(8, estimator.adaptQualityLevel(8));
+
+		final byte[] fence = estimator.fenceSent();
+		estimator.sent(2 * ConnectionEstimator.MIN_CONGESTION_WINDOW);
+
+		assertTrue(estimator.fenceAnswered(fence));
+		assertEquals(2 * ConnectionEstimator.MIN_CONGESTION_WINDOW, estimator.getBytesInFlight());
+
+		// VNC client is behind, updates are postponed, with lower quality.
+		assertTrue(estimator.isCongested());
+		assertEquals(8 - ConnectionEstimator.QUALITY_LEVEL_STEP, estimator.adaptQualityLevel(8));
+		assertEquals(0, estimator.adaptQualityLevel(1));
+		assertEquals(-1, estimator.adaptQualityLevel(-1));
+
+		// VNC client catches up.
+		final byte[] next = estimator.fenceSent();
+		assertTrue(estimator.fenceAnswered(next));
+
+		assertTrue(estimator.isCongested() == false);
+		assertEquals(8, estimator.adaptQualityLevel(8));
+	}
+}
@@ -0,0 +1,36 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class EnableContinuousUpdatesTest {
+
+	@Test
+	public void test() throws IOException {
+
+		final byte[] buf = new byte[] {
+				1 // enable = true
+				, 0, 10 // x position
+				, 0, 20 // y position
+				, 0, 30 // width in pixel
+				, 0, 40 // height in pixel
+				};
+
+		final InputStream inputStream = new ByteArrayInputStream(buf);
+		EnableContinuousUpdates message = EnableContinuousUpdates.read(inputStream);
+
+		assertTrue(message.isEnabled());
+		assertEquals(10, message.xPosition);
+		assertEquals(20, message.yPosition);
+		assertEquals(30, message.width);
+		assertEquals(40, message.height);
+
+		assertEquals(10, ClientMessageHandler.messageLength(new byte[] {(byte) ClientMessageHandler.ENABLE_CONTINUOUS_UPDATES}, 0, 1));
+	}
+
+}
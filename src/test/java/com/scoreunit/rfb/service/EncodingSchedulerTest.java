@@ -0,0 +1,208 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class EncodingSchedulerTest {
+
+	@Test
+	public void test_01_invokeAll() throws Exception {
+
+		final EncodingScheduler scheduler = new EncodingScheduler("test", 4, false);
+
+		try {
+
+			final EncodingScheduler.Session session = scheduler.openSession("client-1");
+
+			final List<Callable<Integer>> tasks = new ArrayList<>();
+
+			for (int i = 0 ; i < 100 ; i++) {
+
+				final int value = i;
+				tasks.add(() -> value * value);
+			}
+
+			final List<Future<Integer>> futures = session.invokeAll(tasks);
+
+			for (int i = 0 ; i < futures.size() ; i++) {
+
+				assertEquals(i * i, futures.get(i).get().intValue());
+			}
+
+			assertEquals(0, scheduler.getQueueDepth());
+			assertEquals(0, session.getQueueDepth());
+			assertEquals(100, scheduler.getCompletedTasks() + scheduler.getCallerRunsTasks());
+			assertEquals(1, scheduler.getSessions().size());
+		}
+		finally {
+
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void test_02_fairQueuing() throws Exception {
+
+		final EncodingScheduler scheduler = new EncodingScheduler("test", 1, false);
+
+		try {
+
+			final CountDownLatch blocked = new CountDownLatch(1);
+
+			final EncodingScheduler.Session busy = scheduler.openSession("busy");
+			final EncodingScheduler.Session idle = scheduler.openSession("idle");
+
+			final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+			// Keep only worker busy, until all tasks are queued.
+			busy.submit(() -> {blocked.await(); return null;});
+			awaitActiveTask(scheduler);
+
+			final List<Future<?>> futures = new ArrayList<>();
+
+			for (int i = 0 ; i < 20 ; i++) {
+
+				futures.add(busy.submit(() -> order.add("busy")));
+			}
+
+			futures.add(idle.submit(() -> order.add("idle")));
+
+			assertEquals(20, busy.getQueueDepth());
+			assertEquals(1, idle.getQueueDepth());
+			assertEquals(21, scheduler.getQueueDepth());
+
+			blocked.countDown();
+
+			for (final Future<?> future : futures) {
+
+				future.get(5, TimeUnit.SECONDS);
+			}
+
+			// Task of idle session is not queued behind all tasks of busy session.
+			assertTrue(order.indexOf("idle") < 2);
+		}
+		finally {
+
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void test_03_cancelSession() throws Exception {
+
+		final EncodingScheduler scheduler = new EncodingScheduler("test", 1, false);
+
+		try {
+
+			final CountDownLatch blocked = new CountDownLatch(1);
+
+			final EncodingScheduler.Session cancelled = scheduler.openSession("cancelled");
+			final EncodingScheduler.Session other = scheduler.openSession("other");
+
+			cancelled.submit(() -> {blocked.await(); return null;});
+			awaitActiveTask(scheduler);
+
+			final List<Future<?>> futures = new ArrayList<>();
+
+			for (int i = 0 ; i < 10 ; i++) {
+
+				futures.add(cancelled.submit(() -> {}));
+			}
+
+			final Future<Integer> otherFuture = other.submit(() -> 42);
+
+			assertEquals(10, cancelled.shutdownNow().size());
+
+			for (final Future<?> future : futures) {
+
+				assertTrue(future.isCancelled());
+			}
+
+			assertTrue(cancelled.isShutdown());
+			assertEquals(1, scheduler.getQueueDepth());
+			assertEquals(1, scheduler.getSessions().size());
+
+			try {
+
+				cancelled.submit(() -> {});
+
+				assertTrue(false);
+			}
+			catch (final RejectedExecutionException exception) {
+
+				// Expected.
+			}
+
+			blocked.countDown();
+
+			// Other session is not affected.
+			assertEquals(42, otherFuture.get(5, TimeUnit.SECONDS).intValue());
+		}
+		finally {
+
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void test_04_callerRuns() throws Exception {
+
+		final EncodingScheduler scheduler = new EncodingScheduler("test", 1, false);
+
+		try {
+
+			final CountDownLatch blocked = new CountDownLatch(1);
+
+			final EncodingScheduler.Session session = scheduler.openSession("client-1");
+
+			session.submit(() -> {blocked.await(); return null;});
+			awaitActiveTask(scheduler);
+
+			final int tasks = scheduler.getMaxQueuedTasks() + 10;
+
+			for (int i = 0 ; i < tasks ; i++) {
+
+				session.execute(() -> {});
+			}
+
+			// Queue is bounded, surplus tasks are run by submitting thread.
+			assertEquals(scheduler.getMaxQueuedTasks(), scheduler.getQueueDepth());
+			assertEquals(10, scheduler.getCallerRunsTasks());
+
+			blocked.countDown();
+		}
+		finally {
+
+			scheduler.shutdown();
+		}
+
+		assertFalse(scheduler.isRunning());
+		assertEquals(0, scheduler.getQueueDepth());
+	}
+
+	/**
+	 * Wait until worker takes blocking task.
+	 */
+	private static void awaitActiveTask(final EncodingScheduler scheduler) throws InterruptedException {
+
+		while (scheduler.getActiveTasks() == 0) {
+
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class FenceTest {
+
+	@Test
+	public void test() throws IOException {
+
+		final byte[] buf = new byte[] {
+				0, 0, 0 // padding
+				, (byte) 0x80, 0, 0, 3 // flags: request, block before, block after
+				, 2 // length of payload
+				, 7, 8 // payload
+				};
+
+		final InputStream inputStream = new ByteArrayInputStream(buf);
+		Fence message = Fence.read(inputStream);
+
+		assertTrue(message.isRequest());
+		assertEquals(Fence.REQUEST | Fence.BLOCK_BEFORE | Fence.BLOCK_AFTER, message.flags);
+		assertArrayEquals(new byte[] {7, 8}, message.payload);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Fence.write(out, message.flags, message.payload);
+
+		final byte[] written = out.toByteArray();
+		assertEquals(Fence.MESSAGE_TYPE, written[0] & 0xFF);
+		assertEquals(11, ClientMessageHandler.messageLength(written, 0, written.length));
+		assertEquals(-1, ClientMessageHandler.messageLength(written, 0, 8));
+
+		message = Fence.read(new ByteArrayInputStream(written, 1, written.length - 1));
+		assertEquals(Fence.REQUEST | Fence.BLOCK_BEFORE | Fence.BLOCK_AFTER, message.flags);
+		assertArrayEquals(new byte[] {7, 8}, message.payload);
+
+		// Payload is up to 64 bytes.
+		written[8] = 65;
+
+		try {
+
+			ClientMessageHandler.messageLength(written, 0, written.length);
+
+			assertTrue(false);
+		}
+		catch (final IOException exception) {
+
+			// Expected.
+		}
+	}
+
+}
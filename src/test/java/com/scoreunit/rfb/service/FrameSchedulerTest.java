@@ -0,0 +1,110 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FrameSchedulerTest {
+
+	@Test
+	public void test_01_backoff() {
+
+		final FrameScheduler scheduler = new FrameScheduler(10, 50);
+
+		assertEquals(100, scheduler.getTargetInterval());
+		assertEquals(20, scheduler.getMinInterval());
+
+		final long now = System.currentTimeMillis();
+
+		// Screen changes, next frame at max. frame rate.
+		assertTrue(scheduler.frameChanged(now, 0) <= 20);
+		assertEquals(20, scheduler.getInterval());
+
+		// Screen is idle, target frame rate, and then exponential back off.
+		scheduler.frameUnchanged(now, 0);
+		assertEquals(100, scheduler.getInterval());
+
+		final long[] expected = {200, 400, 800, FrameScheduler.MAX_IDLE_INTERVAL, FrameScheduler.MAX_IDLE_INTERVAL};
+
+		for (final long interval : expected) {
+
+			final long delay = scheduler.frameUnchanged(now, 0);
+
+			assertEquals(interval, scheduler.getInterval());
+			assertTrue(delay <= interval);
+			assertTrue(delay > interval - 100);
+		}
+
+		// Change resets interval.
+		scheduler.frameChanged(System.currentTimeMillis(), 0);
+		assertEquals(20, scheduler.getInterval());
+
+		// Max. frame rate is not lower than target frame rate.
+		assertEquals(100, new FrameScheduler(10, 5).getMinInterval());
+	}
+
+	@Test
+	public void test_02_inputReceived() throws Exception {
+
+		final FrameScheduler scheduler = new FrameScheduler(10, 50);
+
+		final long startedAt = System.currentTimeMillis();
+
+		for (int i = 0 ; i < 10 ; i++) {
+
+			scheduler.frameUnchanged(startedAt, 0);
+		}
+
+		assertTrue(scheduler.getDelay() > 500);
+
+		// Waiting updater is woken up by input.
+		final Thread input = new Thread(() -> {
+
+			try {
+
+				TimeUnit.MILLISECONDS.sleep(50);
+			}
+			catch (final InterruptedException exception) {
+
+				// Ignore.
+			}
+
+			scheduler.inputReceived();
+		});
+
+		input.start();
+
+		assertTrue(scheduler.await(FrameScheduler.MAX_IDLE_INTERVAL));
+		assertTrue(System.currentTimeMillis() - startedAt < FrameScheduler.MAX_IDLE_INTERVAL / 2);
+
+		input.join();
+
+		// Next frame is captured few millisec. after input, at max. frame rate.
+		assertEquals(20, scheduler.getInterval());
+		assertTrue(scheduler.getDelay() <= FrameScheduler.INPUT_CAPTURE_DELAY);
+
+		// Without input, await waits for given delay.
+		assertTrue(scheduler.await(10) == false);
+	}
+
+	@Test
+	public void test_03_frameCost() {
+
+		final FrameScheduler scheduler = new FrameScheduler(10, 50);
+
+		final long now = System.currentTimeMillis();
+
+		// Frame takes 80 ms, at most half of CPU core is used, despite max. frame rate.
+		final long delay = scheduler.frameChanged(now - 80, 80);
+
+		assertEquals(80, scheduler.getFrameCost(), 0.1);
+		assertTrue(delay > 60);
+		assertTrue(delay <= 80);
+	}
+}
@@ -2,18 +2,46 @@ package com.scoreunit.rfb.service;
 
 import static org.junit.Assert.*;
 
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
 
 import org.junit.FixMethodOrder;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import org.junit.runners.MethodSorters;
 
+import com.scoreunit.rfb.Benchmark;
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+import com.scoreunit.rfb.encoding.EncodedRectCache;
+import com.scoreunit.rfb.encoding.EncodingInterface;
 import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.encoding.HextileEncoder;
+import com.scoreunit.rfb.encoding.RawEncoder;
+import com.scoreunit.rfb.encoding.ZlibEncoder;
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.screen.ScreenCaptureInterface;
 import com.scoreunit.rfb.screen.ScreenClip;
+import com.scoreunit.rfb.screen.SharedFrameStore;
+import com.scoreunit.rfb.screen.SharedScreenCapture;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class FramebufferUpdaterTest {
@@ -242,4 +270,1167 @@ public class FramebufferUpdaterTest {
 		executor.shutdown();
 		executor.awaitTermination(1, TimeUnit.SECONDS);
 	}
+
+	@Test
+	public void test_04_workUnits() throws Exception {
+		
+		final TrueColorImage image = fullUpdateImage(1920, 1080);
+		final List<Rectangle> tiles = tiles(image, 16);
+		
+		final RFBConfig config = new RFBConfig();
+		
+		// Compare encoded data, not copies from cache of encoded rectangles.
+		config.setEncodedRectCacheSize(0);
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), new ByteArrayOutputStream());
+		
+		final EncodingScheduler scheduler = new EncodingScheduler("workUnits", 4, false);
+		final ExecutorService executor = scheduler.openSession("workUnits");
+		
+		final EncodingInterface encoder = new HextileEncoder();
+		
+		try {
+			
+			// Task per tile, as before, and one work unit per encoding thread, give same data.
+			final byte[] perTile = encode(updater.encodingTasks(encoder, image, tiles, tiles.size()), executor);
+			final byte[] perUnit = encode(updater.encodingTasks(encoder, image, tiles, scheduler.getThreads()), executor);
+			
+			assertArrayEquals(perTile, perUnit);
+		}
+		finally {
+			
+			scheduler.shutdown();
+		}
+	}
+	
+	@Test
+	@Category(Benchmark.class)
+	public void test_04_workUnitsBenchmark() throws Exception {
+		
+		final int rounds = 5;
+		
+		final TrueColorImage image = fullUpdateImage(1920, 1080);
+		final List<Rectangle> tiles = tiles(image, 16);
+		
+		final RFBConfig config = new RFBConfig();
+		
+		// Measure encoding, not copies from cache of encoded rectangles.
+		config.setEncodedRectCacheSize(0);
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), new ByteArrayOutputStream());
+		
+		final EncodingScheduler scheduler = new EncodingScheduler("benchmark", 4, false);
+		final ExecutorService executor = scheduler.openSession("benchmark");
+		
+		final EncodingInterface encoder = new HextileEncoder();
+		
+		try {
+			
+			// Warm up.
+			for (int i = 0 ; i < rounds ; i++) {
+				
+				encode(updater.encodingTasks(encoder, image, tiles, tiles.size()), executor);
+				encode(updater.encodingTasks(encoder, image, tiles, scheduler.getThreads()), executor);
+			}
+			
+			final long[] perTileTime = measure(() -> encode(updater.encodingTasks(encoder, image, tiles, tiles.size()), executor), rounds);
+			final long[] perUnitTime = measure(() -> encode(updater.encodingTasks(encoder, image, tiles, scheduler.getThreads()), executor), rounds);
+			
+			System.out.println(String.format("%s: %dx%d full update, %d tiles, hextile, per-tile tasks: %.2f ms/frame (CPU %.2f ms), "
+					+ "%d work units: %.2f ms/frame (CPU %.2f ms), CPU speed-up: %.1fx"
+					, FramebufferUpdaterTest.class.getSimpleName(), image.width, image.height, tiles.size()
+					, perTileTime[0] / 1e6 / rounds, perTileTime[1] / 1e6 / rounds
+					, scheduler.getThreads()
+					, perUnitTime[0] / 1e6 / rounds, perUnitTime[1] / 1e6 / rounds
+					, perTileTime[1] / (double) Math.max(1, perUnitTime[1])));
+		}
+		finally {
+			
+			scheduler.shutdown();
+		}
+	}
+	
+	@Test
+	public void test_05_lastRect() throws Exception {
+		
+		for (final int encoding : new int[] {Encodings.RAW, Encodings.ZLIB}) {
+			
+			final RFBConfig config = new RFBConfig();
+			config.setSharedScreenCapture(new SharedScreenCapture(new GradientScreenCapture(256, 256)));
+			
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			
+			final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+			updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 256, (short) 256));
+			updater.setMaxRectangleSize(64);
+			updater.setClientEncodings(new SetEncodings(new int[] {encoding, Encodings.LAST_RECT}));
+			updater.start();
+			
+			try {
+				
+				final long startedAt = System.currentTimeMillis();
+				
+				// First update is 'loading' screen. Requests sent at once would be joined into one.
+				updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 256, (short) 256));
+				
+				while (out.size() == 0) {
+					
+					assertTrue(System.currentTimeMillis() - startedAt < 5000);
+					
+					TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+				}
+				
+				updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 256, (short) 256));
+				
+				int[] update = null;
+				
+				while (update == null) {
+					
+					assertTrue(System.currentTimeMillis() - startedAt < 5000);
+					
+					TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+					
+					update = readLastRectUpdate(out.toByteArray(), encoding);
+				}
+				
+				// Number of rectangles is not known in advance, all pixels are covered.
+				assertEquals(FramebufferUpdater.MAX_RECTANGLES, update[0]);
+				assertEquals(16, update[1]);
+				assertEquals(256 * 256, update[2]);
+			}
+			finally {
+				
+				updater.terminate();
+				config.shutdownEncodingScheduler();
+			}
+		}
+	}
+	
+	@Test
+	public void test_06_continuousUpdates() throws Exception {
+		
+		final GradientScreenCapture screen = new GradientScreenCapture(128, 128);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(new SharedScreenCapture(screen));
+		config.getSharedScreenCapture().setInterval(FramebufferUpdater.DELAY / 10);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+		updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 128, (short) 128));
+		updater.start();
+		
+		try {
+			
+			// Server confirms support for continuous updates.
+			updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW, Encodings.CONTINUOUS_UPDATES}));
+			assertEquals(Arrays.asList(FramebufferUpdater.END_OF_CONTINUOUS_UPDATES), readMessages(out.toByteArray()));
+			
+			// 'Loading' screen, and then updates without requests.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 128, (short) 128));
+			awaitMessages(out, 2);
+			
+			updater.setContinuousUpdates(true, (short) 0, (short) 0, (short) 128, (short) 128);
+			assertTrue(updater.isContinuousUpdates());
+			awaitMessages(out, 3);
+			
+			for (int i = 1 ; i <= 3 ; i++) {
+				
+				screen.color = i;
+				awaitMessages(out, 3 + i);
+			}
+			
+			// Disabled, server confirms with end of continuous updates, and stops sending updates.
+			updater.setContinuousUpdates(false, (short) 0, (short) 0, (short) 0, (short) 0);
+			assertTrue(updater.isContinuousUpdates() == false);
+			
+			final List<Integer> messages = awaitMessages(out, 7);
+			assertEquals(FramebufferUpdater.END_OF_CONTINUOUS_UPDATES, messages.get(6).intValue());
+			
+			screen.color = 0xFF;
+			TimeUnit.MILLISECONDS.sleep(3 * FramebufferUpdater.DELAY);
+			
+			assertEquals(7, readMessages(out.toByteArray()).size());
+		}
+		finally {
+			
+			updater.terminate();
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	@Test
+	public void test_07_fence() throws Exception {
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(new SharedScreenCapture(new GradientScreenCapture(128, 128)));
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final ClientHandler clientHandler = new ClientHandler(new Socket(), config);
+		final FramebufferUpdater updater = new FramebufferUpdater(clientHandler, out);
+		updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 128, (short) 128));
+		updater.start();
+		
+		try {
+			
+			final ConnectionEstimator estimator = clientHandler.getConnectionEstimator();
+			final List<Fence> fences = new ArrayList<>();
+			
+			// Server confirms support for fences with fence request.
+			updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW, Encodings.FENCE}));
+			assertTrue(updater.isFenceSupported());
+			assertEquals(Arrays.asList(Fence.MESSAGE_TYPE), readMessages(out.toByteArray(), fences));
+			
+			final Fence request = fences.get(0);
+			assertEquals(Fence.REQUEST | Fence.BLOCK_BEFORE, request.flags);
+			assertEquals(1, estimator.getPendingFences());
+			
+			// Fence request of VNC client is answered with same payload, and supported flags only.
+			updater.fence(new Fence(Fence.REQUEST | Fence.BLOCK_AFTER | 0x40, new byte[] {1, 2, 3}));
+			fences.clear();
+			assertEquals(Arrays.asList(Fence.MESSAGE_TYPE, Fence.MESSAGE_TYPE), readMessages(out.toByteArray(), fences));
+			assertEquals(Fence.BLOCK_AFTER, fences.get(1).flags);
+			assertArrayEquals(new byte[] {1, 2, 3}, fences.get(1).payload);
+			
+			// VNC client answers fence of server.
+			TimeUnit.MILLISECONDS.sleep(10);
+			updater.fence(new Fence(Fence.BLOCK_BEFORE, request.payload));
+			assertEquals(1, estimator.getFencesAnswered());
+			assertEquals(0, estimator.getPendingFences());
+			assertTrue(estimator.getRoundTripTime() >= 10);
+			
+			// Fence is sent after frame buffer update, all bytes are counted.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 128, (short) 128));
+			final List<Integer> messages = awaitMessages(out, 4);
+			assertEquals(Arrays.asList(Fence.MESSAGE_TYPE, Fence.MESSAGE_TYPE, 0, Fence.MESSAGE_TYPE), messages);
+			assertEquals(out.size(), estimator.getBytesSent());
+			// Answered fence was first message, bytes after it are not confirmed yet.
+			assertEquals(out.size(), estimator.getBytesInFlight());
+			assertEquals(1, estimator.getPendingFences());
+		}
+		finally {
+			
+			updater.terminate();
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	@Test
+	public void test_08_idleBackoff() throws Exception {
+		
+		final GradientScreenCapture screen = new GradientScreenCapture(128, 128);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(new SharedScreenCapture(screen));
+		config.getSharedScreenCapture().setInterval(0);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+		updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 128, (short) 128));
+		updater.start();
+		
+		try {
+			
+			final FrameScheduler frameScheduler = updater.getFrameScheduler();
+			
+			// 'Loading' screen, and first frame.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 128, (short) 128));
+			awaitMessages(out, 1);
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 128, (short) 128));
+			awaitMessages(out, 2);
+			
+			// Screen does not change, interval grows up to max. idle interval.
+			final int captures = screen.captures.get();
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 128, (short) 128));
+			TimeUnit.MILLISECONDS.sleep(2 * FrameScheduler.MAX_IDLE_INTERVAL);
+			
+			assertEquals(FrameScheduler.MAX_IDLE_INTERVAL, frameScheduler.getInterval());
+			
+			// With fixed delay, screen would be captured 20 times.
+			final int idleCaptures = screen.captures.get() - captures;
+			assertTrue(idleCaptures <= 6);
+			
+			// Input wakes up updater, changed screen is sent without waiting for idle interval.
+			final long startedAt = System.currentTimeMillis();
+			screen.color = 1;
+			updater.inputReceived();
+			
+			awaitMessages(out, 3);
+			
+			assertTrue(System.currentTimeMillis() - startedAt < FrameScheduler.MAX_IDLE_INTERVAL / 2);
+			assertEquals(frameScheduler.getMinInterval(), frameScheduler.getInterval());
+		}
+		finally {
+			
+			updater.terminate();
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	@Test
+	public void test_09_inputLatency() throws Exception {
+		
+		final GradientScreenCapture screen = new GradientScreenCapture(512, 512);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(new SharedScreenCapture(screen));
+		config.getSharedScreenCapture().setInterval(0);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final ClientHandler clientHandler = new ClientHandler(new Socket(), config);
+		final FramebufferUpdater updater = new FramebufferUpdater(clientHandler, out);
+		updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 512, (short) 512));
+		updater.start();
+		
+		try {
+			
+			// 'Loading' screen, and first frame.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 512, (short) 512));
+			awaitMessages(out, 1);
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 512, (short) 512));
+			awaitMessages(out, 2);
+			
+			// Idle screen.
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 512, (short) 512));
+			TimeUnit.MILLISECONDS.sleep(FrameScheduler.MAX_IDLE_INTERVAL / 2);
+			
+			// Whole screen changes on pointer event, area around mouse pointer is sent first.
+			screen.color = 1;
+			updater.inputReceived(400, 100);
+			
+			awaitMessages(out, 3);
+			assertEquals(FramebufferUpdater.NEIGHBOURHOOD_SIZE * FramebufferUpdater.NEIGHBOURHOOD_SIZE
+					, readUpdatePixels(out.toByteArray()).get(2).intValue());
+			
+			// Rest of screen is sent with next frame.
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 512, (short) 512));
+			awaitMessages(out, 4);
+			assertEquals(512 * 512 - FramebufferUpdater.NEIGHBOURHOOD_SIZE * FramebufferUpdater.NEIGHBOURHOOD_SIZE
+					, readUpdatePixels(out.toByteArray()).get(3).intValue());
+			
+			// Only first update after input is counted.
+			final LatencyHistogram inputLatency = clientHandler.getInputLatency();
+			assertEquals(1, inputLatency.getCount());
+			assertTrue(inputLatency.getMean() < FrameScheduler.MAX_IDLE_INTERVAL / 2);
+		}
+		finally {
+			
+			updater.terminate();
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	/**
+	 * Wait until given number of server messages is written.
+	 * 
+	 * @return	list of message types
+	 */
+	@Test
+	public void test_10_zlibPipeline() throws Exception {
+		
+		final int width = 512, height = 384, tileSize = 64, sessions = 8, frames = 10;
+		
+		final List<Rectangle> tiles = new ArrayList<>();
+		
+		for (int y = 0 ; y < height ; y += tileSize) {
+			
+			for (int x = 0 ; x < width ; x += tileSize) {
+				
+				tiles.add(new Rectangle(x, y, tileSize, tileSize));
+			}
+		}
+		
+		final RFBConfig config = new RFBConfig();
+		
+		final EncodingScheduler scheduler = new EncodingScheduler("zlib", 4, false);
+		final ExecutorService clients = Executors.newFixedThreadPool(sessions);
+		
+		try {
+			
+			final List<Callable<Void>> tasks = new ArrayList<>();
+			
+			for (int session = 0 ; session < sessions ; session++) {
+				
+				final int seed = session;
+				
+				tasks.add( () -> {
+					
+					// Each session has its own zlib stream, while all of them share encoding threads.
+					final ByteArrayOutputStream out = new ByteArrayOutputStream();
+					
+					final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+					updater.setEncodingExecutor(scheduler.openSession("zlib-" + seed));
+					
+					final ZlibEncoder encoder = new ZlibEncoder();
+					final List<TrueColorImage> images = new ArrayList<>();
+					
+					for (int frame = 0 ; frame < frames ; frame++) {
+						
+						final int[] raw = new int[width * height];
+						
+						for (int i = 0 ; i < raw.length ; i++) {
+							
+							raw[i] = (i % width / (seed + 1 + frame)) * 0x010101 + (i / width) * seed;
+						}
+						
+						final TrueColorImage image = new TrueColorImage(raw, width, height);
+						images.add(image);
+						
+						updater.writePipelined(encoder, image, 0, 0, tiles, scheduler.getThreads(), out, frame % 2 == 0);
+					}
+					
+					// Decode all frames with single zlib stream, as VNC client does.
+					final DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+					final Inflater inflater = new Inflater();
+					final RawEncoder rawEncoder = new RawEncoder();
+					
+					for (final TrueColorImage image : images) {
+						
+						for (final Rectangle tile : tiles) {
+							
+							assertEquals(tile.x, in.readUnsignedShort());
+							assertEquals(tile.y, in.readUnsignedShort());
+							assertEquals(tile.width, in.readUnsignedShort());
+							assertEquals(tile.height, in.readUnsignedShort());
+							assertEquals(Encodings.ZLIB, in.readInt());
+							
+							final byte[] compressed = new byte[in.readInt()];
+							in.readFully(compressed);
+							
+							inflater.setInput(compressed);
+							
+							final byte[] decoded = new byte[tile.width * tile.height * 4];
+							assertEquals(decoded.length, inflater.inflate(decoded));
+							assertTrue(inflater.needsInput());
+							
+							assertArrayEquals(rawEncoder.encode(TrueColorImage.subImage(image, tile.x, tile.y, tile.width, tile.height)
+									, SetPixelFormat.default32bit()), decoded);
+						}
+					}
+					
+					assertEquals(0, in.available());
+					
+					return null;
+				});
+			}
+			
+			for (final Future<Void> future : clients.invokeAll(tasks)) {
+				
+				future.get();
+			}
+		}
+		finally {
+			
+			clients.shutdown();
+			scheduler.shutdown();
+		}
+	}
+	
+	@Test
+	public void test_11_encodedRectCache() throws Exception {
+		
+		final int width = 640, height = 480, tileSize = 64, sessions = 30;
+		
+		final TrueColorImage image = new GradientScreenCapture(width, height).getScreenshot();
+		
+		final List<Rectangle> tiles = new ArrayList<>();
+		
+		for (int y = 0 ; y < height ; y += tileSize) {
+			
+			for (int x = 0 ; x < width ; x += tileSize) {
+				
+				tiles.add(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+			}
+		}
+		
+		final RFBConfig config = new RFBConfig();
+		
+		final EncodingScheduler scheduler = new EncodingScheduler("cache", 4, false);
+		final ExecutorService executor = scheduler.openSession("cache");
+		
+		try {
+			
+			byte[] first = null;
+			
+			// Same screen for many sessions, with same pixel format and encoding.
+			for (int session = 0 ; session < sessions ; session++) {
+				
+				final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), new ByteArrayOutputStream());
+				
+				final byte[] encoded = encode(updater.encodingTasks(new HextileEncoder(), image, tiles, scheduler.getThreads()), executor);
+				
+				if (first == null) {
+					
+					first = encoded;
+				}
+				
+				assertArrayEquals(first, encoded);
+			}
+			
+			final EncodedRectCache cache = config.getEncodedRectCache();
+			
+			// Each tile is encoded once.
+			assertEquals(tiles.size(), cache.getMisses());
+			assertEquals((sessions - 1) * tiles.size(), cache.getHits());
+			assertEquals(tiles.size(), cache.getEntries());
+		}
+		finally {
+			
+			scheduler.shutdown();
+		}
+	}
+	
+	@Test
+	public void test_12_broadcast() throws Exception {
+		
+		final int sessions = 4;
+		
+		final GradientScreenCapture capture = new GradientScreenCapture(256, 256);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setBroadcast(true);
+		config.setSharedScreenCapture(new SharedScreenCapture(capture));
+		
+		final List<FramebufferUpdater> updaters = new ArrayList<>();
+		final List<ByteArrayOutputStream> outs = new ArrayList<>();
+		
+		try {
+			
+			for (int i = 0 ; i < sessions ; i++) {
+				
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				
+				final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+				updater.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 256, (short) 256));
+				updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW}));
+				updater.start();
+				
+				updaters.add(updater);
+				outs.add(out);
+			}
+			
+			// First update is 'loading' screen, then full screen, then changed screen.
+			for (int update = 1 ; update <= 3 ; update++) {
+				
+				if (update == 3) {
+					
+					capture.color = 0x80;
+				}
+				
+				for (final FramebufferUpdater updater : updaters) {
+					
+					updater.update(new FramebufferUpdateRequest((byte) (update == 1 ? 0 : 1), (short) 0, (short) 0, (short) 256, (short) 256));
+				}
+				
+				final long startedAt = System.currentTimeMillis();
+				
+				for (final ByteArrayOutputStream out : outs) {
+					
+					while (readUpdatePixels(out.toByteArray()).size() < update) {
+						
+						assertTrue(System.currentTimeMillis() - startedAt < 5000);
+						
+						TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+					}
+				}
+			}
+			
+			// Each update is encoded once, and all VNC clients receive same data.
+			final List<BroadcastGroup> groups = config.getBroadcastGroups();
+			
+			assertEquals(1, groups.size());
+			assertEquals(sessions, groups.get(0).getMembers());
+			assertEquals(2, groups.get(0).getEncoded());
+			assertEquals(2 * sessions, groups.get(0).getBroadcasts());
+			assertEquals(Arrays.asList(256 * 256, 256 * 256), readUpdatePixels(outs.get(0).toByteArray()).subList(1, 3));
+			
+			for (final ByteArrayOutputStream out : outs) {
+				
+				assertArrayEquals(outs.get(0).toByteArray(), out.toByteArray());
+			}
+		}
+		finally {
+			
+			for (final FramebufferUpdater updater : updaters) {
+				
+				updater.terminate();
+			}
+			
+			config.shutdownEncodingScheduler();
+		}
+		
+		assertEquals(0, config.getBroadcastGroups().size());
+	}
+	
+	@Test
+	public void test_13_frameStore() throws Exception {
+		
+		final GradientScreenCapture capture = new GradientScreenCapture(256, 256);
+		
+		final SharedScreenCapture sharedScreenCapture = new SharedScreenCapture(capture);
+		sharedScreenCapture.setInterval(0);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(sharedScreenCapture);
+		
+		final ByteArrayOutputStream fastOut = new ByteArrayOutputStream(), slowOut = new ByteArrayOutputStream();
+		
+		final FramebufferUpdater fast = new FramebufferUpdater(new ClientHandler(new Socket(), config), fastOut);
+		final FramebufferUpdater slow = new FramebufferUpdater(new ClientHandler(new Socket(), config), slowOut);
+		
+		try {
+			
+			for (final FramebufferUpdater updater : Arrays.asList(fast, slow)) {
+				
+				updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW}));
+				updater.start();
+			}
+			
+			// 'Loading' screen, then full screen.
+			for (int update = 1 ; update <= 2 ; update++) {
+				
+				fast.update(new FramebufferUpdateRequest((byte) (update == 1 ? 0 : 1), (short) 0, (short) 0, (short) 256, (short) 256));
+				slow.update(new FramebufferUpdateRequest((byte) (update == 1 ? 0 : 1), (short) 0, (short) 0, (short) 256, (short) 256));
+				
+				awaitUpdates(fastOut, update);
+				awaitUpdates(slowOut, update);
+			}
+			
+			// Slow VNC client misses three frames.
+			for (int frame = 1 ; frame <= 3 ; frame++) {
+				
+				capture.color = frame;
+				
+				fast.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 256, (short) 256));
+				
+				awaitUpdates(fastOut, 2 + frame);
+			}
+			
+			slow.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 256, (short) 256));
+			
+			// Changes of all frames are sent in single update.
+			assertEquals(Arrays.asList(256 * 256), awaitUpdates(slowOut, 3).subList(2, 3));
+			
+			// Both sessions share single image of screen.
+			final List<SharedFrameStore> stores = config.getFrameStores();
+			
+			assertEquals(1, stores.size());
+			assertEquals(2, stores.get(0).getSubscribers());
+			assertEquals(4, stores.get(0).getFrames());
+			assertEquals(1, stores.get(0).getMergedUpdates());
+		}
+		finally {
+			
+			fast.terminate();
+			slow.terminate();
+			
+			config.shutdownEncodingScheduler();
+		}
+		
+		assertEquals(0, config.getFrameStores().size());
+	}
+	
+	@Test
+	public void test_14_requestedArea() throws Exception {
+		
+		final GradientScreenCapture capture = new GradientScreenCapture(256, 256);
+		
+		final SharedScreenCapture sharedScreenCapture = new SharedScreenCapture(capture);
+		sharedScreenCapture.setInterval(0);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(sharedScreenCapture);
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), config), out);
+		
+		try {
+			
+			updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW}));
+			updater.start();
+			
+			// 'Loading' screen, then full screen.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 256, (short) 256));
+			awaitUpdates(out, 1);
+			
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 256, (short) 256));
+			awaitUpdates(out, 2);
+			
+			capture.color = 0x80;
+			
+			// Only changed tiles of requested areas are sent, in one or two updates.
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 20, (short) 20));
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 224, (short) 224, (short) 32, (short) 32));
+			
+			final long startedAt = System.currentTimeMillis();
+			
+			while (sum(readUpdatePixels(out.toByteArray()), 2) < 2 * 32 * 32) {
+				
+				assertTrue(System.currentTimeMillis() - startedAt < 5000);
+				
+				TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+			}
+			
+			final int updates = readUpdatePixels(out.toByteArray()).size();
+			
+			assertEquals(2 * 32 * 32, sum(readUpdatePixels(out.toByteArray()), 2));
+			
+			// Non-incremental request for small area does not cause full screen update.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 64, (short) 64, (short) 16, (short) 16));
+			assertEquals(16 * 16, (int) awaitUpdates(out, updates + 1).get(updates));
+			
+			// Rest of changed tiles.
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 256, (short) 256));
+			assertEquals(256 * 256 - 2 * 32 * 32 - 16 * 16, (int) awaitUpdates(out, updates + 2).get(updates + 1));
+		}
+		finally {
+			
+			updater.terminate();
+			
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	@Test
+	public void test_15_pendingOutput() throws Exception {
+		
+		final GradientScreenCapture capture = new GradientScreenCapture(128, 128);
+		
+		final SharedScreenCapture sharedScreenCapture = new SharedScreenCapture(capture);
+		sharedScreenCapture.setInterval(0);
+		
+		final RFBConfig config = new RFBConfig();
+		config.setSharedScreenCapture(sharedScreenCapture);
+		
+		// Data which is not yet written to slow VNC client.
+		final AtomicLong pending = new AtomicLong();
+		
+		final ClientHandler session = new ClientHandler(new Socket(), config) {
+			
+			@Override
+			public long getPendingOutput() {
+				
+				return pending.get();
+			}
+		};
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(session, out);
+		
+		try {
+			
+			updater.setClientEncodings(new SetEncodings(new int[] {Encodings.RAW}));
+			updater.start();
+			
+			// 'Loading' screen, then full screen.
+			updater.update(new FramebufferUpdateRequest((byte) 0, (short) 0, (short) 0, (short) 128, (short) 128));
+			awaitUpdates(out, 1);
+			
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 128, (short) 128));
+			awaitUpdates(out, 2);
+			
+			// Update is deferred, until earlier updates are written.
+			pending.set(FramebufferUpdater.MAX_PENDING_OUTPUT + 1);
+			capture.color = 0x80;
+			
+			updater.update(new FramebufferUpdateRequest((byte) 1, (short) 0, (short) 0, (short) 128, (short) 128));
+			TimeUnit.MILLISECONDS.sleep(3 * FramebufferUpdater.DELAY);
+			
+			assertEquals(2, readUpdatePixels(out.toByteArray()).size());
+			
+			pending.set(0);
+			
+			assertEquals(128 * 128, (int) awaitUpdates(out, 3).get(2));
+		}
+		finally {
+			
+			updater.terminate();
+			
+			config.shutdownEncodingScheduler();
+		}
+	}
+	
+	@Test
+	public void test_16_pipelineWriteFailure() throws Exception {
+		
+		final int width = 256, height = 128, tileSize = 64, units = 4;
+		
+		final TrueColorImage image = new GradientScreenCapture(width, height).getScreenshot();
+		final List<Rectangle> tiles = tiles(image, tileSize);
+		
+		final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+		
+		final FramebufferUpdater updater = new FramebufferUpdater(new ClientHandler(new Socket(), new RFBConfig()), new ByteArrayOutputStream());
+		updater.setEncodingExecutor(executor);
+		
+		// VNC client disconnects, after all work units are converted.
+		final OutputStream out = new OutputStream() {
+			
+			@Override
+			public void write(final int b) throws IOException {
+				
+				while (executor.getCompletedTaskCount() < units) {
+					
+					Thread.yield();
+				}
+				
+				throw new IOException("Connection reset.");
+			}
+		};
+		
+		try {
+			
+			updater.writePipelined(new ZlibEncoder(), image, 0, 0, tiles, units, out, false);
+			
+			fail("Write should fail.");
+		}
+		catch (final IOException ex) {
+			
+			// Buffers of all work units, and one for compressed data, are back in pool.
+			assertEquals(tiles.size() + 1, updater.getBufferPool().size());
+		}
+		finally {
+			
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Sum of list elements, from given index.
+	 */
+	private static int sum(final List<Integer> list, final int from) {
+		
+		int sum = 0;
+		
+		for (int i = from ; i < list.size() ; i++) {
+			
+			sum += list.get(i);
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Wait for given number of frame buffer updates with raw rectangles.
+	 * 
+	 * @return	number of pixels in each update
+	 */
+	private static List<Integer> awaitUpdates(final ByteArrayOutputStream out, final int count) throws Exception {
+		
+		final long startedAt = System.currentTimeMillis();
+		
+		while (readUpdatePixels(out.toByteArray()).size() < count) {
+			
+			assertTrue(System.currentTimeMillis() - startedAt < 5000);
+			
+			TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+		}
+		
+		return readUpdatePixels(out.toByteArray());
+	}
+	
+	private static List<Integer> awaitMessages(final ByteArrayOutputStream out, final int count) throws Exception {
+		
+		final long startedAt = System.currentTimeMillis();
+		
+		List<Integer> messages = readMessages(out.toByteArray());
+		
+		while (messages.size() < count) {
+			
+			assertTrue(System.currentTimeMillis() - startedAt < 5000);
+			
+			TimeUnit.MILLISECONDS.sleep(FramebufferUpdater.DELAY / 10);
+			
+			messages = readMessages(out.toByteArray());
+		}
+		
+		assertEquals(count, messages.size());
+		
+		return messages;
+	}
+	
+	/**
+	 * Read complete server messages: frame buffer updates with raw rectangles, end of continuous updates, and fences.
+	 * 
+	 * @return	list of message types
+	 */
+	private static List<Integer> readMessages(final byte[] data) throws IOException {
+		
+		return readMessages(data, new ArrayList<>());
+	}
+	
+	/**
+	 * Read frame buffer updates with raw rectangles.
+	 * 
+	 * @return	number of pixels in each update
+	 */
+	private static List<Integer> readUpdatePixels(final byte[] data) throws IOException {
+		
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		
+		final List<Integer> updates = new ArrayList<>();
+		
+		try {
+			
+			while (true) {
+				
+				in.readShort(); // Message type and padding.
+				
+				int pixels = 0;
+				
+				for (int i = in.readUnsignedShort() ; i > 0 ; i--) {
+					
+					pixels += readRectangle(in, Encodings.RAW);
+				}
+				
+				updates.add(pixels);
+			}
+		}
+		catch (final EOFException exception) {
+			
+			return updates;
+		}
+	}
+	
+	/**
+	 * Read complete server messages, and collect fences into given list.
+	 * 
+	 * @return	list of message types
+	 */
+	private static List<Integer> readMessages(final byte[] data, final List<Fence> fences) throws IOException {
+		
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		
+		final List<Integer> messages = new ArrayList<>();
+		
+		try {
+			
+			while (true) {
+				
+				final int type = in.readUnsignedByte();
+				
+				if (type == 0) {
+					
+					in.read(); // Padding.
+					
+					for (int i = in.readUnsignedShort() ; i > 0 ; i--) {
+						
+						readRectangle(in, Encodings.RAW);
+					}
+				}
+				else if (type == Fence.MESSAGE_TYPE) {
+					
+					fences.add(Fence.read(in));
+				}
+				else {
+					
+					assertEquals(FramebufferUpdater.END_OF_CONTINUOUS_UPDATES, type);
+				}
+				
+				messages.add(type);
+			}
+		}
+		catch (final EOFException exception) {
+			
+			return messages;
+		}
+	}
+	
+	/**
+	 * Skip 'loading' screen update, and read second frame buffer update, which ends with last rectangle.
+	 * 
+	 * @return	number of rectangles from header, number of rectangles, and number of pixels,
+	 * 			or null if update is not complete yet
+	 */
+	private static int[] readLastRectUpdate(final byte[] data, final int encoding) throws IOException {
+		
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		
+		try {
+			
+			in.readShort(); // Message type and padding.
+			
+			for (int i = in.readUnsignedShort() ; i > 0 ; i--) {
+				
+				assertTrue(readRectangle(in, encoding) > 0);
+			}
+			
+			in.readShort(); // Message type and padding.
+			
+			final int count = in.readUnsignedShort();
+			
+			int rectangles = 0, pixels = 0;
+			
+			for (int rectangle = readRectangle(in, encoding) ; rectangle > 0 ; rectangle = readRectangle(in, encoding)) {
+				
+				rectangles++;
+				pixels += rectangle;
+			}
+			
+			return new int[] {count, rectangles, pixels};
+		}
+		catch (final EOFException exception) {
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Read rectangle, raw or zlib encoded, 32-bit pixel format.
+	 * 
+	 * @return	number of pixels in rectangle, or 0 if it is last rectangle
+	 */
+	private static int readRectangle(final DataInputStream in, final int encoding) throws IOException {
+		
+		in.readShort();
+		in.readShort();
+		
+		final int width = in.readUnsignedShort(), height = in.readUnsignedShort();
+		final int type = in.readInt();
+		
+		if (type == Encodings.LAST_RECT) {
+			
+			return 0;
+		}
+		
+		assertEquals(encoding, type);
+		
+		in.readFully(new byte[encoding == Encodings.ZLIB ? in.readInt() : width * height * 4]);
+		
+		return width * height;
+	}
+	
+	/**
+	 * Screen with gradient image.
+	 */
+	private static class GradientScreenCapture implements ScreenCaptureInterface {
+		
+		private final int width, height;
+		
+		/**
+		 * Change this value to change screen image.
+		 */
+		volatile int color = 0;
+		
+		/**
+		 * Number of screen captures.
+		 */
+		final AtomicInteger captures = new AtomicInteger();
+		
+		GradientScreenCapture(final int width, final int height) {
+			
+			this.width = width;
+			this.height = height;
+		}
+		
+		@Override
+		public TrueColorImage getScreenshot(final int x, final int y, final int width, final int height) {
+			
+			this.captures.incrementAndGet();
+			
+			final int[] raw = new int[width * height];
+			
+			for (int i = 0 ; i < raw.length ; i++) {
+				
+				raw[i] = ((x + i % width) << 16) | ((y + i / width) << 8) | this.color;
+			}
+			
+			return new TrueColorImage(raw, width, height);
+		}
+		
+		@Override
+		public TrueColorImage getScreenshot() {
+			
+			return getScreenshot(0, 0, this.width, this.height);
+		}
+		
+		@Override
+		public int getScreenWidth() {
+			
+			return this.width;
+		}
+		
+		@Override
+		public int getScreenHeight() {
+			
+			return this.height;
+		}
+	}
+	
+	/**
+	 * Full screen update, with some content.
+	 */
+	private static TrueColorImage fullUpdateImage(final int width, final int height) {
+		
+		final int[] raw = new int[width * height];
+		
+		for (int y = 0 ; y < height ; y++) {
+			
+			for (int x = 0 ; x < width ; x++) {
+				
+				raw[x + y * width] = ((x / 40) % 2 == 0) ? 0xFFFFFF : ((x * 31 + y * 17) & 0xFFFFFF);
+			}
+		}
+		
+		return new TrueColorImage(raw, width, height);
+	}
+	
+	/**
+	 * Split whole image into tiles of given size.
+	 */
+	private static List<Rectangle> tiles(final TrueColorImage image, final int tileSize) {
+		
+		final List<Rectangle> tiles = new ArrayList<>();
+		
+		for (int y = 0 ; y < image.height ; y += tileSize) {
+			
+			for (int x = 0 ; x < image.width ; x += tileSize) {
+				
+				tiles.add(new Rectangle(x, y, Math.min(tileSize, image.width - x), Math.min(tileSize, image.height - y)));
+			}
+		}
+		
+		return tiles;
+	}
+	
+	/**
+	 * Encode tasks in given executor, and join their buffers in order.
+	 */
+	private static byte[] encode(final List<Callable<EncodeBuffer>> tasks, final ExecutorService executor) throws Exception {
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		for (final Future<EncodeBuffer> future : executor.invokeAll(tasks)) {
+			
+			future.get().writeTo(out);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Run given task, and measure elapsed time and CPU time of process.
+	 * 
+	 * @return	elapsed time, and CPU time, in nanoseconds
+	 */
+	private static long[] measure(final Callable<?> task, final int rounds) throws Exception {
+		
+		final com.sun.management.OperatingSystemMXBean os =
+				(com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		
+		final long startedAt = System.nanoTime(), cpuStartedAt = os.getProcessCpuTime();
+		
+		for (int i = 0 ; i < rounds ; i++) {
+			
+			task.call();
+		}
+		
+		return new long[] {System.nanoTime() - startedAt, os.getProcessCpuTime() - cpuStartedAt};
+	}
 }
@@ -0,0 +1,38 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void test() {
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(50));
+
+		histogram.record(TimeUnit.MICROSECONDS.toNanos(500));	// < 1 ms
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(3));		// < 4 ms
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(3));		// < 4 ms
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(100));	// < 128 ms
+		histogram.record(TimeUnit.SECONDS.toNanos(5));			// >= 1024 ms
+
+		assertEquals(5, histogram.getCount());
+		assertArrayEquals(new long[] {1, 0, 2, 0, 0, 0, 0, 1, 0, 0, 0, 1}, histogram.getBuckets());
+		assertEquals((0.5 + 3 + 3 + 100 + 5000) / 5, histogram.getMean(), 0.001);
+
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(4, histogram.getPercentile(50));
+		assertEquals(128, histogram.getPercentile(80));
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(99));
+
+		assertEquals(1024, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 2));
+	}
+}
@@ -0,0 +1,229 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.encoding.Encodings;
+import com.scoreunit.rfb.screen.ScreenClip;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class NioTransportTest {
+
+	private static RFBService startService(final int tcpPort, final String password) throws TimeoutException {
+
+		final RFBService service = new RFBService(tcpPort);
+		service.setNioTransport(true);
+		service.setPassword(password);
+		service.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 64, (short) 48));
+
+		service.start();
+
+		RFBServiceTest.waitFor(RFBServiceTest.TIMEOUT, (x) -> service.isRunning() == true);
+
+		return service;
+	}
+
+	/**
+	 * Handshake of VNC client, without password.
+	 *
+	 * @return	width and height from ServerInit message
+	 */
+	static int[] handshake(final DataInputStream in, final DataOutputStream out) throws IOException {
+
+		final byte[] version = new byte[12];
+		in.readFully(version);
+		assertEquals(ProtocolVersion.ver, new String(version));
+
+		out.write(version);
+		out.flush();
+
+		final byte[] securityTypes = new byte[2];
+		in.readFully(securityTypes);
+		assertArrayEquals(new byte[] {1, SecurityTypes.NONE}, securityTypes);
+
+		out.write(SecurityTypes.NONE);
+		out.flush();
+
+		assertEquals(0, in.readInt()); // Security result OK.
+
+		out.write(1); // ClientInit, shared desktop.
+		out.flush();
+
+		final int width = in.readUnsignedShort(), height = in.readUnsignedShort();
+
+		in.readFully(new byte[16]); // Pixel format.
+		in.readFully(new byte[in.readInt()]); // Desktop name.
+
+		return new int[] {width, height};
+	}
+
+	@Test
+	public void test_01_session() throws Exception {
+
+		final int tcpPort = RFBServiceTest.randomPort();
+
+		final RFBService service = startService(tcpPort, null);
+
+		try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), tcpPort)) {
+
+			client.setSoTimeout(5000);
+
+			final DataInputStream in = new DataInputStream(client.getInputStream());
+			final DataOutputStream out = new DataOutputStream(client.getOutputStream());
+
+			assertArrayEquals(new int[] {64, 48}, handshake(in, out));
+
+			// Messages are split in pieces, session must wait for whole message.
+			out.write(2); // SetEncodings message code.
+			out.flush();
+			Thread.sleep(20);
+			out.write(0); // Padding.
+			out.writeShort(1);
+			out.writeInt(Encodings.RAW);
+
+			out.write(3); // Framebuffer update request, not incremental.
+			out.write(0);
+			out.writeShort(0);
+			out.writeShort(0);
+			out.flush();
+			Thread.sleep(20);
+			out.writeShort(64);
+			out.writeShort(48);
+			out.flush();
+
+			// First update is 'loading' screen, raw encoded.
+			assertEquals(0, in.read()); // FramebufferUpdate message type.
+			in.read(); // Padding.
+
+			final int rectangles = in.readUnsignedShort();
+			assertTrue(rectangles > 0);
+
+			int pixels = 0;
+
+			for (int i = 0 ; i < rectangles ; i++) {
+
+				in.readShort();
+				in.readShort();
+				final int width = in.readUnsignedShort(), height = in.readUnsignedShort();
+				assertEquals(Encodings.RAW, in.readInt());
+
+				in.readFully(new byte[width * height * 4]);
+
+				pixels += width * height;
+			}
+
+			assertEquals(64 * 48, pixels);
+		}
+		finally {
+
+			service.terminate();
+		}
+
+		RFBServiceTest.waitFor(RFBServiceTest.TIMEOUT, (x) -> service.isRunning() == false);
+	}
+
+	@Test
+	public void test_02_wrongPassword() throws Exception {
+
+		final int tcpPort = RFBServiceTest.randomPort() + 1;
+
+		final RFBService service = startService(tcpPort, "blabla123");
+
+		try (final Socket client = new Socket(InetAddress.getLoopbackAddress(), tcpPort)) {
+
+			client.setSoTimeout(5000);
+
+			final DataInputStream in = new DataInputStream(client.getInputStream());
+			final DataOutputStream out = new DataOutputStream(client.getOutputStream());
+
+			final byte[] version = new byte[12];
+			in.readFully(version);
+			out.write(version);
+			out.flush();
+
+			final byte[] securityTypes = new byte[2];
+			in.readFully(securityTypes);
+			assertArrayEquals(new byte[] {1, SecurityTypes.VNC_AUTH}, securityTypes);
+
+			out.write(SecurityTypes.VNC_AUTH);
+			out.flush();
+
+			final byte[] challenge = new byte[16];
+			in.readFully(challenge);
+
+			out.write(DESCipher.enc("wrongpwd", challenge));
+			out.flush();
+
+			// Security result failed, with reason, and then connection is closed.
+			assertEquals(1, in.readInt());
+			in.readFully(new byte[in.readInt()]);
+
+			assertEquals(-1, in.read());
+		}
+		finally {
+
+			service.terminate();
+		}
+	}
+
+	@Test
+	public void test_03_threadsPerClient() throws Exception {
+
+		final int tcpPort = RFBServiceTest.randomPort() + 2, clients = 50;
+
+		final RFBService service = startService(tcpPort, null);
+
+		final List<Socket> sockets = new ArrayList<>();
+
+		try {
+
+			// Let shared threads start, before counting.
+			sockets.add(connect(tcpPort));
+
+			final int threadsBefore = Thread.activeCount();
+
+			for (int i = 1 ; i < clients ; i++) {
+
+				sockets.add(connect(tcpPort));
+			}
+
+			final int threadsAfter = Thread.activeCount();
+
+			// No thread per client.
+			assertTrue(threadsAfter - threadsBefore < clients / 2);
+		}
+		finally {
+
+			for (final Socket socket : sockets) {
+
+				socket.close();
+			}
+
+			service.terminate();
+		}
+	}
+
+	private static Socket connect(final int tcpPort) throws IOException {
+
+		final Socket client = new Socket(InetAddress.getLoopbackAddress(), tcpPort);
+		client.setSoTimeout(5000);
+
+		handshake(new DataInputStream(client.getInputStream()), new DataOutputStream(client.getOutputStream()));
+
+		return client;
+	}
+}
@@ -20,6 +20,10 @@ public class RFBConfigTest {
 		assertArrayEquals(new int[]{1,2,3,4}, config.getPreferredEncodings());
 		assertEquals(new ScreenClip((short) 1, (short) 2, (short) 3, (short) 4)
 				, config.getScreenClip());
+		
+		// Screen capture service is created on demand, and shared afterwards.
+		assertNotNull(config.getSharedScreenCapture());
+		assertSame(config.getSharedScreenCapture(), config.getSharedScreenCapture());
 	}
 
 }
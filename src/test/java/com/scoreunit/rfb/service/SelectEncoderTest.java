@@ -11,6 +11,7 @@ import com.scoreunit.rfb.encoding.Encodings;
 import com.scoreunit.rfb.encoding.HextileEncoder;
 import com.scoreunit.rfb.encoding.RawEncoder;
 import com.scoreunit.rfb.encoding.RichCursorEncoder;
+import com.scoreunit.rfb.encoding.ZRLEEncoder;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class SelectEncoderTest {
@@ -25,7 +26,7 @@ public class SelectEncoderTest {
 		lastEncoder = SelectEncoder.selectEncoder(lastEncoder, clientEncodings, preferredEncodings);
 		
 		assertNotNull(lastEncoder);
-		assertTrue(lastEncoder instanceof HextileEncoder); // Hextile is first supported encoding in client list.
+		assertTrue(lastEncoder instanceof ZRLEEncoder); // ZRLE is first supported encoding in client list.
 	}
 
 	@Test
@@ -51,14 +52,14 @@ public class SelectEncoderTest {
 		lastEncoder = SelectEncoder.selectEncoder(lastEncoder, clientEncodings, preferredEncodings);
 		
 		assertNotNull(lastEncoder);
-		assertTrue(lastEncoder instanceof HextileEncoder); // First supported encoder by client.
+		assertTrue(lastEncoder instanceof ZRLEEncoder); // First supported encoder by client.
 	}
 	
 	@Test
 	public void test_04_fallbackEncoder() {
 		
 		EncodingInterface lastEncoder = new RichCursorEncoder();
-		final int[] clientEncodings = new int[]{Encodings.ZRLE}; // VNC client does not list any supported encoder.
+		final int[] clientEncodings = new int[]{Encodings.RRE}; // VNC client does not list any supported encoder.
 		final int[] preferredEncodings = null;
 		
 		lastEncoder = SelectEncoder.selectEncoder(lastEncoder, clientEncodings, preferredEncodings);
@@ -79,5 +80,32 @@ public class SelectEncoderTest {
 		assertNotNull(lastEncoder);
 		assertTrue(lastEncoder instanceof RawEncoder); // First supported encoder by client.
 	}
-	
+
+	@Test
+	public void test_06_pseudoEncoding() {
+		
+		EncodingInterface lastEncoder = null;
+		final int[] clientEncodings = new int[]{Encodings.RICH_CURSOR, Encodings.HEXTILE, Encodings.RAW}; // Pseudo-encoding is listed first.
+		final int[] preferredEncodings = null;
+		
+		lastEncoder = SelectEncoder.selectEncoder(lastEncoder, clientEncodings, preferredEncodings);
+		
+		assertNotNull(lastEncoder);
+		assertTrue(lastEncoder instanceof HextileEncoder); // Pseudo-encoding is not used for frame buffer.
+	}
+
+	@Test
+	public void test_07_findLevel() {
+		
+		// Typical list of VNC client program, with compression level 2 and JPEG quality level 6.
+		final int[] clientEncodings = new int[]{Encodings.TIGHT, Encodings.ZRLE, Encodings.RAW
+				, Encodings.COMPRESS_LEVEL_0 + 2, Encodings.JPEG_QUALITY_LEVEL_0 + 6, Encodings.RICH_CURSOR};
+		
+		assertEquals(2, SelectEncoder.findLevel(Encodings.COMPRESS_LEVEL_0, clientEncodings));
+		assertEquals(6, SelectEncoder.findLevel(Encodings.JPEG_QUALITY_LEVEL_0, clientEncodings));
+		
+		assertEquals(9, SelectEncoder.findLevel(Encodings.JPEG_QUALITY_LEVEL_0, new int[]{Encodings.JPEG_QUALITY_LEVEL_9}));
+		assertEquals(-1, SelectEncoder.findLevel(Encodings.COMPRESS_LEVEL_0, new int[]{Encodings.JPEG_QUALITY_LEVEL_9}));
+		assertEquals(-1, SelectEncoder.findLevel(Encodings.COMPRESS_LEVEL_0, null));
+	}
 }
@@ -0,0 +1,188 @@
+package com.scoreunit.rfb.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.Benchmark;
+import com.scoreunit.rfb.screen.ScreenClip;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class VirtualThreadsTest {
+
+	/**
+	 * Number of idle VNC clients in load test.
+	 */
+	private final static int CLIENTS = 100;
+
+	@Test
+	public void test_01_newThread() throws Exception {
+
+		final Thread platform = VirtualThreads.newThread(() -> {}, "platform", false);
+		assertEquals("platform", platform.getName());
+		assertTrue(platform.isDaemon() == false);
+
+		final Thread thread = VirtualThreads.newThread(() -> {}, "virtual", true);
+		assertEquals("virtual", thread.getName());
+
+		// Virtual threads are always daemon threads.
+		assertEquals(VirtualThreads.isSupported(), thread.isDaemon());
+
+		thread.start();
+		thread.join(1000);
+	}
+
+	@Test
+	public void test_02_loadPlatformThreads() throws Exception {
+
+		final long[] result = load(RFBServiceTest.randomPort(), false);
+
+		// Client handler and frame buffer updater, for each client.
+		assertTrue(result[0] >= 2 * CLIENTS);
+	}
+
+	@Test
+	public void test_03_loadVirtualThreads() throws Exception {
+
+		final long[] result = load(RFBServiceTest.randomPort() + 1, true);
+
+		if (VirtualThreads.isSupported() == true) {
+
+			assertTrue(result[0] < CLIENTS / 2);
+		}
+		else {
+
+			// Platform threads are used instead.
+			assertTrue(result[0] >= 2 * CLIENTS);
+		}
+	}
+
+	/**
+	 * Report platform threads, heap memory and reserved stack of platform threads per client,
+	 * for platform and virtual threads. Stack of a virtual thread is stored on heap while it is parked.
+	 */
+	@Test
+	@Category(Benchmark.class)
+	public void test_04_loadBenchmark() throws Exception {
+
+		for (final boolean virtual : new boolean[] {false, true}) {
+
+			final long[] result = load(RFBServiceTest.randomPort() + (virtual == true ? 3 : 2), virtual);
+
+			System.out.println(String.format("%s: %s threads%s, %d clients, platform threads per client: %.2f, heap per client: %d KB"
+					+ ", reserved stack per client: %d KB"
+					, VirtualThreadsTest.class.getSimpleName()
+					, virtual == true ? "virtual" : "platform"
+					, virtual == true && VirtualThreads.isSupported() == false ? " (not supported by JVM)" : ""
+					, CLIENTS
+					, result[0] / (double) CLIENTS
+					, Math.max(0, result[1]) / CLIENTS / 1024
+					, result[0] * threadStackSize() / CLIENTS / 1024));
+		}
+	}
+
+	/**
+	 * Connect {@link #CLIENTS} idle VNC clients, and measure platform threads and heap memory.
+	 *
+	 * @return	platform threads of client sessions, and used heap memory in bytes, per all clients
+	 */
+	private static long[] load(final int tcpPort, final boolean virtual) throws Exception {
+
+		final RFBService service = new RFBService(tcpPort);
+		service.setVirtualThreads(virtual);
+		service.setScreenClip(new ScreenClip((short) 0, (short) 0, (short) 64, (short) 48));
+		service.start();
+
+		RFBServiceTest.waitFor(RFBServiceTest.TIMEOUT, (x) -> service.isRunning() == true);
+
+		final List<Socket> sockets = new ArrayList<>();
+
+		try {
+
+			final long memoryBefore = usedHeap();
+
+			for (int i = 0 ; i < CLIENTS ; i++) {
+
+				final Socket client = new Socket(InetAddress.getLoopbackAddress(), tcpPort);
+				client.setSoTimeout(5000);
+
+				NioTransportTest.handshake(new DataInputStream(client.getInputStream())
+						, new DataOutputStream(client.getOutputStream()));
+
+				sockets.add(client);
+			}
+
+			final long threadsDelta = sessionThreads(sockets);
+			final long memoryDelta = usedHeap() - memoryBefore;
+
+			return new long[] {threadsDelta, memoryDelta};
+		}
+		finally {
+
+			for (final Socket socket : sockets) {
+
+				socket.close();
+			}
+
+			service.terminate();
+		}
+	}
+
+	/**
+	 * Used heap memory in bytes, after garbage collection.
+	 * Collect a few times, so objects with finalizers and weak references are gone too.
+	 */
+	private static long usedHeap() throws InterruptedException {
+
+		for (int i = 0 ; i < 3 ; i++) {
+
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Stack size, in bytes, reserved for each platform thread, outside of heap.
+	 */
+	private static long threadStackSize() {
+
+		final com.sun.management.HotSpotDiagnosticMXBean hotSpot =
+				ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+
+		return Long.parseLong(hotSpot.getVMOption("ThreadStackSize").getValue()) * 1024;
+	}
+
+	/**
+	 * Count platform threads of given VNC clients. Thread names of client handler and frame buffer updater
+	 * contain address of VNC client. Virtual threads are not listed by {@link Thread#getAllStackTraces()}.
+	 */
+	private static long sessionThreads(final List<Socket> sockets) {
+
+		final Set<String> addresses = new HashSet<>();
+
+		for (final Socket socket : sockets) {
+
+			addresses.add(socket.getLocalSocketAddress().toString() + "]");
+		}
+
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> addresses.stream().anyMatch(address -> thread.getName().contains(address)))
+				.count();
+	}
+}
@@ -6,6 +6,8 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import com.scoreunit.rfb.encoding.EncodeBuffer;
+
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class CompactLengthTest {
 
@@ -29,4 +31,17 @@ public class CompactLengthTest {
 		byte[] result = CompactLength.calc(104583);
 		assertArrayEquals(new byte[]{ (byte)0x87, (byte)0xB1, 0x06 }, result);		
 	}
+	
+	@Test
+	public void test_04_write() {
+		
+		final EncodeBuffer out = new EncodeBuffer(0);
+		
+		for (final int length : new int[] {0, 123, 127, 128, 10000, 16383, 16384, 104583, 4194303}) {
+			
+			out.clear();
+			CompactLength.write(out, length);
+			assertArrayEquals(CompactLength.calc(length), out.toByteArray());
+		}
+	}
 }
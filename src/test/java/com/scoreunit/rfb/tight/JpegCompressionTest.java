@@ -0,0 +1,193 @@
+package com.scoreunit.rfb.tight;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import com.scoreunit.rfb.Benchmark;
+import com.scoreunit.rfb.image.TrueColorImage;
+import com.scoreunit.rfb.service.SetPixelFormat;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class JpegCompressionTest {
+
+	/**
+	 * Photo-like image, smooth shapes with some noise.
+	 */
+	private static TrueColorImage photo(final int width, final int height, final long seed) {
+
+		final Random random = new Random(seed);
+
+		final int[] raw = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int value = (int) (100 + 60 * Math.sin((x + seed) / 10.0) * Math.cos(y / 15.0));
+
+				raw[x + y * width] = 0xFF000000
+						| ((value + random.nextInt(9)) << 16)
+						| ((value / 2 + random.nextInt(9)) << 8)
+						| (255 - value);
+			}
+		}
+
+		return new TrueColorImage(raw, width, height);
+	}
+
+	/**
+	 * Read JPEG image from encoded rectangle: compression control byte, compact length, and JPEG data.
+	 */
+	private static BufferedImage decode(final byte[] encodedData) throws Exception {
+
+		assertEquals((byte) 0x90, encodedData[0]);
+
+		int length = 0, offset = 1, shift = 0;
+
+		while (true) {
+
+			final int b = encodedData[offset++] & 0xFF;
+
+			length |= (b & (offset == 4 ? 0xFF : 0x7F)) << shift;
+			shift += 7;
+
+			if ((b & 0x80) == 0 || offset == 4) {
+
+				break;
+			}
+		}
+
+		assertEquals(encodedData.length - offset, length);
+
+		return ImageIO.read(new ByteArrayInputStream(encodedData, offset, length));
+	}
+
+	/**
+	 * Encode as before, with {@link TrueColorImage#toBGR(TrueColorImage)}, new image and {@link ImageIO#write}
+	 * for each rectangle.
+	 */
+	private static byte[] encodeWithImageIO(final TrueColorImage image) throws Exception {
+
+		final ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		bOut.write(0b10010000);
+
+		final byte[] bgr = TrueColorImage.toBGR(image);
+
+		final BufferedImage bgrBufferedImage = new BufferedImage(image.width, image.height, BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] rasterArray = ((DataBufferByte) bgrBufferedImage.getRaster().getDataBuffer()).getData();
+		System.arraycopy(bgr, 0, rasterArray, 0, rasterArray.length);
+
+		final ByteArrayOutputStream jpgOut = new ByteArrayOutputStream();
+		ImageIO.write(bgrBufferedImage, "jpg", jpgOut);
+
+		bOut.write(CompactLength.calc(jpgOut.size()));
+		bOut.write(jpgOut.toByteArray());
+
+		return bOut.toByteArray();
+	}
+
+	@Test
+	public void test_01_encodeDecode() throws Exception {
+
+		final JpegCompression jpegCompression = new JpegCompression();
+
+		// Buffers grow and are reused, for rectangles of different size.
+		final int[][] sizes = {{300, 200}, {16, 16}, {64, 480}, {300, 200}};
+
+		for (int i = 0 ; i < sizes.length ; i++) {
+
+			final TrueColorImage image = photo(sizes[i][0], sizes[i][1], i);
+
+			final BufferedImage decoded = decode(jpegCompression.encode(image, SetPixelFormat.default32bit()));
+
+			assertNotNull(decoded);
+			assertEquals(image.width, decoded.getWidth());
+			assertEquals(image.height, decoded.getHeight());
+
+			long error = 0;
+
+			for (int y = 0 ; y < image.height ; y++) {
+
+				for (int x = 0 ; x < image.width ; x++) {
+
+					final int expected = image.getPixel(x, y), actual = decoded.getRGB(x, y);
+
+					for (int shift = 0 ; shift < 24 ; shift += 8) {
+
+						error += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+					}
+				}
+			}
+
+			// Lossy, but close to original image, with red and blue components in right place.
+			final double averageError = (double) error / (3 * image.width * image.height);
+			assertTrue(String.format("Average error: %.2f", averageError), averageError < 8);
+		}
+	}
+
+	@Test
+	public void test_02_sameAsImageIO() throws Exception {
+
+		final TrueColorImage image = photo(128, 64, 7);
+
+		// Default quality level gives same JPEG data as ImageIO.write().
+		assertArrayEquals(encodeWithImageIO(image), new JpegCompression().encode(image, SetPixelFormat.default32bit()));
+	}
+
+	@Test
+	@Category(Benchmark.class)
+	public void test_03_benchmark() throws Exception {
+
+		final int iterations = 500;
+
+		final TrueColorImage[] images = new TrueColorImage[8];
+
+		for (int i = 0 ; i < images.length ; i++) {
+
+			images[i] = photo(64, 64, i);
+		}
+
+		final JpegCompression jpegCompression = new JpegCompression();
+
+		// Warm-up.
+		for (int i = 0 ; i < iterations ; i++) {
+
+			encodeWithImageIO(images[i % images.length]);
+			jpegCompression.encode(images[i % images.length], SetPixelFormat.default32bit());
+		}
+
+		final long imageIOStartedAt = System.nanoTime();
+		for (int i = 0 ; i < iterations ; i++) {
+
+			encodeWithImageIO(images[i % images.length]);
+		}
+		final long imageIOTime = System.nanoTime() - imageIOStartedAt;
+
+		final long reusedStartedAt = System.nanoTime();
+		for (int i = 0 ; i < iterations ; i++) {
+
+			jpegCompression.encode(images[i % images.length], SetPixelFormat.default32bit());
+		}
+		final long reusedTime = System.nanoTime() - reusedStartedAt;
+
+		System.out.println(String.format("%s: 64x64 rectangle, ImageIO.write: %.1f us/rect, reused writer: %.1f us/rect, speed-up: %.1fx"
+				, JpegCompressionTest.class.getSimpleName()
+				, imageIOTime / 1e3 / iterations, reusedTime / 1e3 / iterations
+				, (double) imageIOTime / Math.max(1, reusedTime)));
+	}
+}
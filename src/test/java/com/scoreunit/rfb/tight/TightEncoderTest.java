@@ -1,6 +1,8 @@
 package com.scoreunit.rfb.tight;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
 import java.awt.Graphics;
@@ -8,6 +10,8 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.Inflater;
 
 import javax.imageio.ImageIO;
@@ -70,6 +74,251 @@ public class TightEncoderTest {
 		
 		assertEquals(Encodings.TIGHT, encoder.getType());
 	}
+
+	@Test
+	public void test_04_fill() throws Exception {
+
+		final int width = 64, height = 32;
+
+		final int[] raw = new int[width * height];
+		Arrays.fill(raw, 0xFF336699);
+
+		final byte[] encodedData = new TightEncoder().encode(new TrueColorImage(raw, width, height), SetPixelFormat.default32bit());
+
+		// Compression control byte and TPIXEL value.
+		assertArrayEquals(new byte[] {(byte) 0x80, 0x33, 0x66, (byte) 0x99}, encodedData);
+		assertArrayEquals(raw, decode(encodedData, width, height, 4));
+	}
+
+	@Test
+	public void test_05_palette() throws Exception {
+
+		final int width = 101, height = 50;
+
+		// Two colors, eg. text.
+		final int[] mono = new int[width * height];
+
+		// Few colors.
+		final int[] indexed = new int[width * height];
+
+		for (int i = 0 ; i < mono.length ; i++) {
+
+			mono[i] = (i % 7 < 3) ? 0xFF000000 : 0xFFFFFFFF;
+			indexed[i] = 0xFF000000 | ((i / 3) % 20) * 0x0A0B0C;
+		}
+
+		final TightEncoder encoder = new TightEncoder();
+
+		byte[] encodedData = encoder.encode(new TrueColorImage(mono, width, height), SetPixelFormat.default32bit());
+
+		// Stream 1, with explicit filter id.
+		assertEquals(0x50, encodedData[0]);
+		assertEquals(BasicCompression.FILTER_PALETTE, encodedData[1]);
+		assertEquals(1, encodedData[2]);
+		assertArrayEquals(rgb(mono), decode(encodedData, width, height, 4));
+
+		encodedData = encoder.encode(new TrueColorImage(indexed, width, height), SetPixelFormat.default32bit());
+
+		// Stream 2, with explicit filter id.
+		assertEquals(0x60, encodedData[0]);
+		assertEquals(BasicCompression.FILTER_PALETTE, encodedData[1]);
+		assertEquals(19, encodedData[2]);
+		assertArrayEquals(rgb(indexed), decode(encodedData, width, height, 4));
+	}
+
+	@Test
+	public void test_06_gradient() throws Exception {
+
+		final int width = 300, height = 200;
+
+		final int[] raw = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				raw[x + y * width] = 0xFF000000 | ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | 0x80;
+			}
+		}
+
+		final byte[] encodedData = new TightEncoder().encode(new TrueColorImage(raw, width, height), SetPixelFormat.default32bit());
+
+		// Stream 3, with explicit filter id.
+		assertEquals(0x70, encodedData[0]);
+		assertEquals(BasicCompression.FILTER_GRADIENT, encodedData[1]);
+		assertArrayEquals(rgb(raw), decode(encodedData, width, height, 4));
+
+		// Lossless, yet much smaller than raw pixels.
+		assertTrue(encodedData.length < raw.length / 10);
+	}
+
+	@Test
+	public void test_07_photoAndNoise() throws Exception {
+
+		final int width = 128, height = 96;
+
+		final Random random = new Random(1);
+
+		final int[] photo = new int[width * height];
+		final int[] noise = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				// Smooth shapes, with noise in each color component.
+				final int value = (int) (100 + 60 * Math.sin(x / 10.0) * Math.cos(y / 15.0));
+
+				photo[x + y * width] = 0xFF000000
+						| ((value + random.nextInt(17)) << 16)
+						| ((value / 2 + random.nextInt(17)) << 8)
+						| (255 - value - random.nextInt(17));
+				noise[x + y * width] = random.nextInt();
+			}
+		}
+
+		final TightEncoder encoder = new TightEncoder();
+		encoder.setQualityLevel(6);
+
+		// JPEG compression.
+		assertEquals((byte) 0x90, encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit())[0]);
+
+		// Stream 0, copy filter.
+		final byte[] encodedData = encoder.encode(new TrueColorImage(noise, width, height), SetPixelFormat.default32bit());
+		assertEquals(0x00, encodedData[0]);
+		assertArrayEquals(rgb(noise), decode(encodedData, width, height, 4));
+	}
+
+	@Test
+	public void test_08_streams() throws Exception {
+
+		final TightEncoder encoder = new TightEncoder();
+
+		// Zlib streams live for whole connection, so same inflaters are used for all rectangles.
+		final Inflater[] inflaters = new Inflater[4];
+
+		final Random random = new Random(2);
+
+		for (int i = 0 ; i < 20 ; i++) {
+
+			// Small rectangles, with data that is sent without compression.
+			final int width = 1 + random.nextInt(i % 2 == 0 ? 4 : 64);
+			final int height = 1 + random.nextInt(i % 2 == 0 ? 2 : 64);
+
+			final int[] raw = new int[width * height];
+
+			for (int j = 0 ; j < raw.length ; j++) {
+
+				raw[j] = 0xFF000000 | (random.nextInt(i % 3 + 2) * 0x102030);
+			}
+
+			final byte[] encodedData = encoder.encode(new TrueColorImage(raw, width, height), SetPixelFormat.default32bit());
+
+			final int[] decoded = decode(encodedData, width, height, 4, inflaters);
+
+			// Fill compression decodes to image with alpha channel.
+			assertArrayEquals(encodedData[0] == (byte) 0x80 ? raw : rgb(raw), decoded);
+		}
+	}
+
+	@Test
+	public void test_09_levels() throws Exception {
+
+		final int width = 256, height = 128;
+
+		final Random random = new Random(3);
+
+		final int[] photo = new int[width * height];
+		final int[] gradient = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int value = (int) (100 + 60 * Math.sin(x / 10.0) * Math.cos(y / 15.0));
+
+				photo[x + y * width] = 0xFF000000 | ((value + random.nextInt(17)) << 16) | ((value + random.nextInt(17)) << 8) | value;
+				gradient[x + y * width] = 0xFF000000 | (x << 16) | (y << 8);
+			}
+		}
+
+		final TightEncoder encoder = new TightEncoder();
+
+		encoder.setQualityLevel(0);
+		final byte[] lowQuality = encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit());
+
+		encoder.setQualityLevel(9);
+		final byte[] highQuality = encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit());
+
+		assertEquals((byte) 0x90, lowQuality[0]);
+		assertEquals((byte) 0x90, highQuality[0]);
+		assertTrue(String.format("Low quality: %d bytes, high quality: %d bytes.", lowQuality.length, highQuality.length)
+				, lowQuality.length * 2 < highQuality.length);
+
+		// Compression level applies to zlib streams, and VNC client can still decode them.
+		final Inflater[] inflaters = new Inflater[4];
+
+		encoder.setCompressionLevel(0);
+		final byte[] stored = encoder.encode(new TrueColorImage(gradient, width, height), SetPixelFormat.default32bit());
+		assertArrayEquals(rgb(gradient), decode(stored, width, height, 4, inflaters));
+
+		encoder.setCompressionLevel(9);
+		final byte[] compressed = encoder.encode(new TrueColorImage(gradient, width, height), SetPixelFormat.default32bit());
+		assertArrayEquals(rgb(gradient), decode(compressed, width, height, 4, inflaters));
+
+		assertTrue(compressed.length < stored.length);
+	}
+
+	@Test
+	public void test_10_noQualityLevel() throws Exception {
+
+		final int width = 128, height = 96;
+
+		final Random random = new Random(4);
+
+		final int[] photo = new int[width * height];
+
+		for (int y = 0 ; y < height ; y++) {
+
+			for (int x = 0 ; x < width ; x++) {
+
+				final int value = (int) (100 + 60 * Math.sin(x / 10.0) * Math.cos(y / 15.0));
+
+				photo[x + y * width] = 0xFF000000 | ((value + random.nextInt(17)) << 16) | ((value + random.nextInt(17)) << 8) | value;
+			}
+		}
+
+		final TightEncoder encoder = new TightEncoder();
+
+		// VNC client did not request JPEG quality level, photo is sent with gradient filter, without loss.
+		final byte[] encodedData = encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit());
+
+		assertEquals(0x70, encodedData[0]);
+		assertEquals(BasicCompression.FILTER_GRADIENT, encodedData[1]);
+		assertArrayEquals(rgb(photo), decode(encodedData, width, height, 4));
+
+		// JPEG compression, until VNC client sends encodings without quality level.
+		encoder.setQualityLevel(5);
+		assertEquals((byte) 0x90, encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit())[0]);
+
+		encoder.setQualityLevel(-1);
+		assertTrue(encoder.encode(new TrueColorImage(photo, width, height), SetPixelFormat.default32bit())[0] != (byte) 0x90);
+	}
+
+	/**
+	 * @return	24-bit RGB pixel values, as decoded by VNC client
+	 */
+	private static int[] rgb(final int[] raw) {
+
+		final int[] result = new int[raw.length];
+
+		for (int i = 0 ; i < raw.length ; i++) {
+
+			result[i] = raw[i] & 0xFFFFFF;
+		}
+
+		return result;
+	}
 	
 	/**
 	 * Code is taken from <b>VncCanvas</b> class, method <i>void handleTightRect(int x, int y, int w, int h)</i>
@@ -91,6 +340,16 @@ public class TightEncoderTest {
 	 */
 	private int[] decode(byte[] encodedData, int width, int height, int bytesPixel) throws Exception {
 		
+		return decode(encodedData, width, height, bytesPixel, new Inflater[4]);
+	}
+	
+	/**
+	 * Decode Tight encoded rectangle, with zlib streams that live for whole RFB connection.
+	 * 
+	 * @param tightInflaters	-	zlib streams, one for each stream id
+	 */
+	private int[] decode(byte[] encodedData, int width, int height, int bytesPixel, Inflater[] tightInflaters) throws Exception {
+		
 		final BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 		
 		final int w = width, h = height, x = 0, y = 0;
@@ -124,8 +383,6 @@ public class TightEncoderTest {
 
 		int comp_ctl = rfb.readU8();
 
-		final Inflater[] tightInflaters = new Inflater[4];
-
 		// Flush zlib streams if we are told by the server to do so.
 		for (int stream_id = 0; stream_id < 4; stream_id++) {
 			if ((comp_ctl & 1) != 0 && tightInflaters[stream_id] != null) {